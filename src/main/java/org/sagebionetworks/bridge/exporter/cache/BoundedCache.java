@@ -0,0 +1,116 @@
+package org.sagebionetworks.bridge.exporter.cache;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * <p>
+ * In-memory cache with a max size, an optional TTL, and hit, miss, and eviction stats. When the cache is full, the
+ * least recently used entries are evicted first. (Eviction is approximately LRU, since the backing Guava cache is
+ * segmented for concurrency.)
+ * </p>
+ * <p>
+ * Null values are cached, since for us null usually means "doesn't exist", and that's just as expensive to look up.
+ * Exceptions are not cached. Concurrent calls for the same key only call the loader once.
+ * </p>
+ * <p>
+ * Caches are usually created through {@link CacheRegistry}, which configures them and reports their stats.
+ * </p>
+ */
+public class BoundedCache<K, V> {
+    private final String name;
+    private final long maxSize;
+    private final long ttlMinutes;
+    private final Cache<K, Optional<V>> cache;
+
+    /**
+     * Creates a cache.
+     *
+     * @param name
+     *         cache name, used for config and metrics
+     * @param maxSize
+     *         max number of entries in the cache
+     * @param ttlMinutes
+     *         how long until an entry expires, in minutes, or 0 if entries never expire
+     */
+    public BoundedCache(String name, long maxSize, long ttlMinutes) {
+        this(name, maxSize, ttlMinutes, Ticker.systemTicker());
+    }
+
+    // Constructor with ticker, so unit tests can control time.
+    BoundedCache(String name, long maxSize, long ttlMinutes, Ticker ticker) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.ttlMinutes = ttlMinutes;
+
+        CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats()
+                .ticker(ticker);
+        if (ttlMinutes > 0) {
+            cacheBuilder.expireAfterWrite(ttlMinutes, TimeUnit.MINUTES);
+        }
+        this.cache = cacheBuilder.build();
+    }
+
+    /** Cache name, used for config and metrics. */
+    public String getName() {
+        return name;
+    }
+
+    /** Max number of entries in the cache. */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /** How long until an entry expires, in minutes, or 0 if entries never expire. */
+    public long getTtlMinutes() {
+        return ttlMinutes;
+    }
+
+    /**
+     * Gets the value for the given key. If the value isn't cached (or has expired), this calls the loader and caches
+     * the result. If the loader throws, the exception is propagated and nothing is cached.
+     *
+     * @param key
+     *         key to get, must be non-null
+     * @param loader
+     *         loads the value if it's not cached, may return null
+     * @return the value, may be null
+     */
+    public V get(K key, Supplier<V> loader) {
+        try {
+            return cache.get(key, () -> Optional.ofNullable(loader.get())).orElse(null);
+        } catch (UncheckedExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        } catch (ExecutionException ex) {
+            // Loader is a Supplier, so it can't throw checked exceptions. This should never happen.
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /** Removes all entries from the cache. Stats are kept. */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /** Approximate number of entries in the cache. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Hit, miss, and eviction stats since the cache was created. */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+}
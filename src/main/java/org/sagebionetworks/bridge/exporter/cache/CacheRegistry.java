@@ -0,0 +1,87 @@
+package org.sagebionetworks.bridge.exporter.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * Creates and keeps track of Bridge-EX's in-memory caches. Each cache's size and TTL can be overridden in config with
+ * cache.[name].max.size and cache.[name].ttl.minutes. Cache stats are added to each request's metrics as gauges. Since
+ * caches live across requests, these are totals since the worker started.
+ */
+@Component
+public class CacheRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(CacheRegistry.class);
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_PREFIX = "cache.";
+    static final String CONFIG_KEY_SUFFIX_MAX_SIZE = ".max.size";
+    static final String CONFIG_KEY_SUFFIX_TTL_MINUTES = ".ttl.minutes";
+
+    private final List<BoundedCache<?, ?>> cacheList = new CopyOnWriteArrayList<>();
+    private Config config;
+
+    /** Config, used to get cache sizes and TTLs. */
+    @Autowired
+    public final void setConfig(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Creates and registers a cache. Config overrides the default size and TTL, if set.
+     *
+     * @param name
+     *         cache name, used for config and metrics
+     * @param defaultMaxSize
+     *         max number of entries, if not set in config
+     * @param defaultTtlMinutes
+     *         TTL in minutes, if not set in config, or 0 if entries never expire
+     * @return the new cache
+     */
+    public <K, V> BoundedCache<K, V> newCache(String name, int defaultMaxSize, int defaultTtlMinutes) {
+        int maxSize = getConfigInt(CONFIG_KEY_PREFIX + name + CONFIG_KEY_SUFFIX_MAX_SIZE, defaultMaxSize);
+        int ttlMinutes = getConfigInt(CONFIG_KEY_PREFIX + name + CONFIG_KEY_SUFFIX_TTL_MINUTES, defaultTtlMinutes);
+
+        BoundedCache<K, V> cache = new BoundedCache<>(name, maxSize, ttlMinutes);
+        cacheList.add(cache);
+        LOG.info("Created cache " + name + " with maxSize=" + maxSize + ", ttlMinutes=" + ttlMinutes);
+        return cache;
+    }
+
+    // Helper method which gets a positive int from config, or the default if it's not set. Config.getInt() throws if
+    // the key isn't set, and these keys are optional.
+    private int getConfigInt(String key, int defaultValue) {
+        String value = config.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        int configValue = Integer.parseInt(value.trim());
+        return configValue > 0 ? configValue : defaultValue;
+    }
+
+    /**
+     * Adds the size, hits, misses, and evictions of each cache to the given metrics as gauges.
+     *
+     * @param metrics
+     *         metrics for the request
+     */
+    public void captureMetrics(Metrics metrics) {
+        for (BoundedCache<?, ?> oneCache : cacheList) {
+            String name = oneCache.getName();
+            CacheStats stats = oneCache.getStats();
+            metrics.setGauge("cacheSize[" + name + "]", oneCache.size());
+            metrics.setGauge("cacheHits[" + name + "]", stats.hitCount());
+            metrics.setGauge("cacheMisses[" + name + "]", stats.missCount());
+            metrics.setGauge("cacheEvictions[" + name + "]", stats.evictionCount());
+        }
+    }
+}
@@ -53,6 +53,8 @@ import org.sagebionetworks.bridge.sqs.SqsHelper;
 public class SpringConfig {
     private static final String CONFIG_FILE = "BridgeExporter.conf";
     private static final String DEFAULT_CONFIG_FILE = CONFIG_FILE;
+    private static final String IO_POOL_MODE_ELASTIC = "elastic";
+    private static final int MIN_WORKER_THREADS = 4;
     private static final String USER_CONFIG_FILE = System.getProperty("user.home") + "/" + CONFIG_FILE;
 
     @Bean
@@ -132,6 +134,11 @@ public class SpringConfig {
         return ddbClient().getTable(ddbPrefix() + "Study");
     }
 
+    @Bean(name = "ddbExportCheckpointTable")
+    public Table ddbExportCheckpointTable() {
+        return ddbClient().getTable(ddbPrefix() + "ExportCheckpoint");
+    }
+
     @Bean(name = "ddbExportTimeTable")
     public Table ddbExportTimeTable() {
         return ddbClient().getTable(ddbPrefix() + "ExportTime");
@@ -154,10 +161,15 @@ public class SpringConfig {
         return new DigestUtils(DigestUtils.getMd5Digest());
     }
 
+    @Bean
+    public AmazonS3Client s3Client() {
+        return new AmazonS3Client();
+    }
+
     @Bean
     public S3Helper s3Helper() {
         S3Helper s3Helper = new S3Helper();
-        s3Helper.setS3Client(new AmazonS3Client());
+        s3Helper.setS3Client(s3Client());
         return s3Helper;
     }
 
@@ -204,9 +216,54 @@ public class SpringConfig {
         return synapseClient;
     }
 
+    // Export workers. Workers do the CPU work of each subtask and hand off attachment I/O to the I/O pool, but they
+    // still block until that I/O finishes, and TSV setup, table creation, and the app version and iOS survey handlers
+    // still do their I/O on the worker. So if the thread count isn't configured, this is sized to the number of cores,
+    // but never fewer than the 4 workers we had before the I/O pool. The WorkerConcurrencyController resizes this pool
+    // at runtime.
     @Bean(name = "workerExecutorService")
     public ExecutorService workerExecutorService() {
-        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.worker.count"));
+        int numThreads = bridgeConfig().getInt("threadpool.worker.count");
+        if (numThreads <= 0) {
+            numThreads = Math.max(Runtime.getRuntime().availableProcessors(), MIN_WORKER_THREADS);
+        }
+        return Executors.newFixedThreadPool(numThreads);
+    }
+
+    // Blocking I/O steps of export subtasks (attachment uploads to Synapse, large text downloads from S3). These
+    // mostly wait on the network, so this is much larger than the worker pool. In elastic mode, every I/O step gets
+    // its own thread, and concurrency is bounded by the per-backend call limits in SynapseHelper instead of the
+    // thread count.
+    @Bean(name = "ioExecutorService")
+    public ExecutorService ioExecutorService() {
+        Config config = bridgeConfig();
+        if (IO_POOL_MODE_ELASTIC.equals(config.get("threadpool.io.mode"))) {
+            return Executors.newCachedThreadPool();
+        }
+        return Executors.newFixedThreadPool(Math.max(1, config.getInt("threadpool.io.count")));
+    }
+
+    // Per-study record ID queries. Queries are I/O bound and mostly wait on DDB, so this is separate from the worker
+    // pool. This is shared by all requests, and a query holds its thread while it waits for the request to take its
+    // record IDs, so this is an unbounded cached pool. Each request's record ID source runs at most
+    // record.query.parallelism queries at once (see ParallelRecordIdSource).
+    @Bean(name = "recordQueryExecutorService")
+    public ExecutorService recordQueryExecutorService() {
+        return Executors.newCachedThreadPool();
+    }
+
+    // Record pipeline stages. Each request runs its own set of stage threads, which spend most of their time blocked
+    // on queues, DDB, or Bridge, so this is an unbounded cached pool. Thread counts are bounded by the pipeline config.
+    @Bean(name = "recordPipelineExecutorService")
+    public ExecutorService recordPipelineExecutorService() {
+        return Executors.newCachedThreadPool();
+    }
+
+    // Participant lookups ahead of the record filter. The thread count bounds the number of concurrent calls to
+    // Bridge.
+    @Bean(name = "participantPrefetchExecutorService")
+    public ExecutorService participantPrefetchExecutorService() {
+        return Executors.newFixedThreadPool(Math.max(1, bridgeConfig().getInt("participant.prefetch.threads")));
     }
 
     @Bean(name = "synapseColumnDefinitions")
@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.exporter.config;
 
 import java.util.List;
+import javax.annotation.Resource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,6 +9,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequestScheduler;
 import org.sagebionetworks.bridge.heartbeat.HeartbeatLogger;
 import org.sagebionetworks.bridge.sqs.PollSqsWorker;
 
@@ -19,22 +21,33 @@ import org.sagebionetworks.bridge.sqs.PollSqsWorker;
 public class WorkerLauncher implements CommandLineRunner {
     private static final Logger LOG = LoggerFactory.getLogger(WorkerLauncher.class);
 
+    private PollSqsWorker exporterSqsWorker;
     private HeartbeatLogger heartbeatLogger;
     private List<PollSqsWorker> pollSqsWorkers;
+    private BridgeExporterRequestScheduler requestScheduler;
+
+    /** Poll SQS worker for export requests. We run one thread of this for each request the scheduler can hold. */
+    @Resource(name = "exporterSqsWorker")
+    public final void setExporterSqsWorker(PollSqsWorker exporterSqsWorker) {
+        this.exporterSqsWorker = exporterSqsWorker;
+    }
 
     @Autowired
     public final void setHeartbeatLogger(HeartbeatLogger heartbeatLogger) {
         this.heartbeatLogger = heartbeatLogger;
     }
 
-    // This is singleton, because the bottleneck is how many threads we can spin up to handle one export job, not how
-    // many export jobs we can do in parallel. If we for some reason find we need to do parallel export jobs, we can
-    // move this to multi-threading.
     @Autowired
     public final void setPollSqsWorkers(List<PollSqsWorker> pollSqsWorkers) {
         this.pollSqsWorkers = pollSqsWorkers;
     }
 
+    /** Request scheduler, used to determine how many export requests we can run or queue at the same time. */
+    @Autowired
+    public final void setRequestScheduler(BridgeExporterRequestScheduler requestScheduler) {
+        this.requestScheduler = requestScheduler;
+    }
+
     /**
      * Main entry point into the app. Should only be called by Spring Boot.
      *
@@ -48,8 +61,15 @@ public class WorkerLauncher implements CommandLineRunner {
 
         LOG.info("Starting poll SQS workers...");
         for (PollSqsWorker pollSqsWorker : pollSqsWorkers) {
-            LOG.info("Starting poll SQS worker");
-            new Thread(pollSqsWorker).start();
+            // Export requests can run in parallel. Each thread receives one request at a time, waits for the scheduler
+            // to run it, and only acknowledges the request when it's done. The scheduler bounds the wait, so a queued
+            // request doesn't outlive its SQS visibility timeout. The poll loop keeps no state between messages, so
+            // the threads can share a worker.
+            int numThreads = pollSqsWorker == exporterSqsWorker ? requestScheduler.getMaxPendingRequests() : 1;
+            for (int i = 0; i < numThreads; i++) {
+                LOG.info("Starting poll SQS worker");
+                new Thread(pollSqsWorker).start();
+            }
         }
     }
 }
@@ -6,14 +6,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.RateLimiter;
-import com.jcabi.aspects.Cacheable;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.slf4j.Logger;
@@ -23,6 +21,8 @@ import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoScanHelper;
+import org.sagebionetworks.bridge.exporter.cache.BoundedCache;
+import org.sagebionetworks.bridge.exporter.cache.CacheRegistry;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
@@ -42,6 +42,9 @@ public class DynamoHelper {
     private static final String STUDY_INFO_KEY_STUDY_ID_EXCLUDED_IN_EXPORT = "studyIdExcludedInExport";
     private static final String STUDY_INFO_KEY_USES_CUSTOM_EXPORT_SCHEDULE = "usesCustomExportSchedule";
 
+    static final String CACHE_NAME_STUDY_INFO = "ddb.study.info";
+    static final int DEFAULT_STUDY_INFO_CACHE_MAX_SIZE = 1000;
+    static final int DEFAULT_STUDY_INFO_CACHE_TTL_MINUTES = 5;
     static final String IDENTIFIER = "identifier";
     static final String LAST_EXPORT_DATE_TIME = "lastExportDateTime";
     static final String STUDY_ID = "studyId";
@@ -51,6 +54,10 @@ public class DynamoHelper {
     private DynamoScanHelper ddbScanHelper;
     private DateTimeZone timeZone;
 
+    // Starts with defaults, so we don't need a cache registry in unit tests.
+    private BoundedCache<String, StudyInfo> studyInfoCache = new BoundedCache<>(CACHE_NAME_STUDY_INFO,
+            DEFAULT_STUDY_INFO_CACHE_MAX_SIZE, DEFAULT_STUDY_INFO_CACHE_TTL_MINUTES);
+
     // Rate limiter, used to limit the amount of traffic to DDB, specifically for when we loop over a potentially
     // unbounded series of studies. Conservatively limit at 1 req/sec.
     private final RateLimiter rateLimiter = RateLimiter.create(1.0);
@@ -78,15 +85,26 @@ public class DynamoHelper {
         this.ddbScanHelper = ddbScanHelper;
     }
 
+    /** Cache registry, used to create the study info cache. */
+    @Autowired
+    final void setCacheRegistry(CacheRegistry cacheRegistry) {
+        studyInfoCache = cacheRegistry.newCache(CACHE_NAME_STUDY_INFO, DEFAULT_STUDY_INFO_CACHE_MAX_SIZE,
+                DEFAULT_STUDY_INFO_CACHE_TTL_MINUTES);
+    }
+
     /**
-     * Get study info, namely Synapse project and data access team.
+     * Get study info, namely Synapse project and data access team. Study info is cached.
      *
      * @param studyId
      *         study ID to fetch
      * @return study info
      */
-    @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
     public StudyInfo getStudyInfo(String studyId) {
+        return studyInfoCache.get(studyId, () -> getStudyInfoUncached(studyId));
+    }
+
+    // Helper method that reads the study info from DDB.
+    private StudyInfo getStudyInfoUncached(String studyId) {
         Item studyItem = ddbStudyTable.getItem("identifier", studyId);
         if (studyItem == null) {
             return null;
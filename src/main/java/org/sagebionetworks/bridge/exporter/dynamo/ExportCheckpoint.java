@@ -0,0 +1,140 @@
+package org.sagebionetworks.bridge.exporter.dynamo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+/**
+ * <p>
+ * Progress checkpoint for a request, keyed by the request tag and a hash of the request. If Synapse goes down in the
+ * middle of a request, the request is restarted from scratch (see RestartBridgeExporterException). The checkpoint lets
+ * the restarted request skip the work that was already written to Synapse, namely:
+ * </p>
+ * <ul>
+ *     <li>Per-study uploadedOn watermark - All records in the study uploaded before the watermark have been fully
+ *     exported, including the meta tables and the status table. This is set once a study is done.</li>
+ *     <li>Completed tables - Health data tables whose TSV has been uploaded to Synapse. The records in these tables
+ *     don't need to be written again.</li>
+ * </ul>
+ * <p>
+ * The checkpoint also holds the request JSON, which is part of the key, and which guards against resuming a different
+ * request on a hash collision. This class is thread-safe.
+ * </p>
+ */
+public class ExportCheckpoint {
+    private final String tag;
+    private final String requestJson;
+    private final Set<String> completedTableSet;
+    private final Map<String, Long> uploadedOnWatermarkByStudy;
+
+    // Max uploadedOn of the records seen in this run, by study. Used to compute the watermark for requests without an
+    // end date, such as record ID override requests. This is not persisted.
+    private final Map<String, Long> maxUploadedOnByStudy = new HashMap<>();
+
+    /**
+     * Constructs a checkpoint.
+     *
+     * @param tag
+     *         request tag, which is part of the checkpoint key
+     * @param requestJson
+     *         request serialized as JSON, used to detect whether a saved checkpoint belongs to the same request
+     * @param completedTableSet
+     *         health data tables already uploaded to Synapse, as schema key strings; may be null
+     * @param uploadedOnWatermarkByStudy
+     *         uploadedOn watermark (epoch milliseconds) of each completed study; may be null
+     */
+    public ExportCheckpoint(String tag, String requestJson, Set<String> completedTableSet,
+            Map<String, Long> uploadedOnWatermarkByStudy) {
+        this.tag = tag;
+        this.requestJson = requestJson;
+        this.completedTableSet = completedTableSet != null ? new HashSet<>(completedTableSet) : new HashSet<>();
+        this.uploadedOnWatermarkByStudy = uploadedOnWatermarkByStudy != null ?
+                new HashMap<>(uploadedOnWatermarkByStudy) : new HashMap<>();
+    }
+
+    /** Request tag, which is part of the checkpoint key. */
+    public String getTag() {
+        return tag;
+    }
+
+    /** Request serialized as JSON. */
+    public String getRequestJson() {
+        return requestJson;
+    }
+
+    /** True if no work has been checkpointed yet. */
+    public synchronized boolean isEmpty() {
+        return completedTableSet.isEmpty() && uploadedOnWatermarkByStudy.isEmpty();
+    }
+
+    /** Snapshot of the completed health data tables, as schema key strings. */
+    public synchronized Set<String> getCompletedTableSet() {
+        return ImmutableSet.copyOf(completedTableSet);
+    }
+
+    /** True if the health data table for the given schema has already been uploaded to Synapse. */
+    public synchronized boolean isTableCompleted(UploadSchemaKey schemaKey) {
+        return completedTableSet.contains(schemaKey.toString());
+    }
+
+    /** Marks the health data table for the given schema as uploaded to Synapse. */
+    public synchronized void addCompletedTable(UploadSchemaKey schemaKey) {
+        completedTableSet.add(schemaKey.toString());
+    }
+
+    /** Snapshot of the uploadedOn watermarks (epoch milliseconds) by study. */
+    public synchronized Map<String, Long> getUploadedOnWatermarkByStudy() {
+        return ImmutableMap.copyOf(uploadedOnWatermarkByStudy);
+    }
+
+    /** Gets the uploadedOn watermark (epoch milliseconds) for the given study, or null if the study isn't done. */
+    public synchronized Long getUploadedOnWatermarkForStudy(String studyId) {
+        return uploadedOnWatermarkByStudy.get(studyId);
+    }
+
+    /** True if the given record was already fully exported, according to its study's watermark. */
+    public synchronized boolean isRecordCompleted(String studyId, long uploadedOn) {
+        Long watermark = uploadedOnWatermarkByStudy.get(studyId);
+        return watermark != null && uploadedOn < watermark;
+    }
+
+    /** Tracks the uploadedOn of a record exported in this run, so we can compute the study's watermark. */
+    public synchronized void observeRecord(String studyId, long uploadedOn) {
+        Long maxUploadedOn = maxUploadedOnByStudy.get(studyId);
+        if (maxUploadedOn == null || uploadedOn > maxUploadedOn) {
+            maxUploadedOnByStudy.put(studyId, uploadedOn);
+        }
+    }
+
+    /**
+     * Marks the given study as done. The watermark is the request's end date, if there is one. Otherwise, it's just
+     * past the latest record we've seen for that study. If neither is available, the study has no watermark.
+     *
+     * @param studyId
+     *         study that's done
+     * @param endDateTime
+     *         request end date, may be null
+     */
+    public synchronized void markStudyCompleted(String studyId, DateTime endDateTime) {
+        Long watermark = null;
+        if (endDateTime != null) {
+            watermark = endDateTime.getMillis();
+        } else if (maxUploadedOnByStudy.containsKey(studyId)) {
+            watermark = maxUploadedOnByStudy.get(studyId) + 1;
+        }
+
+        if (watermark != null) {
+            Long oldWatermark = uploadedOnWatermarkByStudy.get(studyId);
+            if (oldWatermark == null || watermark > oldWatermark) {
+                uploadedOnWatermarkByStudy.put(studyId, watermark);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.sagebionetworks.bridge.exporter.dynamo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.hash.Hashing;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * Loads, saves, and deletes request checkpoints (see {@link ExportCheckpoint}) in the DDB checkpoint table, keyed by
+ * request tag plus a hash of the request. Many requests share a tag (in particular, untagged requests all get the
+ * default tag), and these may run concurrently, so the tag alone isn't enough to keep their checkpoints apart.
+ * Checkpoints are best effort. Errors reading or writing checkpoints are logged and otherwise ignored,
+ * since the worst case is that a restarted request redoes some work.
+ */
+@Component
+public class ExportCheckpointHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(ExportCheckpointHelper.class);
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_CHECKPOINT_ENABLED = "checkpoint.enabled";
+    static final String KEY_COMPLETED_TABLES = "completedTables";
+    static final String KEY_EXPIRES_ON = "expiresOn";
+    static final String KEY_REQUEST = "request";
+    static final String KEY_TAG = "tag";
+    static final String KEY_UPLOADED_ON_WATERMARKS = "uploadedOnWatermarks";
+
+    // Requests that never finish leave their checkpoints behind. Expire them with DDB TTL after this many days.
+    static final int CHECKPOINT_TTL_DAYS = 7;
+
+    private boolean checkpointEnabled;
+    private Table ddbExportCheckpointTable;
+
+    /**
+     * Gets the DDB key for the given request's checkpoint, which is the request tag plus a hash of the request JSON.
+     * Package-scoped to be available to unit tests.
+     */
+    static String getCheckpointKey(String tag, String requestJson) {
+        return tag + ":" + Hashing.sha256().hashString(requestJson, StandardCharsets.UTF_8).toString();
+    }
+
+    /** Config, used to determine whether checkpointing is enabled. */
+    @Autowired
+    final void setConfig(Config config) {
+        checkpointEnabled = Boolean.parseBoolean(config.get(CONFIG_KEY_CHECKPOINT_ENABLED));
+    }
+
+    /** DDB Export Checkpoint table. */
+    @Resource(name = "ddbExportCheckpointTable")
+    final void setDdbExportCheckpointTable(Table ddbExportCheckpointTable) {
+        this.ddbExportCheckpointTable = ddbExportCheckpointTable;
+    }
+
+    /**
+     * Gets the checkpoint for the given request. If there's no saved checkpoint, or if the saved checkpoint belongs
+     * to a different request (which would only happen on a hash collision), this returns an empty checkpoint. If
+     * checkpointing is disabled, this returns null.
+     *
+     * @param request
+     *         request to get the checkpoint for
+     * @return checkpoint for the request, or null if checkpointing is disabled
+     */
+    public ExportCheckpoint loadCheckpoint(BridgeExporterRequest request) {
+        if (!checkpointEnabled) {
+            return null;
+        }
+
+        String tag = request.getTag();
+        String requestJson;
+        try {
+            requestJson = DefaultObjectMapper.INSTANCE.writeValueAsString(request);
+        } catch (JsonProcessingException ex) {
+            LOG.error("Error serializing request for checkpoint, tag=" + tag + ": " + ex.getMessage(), ex);
+            return null;
+        }
+
+        Item item;
+        try {
+            item = ddbExportCheckpointTable.getItem(KEY_TAG, getCheckpointKey(tag, requestJson));
+        } catch (RuntimeException ex) {
+            LOG.error("Error loading checkpoint for tag=" + tag + ": " + ex.getMessage(), ex);
+            return new ExportCheckpoint(tag, requestJson, null, null);
+        }
+
+        if (item == null) {
+            return new ExportCheckpoint(tag, requestJson, null, null);
+        }
+        if (!Objects.equals(requestJson, item.getString(KEY_REQUEST))) {
+            LOG.info("Ignoring checkpoint for a different request with the same key, tag=" + tag);
+            return new ExportCheckpoint(tag, requestJson, null, null);
+        }
+
+        Set<String> completedTableSet = item.getStringSet(KEY_COMPLETED_TABLES);
+
+        Map<String, Long> uploadedOnWatermarkByStudy = new HashMap<>();
+        Map<String, Number> rawWatermarkMap = item.getMap(KEY_UPLOADED_ON_WATERMARKS);
+        if (rawWatermarkMap != null) {
+            for (Map.Entry<String, Number> oneWatermarkEntry : rawWatermarkMap.entrySet()) {
+                uploadedOnWatermarkByStudy.put(oneWatermarkEntry.getKey(), oneWatermarkEntry.getValue().longValue());
+            }
+        }
+
+        return new ExportCheckpoint(tag, requestJson, completedTableSet, uploadedOnWatermarkByStudy);
+    }
+
+    /**
+     * Saves the checkpoint to DDB, replacing the previous checkpoint for the request.
+     *
+     * @param checkpoint
+     *         checkpoint to save
+     */
+    public void saveCheckpoint(ExportCheckpoint checkpoint) {
+        String tag = checkpoint.getTag();
+        String requestJson = checkpoint.getRequestJson();
+        Item item = new Item().withPrimaryKey(KEY_TAG, getCheckpointKey(tag, requestJson))
+                .withString(KEY_REQUEST, requestJson)
+                .withLong(KEY_EXPIRES_ON, DateTime.now().plusDays(CHECKPOINT_TTL_DAYS).getMillis() / 1000);
+
+        // DDB doesn't allow empty sets.
+        Set<String> completedTableSet = checkpoint.getCompletedTableSet();
+        if (!completedTableSet.isEmpty()) {
+            item.withStringSet(KEY_COMPLETED_TABLES, completedTableSet);
+        }
+        item.withMap(KEY_UPLOADED_ON_WATERMARKS, checkpoint.getUploadedOnWatermarkByStudy());
+
+        try {
+            ddbExportCheckpointTable.putItem(item);
+        } catch (RuntimeException ex) {
+            LOG.error("Error saving checkpoint for tag=" + tag + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Deletes the checkpoint from DDB. This is called when the request finishes successfully.
+     *
+     * @param checkpoint
+     *         checkpoint to delete
+     */
+    public void deleteCheckpoint(ExportCheckpoint checkpoint) {
+        String tag = checkpoint.getTag();
+        try {
+            ddbExportCheckpointTable.deleteItem(KEY_TAG, getCheckpointKey(tag, checkpoint.getRequestJson()));
+        } catch (RuntimeException ex) {
+            LOG.error("Error deleting checkpoint for tag=" + tag + ": " + ex.getMessage(), ex);
+        }
+    }
+}
@@ -1,10 +1,7 @@
 package org.sagebionetworks.bridge.exporter.handler;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-import com.amazonaws.services.dynamodbv2.document.Item;
 import com.google.common.collect.ImmutableList;
 import org.apache.commons.lang3.StringUtils;
 import org.sagebionetworks.repo.model.table.ColumnModel;
@@ -16,6 +13,7 @@ import org.sagebionetworks.bridge.exporter.worker.ExportSubtask;
 import org.sagebionetworks.bridge.exporter.worker.ExportTask;
 import org.sagebionetworks.bridge.exporter.worker.MetaTableType;
 import org.sagebionetworks.bridge.exporter.worker.TsvInfo;
+import org.sagebionetworks.bridge.exporter.worker.TsvRow;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 /**
@@ -72,12 +70,11 @@ public class AppVersionExportHandler extends SynapseExportHandler {
     }
 
     @Override
-    protected Map<String, String> getTsvRowValueMap(ExportSubtask subtask) {
+    protected void writeTsvRowValues(ExportSubtask subtask, TsvRow row) {
         ExportTask task = subtask.getParentTask();
-        Item record = subtask.getOriginalRecord();
 
-        // book keeping - unique app versions
-        PhoneAppVersionInfo phoneAppVersionInfo = PhoneAppVersionInfo.fromRecord(record);
+        // book keeping - unique app versions. The record view caches this, so it's only parsed once per record.
+        PhoneAppVersionInfo phoneAppVersionInfo = subtask.getRecordView().getPhoneAppVersionInfo();
         String appVersion = phoneAppVersionInfo.getAppVersion();
         if (StringUtils.isNotBlank(appVersion)) {
             task.getMetrics().addKeyValuePair("uniqueAppVersions[" + getStudyId() + "]", appVersion);
@@ -94,9 +91,7 @@ public class AppVersionExportHandler extends SynapseExportHandler {
             originalTable = schemaKey.toString();
         }
 
-        // construct row
-        Map<String, String> rowValueMap = new HashMap<>();
-        rowValueMap.put("originalTable", originalTable);
-        return rowValueMap;
+        // fill in row
+        row.setValue("originalTable", originalTable);
     }
 }
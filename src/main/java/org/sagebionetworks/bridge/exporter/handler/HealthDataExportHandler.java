@@ -2,17 +2,18 @@ package org.sagebionetworks.bridge.exporter.handler;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Iterables;
-import com.jcabi.aspects.Cacheable;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
@@ -29,9 +30,9 @@ import org.sagebionetworks.bridge.exporter.worker.ExportSubtask;
 import org.sagebionetworks.bridge.exporter.worker.ExportTask;
 import org.sagebionetworks.bridge.exporter.worker.ExportWorkerManager;
 import org.sagebionetworks.bridge.exporter.worker.TsvInfo;
+import org.sagebionetworks.bridge.exporter.worker.TsvRow;
 import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
-import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.model.Study;
 import org.sagebionetworks.bridge.rest.model.SynapseExporterStatus;
 import org.sagebionetworks.bridge.rest.model.UploadFieldDefinition;
@@ -43,10 +44,10 @@ public abstract class HealthDataExportHandler extends SynapseExportHandler {
 
     static final String COLUMN_NAME_RAW_DATA = "rawData";
     static final String DDB_KEY_RAW_DATA_ATTACHMENT_ID = "rawDataAttachmentId";
-    private static final String METADATA_FIELD_NAME_PREFIX = "metadata.";
-    private static final char MULTI_CHOICE_FIELD_SEPARATOR = '.';
-    private static final String OTHER_CHOICE_FIELD_SUFFIX = ".other";
-    private static final String TIME_ZONE_FIELD_SUFFIX = ".timezone";
+    static final String METADATA_FIELD_NAME_PREFIX = "metadata.";
+    static final char MULTI_CHOICE_FIELD_SEPARATOR = '.';
+    static final String OTHER_CHOICE_FIELD_SUFFIX = ".other";
+    static final String TIME_ZONE_FIELD_SUFFIX = ".timezone";
     private static final long TIME_ZONE_FIELD_LENGTH = 5;
     private static final DateTimeFormatter TIME_ZONE_FORMATTER = DateTimeFormat.forPattern("Z");
     private static final String TIME_ZONE_UTC_STRING = "+0000";
@@ -58,17 +59,23 @@ public abstract class HealthDataExportHandler extends SynapseExportHandler {
         RAW_DATA_COLUMN.setColumnType(ColumnType.FILEHANDLEID);
     }
 
+    // Serialization plan for the most recent TSV. See getSerializationPlan().
+    private volatile HealthDataSerializationPlan serializationPlan;
+
     @Override
     protected List<ColumnModel> getSynapseTableColumnList(ExportTask task) throws SchemaNotFoundException {
         List<UploadFieldDefinition> studyUploadMetadataFieldDefList = getStudyUploadMetadataFieldDefList();
         List<UploadFieldDefinition> schemaFieldDefList = getSchemaFieldDefList(task.getMetrics());
-        return getSynapseTableColumnListCached(studyUploadMetadataFieldDefList, schemaFieldDefList);
+
+        // Since this is a non-trivial amount of computation, we cache the result, keyed by the field def lists.
+        List<List<UploadFieldDefinition>> cacheKey = Arrays.asList(studyUploadMetadataFieldDefList,
+                schemaFieldDefList);
+        return getManager().getSynapseColumnListCache().get(cacheKey, () -> computeSynapseTableColumnList(
+                studyUploadMetadataFieldDefList, schemaFieldDefList));
     }
 
-    // Helper method to compute the Synapse column list from the schema field def list. Since this is a non-trivial
-    // amount of computation, we also wrap this in a cacheable annotation.
-    @Cacheable(forever = true)
-    private List<ColumnModel> getSynapseTableColumnListCached(
+    // Helper method to compute the Synapse column list from the schema field def list.
+    private static List<ColumnModel> computeSynapseTableColumnList(
             List<UploadFieldDefinition> studyUploadMetadataFieldDefList,
             List<UploadFieldDefinition> schemaFieldDefList) {
 
@@ -196,86 +203,135 @@ public abstract class HealthDataExportHandler extends SynapseExportHandler {
     }
 
     @Override
-    protected Map<String, String> getTsvRowValueMap(ExportSubtask subtask) throws IOException, SchemaNotFoundException,
+    protected void writeTsvRowValues(ExportSubtask subtask, TsvRow row) throws IOException, SchemaNotFoundException,
             SynapseException {
         ExportWorkerManager manager = getManager();
         ExportTask task = subtask.getParentTask();
-        String synapseProjectId = manager.getSynapseProjectIdForStudyAndTask(getStudyId(), task);
-        Map<String, String> rowValueMap = new HashMap<>();
-
-        // metadata columns
-        String userMetadataJsonText = subtask.getOriginalRecord().getString("userMetadata");
-        if (StringUtils.isNotBlank(userMetadataJsonText)) {
-            // extract and serialize from the raw DDB record
-            JsonNode userMetadataNode = DefaultObjectMapper.INSTANCE.readTree(userMetadataJsonText);
-            List<UploadFieldDefinition> metadataFieldDefList = getStudyUploadMetadataFieldDefList();
-            if (metadataFieldDefList != null && !metadataFieldDefList.isEmpty()) {
-                Map<String, String> metadataFieldMap = extractAndSerializeFields(subtask, metadataFieldDefList,
-                        userMetadataNode);
-
-                // Add to the row value map, but pre-pend the metadata prefix.
-                metadataFieldMap.forEach((key, value) -> rowValueMap.put(METADATA_FIELD_NAME_PREFIX + key, value));
+        Metrics metrics = task.getMetrics();
+        SynapseHelper synapseHelper = manager.getSynapseHelper();
+        String recordId = subtask.getRecordId();
+        HealthDataSerializationPlan plan = getSerializationPlan(task);
+        String synapseProjectId = plan.getSynapseProjectId();
+
+        // Blocking I/O (attachment uploads and large text downloads) is handed off to the I/O pool, while this thread
+        // does the CPU work (parsing and serializing the other fields). If anything fails before all the I/O steps are
+        // done, the row is thrown away, so cancel the I/O steps that are still pending or running.
+        List<Future<String>> submittedIoFutureList = new ArrayList<>();
+        try {
+            // Start the raw data upload first, since every record has one and it's usually the slowest step.
+            Future<String> rawDataFuture = null;
+            String rawDataAttachmentId = subtask.getOriginalRecord().getString(DDB_KEY_RAW_DATA_ATTACHMENT_ID);
+            if (plan.getRawDataColumnIndex() >= 0 && StringUtils.isNotBlank(rawDataAttachmentId)) {
+                // Attachment ID includes record ID, so we can use it verbatim.
+                rawDataFuture = manager.submitIoStep(task, () -> synapseHelper.uploadFromS3ToSynapseFileHandle(
+                        synapseProjectId, rawDataAttachmentId));
+                submittedIoFutureList.add(rawDataFuture);
             }
-        }
 
-        // schema-specific columns - These write directly to the rowValueMap, possibly overwriting metadata if there's
-        // a name conflict.
-        List<UploadFieldDefinition> schemaFieldDefList = getSchemaFieldDefList(task.getMetrics());
-        Map<String, String> schemaFieldMap = extractAndSerializeFields(subtask, schemaFieldDefList,
-                subtask.getRecordData());
-        rowValueMap.putAll(schemaFieldMap);
-
-        // Upload raw data. Attachment ID includes record ID, so we can use it verbatim.
-        String rawDataAttachmentId = subtask.getOriginalRecord().getString(DDB_KEY_RAW_DATA_ATTACHMENT_ID);
-        if (StringUtils.isNotBlank(rawDataAttachmentId)) {
-            String fileHandleId = manager.getSynapseHelper().uploadFromS3ToSynapseFileHandle(synapseProjectId,
-                    rawDataAttachmentId);
-            rowValueMap.put(COLUMN_NAME_RAW_DATA, fileHandleId);
-        }
+            // Metadata comes from the raw DDB record, through the record view. Only parse it if the study has metadata
+            // fields.
+            JsonNode userMetadataNode = plan.hasMetadataFields() ? subtask.getRecordView().getUserMetadata() : null;
+            JsonNode recordDataNode = getRecordData(plan, subtask);
+
+            // Start the I/O fields. Missing values don't need any I/O, so they're left out.
+            HealthDataSerializationPlan.SingleColumnFieldPlan[] ioFieldPlans = plan.getIoFieldPlans();
+            List<Future<String>> ioFutureList = new ArrayList<>(ioFieldPlans.length);
+            for (HealthDataSerializationPlan.SingleColumnFieldPlan oneIoFieldPlan : ioFieldPlans) {
+                JsonNode sourceNode = oneIoFieldPlan.isMetadata() ? userMetadataNode : recordDataNode;
+                JsonNode valueNode = sourceNode != null ? sourceNode.get(oneIoFieldPlan.getFieldName()) : null;
+                if (valueNode == null || valueNode.isNull()) {
+                    ioFutureList.add(null);
+                } else {
+                    Future<String> ioFuture = manager.submitIoStep(task, () -> oneIoFieldPlan.serialize(
+                            synapseHelper, metrics, synapseProjectId, recordId, valueNode));
+                    ioFutureList.add(ioFuture);
+                    submittedIoFutureList.add(ioFuture);
+                }
+            }
 
-        return rowValueMap;
+            // Serialize the other fields in this thread. The plan has already resolved name conflicts between metadata
+            // and schema columns, so the order doesn't matter.
+            for (HealthDataSerializationPlan.FieldPlan oneFieldPlan : plan.getCpuFieldPlans()) {
+                JsonNode sourceNode = oneFieldPlan.isMetadata() ? userMetadataNode : recordDataNode;
+                if (sourceNode != null) {
+                    oneFieldPlan.writeValues(synapseHelper, metrics, synapseProjectId, recordId,
+                            sourceNode.get(oneFieldPlan.getFieldName()), row);
+                }
+            }
+
+            // CPU work is done. Wait for the I/O steps to finish.
+            Stopwatch ioWaitStopwatch = Stopwatch.createStarted();
+            for (int i = 0; i < ioFieldPlans.length; i++) {
+                Future<String> oneIoFuture = ioFutureList.get(i);
+                if (oneIoFuture != null) {
+                    row.setValue(ioFieldPlans[i].getColumnIndex(), getIoStepResult(oneIoFuture));
+                }
+            }
+            if (rawDataFuture != null) {
+                row.setValue(plan.getRawDataColumnIndex(), getIoStepResult(rawDataFuture));
+            }
+            metrics.addToGauge(ExportWorkerManager.METRIC_CPU_POOL_IO_WAIT_MILLIS,
+                    ioWaitStopwatch.elapsed(TimeUnit.MILLISECONDS));
+        } finally {
+            // If we got all the results, these are all done, and cancel does nothing.
+            for (Future<String> oneIoFuture : submittedIoFutureList) {
+                oneIoFuture.cancel(true);
+            }
+        }
     }
 
-    /**
-     * Helper method to serialize fields from the given JSON node and return them as a map.
-     *
-     * @param subtask
-     *         export subtask, used for looking up variables and logging info
-     * @param fieldDefList
-     *         field definition list; either study upload metadata fields or schema fields
-     * @param jsonNode
-     *         JSON node containing data; either record data or record user metadata
-     */
-    private Map<String, String> extractAndSerializeFields(ExportSubtask subtask,
-            List<UploadFieldDefinition> fieldDefList, JsonNode jsonNode) throws IOException, SynapseException {
-        ExportWorkerManager manager = getManager();
-        ExportTask task = subtask.getParentTask();
-        String synapseProjectId = manager.getSynapseProjectIdForStudyAndTask(getStudyId(), task);
-        String recordId = subtask.getRecordId();
+    // Gets the serialization plan for the task's TSV. The plan (including the Synapse project ID) is compiled on the
+    // first record for each TSV, and reused for every record after that. If two workers race on the first record, they
+    // both compile the plan, which is harmless.
+    private HealthDataSerializationPlan getSerializationPlan(ExportTask task) throws SchemaNotFoundException {
+        TsvInfo tsvInfo = getTsvInfoForTask(task);
+        HealthDataSerializationPlan plan = serializationPlan;
+        if (plan == null || plan.getTsvInfo() != tsvInfo) {
+            plan = HealthDataSerializationPlan.compile(getStudyId(), getStudyUploadMetadataFieldDefList(),
+                    getSchemaFieldDefList(task.getMetrics()), tsvInfo,
+                    getManager().getSynapseProjectIdForStudyAndTask(getStudyId(), task));
+            serializationPlan = plan;
+        }
+        return plan;
+    }
 
-        Map<String, String> rowValueMap = new HashMap<>();
-        for (UploadFieldDefinition oneFieldDef : fieldDefList) {
-            String oneFieldName = oneFieldDef.getName();
-            UploadFieldType bridgeType = oneFieldDef.getType();
-            JsonNode valueNode = jsonNode.get(oneFieldName);
+    // Gets the record data for the subtask. If the record data comes straight from the DDB record, this streams it and
+    // only decodes the fields in the plan. Otherwise (converted legacy iOS surveys, or records the decoder can't
+    // handle), this falls back to the full JSON tree.
+    private static JsonNode getRecordData(HealthDataSerializationPlan plan, ExportSubtask subtask)
+            throws IOException {
+        String recordDataJsonText = subtask.getRecordDataJsonText();
+        if (recordDataJsonText != null) {
+            JsonNode decodedNode = plan.getRecordDataDecoder().decode(recordDataJsonText);
+            if (decodedNode != null) {
+                return decodedNode;
+            }
+        }
+        return subtask.getRecordData();
+    }
 
-            if (bridgeType == UploadFieldType.MULTI_CHOICE) {
-                // MULTI_CHOICE serializes into multiple fields. See getSynapseTableColumnList() for details.
-                Map<String, String> serializedMultiChoiceFields = serializeMultiChoice(recordId, oneFieldDef,
-                        valueNode);
-                rowValueMap.putAll(serializedMultiChoiceFields);
-            } else if (bridgeType == UploadFieldType.TIMESTAMP) {
-                // Similarly, TIMESTAMP serializes into 2 different fields.
-                Map<String, String> serializedTimestampFields = serializeTimestamp(recordId, oneFieldName, valueNode);
-                rowValueMap.putAll(serializedTimestampFields);
+    // Helper method which waits for an I/O step and returns its result. If the I/O step failed, this rethrows the
+    // original exception, so callers see the same exceptions as if the I/O ran in this thread.
+    private static String getIoStepResult(Future<String> future) throws IOException, SynapseException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for I/O step", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SynapseException) {
+                throw (SynapseException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             } else {
-                String value = manager.getSynapseHelper().serializeToSynapseType(task.getMetrics(), task.getTmpDir(),
-                        synapseProjectId, recordId, getStudyId(), oneFieldDef, valueNode);
-                rowValueMap.put(oneFieldName, value);
+                throw new IllegalStateException("Unexpected error in I/O step: " + cause.getMessage(), cause);
             }
         }
-
-        return rowValueMap;
     }
 
     /**
@@ -297,23 +353,26 @@ public abstract class HealthDataExportHandler extends SynapseExportHandler {
 
     /**
      * <p>
-     * Serialize a multi-choice answer to a row value map. The map is a partial map and can be written to a TSV and
-     * uploaded to Synapse.
+     * Serialize a multi-choice answer into row values, which can be written to a TSV and uploaded to Synapse. Values
+     * are written to the given array, one for each answer in the field def's answer list, in order, and then one for
+     * the "other" column. Values that aren't written are left null.
      * </p>
      * <p>
      * Package-scoped to facilitate unit testing.
      * </p>
      *
      * @param fieldDef
-     *         field definition, used to get the multi-choice answer list and generate column names
+     *         field definition, used to get the multi-choice answer list
      * @param node
      *         value of the multi-choice answer field
-     * @return partial row value map with serialized multi-choice answers
+     * @param fieldValues
+     *         array to write values to, must be one longer than the answer list
      */
-    static Map<String, String> serializeMultiChoice(String recordId, UploadFieldDefinition fieldDef, JsonNode node) {
+    static void serializeMultiChoice(String recordId, UploadFieldDefinition fieldDef, JsonNode node,
+            String[] fieldValues) {
         if (node == null || node.isNull() || !node.isArray()) {
-            // Missing or invalid format. Return empty map (no values).
-            return ImmutableMap.of();
+            // Missing or invalid format. No values.
+            return;
         }
 
         // Determine selected answers. Use TreeSet to maintain answers in a predictable (alphabetical) order.
@@ -335,11 +394,10 @@ public abstract class HealthDataExportHandler extends SynapseExportHandler {
 
         // Write "true" and "false" values based on fieldDef answer list.
         String fieldName = fieldDef.getName();
-        Map<String, String> partialValueMap = new HashMap<>();
-        for (String oneAnswer : fieldDef.getMultiChoiceAnswerList()) {
-            String answerFieldName = fieldName + MULTI_CHOICE_FIELD_SEPARATOR + oneAnswer;
-            String answerFieldValue = String.valueOf(selectedSet.contains(oneAnswer));
-            partialValueMap.put(answerFieldName, answerFieldValue);
+        List<String> answerList = fieldDef.getMultiChoiceAnswerList();
+        for (int i = 0; i < answerList.size(); i++) {
+            String oneAnswer = answerList.get(i);
+            fieldValues[i] = String.valueOf(selectedSet.contains(oneAnswer));
 
             // Remove the answer from the set, so we can determine leftover answers for "allow other".
             selectedSet.remove(oneAnswer);
@@ -355,19 +413,18 @@ public abstract class HealthDataExportHandler extends SynapseExportHandler {
             }
 
             if (Boolean.TRUE.equals(fieldDef.getAllowOtherChoices())) {
-                partialValueMap.put(fieldName + OTHER_CHOICE_FIELD_SUFFIX, otherChoice);
+                fieldValues[answerList.size()] = otherChoice;
             } else {
                 LOG.warn("Unknown choice(s) " + otherChoice + " for field " + fieldName + " record " + recordId);
             }
         }
-
-        return partialValueMap;
     }
 
     /**
      * <p>
-     * Serialize a timestamp to a row value map that can be written to a TSV and uploaded to Synapse. The map is a
-     * partial map. The keys are the column names and the values are the row values.
+     * Serialize a timestamp into row values, which can be written to a TSV and uploaded to Synapse. The timestamp (in
+     * epoch milliseconds) is written to the first element of the given array, and the time zone to the second. If the
+     * timestamp is missing or invalid, the array is left alone.
      * </p>
      * <p>
      * Package-scoped to facilitate unit testing.
@@ -376,12 +433,13 @@ public abstract class HealthDataExportHandler extends SynapseExportHandler {
      * @param recordId
      *         record ID that corresponds to the row data, used for logging
      * @param fieldName
-     *         name of timestamp field
+     *         name of timestamp field, used for logging
      * @param node
      *         value of timestamp field
-     * @return partial row value map with serialized timestamp
+     * @param fieldValues
+     *         array to write values to, must have at least 2 elements
      */
-    static Map<String, String> serializeTimestamp(String recordId, String fieldName, JsonNode node) {
+    static void serializeTimestamp(String recordId, String fieldName, JsonNode node, String[] fieldValues) {
         if (node != null && !node.isNull()) {
             if (node.isTextual()) {
                 // Timestamp in ISO format. Parse using Joda.
@@ -390,22 +448,21 @@ public abstract class HealthDataExportHandler extends SynapseExportHandler {
                     DateTime dateTime = DateTime.parse(timestampString);
                     String epochMillisString = String.valueOf(dateTime.getMillis());
                     String timeZoneString = TIME_ZONE_FORMATTER.print(dateTime);
-                    return ImmutableMap.<String, String>builder().put(fieldName, epochMillisString)
-                            .put(fieldName + TIME_ZONE_FIELD_SUFFIX, timeZoneString).build();
+                    fieldValues[0] = epochMillisString;
+                    fieldValues[1] = timeZoneString;
                 } catch (IllegalArgumentException ex) {
                     // log a warning, but throw out malformatted dates
-                    LOG.warn("Invalid timestamp " + timestampString + " for record ID " + recordId);
+                    LOG.warn("Invalid timestamp " + timestampString + " for field " + fieldName + " record ID " +
+                            recordId);
                 }
             } else if (node.isNumber()) {
                 // Timestamp is epoch milliseconds. Push this straight across as the timestamp. The timezone is UTC
                 // ("+0000").
                 String epochMillisString = String.valueOf(node.longValue());
-                return ImmutableMap.<String, String>builder().put(fieldName, epochMillisString)
-                        .put(fieldName + TIME_ZONE_FIELD_SUFFIX, TIME_ZONE_UTC_STRING).build();
+                fieldValues[0] = epochMillisString;
+                fieldValues[1] = TIME_ZONE_UTC_STRING;
             }
         }
-
-        return ImmutableMap.of();
     }
 
     /** Gets the field definition from the schema. Returns an empty list if not based on a schema. */
@@ -0,0 +1,326 @@
+package org.sagebionetworks.bridge.exporter.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.Iterables;
+import org.sagebionetworks.client.exceptions.SynapseException;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.synapse.FieldSerializer;
+import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
+import org.sagebionetworks.bridge.exporter.worker.TsvInfo;
+import org.sagebionetworks.bridge.exporter.worker.TsvRow;
+import org.sagebionetworks.bridge.rest.model.UploadFieldDefinition;
+import org.sagebionetworks.bridge.rest.model.UploadFieldType;
+
+/**
+ * <p>
+ * Compiled plan for serializing health data records into a TSV. The plan is compiled once per TSV, from the study's
+ * upload metadata fields and the schema's fields, and then reused for every record. Each field is compiled into a
+ * field plan, with its TSV column indices, max length, and sanitize settings already resolved, so serializing a record
+ * doesn't need to look at the field definitions or look up columns by name. The Synapse project that attachments are
+ * uploaded to is also resolved once, since it's the same for every record in the TSV.
+ * </p>
+ * <p>
+ * Metadata columns are prefixed with "metadata.". If a metadata column has the same name as a schema column, the
+ * schema column wins, and the metadata column is dropped from the plan. Fields that serialize into a single column
+ * that isn't in the TSV are also dropped, so we don't upload attachments that would never be written.
+ * </p>
+ * <p>
+ * Plans are immutable and thread-safe.
+ * </p>
+ */
+class HealthDataSerializationPlan {
+    // Field types that need to talk to S3 or Synapse to serialize. These are serialized in the I/O pool.
+    private static final Set<UploadFieldType> IO_FIELD_TYPE_SET = EnumSet.of(UploadFieldType.ATTACHMENT_BLOB,
+            UploadFieldType.ATTACHMENT_CSV, UploadFieldType.ATTACHMENT_JSON_BLOB,
+            UploadFieldType.ATTACHMENT_JSON_TABLE, UploadFieldType.ATTACHMENT_V2,
+            UploadFieldType.LARGE_TEXT_ATTACHMENT);
+
+    private final TsvInfo tsvInfo;
+    private final String synapseProjectId;
+    private final boolean hasMetadataFields;
+    private final FieldPlan[] cpuFieldPlans;
+    private final SingleColumnFieldPlan[] ioFieldPlans;
+    private final int rawDataColumnIndex;
+    private final RecordDataDecoder recordDataDecoder;
+
+    private HealthDataSerializationPlan(TsvInfo tsvInfo, String synapseProjectId, boolean hasMetadataFields,
+            FieldPlan[] cpuFieldPlans, SingleColumnFieldPlan[] ioFieldPlans, int rawDataColumnIndex,
+            RecordDataDecoder recordDataDecoder) {
+        this.tsvInfo = tsvInfo;
+        this.synapseProjectId = synapseProjectId;
+        this.hasMetadataFields = hasMetadataFields;
+        this.cpuFieldPlans = cpuFieldPlans;
+        this.ioFieldPlans = ioFieldPlans;
+        this.rawDataColumnIndex = rawDataColumnIndex;
+        this.recordDataDecoder = recordDataDecoder;
+    }
+
+    /**
+     * Compiles a plan for the given TSV.
+     *
+     * @param studyId
+     *         study ID, used for logging
+     * @param metadataFieldDefList
+     *         study upload metadata field definitions, may be null or empty
+     * @param schemaFieldDefList
+     *         schema field definitions
+     * @param tsvInfo
+     *         TSV to compile the plan for, used to resolve column indices
+     * @param synapseProjectId
+     *         Synapse project for the TSV's table, used to upload attachments
+     * @return compiled plan
+     */
+    static HealthDataSerializationPlan compile(String studyId, List<UploadFieldDefinition> metadataFieldDefList,
+            List<UploadFieldDefinition> schemaFieldDefList, TsvInfo tsvInfo, String synapseProjectId) {
+        List<FieldPlan> cpuFieldPlanList = new ArrayList<>();
+        List<SingleColumnFieldPlan> ioFieldPlanList = new ArrayList<>();
+
+        // Compile schema fields first, so we know which columns the schema uses.
+        BitSet schemaColumnSet = new BitSet();
+        for (UploadFieldDefinition oneFieldDef : schemaFieldDefList) {
+            compileField(studyId, oneFieldDef, false, oneFieldDef.getName(), tsvInfo, null, schemaColumnSet,
+                    cpuFieldPlanList, ioFieldPlanList);
+        }
+
+        // Then metadata fields, skipping columns the schema uses.
+        boolean hasMetadataFields = metadataFieldDefList != null && !metadataFieldDefList.isEmpty();
+        if (hasMetadataFields) {
+            for (UploadFieldDefinition oneFieldDef : metadataFieldDefList) {
+                compileField(studyId, oneFieldDef, true,
+                        HealthDataExportHandler.METADATA_FIELD_NAME_PREFIX + oneFieldDef.getName(), tsvInfo,
+                        schemaColumnSet, null, cpuFieldPlanList, ioFieldPlanList);
+            }
+        }
+
+        // The record data decoder only needs the schema fields that made it into the plan.
+        Set<String> recordFieldNameSet = new HashSet<>();
+        for (FieldPlan oneFieldPlan : Iterables.concat(cpuFieldPlanList, ioFieldPlanList)) {
+            if (!oneFieldPlan.isMetadata()) {
+                recordFieldNameSet.add(oneFieldPlan.getFieldName());
+            }
+        }
+        Map<String, RecordDataDecoder.ValueMode> valueModeByFieldName = new HashMap<>();
+        for (UploadFieldDefinition oneFieldDef : schemaFieldDefList) {
+            if (recordFieldNameSet.contains(oneFieldDef.getName())) {
+                valueModeByFieldName.put(oneFieldDef.getName(), RecordDataDecoder.getValueModeForType(
+                        oneFieldDef.getType()));
+            }
+        }
+
+        int rawDataColumnIndex = tsvInfo.getColumnIndex(HealthDataExportHandler.COLUMN_NAME_RAW_DATA);
+        return new HealthDataSerializationPlan(tsvInfo, synapseProjectId, hasMetadataFields,
+                cpuFieldPlanList.toArray(new FieldPlan[cpuFieldPlanList.size()]),
+                ioFieldPlanList.toArray(new SingleColumnFieldPlan[ioFieldPlanList.size()]), rawDataColumnIndex,
+                new RecordDataDecoder(valueModeByFieldName));
+    }
+
+    // Helper method which compiles one field and adds it to the CPU or I/O field plan list. Columns in
+    // excludedColumnSet (if not null) are dropped. Columns used are added to usedColumnSet (if not null).
+    private static void compileField(String studyId, UploadFieldDefinition fieldDef, boolean isMetadata,
+            String columnBaseName, TsvInfo tsvInfo, BitSet excludedColumnSet, BitSet usedColumnSet,
+            List<FieldPlan> cpuFieldPlanList, List<SingleColumnFieldPlan> ioFieldPlanList) {
+        String fieldName = fieldDef.getName();
+        UploadFieldType bridgeType = fieldDef.getType();
+
+        if (bridgeType == UploadFieldType.MULTI_CHOICE) {
+            // MULTI_CHOICE serializes into one column per answer, plus the "other" column. See
+            // HealthDataExportHandler.getSynapseTableColumnList() for details.
+            List<String> answerList = fieldDef.getMultiChoiceAnswerList();
+            int[] columnIndices = new int[answerList.size() + 1];
+            for (int i = 0; i < answerList.size(); i++) {
+                columnIndices[i] = resolveColumn(tsvInfo, columnBaseName +
+                        HealthDataExportHandler.MULTI_CHOICE_FIELD_SEPARATOR + answerList.get(i), excludedColumnSet,
+                        usedColumnSet);
+            }
+            columnIndices[answerList.size()] = resolveColumn(tsvInfo, columnBaseName +
+                    HealthDataExportHandler.OTHER_CHOICE_FIELD_SUFFIX, excludedColumnSet, usedColumnSet);
+            cpuFieldPlanList.add(new MultiChoiceFieldPlan(isMetadata, fieldDef, columnIndices));
+        } else if (bridgeType == UploadFieldType.TIMESTAMP) {
+            // Similarly, TIMESTAMP serializes into 2 different columns.
+            int[] columnIndices = {
+                    resolveColumn(tsvInfo, columnBaseName, excludedColumnSet, usedColumnSet),
+                    resolveColumn(tsvInfo, columnBaseName + HealthDataExportHandler.TIME_ZONE_FIELD_SUFFIX,
+                            excludedColumnSet, usedColumnSet) };
+            cpuFieldPlanList.add(new TimestampFieldPlan(isMetadata, fieldName, columnIndices));
+        } else {
+            int columnIndex = resolveColumn(tsvInfo, columnBaseName, excludedColumnSet, usedColumnSet);
+            if (columnIndex < 0) {
+                // Not in the TSV. Nothing to write.
+                return;
+            }
+
+            SingleColumnFieldPlan fieldPlan = new SingleColumnFieldPlan(isMetadata, fieldName, columnIndex,
+                    SynapseHelper.compileFieldSerializer(studyId, fieldDef));
+            if (IO_FIELD_TYPE_SET.contains(bridgeType)) {
+                ioFieldPlanList.add(fieldPlan);
+            } else {
+                cpuFieldPlanList.add(fieldPlan);
+            }
+        }
+    }
+
+    // Helper method which gets the TSV column index for the column, or -1 if the column isn't in the TSV or is
+    // excluded.
+    private static int resolveColumn(TsvInfo tsvInfo, String columnName, BitSet excludedColumnSet,
+            BitSet usedColumnSet) {
+        int columnIndex = tsvInfo.getColumnIndex(columnName);
+        if (columnIndex < 0 || (excludedColumnSet != null && excludedColumnSet.get(columnIndex))) {
+            return -1;
+        }
+        if (usedColumnSet != null) {
+            usedColumnSet.set(columnIndex);
+        }
+        return columnIndex;
+    }
+
+    /** The TSV this plan was compiled for. Plans can only be used with rows from this TSV. */
+    TsvInfo getTsvInfo() {
+        return tsvInfo;
+    }
+
+    /** Synapse project for the TSV's table. Attachments are uploaded to this project. */
+    String getSynapseProjectId() {
+        return synapseProjectId;
+    }
+
+    /** True if the plan has any metadata fields. If not, callers don't need to parse the record's user metadata. */
+    boolean hasMetadataFields() {
+        return hasMetadataFields;
+    }
+
+    /** Fields that are serialized in the calling thread. */
+    FieldPlan[] getCpuFieldPlans() {
+        return cpuFieldPlans;
+    }
+
+    /** Fields that need blocking I/O to serialize, and should be serialized in the I/O pool. */
+    SingleColumnFieldPlan[] getIoFieldPlans() {
+        return ioFieldPlans;
+    }
+
+    /** Column index of the raw data column, or -1 if the TSV doesn't have one. */
+    int getRawDataColumnIndex() {
+        return rawDataColumnIndex;
+    }
+
+    /** Streaming decoder for the record data, which only decodes the fields in this plan. */
+    RecordDataDecoder getRecordDataDecoder() {
+        return recordDataDecoder;
+    }
+
+    /** Compiled plan for a single field. */
+    abstract static class FieldPlan {
+        private final boolean isMetadata;
+        private final String fieldName;
+
+        FieldPlan(boolean isMetadata, String fieldName) {
+            this.isMetadata = isMetadata;
+            this.fieldName = fieldName;
+        }
+
+        /** True if the field comes from the record's user metadata. False if it comes from the record data. */
+        boolean isMetadata() {
+            return isMetadata;
+        }
+
+        /** Field name, used to get the value from the record data or user metadata. */
+        String getFieldName() {
+            return fieldName;
+        }
+
+        /** Serializes the field value and writes it to the row. */
+        abstract void writeValues(SynapseHelper synapseHelper, Metrics metrics, String projectId, String recordId,
+                JsonNode valueNode, TsvRow row) throws IOException, SynapseException;
+    }
+
+    /** Field that serializes into a single column, using a compiled {@link FieldSerializer}. */
+    static class SingleColumnFieldPlan extends FieldPlan {
+        private final int columnIndex;
+        private final FieldSerializer serializer;
+
+        SingleColumnFieldPlan(boolean isMetadata, String fieldName, int columnIndex, FieldSerializer serializer) {
+            super(isMetadata, fieldName);
+            this.columnIndex = columnIndex;
+            this.serializer = serializer;
+        }
+
+        /** TSV column index for this field. */
+        int getColumnIndex() {
+            return columnIndex;
+        }
+
+        /** Serializes the field value. Returns null if the value is missing. */
+        String serialize(SynapseHelper synapseHelper, Metrics metrics, String projectId, String recordId,
+                JsonNode valueNode) throws IOException, SynapseException {
+            if (valueNode == null || valueNode.isNull()) {
+                return null;
+            }
+            return serializer.serialize(synapseHelper, metrics, projectId, recordId, valueNode);
+        }
+
+        @Override
+        void writeValues(SynapseHelper synapseHelper, Metrics metrics, String projectId, String recordId,
+                JsonNode valueNode, TsvRow row) throws IOException, SynapseException {
+            row.setValue(columnIndex, serialize(synapseHelper, metrics, projectId, recordId, valueNode));
+        }
+    }
+
+    /** MULTI_CHOICE field. Column indices are the answer columns, in answer list order, then the "other" column. */
+    static class MultiChoiceFieldPlan extends FieldPlan {
+        private final UploadFieldDefinition fieldDef;
+        private final int[] columnIndices;
+
+        MultiChoiceFieldPlan(boolean isMetadata, UploadFieldDefinition fieldDef, int[] columnIndices) {
+            super(isMetadata, fieldDef.getName());
+            this.fieldDef = fieldDef;
+            this.columnIndices = columnIndices;
+        }
+
+        @Override
+        void writeValues(SynapseHelper synapseHelper, Metrics metrics, String projectId, String recordId,
+                JsonNode valueNode, TsvRow row) {
+            String[] fieldValues = new String[columnIndices.length];
+            HealthDataExportHandler.serializeMultiChoice(recordId, fieldDef, valueNode, fieldValues);
+            writeFieldValues(columnIndices, fieldValues, row);
+        }
+    }
+
+    /** TIMESTAMP field. Column indices are the timestamp column, then the time zone column. */
+    static class TimestampFieldPlan extends FieldPlan {
+        private final int[] columnIndices;
+
+        TimestampFieldPlan(boolean isMetadata, String fieldName, int[] columnIndices) {
+            super(isMetadata, fieldName);
+            this.columnIndices = columnIndices;
+        }
+
+        @Override
+        void writeValues(SynapseHelper synapseHelper, Metrics metrics, String projectId, String recordId,
+                JsonNode valueNode, TsvRow row) {
+            String[] fieldValues = new String[columnIndices.length];
+            HealthDataExportHandler.serializeTimestamp(recordId, getFieldName(), valueNode, fieldValues);
+            writeFieldValues(columnIndices, fieldValues, row);
+        }
+    }
+
+    // Helper method which writes the values that were set. Values that weren't set are left alone, same as if the
+    // field didn't write to the column.
+    private static void writeFieldValues(int[] columnIndices, String[] fieldValues, TsvRow row) {
+        for (int i = 0; i < columnIndices.length; i++) {
+            if (fieldValues[i] != null) {
+                row.setValue(columnIndices[i], fieldValues[i]);
+            }
+        }
+    }
+}
@@ -78,8 +78,8 @@ public class IosSurveyExportHandler extends ExportHandler {
                 oldDataJson, surveySchema);
 
         ExportSubtask convertedSubtask = new ExportSubtask.Builder().withOriginalRecord(record)
-                .withParentTask(parentTask).withRecordData(convertedSurveyNode).withSchemaKey(surveySchemaKey)
-                .withStudyId(studyId).build();
+                .withParentTask(parentTask).withRecordData(convertedSurveyNode)
+                .withRecordView(subtask.getRecordView()).withSchemaKey(surveySchemaKey).withStudyId(studyId).build();
         manager.addHealthDataSubtask(parentTask, studyId, surveySchemaKey, convertedSubtask);
     }
 }
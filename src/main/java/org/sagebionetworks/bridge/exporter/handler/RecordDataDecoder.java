@@ -0,0 +1,316 @@
+package org.sagebionetworks.bridge.exporter.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.CharTypes;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.rest.model.UploadFieldType;
+
+/**
+ * <p>
+ * Streaming decoder for health data record data. Instead of parsing the whole record into a JSON tree, this walks the
+ * record's token stream and only decodes the top-level fields the serialization plan needs. Unknown fields (and their
+ * subtrees) are skipped without decoding. The result is a sparse object node, with just those fields, which can be
+ * used in place of the full record data.
+ * </p>
+ * <p>
+ * Values are decoded according to how the field will be serialized:
+ * </p>
+ * <ul>
+ *     <li>String-like fields (STRING, INLINE_JSON_BLOB, etc) are serialized as the JSON text of non-string values.
+ *     For objects and arrays, the JSON text is written straight from the token stream, without building a tree.</li>
+ *     <li>MULTI_CHOICE fields need the array of answers, so arrays are decoded as a (small) tree.</li>
+ *     <li>Everything else only uses scalar values. Objects and arrays are skipped, and decoded as null, since those
+ *     fields serialize objects and arrays as null anyway.</li>
+ * </ul>
+ * <p>
+ * Decoded values are the same as if the record had been parsed with {@link DefaultObjectMapper}, including the
+ * mapper's settings for numbers. If a string-like field has an object with duplicate keys, the JSON text wouldn't
+ * match the tree (where the last value wins), so decode() returns null, and the caller should fall back to the tree.
+ * </p>
+ * <p>
+ * Decoders are immutable and thread-safe.
+ * </p>
+ */
+class RecordDataDecoder {
+    // Field types that are serialized as strings, using the JSON text for non-string values. This needs to match the
+    // string types in SynapseHelper.compileFieldSerializer().
+    private static final Set<UploadFieldType> TEXT_FIELD_TYPE_SET = EnumSet.of(UploadFieldType.CALENDAR_DATE,
+            UploadFieldType.DURATION_V2, UploadFieldType.INLINE_JSON_BLOB, UploadFieldType.SINGLE_CHOICE,
+            UploadFieldType.STRING, UploadFieldType.TIME_V2);
+
+    // Objects with up to this many keys are checked for duplicate keys with a linear scan. Most objects in record data
+    // are small, and this is much cheaper than a hash set per object. Bigger objects switch to a hash set.
+    private static final int MAX_KEYS_FOR_LINEAR_SCAN = 16;
+
+    // Mirror the mapper's settings, so decoded values match values from DefaultObjectMapper.readTree().
+    private static final DeserializationConfig DESERIALIZATION_CONFIG = DefaultObjectMapper.INSTANCE
+            .getDeserializationConfig();
+    private static final JsonNodeFactory NODE_FACTORY = DESERIALIZATION_CONFIG.getNodeFactory();
+    private static final boolean USE_BIG_DECIMAL_FOR_FLOATS = DESERIALIZATION_CONFIG.isEnabled(
+            DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+    private static final boolean USE_BIG_INTEGER_FOR_INTS = DESERIALIZATION_CONFIG.isEnabled(
+            DeserializationFeature.USE_BIG_INTEGER_FOR_INTS);
+    private static final boolean USE_LONG_FOR_INTS = DESERIALIZATION_CONFIG.isEnabled(
+            DeserializationFeature.USE_LONG_FOR_INTS);
+
+    /** How to decode a field's value. */
+    enum ValueMode {
+        /** Scalars are decoded. Objects and arrays are decoded as null. */
+        SCALAR,
+
+        /** Scalars are decoded. Objects and arrays are decoded as a text node with their JSON text. */
+        TEXT,
+
+        /** Arrays are decoded as a tree. Everything else is decoded as null. */
+        ARRAY,
+    }
+
+    // Thrown when we find duplicate keys while writing JSON text. This is only used to unwind the stack, so it doesn't
+    // need a stack trace.
+    @SuppressWarnings("serial")
+    private static class DuplicateKeyException extends Exception {
+        DuplicateKeyException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Map<String, ValueMode> valueModeByFieldName;
+
+    /**
+     * Creates a decoder for the given fields.
+     *
+     * @param valueModeByFieldName
+     *         map of top-level field names to decode, and how to decode each one
+     */
+    RecordDataDecoder(Map<String, ValueMode> valueModeByFieldName) {
+        this.valueModeByFieldName = ImmutableMap.copyOf(valueModeByFieldName);
+    }
+
+    /** Gets the value mode for a field of the given type. */
+    static ValueMode getValueModeForType(UploadFieldType fieldType) {
+        if (fieldType == UploadFieldType.MULTI_CHOICE) {
+            return ValueMode.ARRAY;
+        } else if (TEXT_FIELD_TYPE_SET.contains(fieldType)) {
+            return ValueMode.TEXT;
+        } else {
+            return ValueMode.SCALAR;
+        }
+    }
+
+    /**
+     * Decodes the given record data.
+     *
+     * @param jsonText
+     *         record data, as JSON text
+     * @return sparse object node with the decoder's fields, or null if the record data can't be streamed and should
+     *         be parsed as a tree instead (the record data isn't a JSON object, or has duplicate keys in a JSON text
+     *         field)
+     * @throws IOException
+     *         if the record data is malformed
+     */
+    ObjectNode decode(String jsonText) throws IOException {
+        if (valueModeByFieldName.isEmpty()) {
+            // Nothing to decode.
+            return NODE_FACTORY.objectNode();
+        }
+
+        try (JsonParser parser = DefaultObjectMapper.INSTANCE.getFactory().createParser(jsonText)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            ObjectNode decodedNode = NODE_FACTORY.objectNode();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+
+                ValueMode valueMode = valueModeByFieldName.get(fieldName);
+                if (valueMode == null) {
+                    // Not in the plan. Skip the value, including any subtree.
+                    parser.skipChildren();
+                    continue;
+                }
+
+                // If there are duplicate keys, the last value wins, same as the tree.
+                decodedNode.set(fieldName, decodeValue(parser, valueMode));
+            }
+            return decodedNode;
+        } catch (DuplicateKeyException ex) {
+            return null;
+        }
+    }
+
+    // Helper method which decodes the value at the parser's current token. When this returns, the parser is at the
+    // last token of the value.
+    private static JsonNode decodeValue(JsonParser parser, ValueMode valueMode) throws DuplicateKeyException,
+            IOException {
+        JsonToken token = parser.getCurrentToken();
+        boolean isContainer = token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY;
+        switch (valueMode) {
+            case TEXT:
+                if (isContainer) {
+                    StringBuilder builder = new StringBuilder();
+                    appendJsonText(parser, builder, new ArrayList<>());
+                    return NODE_FACTORY.textNode(builder.toString());
+                }
+                return decodeScalar(parser);
+            case ARRAY:
+                if (token == JsonToken.START_ARRAY) {
+                    return DefaultObjectMapper.INSTANCE.readTree(parser);
+                }
+                parser.skipChildren();
+                return NODE_FACTORY.nullNode();
+            case SCALAR:
+            default:
+                if (isContainer) {
+                    parser.skipChildren();
+                    return NODE_FACTORY.nullNode();
+                }
+                return decodeScalar(parser);
+        }
+    }
+
+    // Helper method which appends the JSON text of the value at the parser's current token. This matches
+    // JsonNode.toString() for the same value: compact, with the same string escaping and number formatting. keyList
+    // holds the keys of the objects we're in, outermost first, and is used to find duplicate keys. Each object adds
+    // its keys to the end of the list, and removes them when it's done.
+    private static void appendJsonText(JsonParser parser, StringBuilder builder, List<String> keyList)
+            throws DuplicateKeyException, IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT) {
+            builder.append('{');
+            int firstKeyIndex = keyList.size();
+            Set<String> keySet = null;
+            boolean isFirst = true;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                if (keySet == null && keyList.size() - firstKeyIndex >= MAX_KEYS_FOR_LINEAR_SCAN) {
+                    // Big object. Switch to a hash set for the rest of its keys.
+                    keySet = new HashSet<>(keyList.subList(firstKeyIndex, keyList.size()));
+                }
+                if (keySet != null) {
+                    if (!keySet.add(key)) {
+                        throw new DuplicateKeyException();
+                    }
+                } else {
+                    for (int i = firstKeyIndex; i < keyList.size(); i++) {
+                        if (keyList.get(i).equals(key)) {
+                            throw new DuplicateKeyException();
+                        }
+                    }
+                    keyList.add(key);
+                }
+
+                if (!isFirst) {
+                    builder.append(',');
+                }
+                isFirst = false;
+
+                appendQuoted(builder, key);
+                builder.append(':');
+                parser.nextToken();
+                appendJsonText(parser, builder, keyList);
+            }
+            builder.append('}');
+
+            // Remove this object's keys, so the enclosing object's keys are at the end of the list again.
+            keyList.subList(firstKeyIndex, keyList.size()).clear();
+        } else if (token == JsonToken.START_ARRAY) {
+            builder.append('[');
+            boolean isFirst = true;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (!isFirst) {
+                    builder.append(',');
+                }
+                isFirst = false;
+
+                appendJsonText(parser, builder, keyList);
+            }
+            builder.append(']');
+        } else if (token == JsonToken.VALUE_STRING) {
+            appendQuoted(builder, parser.getText());
+        } else {
+            // For numbers, booleans, and null, asText() is the same text as toString(), and it's much cheaper, since
+            // newer versions of Jackson implement toString() with a whole serializer.
+            builder.append(decodeScalar(parser).asText());
+        }
+    }
+
+    // Helper method which appends a quoted and escaped string, same as TextNode.toString().
+    private static void appendQuoted(StringBuilder builder, String value) {
+        builder.append('"');
+        CharTypes.appendQuoted(builder, value);
+        builder.append('"');
+    }
+
+    /**
+     * Decodes the scalar value at the parser's current token, using the same node types as
+     * DefaultObjectMapper.readTree(). Package-scoped to facilitate unit tests.
+     */
+    static JsonNode decodeScalar(JsonParser parser) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        switch (token) {
+            case VALUE_STRING:
+                return NODE_FACTORY.textNode(parser.getText());
+            case VALUE_NUMBER_INT: {
+                JsonParser.NumberType numberType;
+                if (USE_BIG_INTEGER_FOR_INTS) {
+                    numberType = JsonParser.NumberType.BIG_INTEGER;
+                } else if (USE_LONG_FOR_INTS) {
+                    numberType = JsonParser.NumberType.LONG;
+                } else {
+                    numberType = parser.getNumberType();
+                }
+
+                if (numberType == JsonParser.NumberType.INT) {
+                    return NODE_FACTORY.numberNode(parser.getIntValue());
+                } else if (numberType == JsonParser.NumberType.LONG) {
+                    return NODE_FACTORY.numberNode(parser.getLongValue());
+                } else {
+                    return NODE_FACTORY.numberNode(parser.getBigIntegerValue());
+                }
+            }
+            case VALUE_NUMBER_FLOAT: {
+                JsonParser.NumberType numberType = parser.getNumberType();
+                if (numberType == JsonParser.NumberType.BIG_DECIMAL) {
+                    return NODE_FACTORY.numberNode(parser.getDecimalValue());
+                } else if (USE_BIG_DECIMAL_FOR_FLOATS) {
+                    // NaN can't be a BigDecimal.
+                    if (parser.isNaN()) {
+                        return NODE_FACTORY.numberNode(parser.getDoubleValue());
+                    }
+                    return NODE_FACTORY.numberNode(parser.getDecimalValue());
+                } else if (numberType == JsonParser.NumberType.FLOAT) {
+                    return NODE_FACTORY.numberNode(parser.getFloatValue());
+                } else {
+                    return NODE_FACTORY.numberNode(parser.getDoubleValue());
+                }
+            }
+            case VALUE_TRUE:
+                return NODE_FACTORY.booleanNode(true);
+            case VALUE_FALSE:
+                return NODE_FACTORY.booleanNode(false);
+            case VALUE_NULL:
+                return NODE_FACTORY.nullNode();
+            default:
+                // Anything else (embedded objects) doesn't come from JSON text. Let the mapper handle it.
+                return DefaultObjectMapper.INSTANCE.readTree(parser);
+        }
+    }
+}
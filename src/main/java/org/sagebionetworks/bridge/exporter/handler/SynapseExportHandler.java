@@ -5,12 +5,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.google.common.collect.ImmutableList;
@@ -37,6 +37,7 @@ import org.sagebionetworks.bridge.exporter.worker.ExportSubtask;
 import org.sagebionetworks.bridge.exporter.worker.ExportTask;
 import org.sagebionetworks.bridge.exporter.worker.ExportWorkerManager;
 import org.sagebionetworks.bridge.exporter.worker.TsvInfo;
+import org.sagebionetworks.bridge.exporter.worker.TsvRow;
 import org.sagebionetworks.bridge.file.FileHelper;
 
 /**
@@ -51,6 +52,23 @@ public abstract class SynapseExportHandler extends ExportHandler {
 
     private List<ColumnDefinition> columnDefinition;
 
+    // The TSV for the most recent task, so each row doesn't have to take the monitor to find it. ExportWorkerManager
+    // gives each task its own handlers, so in practice this only ever sees one task. But the TSV itself lives in the
+    // task (see getTsvInfoForTask()), and nothing stops a handler from being called with a second task (the unit
+    // tests do this), so we still check that the task matches rather than write to the wrong task's TSV.
+    private volatile TaskTsvInfo lastTaskTsvInfo;
+
+    // Immutable pair of task and TSV, so both are read together.
+    private static class TaskTsvInfo {
+        private final ExportTask task;
+        private final TsvInfo tsvInfo;
+
+        TaskTsvInfo(ExportTask task, TsvInfo tsvInfo) {
+            this.task = task;
+            this.tsvInfo = tsvInfo;
+        }
+    }
+
     private void initSynapseColumnDefinitionsAndColumnList() {
         this.columnDefinition = getManager().getColumnDefinitions();
 
@@ -101,17 +119,15 @@ public abstract class SynapseExportHandler extends ExportHandler {
         try {
             // get TSV info (init if necessary)
             TsvInfo tsvInfo = initTsvForTask(task);
-            tsvInfo.checkInitAndThrow();
+            TsvRow row = tsvInfo.newRow();
 
-            // Construct row value map. Merge row values from common columns and getTsvRowValueMap()
-            Map<String, String> rowValueMap = new HashMap<>();
-            rowValueMap.putAll(getCommonRowValueMap(subtask));
-            rowValueMap.putAll(getTsvRowValueMap(subtask));
+            // Fill in the row. Common columns go first, so that values from writeTsvRowValues() win if there's a
+            // conflict.
+            writeCommonRowValues(subtask, row);
+            writeTsvRowValues(subtask, row);
 
-            // write to TSV
-            tsvInfo.writeRow(rowValueMap);
-            // add one record into tsv
-            tsvInfo.addRecordId(recordId);
+            // Write to TSV, and add the record to the TSV's record list.
+            tsvInfo.writeRow(row, recordId);
             metrics.incrementCounter(tableKey + ".lineCount");
         } catch (BridgeExporterException | IOException | RuntimeException | SchemaNotFoundException |
                 SynapseException ex) {
@@ -123,8 +139,20 @@ public abstract class SynapseExportHandler extends ExportHandler {
     }
 
     // Gets the TSV for the task, initializing it if it hasn't been created yet. Also initializes the Synapse table if
-    // it hasn't been created.
-    private synchronized TsvInfo initTsvForTask(ExportTask task) {
+    // it hasn't been created. After the first call for a task, this returns the cached TSV without locking.
+    private TsvInfo initTsvForTask(ExportTask task) {
+        TaskTsvInfo cached = lastTaskTsvInfo;
+        if (cached != null && cached.task == task) {
+            return cached.tsvInfo;
+        }
+
+        TsvInfo tsvInfo = initTsvForTaskSynchronized(task);
+        lastTaskTsvInfo = new TaskTsvInfo(task, tsvInfo);
+        return tsvInfo;
+    }
+
+    // Slow path for initTsvForTask(). Only one thread initializes the TSV.
+    private synchronized TsvInfo initTsvForTaskSynchronized(ExportTask task) {
         // check if the TSV is already saved in the task
         TsvInfo savedTsvInfo = getTsvInfoForTask(task);
 
@@ -171,27 +199,35 @@ public abstract class SynapseExportHandler extends ExportHandler {
         columnDefList.addAll(commonColumnList);
         columnDefList.addAll(getSynapseTableColumnList(task));
 
-        // Create or update table if necessary.
-        boolean isExisted = true;
+        // Create or update table if necessary. Other requests may be exporting to the same table, so hold the table
+        // lock from reading the table ID until the table is created or updated. Whoever gets the lock second reads the
+        // table ID that the first one wrote.
+        ExportWorkerManager manager = getManager();
+        Lock tableLock = manager.getSynapseTableLock(getDdbTableName(), getDdbTableKeyValue());
+        tableLock.lock();
+        try {
+            boolean isExisted = true;
 
-        String synapseTableId = getManager().getSynapseTableIdFromDdb(task, getDdbTableName(), getDdbTableKeyName(),
-                getDdbTableKeyValue());
+            String synapseTableId = manager.getSynapseTableIdFromDdb(task, getDdbTableName(), getDdbTableKeyName(),
+                    getDdbTableKeyValue());
 
-        // check if the table in synapse currently
-        ExportWorkerManager manager = getManager();
-        SynapseHelper synapseHelper = manager.getSynapseHelper();
-        if (synapseTableId != null) {
-            try {
-                synapseHelper.getTableWithRetry(synapseTableId);
-            } catch (SynapseNotFoundException e) {
-                isExisted = false;
+            // check if the table in synapse currently
+            SynapseHelper synapseHelper = manager.getSynapseHelper();
+            if (synapseTableId != null) {
+                try {
+                    synapseHelper.getTableWithRetry(synapseTableId);
+                } catch (SynapseNotFoundException e) {
+                    isExisted = false;
+                }
             }
-        }
 
-        if (synapseTableId == null || !isExisted) {
-            createNewTable(task, columnDefList);
-        } else {
-            updateTableIfNeeded(synapseTableId, columnDefList);
+            if (synapseTableId == null || !isExisted) {
+                createNewTable(task, columnDefList);
+            } else {
+                updateTableIfNeeded(synapseTableId, columnDefList);
+            }
+        } finally {
+            tableLock.unlock();
         }
 
         // Extract column names from column models
@@ -315,27 +351,25 @@ public abstract class SynapseExportHandler extends ExportHandler {
         synapseHelper.updateTableColumns(schemaChangeRequest, synapseTableId);
     }
 
-    // Helper method to get row values that are common across all Synapse tables and handlers.
-    private Map<String, String> getCommonRowValueMap(ExportSubtask subtask) {
+    // Helper method to write row values that are common across all Synapse tables and handlers.
+    private void writeCommonRowValues(ExportSubtask subtask, TsvRow row) {
         ExportTask task = subtask.getParentTask();
         Item record = subtask.getOriginalRecord();
         String recordId = subtask.getRecordId();
 
         // get phone and app info
-        PhoneAppVersionInfo phoneAppVersionInfo = PhoneAppVersionInfo.fromRecord(record);
+        PhoneAppVersionInfo phoneAppVersionInfo = subtask.getRecordView().getPhoneAppVersionInfo();
         String appVersion = phoneAppVersionInfo.getAppVersion();
         String phoneInfo = phoneAppVersionInfo.getPhoneInfo();
 
-        // construct row
-        Map<String, String> rowValueMap = new HashMap<>();
-        rowValueMap.put("recordId", recordId);
-        rowValueMap.put("appVersion", appVersion);
-        rowValueMap.put("phoneInfo", phoneInfo);
-        rowValueMap.put("uploadDate", task.getExporterDate().toString());
-
-        BridgeExporterUtil.getRowValuesFromRecordBasedOnColumnDefinition(rowValueMap,record, columnDefinition, recordId);
+        // fill in row
+        row.setValue("recordId", recordId);
+        row.setValue("appVersion", appVersion);
+        row.setValue("phoneInfo", phoneInfo);
+        row.setValue("uploadDate", task.getExporterDate().toString());
 
-        return rowValueMap;
+        BridgeExporterUtil.getRowValuesFromRecordBasedOnColumnDefinition(row::setValue, record, columnDefinition,
+                recordId);
     }
 
     /**
@@ -405,8 +439,11 @@ public abstract class SynapseExportHandler extends ExportHandler {
     /** Save the TSV into the task for this handler. */
     protected abstract void setTsvInfoForTask(ExportTask task, TsvInfo tsvInfo);
 
-    /** Creates a row values for a single row from the given export task. */
-    protected abstract Map<String, String> getTsvRowValueMap(ExportSubtask subtask) throws BridgeExporterException,
+    /**
+     * Writes the handler-specific row values for the given subtask into the given row. Values for columns that aren't
+     * in the TSV are ignored.
+     */
+    protected abstract void writeTsvRowValues(ExportSubtask subtask, TsvRow row) throws BridgeExporterException,
             IOException, SchemaNotFoundException, SynapseException;
 
 
@@ -2,14 +2,14 @@ package org.sagebionetworks.bridge.exporter.helper;
 
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.RateLimiter;
-import com.jcabi.aspects.Cacheable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.exporter.cache.BoundedCache;
+import org.sagebionetworks.bridge.exporter.cache.CacheRegistry;
 import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.rest.ClientManager;
@@ -29,8 +29,22 @@ import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 public class BridgeHelper {
     private static final int MAX_BATCH_SIZE = 25;
 
+    // package-scoped to be available to unit tests
+    static final String CACHE_NAME_SCHEMA = "bridge.schema";
+    static final String CACHE_NAME_STUDY = "bridge.study";
+    static final int DEFAULT_CACHE_TTL_MINUTES = 5;
+    static final int DEFAULT_SCHEMA_CACHE_MAX_SIZE = 10000;
+    static final int DEFAULT_STUDY_CACHE_MAX_SIZE = 1000;
+
     private ClientManager bridgeClientManager;
 
+    // Caches start with defaults, so we don't need a cache registry in unit tests. The cache registry replaces these
+    // with configured caches.
+    private BoundedCache<UploadSchemaKey, UploadSchema> schemaCache = new BoundedCache<>(CACHE_NAME_SCHEMA,
+            DEFAULT_SCHEMA_CACHE_MAX_SIZE, DEFAULT_CACHE_TTL_MINUTES);
+    private BoundedCache<String, Study> studyCache = new BoundedCache<>(CACHE_NAME_STUDY,
+            DEFAULT_STUDY_CACHE_MAX_SIZE, DEFAULT_CACHE_TTL_MINUTES);
+
     // Rate limiter, used to limit the amount of traffic to Bridge, specifically for when we loop over a potentially
     // unbounded series of studies. Conservatively limit at 1 req/sec.
     private final RateLimiter rateLimiter = RateLimiter.create(1.0);
@@ -41,6 +55,15 @@ public class BridgeHelper {
         this.bridgeClientManager = bridgeClientManager;
     }
 
+    /** Cache registry, used to create the schema and study caches. */
+    @Autowired
+    public final void setCacheRegistry(CacheRegistry cacheRegistry) {
+        schemaCache = cacheRegistry.newCache(CACHE_NAME_SCHEMA, DEFAULT_SCHEMA_CACHE_MAX_SIZE,
+                DEFAULT_CACHE_TTL_MINUTES);
+        studyCache = cacheRegistry.newCache(CACHE_NAME_STUDY, DEFAULT_STUDY_CACHE_MAX_SIZE,
+                DEFAULT_CACHE_TTL_MINUTES);
+    }
+
     /**
      * Signals Bridge Server that the upload is completed and to begin processing the upload. Used by Upload
      * Auto-Complete.
@@ -57,8 +80,11 @@ public class BridgeHelper {
         }
     }
 
-    /** Gets the participant from Bridge for the specified study and health code. */
-    @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
+    /**
+     * Gets the participant from Bridge for the specified study and health code. This is not cached here. Callers
+     * should go through {@link org.sagebionetworks.bridge.exporter.record.ParticipantSharingScopeCache}, which
+     * caches only the sharing scope instead of the whole participant.
+     */
     public StudyParticipant getParticipantByHealthCode(String studyId, String healthCode) {
         try {
             return bridgeClientManager.getClient(ForWorkersApi.class).getParticipantInStudyByHealthCode(studyId,
@@ -100,7 +126,7 @@ public class BridgeHelper {
      *         if the schema doesn't exist
      */
     public UploadSchema getSchema(Metrics metrics, UploadSchemaKey schemaKey) throws SchemaNotFoundException {
-        UploadSchema schema = getSchemaCached(schemaKey);
+        UploadSchema schema = schemaCache.get(schemaKey, () -> getSchemaUncached(schemaKey));
         if (schema == null) {
             metrics.addKeyValuePair("schemasNotFound", schemaKey.toString());
             throw new SchemaNotFoundException("Schema not found: " + schemaKey.toString());
@@ -108,9 +134,8 @@ public class BridgeHelper {
         return schema;
     }
 
-    // Helper method that encapsulates just the service call, cached with annotation.
-    @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
-    private UploadSchema getSchemaCached(UploadSchemaKey schemaKey) {
+    // Helper method that encapsulates just the service call. Caching is done in getSchema().
+    private UploadSchema getSchemaUncached(UploadSchemaKey schemaKey) {
         try {
             return bridgeClientManager.getClient(ForWorkersApi.class).getSchemaRevisionInStudy(schemaKey.getAppId(),
                     schemaKey.getSchemaId(), (long) schemaKey.getRevision()).execute().body();
@@ -119,9 +144,13 @@ public class BridgeHelper {
         }
     }
 
-    /** Calls Bridge to get a study by ID. */
-    @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
+    /** Calls Bridge to get a study by ID. Studies are cached. */
     public Study getStudy(String studyId) {
+        return studyCache.get(studyId, () -> getStudyUncached(studyId));
+    }
+
+    // Helper method that encapsulates just the service call.
+    private Study getStudyUncached(String studyId) {
         try {
             return bridgeClientManager.getClient(ForWorkersApi.class).getStudy(studyId).execute().body();
         } catch (IOException ex) {
@@ -1,5 +1,9 @@
 package org.sagebionetworks.bridge.exporter.metrics;
 
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedMultiset;
 import com.google.common.collect.SortedMultiset;
 import com.google.common.collect.SortedSetMultimap;
@@ -9,6 +13,7 @@ import com.google.common.collect.TreeMultiset;
 /** Helper object to collect metrics for a given Bridge-EX run. */
 public class Metrics {
     private final SortedMultiset<String> counterMap = TreeMultiset.create();
+    private final SortedMap<String, Long> gaugeMap = new TreeMap<>();
     private final SortedSetMultimap<String, String> keyValuesMap = TreeMultimap.create();
     private final SortedSetMultimap<String, String> setCounterMap = TreeMultimap.create();
 
@@ -33,6 +38,72 @@ public class Metrics {
         return counterMap.count(name);
     }
 
+    /**
+     * Increments the given counter by the given amount. If the counter doesn't exist, it initializes that counter with
+     * the given value. This is used for counters that track totals rather than events, like number of keys fetched.
+     *
+     * @param name
+     *         name of the counter to increment
+     * @param count
+     *         amount to increment the counter by, must be non-negative
+     * @return value of the counter, after increment
+     */
+    public synchronized int incrementCounter(String name, int count) {
+        counterMap.add(name, count);
+        return counterMap.count(name);
+    }
+
+    /** Returns an immutable copy of the gauge map, sorted by gauge name. */
+    public synchronized SortedMap<String, Long> getGaugeMap() {
+        return ImmutableSortedMap.copyOfSorted(gaugeMap);
+    }
+
+    /**
+     * Sets the given gauge to the given value, replacing the previous value. Unlike counters, gauges track the current
+     * state of something that can go up and down, like the current DDB read rate or the number of in-flight subtasks.
+     *
+     * @param name
+     *         name of the gauge to set
+     * @param value
+     *         current value of the gauge
+     */
+    public synchronized void setGauge(String name, long value) {
+        gaugeMap.put(name, value);
+    }
+
+    /**
+     * Sets the given gauge to the given value, but only if it's greater than the gauge's current value (or if the
+     * gauge doesn't exist yet). This is used to track high-water marks, like the peak number of in-flight subtasks.
+     *
+     * @param name
+     *         name of the gauge to set
+     * @param value
+     *         new value of the gauge, if it's higher than the current value
+     */
+    public synchronized void setGaugeMax(String name, long value) {
+        Long oldValue = gaugeMap.get(name);
+        if (oldValue == null || value > oldValue) {
+            gaugeMap.put(name, value);
+        }
+    }
+
+    /**
+     * Adds the given value to the given gauge. If the gauge doesn't exist, it initializes the gauge with the given
+     * value. This is used for running totals that can overflow an int counter, like thread busy time summed across a
+     * thread pool over a long request.
+     *
+     * @param name
+     *         name of the gauge to add to
+     * @param value
+     *         amount to add to the gauge
+     * @return value of the gauge, after adding
+     */
+    public synchronized long addToGauge(String name, long value) {
+        long newValue = gaugeMap.getOrDefault(name, 0L) + value;
+        gaugeMap.put(name, newValue);
+        return newValue;
+    }
+
     /**
      * Returns a copy of the key value mapping. Note that this is backed by a TreeMultimap, so the keys and the values
      * will be in sorted order. However, there is no Guava equivalent for ImmutableTreeMultimap, so the returned copy
@@ -41,6 +41,10 @@ public class MetricsHelper {
             LOG.info(oneCounterEntry.getElement() + ": " + oneCounterEntry.getCount());
         }
 
+        for (Map.Entry<String, Long> oneGaugeEntry : metrics.getGaugeMap().entrySet()) {
+            LOG.info(oneGaugeEntry.getKey() + ": " + oneGaugeEntry.getValue());
+        }
+
         for (Map.Entry<String, Collection<String>> oneSetCounterEntry
                 : metrics.getSetCounterMap().asMap().entrySet()) {
             LOG.info(oneSetCounterEntry.getKey() + ": " + oneSetCounterEntry.getValue().size());
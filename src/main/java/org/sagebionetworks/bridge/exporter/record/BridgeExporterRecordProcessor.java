@@ -3,12 +3,16 @@ package org.sagebionetworks.bridge.exporter.record;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
 import com.google.common.base.Stopwatch;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -21,7 +25,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.cache.CacheRegistry;
 import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpointHelper;
 import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
 import org.sagebionetworks.bridge.exporter.exceptions.SynapseUnavailableException;
@@ -36,38 +43,69 @@ import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 
 /**
- * This is the main entry point into Bridge EX. This record processor class is called for each request, and loops over
- * all health data records in that request. For each health data record, this does basic processing and filtering, and
- * identifies the correct schema for the record before handing it off to the {@link ExportWorkerManager}.
+ * This is the main entry point into Bridge EX. This record processor class is called for each request, and runs all
+ * health data records in that request through a {@link RecordPipeline}. For each health data record, this does basic
+ * processing and filtering, and identifies the correct schema for the record before handing it off to the
+ * {@link ExportWorkerManager}.
  */
 @Component
 public class BridgeExporterRecordProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeExporterRecordProcessor.class);
 
     // package-scoped to be available to unit tests
-    static final String CONFIG_KEY_RECORD_LOOP_DELAY_MILLIS = "record.loop.delay.millis";
+    static final String CONFIG_KEY_RECORD_BATCH_ENABLED = "record.batch.enabled";
     static final String CONFIG_KEY_RECORD_LOOP_PROGRESS_REPORT_PERIOD = "record.loop.progress.report.period";
+    static final String CONFIG_KEY_PIPELINE_DISPATCH_THREADS = "record.pipeline.dispatch.threads";
+    static final String CONFIG_KEY_PIPELINE_FILTER_THREADS = "record.pipeline.filter.threads";
+    static final String CONFIG_KEY_PIPELINE_HYDRATION_THREADS = "record.pipeline.hydration.threads";
+    static final String CONFIG_KEY_PIPELINE_QUEUE_CAPACITY = "record.pipeline.queue.capacity";
+    static final int DEFAULT_PIPELINE_QUEUE_CAPACITY = 1000;
+    static final String METRIC_CHECKPOINT_SKIPPED_RECORDS = "numCheckpointSkippedRecords";
 
     // config attributes
-    private int delayMillis;
+    private boolean batchEnabled;
+    private int pipelineDispatchThreads;
+    private int pipelineFilterThreads;
+    private int pipelineHydrationThreads;
+    private int pipelineQueueCapacity;
     private int progressReportPeriod;
     private DateTimeZone timeZone;
 
     // Spring helpers
+    private CacheRegistry cacheRegistry;
     private Table ddbRecordTable;
+    private ExportCheckpointHelper exportCheckpointHelper;
     private FileHelper fileHelper;
     private MetricsHelper metricsHelper;
+    private ParticipantSharingScopeCache participantSharingScopeCache;
+    private ExecutorService pipelineExecutor;
+    private RecordBatchLoader recordBatchLoader;
     private RecordFilterHelper recordFilterHelper;
     private RecordIdSourceFactory recordIdSourceFactory;
+    private RecordReadGovernor recordReadGovernor;
     private SynapseHelper synapseHelper;
     private ExportWorkerManager workerManager;
     private DynamoHelper dynamoHelper;
 
+    /** Cache registry, used to add cache stats to the request's metrics. */
+    @Autowired
+    public final void setCacheRegistry(CacheRegistry cacheRegistry) {
+        this.cacheRegistry = cacheRegistry;
+    }
+
     /** Config, used to get attributes for loop control and time zone. */
     @Autowired
     public final void setConfig(Config config) {
-        this.delayMillis = config.getInt(CONFIG_KEY_RECORD_LOOP_DELAY_MILLIS);
+        this.batchEnabled = Boolean.parseBoolean(config.get(CONFIG_KEY_RECORD_BATCH_ENABLED));
         this.progressReportPeriod = config.getInt(CONFIG_KEY_RECORD_LOOP_PROGRESS_REPORT_PERIOD);
+
+        // Each pipeline stage has at least one thread.
+        this.pipelineDispatchThreads = Math.max(1, config.getInt(CONFIG_KEY_PIPELINE_DISPATCH_THREADS));
+        this.pipelineFilterThreads = Math.max(1, config.getInt(CONFIG_KEY_PIPELINE_FILTER_THREADS));
+        this.pipelineHydrationThreads = Math.max(1, config.getInt(CONFIG_KEY_PIPELINE_HYDRATION_THREADS));
+
+        int configQueueCapacity = config.getInt(CONFIG_KEY_PIPELINE_QUEUE_CAPACITY);
+        this.pipelineQueueCapacity = configQueueCapacity > 0 ? configQueueCapacity : DEFAULT_PIPELINE_QUEUE_CAPACITY;
         this.timeZone = DateTimeZone.forID(config.get(BridgeExporterUtil.CONFIG_KEY_TIME_ZONE_NAME));
     }
 
@@ -77,6 +115,11 @@ public class BridgeExporterRecordProcessor {
         this.ddbRecordTable = ddbRecordTable;
     }
 
+    /** Export checkpoint helper, used to resume requests that were restarted part way through. */
+    @Autowired
+    public final void setExportCheckpointHelper(ExportCheckpointHelper exportCheckpointHelper) {
+        this.exportCheckpointHelper = exportCheckpointHelper;
+    }
 
     /** File helper, used for creating and cleaning up the temp dir used to store the request's temporary files. */
     @Autowired
@@ -90,6 +133,29 @@ public class BridgeExporterRecordProcessor {
         this.metricsHelper = metricsHelper;
     }
 
+    /**
+     * Participant sharing scope cache. The hydration stage prefetches participants for the records it loads, so the
+     * filter stage doesn't block on Bridge.
+     */
+    @Autowired
+    public final void setParticipantSharingScopeCache(ParticipantSharingScopeCache participantSharingScopeCache) {
+        this.participantSharingScopeCache = participantSharingScopeCache;
+    }
+
+    /** Executor that runs the record pipeline stages. Must be able to run all stage threads at once. */
+    @Resource(name = "recordPipelineExecutorService")
+    public final void setPipelineExecutor(ExecutorService pipelineExecutor) {
+        this.pipelineExecutor = pipelineExecutor;
+    }
+
+    /**
+     * Record batch loader, used to load records from DDB in batches. Only used if batching is enabled in the config.
+     */
+    @Autowired
+    public final void setRecordBatchLoader(RecordBatchLoader recordBatchLoader) {
+        this.recordBatchLoader = recordBatchLoader;
+    }
+
     /**
      * Record filter helper, used to determine which records to filter out, due to request filters or sharing filters.
      */
@@ -104,6 +170,12 @@ public class BridgeExporterRecordProcessor {
         this.recordIdSourceFactory = recordIdSourceFactory;
     }
 
+    /** Record read governor, used to rate limit our reads against the DDB record table. */
+    @Autowired
+    public final void setRecordReadGovernor(RecordReadGovernor recordReadGovernor) {
+        this.recordReadGovernor = recordReadGovernor;
+    }
+
     /** Synapse Helper, used to check Synapse health status before starting export job. */
     @Autowired
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
@@ -124,17 +196,29 @@ public class BridgeExporterRecordProcessor {
         this.dynamoHelper = dynamoHelper;
     }
 
+    /**
+     * Processes all records for the given request, with a new metrics object. See
+     * {@link #processRecordsForRequest(BridgeExporterRequest, Metrics)}.
+     */
+    public void processRecordsForRequest(BridgeExporterRequest request) throws IOException,
+            PollSqsWorkerBadRequestException, RestartBridgeExporterException, SynapseUnavailableException {
+        processRecordsForRequest(request, new Metrics());
+    }
+
     /**
      * Main entry point into Bridge-EX. This process all records for the given request.
      *
      * @param request
      *         request to process records for
+     * @param metrics
+     *         metrics object for the request, which may already contain metrics from before the request started, such
+     *         as scheduling metrics
      * @throws IOException
      *         if we fail to get the record IDs from the record ID factory
      * @throws SynapseUnavailableException
      *         if Synapse is not available in read/write mode
      */
-    public void processRecordsForRequest(BridgeExporterRequest request) throws IOException,
+    public void processRecordsForRequest(BridgeExporterRequest request, Metrics metrics) throws IOException,
             PollSqsWorkerBadRequestException, RestartBridgeExporterException, SynapseUnavailableException {
         LOG.info("Received request " + request.toString());
 
@@ -150,12 +234,24 @@ public class BridgeExporterRecordProcessor {
             throw new SynapseUnavailableException("Synapse not in writable state");
         }
 
+        // If this request was restarted part way through, the checkpoint tells us what work we can skip.
+        ExportCheckpoint checkpoint = exportCheckpointHelper.loadCheckpoint(request);
+        if (checkpoint != null && !checkpoint.isEmpty()) {
+            LOG.info("Resuming request from checkpoint, completed studies: " +
+                    BridgeExporterUtil.COMMA_SPACE_JOINER.join(checkpoint.getUploadedOnWatermarkByStudy().keySet()) +
+                    ", completed tables: " + BridgeExporterUtil.COMMA_SPACE_JOINER.join(
+                    checkpoint.getCompletedTableSet()));
+        }
+
         // make task
-        Metrics metrics = new Metrics();
         File tmpDir = fileHelper.createTempDir();
         LOG.info("Created temp dir " + tmpDir.getAbsolutePath());
-        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.now(timeZone)).withMetrics(metrics)
-                .withRequest(request).withTmpDir(tmpDir).build();
+        ExportTask task = new ExportTask.Builder().withCheckpoint(checkpoint)
+                .withExporterDate(LocalDate.now(timeZone)).withMetrics(metrics).withRequest(request)
+                .withTmpDir(tmpDir).build();
+
+        // Provisioned read capacity may have changed since the last request.
+        recordReadGovernor.initForRequest(metrics);
 
         Stopwatch stopwatch = Stopwatch.createStarted();
         try {
@@ -164,53 +260,25 @@ public class BridgeExporterRecordProcessor {
             LOG.info("Exporting the following studies: " + BridgeExporterUtil.COMMA_SPACE_JOINER.join(studyIdsToQuery
                     .keySet()));
 
+            // Run the records through the pipeline. This blocks until all records have been handed off to the worker
+            // manager.
             Iterable<String> recordIdIterable = recordIdSourceFactory.getRecordSourceForRequest(request,
-                    studyIdsToQuery);
-            for (String oneRecordId : recordIdIterable) {
-                // Count total number of records. Also, log at regular intervals, so people tailing the logs can follow
-                // progress.
-                int numTotal = metrics.incrementCounter("numTotal");
-                if (numTotal % progressReportPeriod == 0) {
-                    LOG.info("Num records so far: " + numTotal + " in " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                            " seconds");
-                }
-
-                // sleep to rate limit our requests to DDB
-                if (delayMillis > 0) {
-                    try {
-                        Thread.sleep(delayMillis);
-                    } catch (InterruptedException ex) {
-                        LOG.error("Record processor interrupted while sleeping: " + ex.getMessage(), ex);
-                    }
-                }
-
-                try {
-                    // get record
-                    Item record = ddbRecordTable.getItem("id", oneRecordId);
-                    if (record == null) {
-                        LOG.error("Missing health data record for ID " + oneRecordId);
-                        continue;
-                    }
-
-                    // filter
-                    boolean shouldExcludeRecord = recordFilterHelper.shouldExcludeRecord(metrics, request, record);
-                    if (shouldExcludeRecord) {
-                        continue;
-                    }
-
-                    // only after the filter do we log health code metrics
-                    metricsHelper.captureMetricsForRecord(metrics, record);
-
-                    workerManager.addSubtaskForRecord(task, record);
-                } catch (IOException | RuntimeException | SchemaNotFoundException ex) {
-                    LOG.error("Exception processing record " + oneRecordId + ": " + ex.getMessage(), ex);
-                }
-            }
+                    getStudyIdsToQueryAfterCheckpoint(checkpoint, studyIdsToQuery,
+                    request.getEndDateTime()), metrics);
+            int batchSize = batchEnabled ? recordBatchLoader.getBatchSize() : 1;
+            RecordPipeline pipeline = new RecordPipeline(pipelineExecutor, metrics, pipelineQueueCapacity, batchSize,
+                    pipelineHydrationThreads, pipelineFilterThreads, pipelineDispatchThreads, progressReportPeriod);
+            pipeline.run(recordIdIterable, recordIdBatch -> loadRecords(metrics, recordIdBatch),
+                    (recordId, record) -> shouldDispatchRecord(task, recordId, record),
+                    (recordId, record) -> dispatchRecord(task, pipeline, recordId, record));
 
             workerManager.endOfStream(task, studyIdsToQuery);
 
-            // We made it to the end. Set the success flag on the task.
+            // We made it to the end. Set the success flag on the task. We no longer need the checkpoint.
             setTaskSuccess(task);
+            if (checkpoint != null) {
+                exportCheckpointHelper.deleteCheckpoint(checkpoint);
+            }
 
             // finally modify export time table in ddb
             if (request.getUseLastExportTime()) {
@@ -218,12 +286,15 @@ public class BridgeExporterRecordProcessor {
                         request.getEndDateTime());
             }
         } finally {
+            recordReadGovernor.finishRequest();
+
             long elapsedTime = stopwatch.elapsed(TimeUnit.SECONDS);
             if (task.isSuccess()) {
                 LOG.info("Finished processing request in " + elapsedTime + " seconds, " + request.toString());
             } else {
                 LOG.error("Error processing request; elapsed time " + elapsedTime + " seconds, " + request.toString());
             }
+            cacheRegistry.captureMetrics(metrics);
             metricsHelper.publishMetrics(metrics);
         }
 
@@ -231,6 +302,117 @@ public class BridgeExporterRecordProcessor {
         fileHelper.deleteDir(tmpDir);
     }
 
+    // Helper method which skips the parts of each study's time range that the checkpoint says are already done.
+    // Studies that are entirely done are removed. Note that this returns a copy, since end of stream and the export
+    // time table still need the original start times.
+    private static Map<String, DateTime> getStudyIdsToQueryAfterCheckpoint(ExportCheckpoint checkpoint,
+            Map<String, DateTime> studyIdsToQuery, DateTime endDateTime) {
+        if (checkpoint == null || endDateTime == null) {
+            return studyIdsToQuery;
+        }
+
+        Map<String, DateTime> remainingStudyIdsToQuery = new HashMap<>();
+        for (Map.Entry<String, DateTime> oneStudyEntry : studyIdsToQuery.entrySet()) {
+            String studyId = oneStudyEntry.getKey();
+            DateTime startDateTime = oneStudyEntry.getValue();
+            Long watermark = checkpoint.getUploadedOnWatermarkForStudy(studyId);
+            if (watermark == null || watermark <= startDateTime.getMillis()) {
+                remainingStudyIdsToQuery.put(studyId, startDateTime);
+            } else if (watermark < endDateTime.getMillis()) {
+                remainingStudyIdsToQuery.put(studyId, new DateTime(watermark, startDateTime.getZone()));
+            } else {
+                LOG.info("Skipping study " + studyId + ", already exported according to checkpoint");
+            }
+        }
+        return remainingStudyIdsToQuery;
+    }
+
+    // Pipeline hydration stage. Loads a batch of records from DDB. If batching is disabled, the batch is always a
+    // single record. If a batch fails, the pipeline retries its records one at a time, and those go through GetItem,
+    // like the per-record loop did before batching.
+    private Map<String, Item> loadRecords(Metrics metrics, List<String> recordIdBatch) {
+        Map<String, Item> recordsById;
+        if (batchEnabled && recordIdBatch.size() > 1) {
+            // The batch loader rate limits its own calls through the record read governor.
+            recordsById = recordBatchLoader.loadRecords(metrics, recordIdBatch);
+        } else {
+            recordsById = loadSingleRecord(metrics, recordIdBatch.get(0));
+        }
+
+        // Start looking up the participants now, so their sharing scopes are ready by the time the records reach the
+        // filter stage.
+        participantSharingScopeCache.prefetch(metrics, recordsById.values());
+        return recordsById;
+    }
+
+    // Helper method which loads a single record, for when batching is disabled.
+    private Map<String, Item> loadSingleRecord(Metrics metrics, String recordId) {
+        // Rate limit our requests to DDB. Individual gets don't report consumed capacity, so we use an estimate.
+        recordReadGovernor.acquire();
+
+        Item record;
+        try {
+            record = ddbRecordTable.getItem("id", recordId);
+        } catch (ProvisionedThroughputExceededException ex) {
+            recordReadGovernor.recordThrottle(metrics);
+            throw ex;
+        }
+        recordReadGovernor.recordConsumedCapacity(metrics, RecordBatchLoader.FALLBACK_GET_CAPACITY_UNITS);
+
+        Map<String, Item> recordsById = new HashMap<>();
+        if (record != null) {
+            recordsById.put(recordId, record);
+        }
+        return recordsById;
+    }
+
+    // Pipeline filter stage. Returns true if the record should be handed off to the worker manager.
+    private boolean shouldDispatchRecord(ExportTask task, String recordId, Item record) {
+        if (record == null) {
+            LOG.error("Missing health data record for ID " + recordId);
+            return false;
+        }
+
+        Metrics metrics = task.getMetrics();
+        ExportCheckpoint checkpoint = task.getCheckpoint();
+        if (checkpoint != null && record.get("uploadedOn") != null && checkpoint.isRecordCompleted(
+                record.getString("studyId"), record.getLong("uploadedOn"))) {
+            // A previous run of this request already exported this record.
+            metrics.incrementCounter(METRIC_CHECKPOINT_SKIPPED_RECORDS);
+            return false;
+        }
+
+        try {
+            boolean shouldExcludeRecord = recordFilterHelper.shouldExcludeRecord(metrics, task.getRequest(), record);
+            if (shouldExcludeRecord) {
+                return false;
+            }
+
+            // only after the filter do we log health code metrics
+            metricsHelper.captureMetricsForRecord(metrics, record);
+            return true;
+        } catch (RuntimeException ex) {
+            LOG.error("Exception processing record " + recordId + ": " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    // Pipeline dispatch stage. Hands the record off to the worker manager. If the task was aborted (for example,
+    // Synapse is down), this stops the pipeline instead, so we can get to end of stream and restart the request
+    // without reading the rest of the records.
+    private void dispatchRecord(ExportTask task, RecordPipeline pipeline, String recordId, Item record) {
+        if (task.isAborted()) {
+            pipeline.cancel();
+            return;
+        }
+
+        try {
+            workerManager.addSubtaskForRecord(task, record);
+        } catch (IOException | RuntimeException | SchemaNotFoundException ex) {
+            LOG.error("Exception processing record " + recordId + ": " + ex.getMessage(), ex);
+        }
+    }
+
     // Helper method that we can spy and verify that we're setting the task success properly.
     void setTaskSuccess(ExportTask task) {
         task.setSuccess(true);
@@ -0,0 +1,448 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * <p>
+ * Record ID source that runs multiple DDB queries (typically one per study) concurrently on an executor and merges
+ * their results into a bounded queue, which is consumed through this class's iterator. Record IDs from a single query
+ * come out in query order, but record IDs from different queries are interleaved.
+ * </p>
+ * <p>
+ * Range queries (see {@link #submitRangeQuery}) can additionally be split into time slices on the uploadedOn range key.
+ * Every time a slice has returned a configured number of records, it hands off the second half of its remaining range
+ * to a new slice, which runs concurrently. The original slice stops once it reaches the start of the handed-off range.
+ * Since query results are sorted by uploadedOn and slice boundaries never overlap, no record is duplicated or lost.
+ * Large studies therefore end up with many slices, while small studies stay as a single query.
+ * </p>
+ * <p>
+ * Each source runs at most a configured number of queries at once. Queries past that limit wait in the source's own
+ * pending queue, not the executor's. Producers hold their thread while they're blocked on a full queue, so when
+ * several requests share one executor, this keeps one request's stalled producers from using up the threads that
+ * another request's queries are waiting for. The executor should be unbounded (a cached thread pool), so that the
+ * per-source limits, not the executor, bound the number of concurrent queries.
+ * </p>
+ * <p>
+ * If the consumer stops reading before the queries are done, it must call {@link #close} (or {@link #cancel}), so that
+ * producers blocked on a full queue stop querying and give their threads back to the executor.
+ * </p>
+ */
+public class ParallelRecordIdSource implements Closeable, Iterable<String>, Iterator<String> {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelRecordIdSource.class);
+
+    // How long producers and the consumer wait on the queue before re-checking for errors and completion.
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    // package-scoped to be available to unit tests
+    static final String KEY_UPLOADED_ON = "uploadedOn";
+
+    private final ExecutorService executor;
+    private final int maxConcurrentQueries;
+    private final int maxSlicesPerStudy;
+    private final Metrics metrics;
+    private final BlockingQueue<String> queue;
+    private final int sliceSplitThreshold;
+    private final ConcurrentMap<String, AtomicInteger> numSlicesByStudy = new ConcurrentHashMap<>();
+
+    private final AtomicInteger numOutstandingQueries = new AtomicInteger();
+
+    // Queries waiting for one of this source's query slots, and the number of slots in use. See startPendingQueries().
+    private final Queue<Runnable> pendingQueryQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numRunningQueries = new AtomicInteger();
+    private final AtomicReference<RuntimeException> queryError = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+    private String nextRecordId;
+
+    /**
+     * Constructs a parallel record ID source, with no limit of its own on concurrent queries.
+     *
+     * @param executor
+     *         executor to run queries on; the executor's thread count determines the degree of parallelism
+     * @param queueCapacity
+     *         max number of record IDs buffered between the queries and the consumer
+     * @param metrics
+     *         metrics object, used to record per-study record counts and query throughput
+     */
+    public ParallelRecordIdSource(ExecutorService executor, int queueCapacity, Metrics metrics) {
+        this(executor, queueCapacity, Integer.MAX_VALUE, 0, 1, metrics);
+    }
+
+    /**
+     * Constructs a parallel record ID source, with time slicing for range queries, and with no limit of its own on
+     * concurrent queries.
+     *
+     * @param executor
+     *         executor to run queries on; the executor's thread count determines the degree of parallelism
+     * @param queueCapacity
+     *         max number of record IDs buffered between the queries and the consumer
+     * @param sliceSplitThreshold
+     *         number of records a range query slice returns before it splits off a new slice; 0 disables splitting
+     * @param maxSlicesPerStudy
+     *         max number of slices per study, including the initial slice
+     * @param metrics
+     *         metrics object, used to record per-study record counts and query throughput
+     */
+    public ParallelRecordIdSource(ExecutorService executor, int queueCapacity, int sliceSplitThreshold,
+            int maxSlicesPerStudy, Metrics metrics) {
+        this(executor, queueCapacity, Integer.MAX_VALUE, sliceSplitThreshold, maxSlicesPerStudy, metrics);
+    }
+
+    /**
+     * Constructs a parallel record ID source, with time slicing for range queries, that runs at most the given number
+     * of queries at once.
+     *
+     * @param executor
+     *         executor to run queries on; should be unbounded if it's shared with other sources
+     * @param queueCapacity
+     *         max number of record IDs buffered between the queries and the consumer
+     * @param maxConcurrentQueries
+     *         max number of this source's queries (including slices) running at once
+     * @param sliceSplitThreshold
+     *         number of records a range query slice returns before it splits off a new slice; 0 disables splitting
+     * @param maxSlicesPerStudy
+     *         max number of slices per study, including the initial slice
+     * @param metrics
+     *         metrics object, used to record per-study record counts and query throughput
+     */
+    public ParallelRecordIdSource(ExecutorService executor, int queueCapacity, int maxConcurrentQueries,
+            int sliceSplitThreshold, int maxSlicesPerStudy, Metrics metrics) {
+        this.executor = executor;
+        this.maxConcurrentQueries = Math.max(1, maxConcurrentQueries);
+        this.maxSlicesPerStudy = maxSlicesPerStudy;
+        this.metrics = metrics;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.sliceSplitThreshold = sliceSplitThreshold;
+    }
+
+    /**
+     * Submits a query to be run on the executor. All queries must be submitted before iteration starts.
+     *
+     * @param studyId
+     *         study ID the query is for, used for metrics and logging
+     * @param itemIterable
+     *         lazy DDB query results; the query's pages are fetched on the executor's thread
+     */
+    public void submitQuery(String studyId, Iterable<Item> itemIterable) {
+        submitRecordIdQuery(studyId, Iterables.transform(itemIterable, item -> item.getString("id")));
+    }
+
+    /**
+     * Submits a source of record IDs to be read on the executor, for sources that aren't DDB queries, such as record
+     * ID override files. If the source is Closeable, it's closed when reading stops. All sources must be submitted
+     * before iteration starts.
+     *
+     * @param sourceName
+     *         name of the source, used for metrics and logging
+     * @param recordIdIterable
+     *         lazy record ID source; it's read on the executor's thread
+     */
+    public void submitRecordIdQuery(String sourceName, Iterable<String> recordIdIterable) {
+        numOutstandingQueries.incrementAndGet();
+        executeQuery(() -> runQuery(sourceName, recordIdIterable));
+    }
+
+    /**
+     * Submits a query over a range of uploadedOn values to be run on the executor. If slicing is enabled, this query
+     * may be split into multiple concurrent slices. All queries must be submitted before iteration starts.
+     *
+     * @param studyId
+     *         study ID the query is for, used for metrics, logging, and to limit the number of slices
+     * @param startMillis
+     *         start of the uploadedOn range, inclusive
+     * @param endMillis
+     *         end of the uploadedOn range, inclusive
+     * @param rangeQuery
+     *         makes the (lazy) DDB query for a sub-range of uploadedOn
+     */
+    public void submitRangeQuery(String studyId, long startMillis, long endMillis, RangeQuery rangeQuery) {
+        numSlicesByStudy.putIfAbsent(studyId, new AtomicInteger(0));
+        numSlicesByStudy.get(studyId).incrementAndGet();
+        submitSlice(studyId, startMillis, endMillis, rangeQuery);
+    }
+
+    // Submits a single slice. The caller is responsible for counting slices.
+    private void submitSlice(String studyId, long startMillis, long endMillis, RangeQuery rangeQuery) {
+        metrics.incrementCounter("numQuerySlices[" + studyId + "]");
+        numOutstandingQueries.incrementAndGet();
+        executeQuery(() -> runRangeQuery(studyId, startMillis, endMillis, rangeQuery));
+    }
+
+    // Queues the query for one of this source's query slots, and starts it if a slot is free.
+    private void executeQuery(Runnable query) {
+        pendingQueryQueue.add(query);
+        startPendingQueries();
+    }
+
+    // Starts pending queries until either the slots or the pending queries run out. Called whenever a query is queued
+    // and whenever a query finishes. A query queued while all slots are taken is started by whichever query finishes
+    // next, since that query frees its slot before it checks the pending queue.
+    private void startPendingQueries() {
+        while (!pendingQueryQueue.isEmpty()) {
+            int curNumRunningQueries = numRunningQueries.get();
+            if (curNumRunningQueries >= maxConcurrentQueries) {
+                return;
+            }
+            if (!numRunningQueries.compareAndSet(curNumRunningQueries, curNumRunningQueries + 1)) {
+                continue;
+            }
+
+            Runnable query = pendingQueryQueue.poll();
+            if (query == null) {
+                // Another thread took the last pending query. Give back the slot and check again.
+                numRunningQueries.decrementAndGet();
+                continue;
+            }
+            executor.execute(() -> {
+                try {
+                    query.run();
+                } finally {
+                    numRunningQueries.decrementAndGet();
+                    startPendingQueries();
+                }
+            });
+        }
+    }
+
+    // Producer for range queries. Similar to runQuery(), except it splits off new slices as it goes.
+    private void runRangeQuery(String studyId, long startMillis, long endMillis, RangeQuery rangeQuery) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long sliceEndMillis = endMillis;
+        int numRecords = 0;
+        try {
+            if (cancelled) {
+                // We were cancelled while waiting for a query slot. Don't start the query.
+                return;
+            }
+
+            int numRecordsSinceSplit = 0;
+            for (Item oneItem : rangeQuery.query(startMillis, endMillis)) {
+                long uploadedOn = oneItem.getLong(KEY_UPLOADED_ON);
+                if (uploadedOn > sliceEndMillis) {
+                    // The rest of the range belongs to slices we split off. Stop querying.
+                    break;
+                }
+
+                if (!putRecordId(oneItem.getString("id"))) {
+                    // We were cancelled. Stop querying.
+                    return;
+                }
+                numRecords++;
+                numRecordsSinceSplit++;
+
+                // Split the remaining range [uploadedOn + 1, sliceEndMillis] in half, if it's at least 2 millis wide.
+                // The new slice gets the second half, and this slice keeps the first half.
+                if (sliceSplitThreshold > 0 && numRecordsSinceSplit >= sliceSplitThreshold) {
+                    numRecordsSinceSplit = 0;
+                    long remainingStartMillis = uploadedOn + 1;
+                    long remainingWidth = sliceEndMillis - remainingStartMillis + 1;
+                    if (remainingWidth >= 2 && tryAcquireSlice(studyId)) {
+                        long splitMillis = remainingStartMillis + remainingWidth / 2;
+                        submitSlice(studyId, splitMillis, sliceEndMillis, rangeQuery);
+                        sliceEndMillis = splitMillis - 1;
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Error querying record IDs for study " + studyId + " in range [" + startMillis + ", " +
+                    sliceEndMillis + "]: " + ex.getMessage(), ex);
+            queryError.compareAndSet(null, ex);
+        } finally {
+            long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            metrics.incrementCounter("numRecordIds[" + studyId + "]", numRecords);
+            metrics.addKeyValuePair("recordIdQueryRate[" + studyId + "]", numRecords * 1000L /
+                    Math.max(elapsedMillis, 1) + " records/sec");
+            LOG.info("Queried " + numRecords + " record IDs for study " + studyId + " in range [" + startMillis +
+                    ", " + sliceEndMillis + "] in " + elapsedMillis + " ms");
+
+            numOutstandingQueries.decrementAndGet();
+        }
+    }
+
+    // Increments the slice count for the given study, if it's below the max. Returns true if a slice was acquired.
+    private boolean tryAcquireSlice(String studyId) {
+        AtomicInteger numSlices = numSlicesByStudy.get(studyId);
+        while (true) {
+            int curNumSlices = numSlices.get();
+            if (curNumSlices >= maxSlicesPerStudy) {
+                return false;
+            }
+            if (numSlices.compareAndSet(curNumSlices, curNumSlices + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Producer. Iterates the record IDs and pushes them into the queue, blocking if the queue is full.
+    private void runQuery(String sourceName, Iterable<String> recordIdIterable) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        int numRecords = 0;
+        try {
+            if (cancelled) {
+                // We were cancelled while waiting for a query slot. Don't start the query.
+                return;
+            }
+
+            for (String oneRecordId : recordIdIterable) {
+                if (!putRecordId(oneRecordId)) {
+                    // We were cancelled. Stop querying.
+                    return;
+                }
+                numRecords++;
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Error querying record IDs for " + sourceName + ": " + ex.getMessage(), ex);
+            queryError.compareAndSet(null, ex);
+        } finally {
+            if (recordIdIterable instanceof Closeable) {
+                closeQuietly((Closeable) recordIdIterable);
+            }
+
+            long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            metrics.incrementCounter("numRecordIds[" + sourceName + "]", numRecords);
+            metrics.addKeyValuePair("recordIdQueryRate[" + sourceName + "]", numRecords * 1000L /
+                    Math.max(elapsedMillis, 1) + " records/sec");
+            LOG.info("Queried " + numRecords + " record IDs for " + sourceName + " in " + elapsedMillis + " ms");
+
+            numOutstandingQueries.decrementAndGet();
+        }
+    }
+
+    // Helper method to close a record ID source, logging errors instead of throwing.
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Error closing record ID source: " + ex.getMessage(), ex);
+        }
+    }
+
+    // Pushes a record ID into the queue. Returns false if the source was cancelled before we could push.
+    private boolean putRecordId(String recordId) {
+        try {
+            while (!cancelled) {
+                if (queue.offer(recordId, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) {
+                        // cancel() cleared the queue, which let our offer through. Clear it again, so cancelled
+                        // sources don't hold on to record IDs.
+                        queue.clear();
+                        return false;
+                    }
+                    return true;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /** Current number of record IDs waiting in the queue. Used for progress reporting. */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Number of queries that are still running or waiting to run. */
+    public int getNumOutstandingQueries() {
+        return numOutstandingQueries.get();
+    }
+
+    /**
+     * Cancels the remaining queries. Producers stop at their next record ID, and the record IDs already in the queue
+     * are dropped. Safe to call more than once, and from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+    }
+
+    /** Same as {@link #cancel}. Once iteration is finished (or abandoned), this frees up the query threads. */
+    @Override
+    public void close() {
+        cancel();
+    }
+
+    /** This class implements iterable out of convenience. It itself is the iterator, so iterator() returns this. */
+    @Override
+    public Iterator<String> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextRecordId == null) {
+            throwIfQueryError();
+
+            // Order matters. Producers push before decrementing the outstanding count, so if there are no outstanding
+            // queries and the queue is empty, we're done.
+            boolean queriesDone = numOutstandingQueries.get() == 0;
+            try {
+                nextRecordId = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+                throw new IllegalStateException("Interrupted while waiting for record IDs", ex);
+            }
+
+            if (nextRecordId == null && queriesDone) {
+                // One last check, in case the final query failed.
+                throwIfQueryError();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // If any query failed, cancel the remaining queries and propagate the error to the consumer.
+    private void throwIfQueryError() {
+        RuntimeException ex = queryError.get();
+        if (ex != null) {
+            cancel();
+            throw new IllegalStateException("Error querying record IDs: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String recordId = nextRecordId;
+        nextRecordId = null;
+        return recordId;
+    }
+
+    /** Function reference for making a DDB query over a sub-range of uploadedOn. */
+    public interface RangeQuery {
+        /**
+         * Makes the query. Results must be sorted by uploadedOn, ascending.
+         *
+         * @param startMillis
+         *         start of the uploadedOn range, inclusive
+         * @param endMillis
+         *         end of the uploadedOn range, inclusive
+         * @return lazy query results
+         */
+        Iterable<Item> query(long startMillis, long endMillis);
+    }
+}
@@ -0,0 +1,250 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.base.Stopwatch;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+/**
+ * <p>
+ * Cache of participant sharing scopes, keyed by study ID and health code. Getting the participant from Bridge is a
+ * blocking HTTP call, and used to be the slowest per-record step in the record filter. The record pipeline calls
+ * {@link #prefetch} as soon as a batch of records is loaded, which looks up the health codes in that batch on the
+ * prefetch executor (whose thread count bounds the number of concurrent Bridge calls). By the time the records reach
+ * the filter stage, their sharing scopes are usually already loaded.
+ * </p>
+ * <p>
+ * When the cache is full, the least recently used entries are evicted, just enough to get back down to the max size.
+ * In-flight prefetches are never evicted, since those are the entries the filter is about to need.
+ * </p>
+ * <p>
+ * Metrics: cache hits, cache misses (looked up synchronously in the filter), and prefetch waits (the prefetch was
+ * still in flight when the filter needed it). Prefetch lag is the total time the filter spent waiting on in-flight
+ * prefetches.
+ * </p>
+ */
+@Component
+public class ParticipantSharingScopeCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ParticipantSharingScopeCache.class);
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_MAX_SIZE = "participant.cache.max.size";
+    static final String CONFIG_KEY_TTL_MINUTES = "participant.cache.ttl.minutes";
+    static final int DEFAULT_MAX_SIZE = 100000;
+    static final int DEFAULT_TTL_MINUTES = 5;
+    static final String METRIC_HIT = "participantScopeCacheHit";
+    static final String METRIC_MISS = "participantScopeCacheMiss";
+    static final String METRIC_PREFETCH_LAG_MILLIS = "participantScopePrefetchLagMillis";
+    static final String METRIC_PREFETCH_SUBMITTED = "participantScopePrefetchSubmitted";
+    static final String METRIC_PREFETCH_WAIT = "participantScopePrefetchWait";
+
+    // Cache entry. The future is complete once the participant has been loaded (or failed to load).
+    private static class Entry {
+        private final CompletableFuture<SharingScope> future = new CompletableFuture<>();
+        private final long createdOnMillis = DateTimeUtils.currentTimeMillis();
+    }
+
+    // Access-ordered, so iteration starts with the least recently used entry. Guarded by synchronizing on the map.
+    // Bridge calls happen outside the lock.
+    private final LinkedHashMap<String, Entry> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int maxSize;
+    private long ttlMillis;
+
+    private BridgeHelper bridgeHelper;
+    private ExecutorService prefetchExecutor;
+
+    /** Config, used to get cache size and TTL. */
+    @Autowired
+    public final void setConfig(Config config) {
+        int configMaxSize = config.getInt(CONFIG_KEY_MAX_SIZE);
+        this.maxSize = configMaxSize > 0 ? configMaxSize : DEFAULT_MAX_SIZE;
+
+        int configTtlMinutes = config.getInt(CONFIG_KEY_TTL_MINUTES);
+        this.ttlMillis = TimeUnit.MINUTES.toMillis(configTtlMinutes > 0 ? configTtlMinutes : DEFAULT_TTL_MINUTES);
+    }
+
+    /** Bridge Helper, used to get the participant's sharing scope. */
+    @Autowired
+    public final void setBridgeHelper(BridgeHelper bridgeHelper) {
+        this.bridgeHelper = bridgeHelper;
+    }
+
+    /** Executor that runs prefetches. The number of threads bounds the number of concurrent calls to Bridge. */
+    @Resource(name = "participantPrefetchExecutorService")
+    public final void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * Starts loading the sharing scopes for the participants of the given records, if they're not already cached.
+     * This returns immediately. Records without a study ID or health code are skipped.
+     *
+     * @param metrics
+     *         metrics for the request
+     * @param records
+     *         records whose participants we'll need soon
+     */
+    public void prefetch(Metrics metrics, Iterable<Item> records) {
+        for (Item oneRecord : records) {
+            String studyId = oneRecord.getString("studyId");
+            String healthCode = oneRecord.getString("healthCode");
+            if (studyId == null || healthCode == null) {
+                continue;
+            }
+
+            String key = makeKey(studyId, healthCode);
+            Entry newEntry = new Entry();
+            if (putIfAbsentOrExpired(key, newEntry) != newEntry) {
+                // Already cached or already being loaded.
+                continue;
+            }
+
+            try {
+                prefetchExecutor.execute(() -> load(newEntry, studyId, healthCode));
+                metrics.incrementCounter(METRIC_PREFETCH_SUBMITTED);
+            } catch (RejectedExecutionException ex) {
+                // Prefetch is an optimization. The filter will load it synchronously.
+                LOG.warn("Participant prefetch rejected: " + ex.getMessage());
+                removeEntry(key, newEntry);
+            }
+        }
+    }
+
+    /**
+     * Gets the participant's sharing scope. If the sharing scope is being prefetched, this waits for the prefetch.
+     * If it's not in the cache, this loads it synchronously.
+     *
+     * @param metrics
+     *         metrics for the request, used to track hits, misses, and prefetch lag
+     * @param studyId
+     *         participant's study ID
+     * @param healthCode
+     *         participant's health code
+     * @return participant's sharing scope, may be null if the participant has no sharing scope
+     */
+    public SharingScope getSharingScope(Metrics metrics, String studyId, String healthCode) {
+        String key = makeKey(studyId, healthCode);
+        Entry entry;
+        synchronized (entryMap) {
+            entry = entryMap.get(key);
+        }
+        boolean miss = false;
+        if (entry == null || isExpired(entry)) {
+            Entry newEntry = new Entry();
+            entry = putIfAbsentOrExpired(key, newEntry);
+            if (entry == newEntry) {
+                miss = true;
+                metrics.incrementCounter(METRIC_MISS);
+                load(newEntry, studyId, healthCode);
+            }
+        }
+
+        if (!miss && entry.future.isDone()) {
+            metrics.incrementCounter(METRIC_HIT);
+        } else if (!miss) {
+            // Prefetch is still in flight.
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            try {
+                entry.future.get();
+            } catch (ExecutionException ex) {
+                // Handled below.
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for participant prefetch", ex);
+            }
+            metrics.incrementCounter(METRIC_PREFETCH_WAIT);
+            metrics.incrementCounter(METRIC_PREFETCH_LAG_MILLIS, (int) stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+
+        try {
+            return entry.future.getNow(null);
+        } catch (RuntimeException ex) {
+            // Don't cache errors. The next call for this participant will try again.
+            removeEntry(key, entry);
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+
+    // Helper method which adds the new entry to the cache if there is no entry or the entry is expired. Returns the
+    // entry in the cache, which is the new entry only if it was added.
+    private Entry putIfAbsentOrExpired(String key, Entry newEntry) {
+        synchronized (entryMap) {
+            Entry oldEntry = entryMap.get(key);
+            if (oldEntry != null && !isExpired(oldEntry)) {
+                return oldEntry;
+            }
+
+            entryMap.put(key, newEntry);
+            if (entryMap.size() > maxSize) {
+                evict();
+            }
+            return newEntry;
+        }
+    }
+
+    // Helper method which removes the entry, but only if it hasn't since been replaced by a newer entry.
+    private void removeEntry(String key, Entry entry) {
+        synchronized (entryMap) {
+            entryMap.remove(key, entry);
+        }
+    }
+
+    // Helper method which loads the participant from Bridge and completes the entry.
+    private void load(Entry entry, String studyId, String healthCode) {
+        try {
+            StudyParticipant participant = bridgeHelper.getParticipantByHealthCode(studyId, healthCode);
+            entry.future.complete(participant != null ? participant.getSharingScope() : null);
+        } catch (RuntimeException ex) {
+            entry.future.completeExceptionally(ex);
+        }
+    }
+
+    // Helper method which evicts least recently used entries until the cache is back down to the max size. In-flight
+    // entries are skipped, since the filter is about to need them. Caller must hold the lock on the entry map.
+    private void evict() {
+        Iterator<Entry> entryIter = entryMap.values().iterator();
+        while (entryMap.size() > maxSize && entryIter.hasNext()) {
+            if (entryIter.next().future.isDone()) {
+                entryIter.remove();
+            }
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return DateTimeUtils.currentTimeMillis() - entry.createdOnMillis >= ttlMillis;
+    }
+
+    private static String makeKey(String studyId, String healthCode) {
+        return studyId + ":" + healthCode;
+    }
+
+    /** Current number of entries in the cache, including in-flight prefetches. */
+    public int size() {
+        synchronized (entryMap) {
+            return entryMap.size();
+        }
+    }
+}
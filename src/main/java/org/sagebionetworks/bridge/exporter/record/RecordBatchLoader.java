@@ -0,0 +1,238 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * Loads health data records from DDB in batches using BatchGetItem, instead of one GetItem per record. Unprocessed
+ * keys (which DDB returns when a batch exceeds the response size limit or the table is throttled) are retried with
+ * exponential backoff. Any keys still unprocessed after the last retry fall back to individual GetItem calls, so a
+ * record is never silently dropped. All calls go through the {@link RecordReadGovernor}, and unprocessed keys and
+ * ProvisionedThroughputExceededExceptions are reported to the governor as throttling.
+ */
+@Component
+public class RecordBatchLoader {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordBatchLoader.class);
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_BATCH_SIZE = "record.batch.size";
+    static final String CONFIG_KEY_RETRY_BASE_DELAY_MILLIS = "record.batch.retry.base.delay.millis";
+    static final String CONFIG_KEY_RETRY_MAX_COUNT = "record.batch.retry.max.count";
+    static final String KEY_ID = "id";
+
+    // DDB limits BatchGetItem to 100 keys per call.
+    static final int MAX_BATCH_SIZE = 100;
+
+    // Individual GetItem calls don't report consumed capacity. Assume a strongly consistent read of a record under 4KB.
+    static final double FALLBACK_GET_CAPACITY_UNITS = 1.0;
+
+    // config attributes
+    private int batchSize;
+    private int retryBaseDelayMillis;
+    private int retryMaxCount;
+
+    // Spring helpers
+    private DynamoDB ddbClient;
+    private Table ddbRecordTable;
+    private RecordReadGovernor readGovernor;
+
+    /** Config, used to get batch size and retry parameters. */
+    @Autowired
+    public final void setConfig(Config config) {
+        int configBatchSize = config.getInt(CONFIG_KEY_BATCH_SIZE);
+        if (configBatchSize <= 0 || configBatchSize > MAX_BATCH_SIZE) {
+            configBatchSize = MAX_BATCH_SIZE;
+        }
+        this.batchSize = configBatchSize;
+        this.retryBaseDelayMillis = config.getInt(CONFIG_KEY_RETRY_BASE_DELAY_MILLIS);
+        this.retryMaxCount = config.getInt(CONFIG_KEY_RETRY_MAX_COUNT);
+    }
+
+    /** DDB client, used to make BatchGetItem calls. */
+    @Autowired
+    public final void setDdbClient(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
+
+    /**
+     * DDB Health Data Record table. Used for the table name in batch calls, and for individual gets when batch
+     * retries are exhausted.
+     */
+    @Resource(name = "ddbRecordTable")
+    public final void setDdbRecordTable(Table ddbRecordTable) {
+        this.ddbRecordTable = ddbRecordTable;
+    }
+
+    /** Read governor, used to rate limit our reads against the record table. */
+    @Autowired
+    public final void setReadGovernor(RecordReadGovernor readGovernor) {
+        this.readGovernor = readGovernor;
+    }
+
+    /** Max number of record IDs that callers should pass into a single call to {@link #loadRecords}. */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Loads the health data records for the given record IDs. The list of record IDs may not be larger than
+     * {@link #getBatchSize}. Duplicate record IDs are only fetched once.
+     *
+     * @param metrics
+     *         metrics object, used to record batch fill ratio and retries
+     * @param recordIdList
+     *         list of record IDs to load
+     * @return map of record ID to record; record IDs with no corresponding record are absent from the map
+     */
+    public Map<String, Item> loadRecords(Metrics metrics, List<String> recordIdList) {
+        if (recordIdList.size() > batchSize) {
+            throw new IllegalArgumentException("Batch of " + recordIdList.size() + " record IDs exceeds batch size " +
+                    batchSize);
+        }
+
+        Map<String, Item> recordsById = new HashMap<>();
+        Set<String> recordIdSet = new LinkedHashSet<>(recordIdList);
+        if (recordIdSet.isEmpty()) {
+            return recordsById;
+        }
+
+        // Batch fill ratio is numRecordBatchKeys / (numRecordBatches * batch size). We also bucket each batch by fill
+        // percentage, so we can tell whether partial batches are only the tail end of each study.
+        metrics.incrementCounter("numRecordBatches");
+        metrics.incrementCounter("numRecordBatchKeys", recordIdSet.size());
+        int fillDecile = recordIdSet.size() * 10 / batchSize;
+        metrics.incrementCounter("recordBatchFillPercent[" + (fillDecile * 10) + "]");
+
+        String tableName = ddbRecordTable.getTableName();
+        TableKeysAndAttributes keysAndAttributes = new TableKeysAndAttributes(tableName).addHashOnlyPrimaryKeys(
+                KEY_ID, recordIdSet.toArray());
+        BatchGetItemOutcome outcome = callBatchGetItem(metrics, () -> ddbClient.batchGetItem(
+                ReturnConsumedCapacity.TOTAL, keysAndAttributes));
+        addItemsFromOutcome(recordsById, outcome, tableName);
+
+        // Retry unprocessed keys with exponential backoff. Unprocessed keys usually mean we're being throttled.
+        Map<String, KeysAndAttributes> unprocessedKeys = outcome.getUnprocessedKeys();
+        int numRetries = 0;
+        while (unprocessedKeys != null && !unprocessedKeys.isEmpty() && numRetries < retryMaxCount) {
+            metrics.incrementCounter("numRecordBatchRetries");
+            readGovernor.recordThrottle(metrics);
+            sleep((long) retryBaseDelayMillis << numRetries);
+            numRetries++;
+
+            Map<String, KeysAndAttributes> keysToRetry = unprocessedKeys;
+            outcome = callBatchGetItem(metrics, () -> ddbClient.batchGetItemUnprocessed(ReturnConsumedCapacity.TOTAL,
+                    keysToRetry));
+            addItemsFromOutcome(recordsById, outcome, tableName);
+            unprocessedKeys = outcome.getUnprocessedKeys();
+        }
+
+        // If we still have unprocessed keys, fall back to fetching them one at a time.
+        if (unprocessedKeys != null && !unprocessedKeys.isEmpty()) {
+            List<String> leftoverRecordIdList = getRecordIdsFromKeys(unprocessedKeys.get(tableName));
+            LOG.warn("BatchGetItem retries exhausted, fetching " + leftoverRecordIdList.size() +
+                    " records individually");
+            for (String oneRecordId : leftoverRecordIdList) {
+                metrics.incrementCounter("numRecordBatchFallbackGets");
+                readGovernor.acquire();
+                Item record = ddbRecordTable.getItem(KEY_ID, oneRecordId);
+                readGovernor.recordConsumedCapacity(metrics, FALLBACK_GET_CAPACITY_UNITS);
+                if (record != null) {
+                    recordsById.put(oneRecordId, record);
+                }
+            }
+        }
+
+        return recordsById;
+    }
+
+    // Helper method which makes a BatchGetItem call through the read governor. If DDB throws a throughput exception
+    // (after the AWS SDK's own retries), we tell the governor to back off, then retry with exponential backoff.
+    private BatchGetItemOutcome callBatchGetItem(Metrics metrics, Supplier<BatchGetItemOutcome> call) {
+        int numThrottles = 0;
+        while (true) {
+            readGovernor.acquire();
+            try {
+                BatchGetItemOutcome outcome = call.get();
+                BatchGetItemResult result = outcome.getBatchGetItemResult();
+                readGovernor.recordConsumedCapacity(metrics, result != null ? result.getConsumedCapacity() : null);
+                return outcome;
+            } catch (ProvisionedThroughputExceededException ex) {
+                readGovernor.recordThrottle(metrics);
+                if (numThrottles >= retryMaxCount) {
+                    throw ex;
+                }
+                sleep((long) retryBaseDelayMillis << numThrottles);
+                numThrottles++;
+            }
+        }
+    }
+
+    // Helper method to add items from a BatchGetItem outcome into the record map.
+    private static void addItemsFromOutcome(Map<String, Item> recordsById, BatchGetItemOutcome outcome,
+            String tableName) {
+        Map<String, List<Item>> tableItems = outcome.getTableItems();
+        if (tableItems == null) {
+            return;
+        }
+
+        List<Item> itemList = tableItems.get(tableName);
+        if (itemList != null) {
+            for (Item oneItem : itemList) {
+                recordsById.put(oneItem.getString(KEY_ID), oneItem);
+            }
+        }
+    }
+
+    // Helper method to extract record IDs from the low-level unprocessed keys.
+    private static List<String> getRecordIdsFromKeys(KeysAndAttributes keysAndAttributes) {
+        List<String> recordIdList = new ArrayList<>();
+        if (keysAndAttributes == null || keysAndAttributes.getKeys() == null) {
+            return recordIdList;
+        }
+
+        for (Map<String, AttributeValue> oneKey : keysAndAttributes.getKeys()) {
+            AttributeValue idValue = oneKey.get(KEY_ID);
+            if (idValue != null) {
+                recordIdList.add(idValue.getS());
+            }
+        }
+        return recordIdList;
+    }
+
+    // Sleep between retries. Package-scoped so unit tests can spy it out.
+    void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            LOG.error("Record batch loader interrupted while sleeping: " + ex.getMessage(), ex);
+        }
+    }
+}
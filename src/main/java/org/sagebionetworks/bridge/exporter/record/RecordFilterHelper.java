@@ -9,13 +9,11 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterSharingMode;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 import org.sagebionetworks.bridge.rest.model.SharingScope;
-import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 /**
@@ -26,12 +24,12 @@ import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 public class RecordFilterHelper {
     private static final Logger LOG = LoggerFactory.getLogger(RecordFilterHelper.class);
 
-    private BridgeHelper bridgeHelper;
+    private ParticipantSharingScopeCache participantSharingScopeCache;
 
-    /** Bridge Helper, used to get the user's health code. */
+    /** Participant sharing scope cache, used to get the user's sharing scope. */
     @Autowired
-    public final void setBridgeHelper(BridgeHelper bridgeHelper) {
-        this.bridgeHelper = bridgeHelper;
+    public final void setParticipantSharingScopeCache(ParticipantSharingScopeCache participantSharingScopeCache) {
+        this.participantSharingScopeCache = participantSharingScopeCache;
     }
 
     /**
@@ -92,11 +90,10 @@ public class RecordFilterHelper {
             }
         }
 
-        // Get user's sharing scope from Bridge. If not specified, defaults to no_sharing.
+        // Get user's sharing scope from Bridge (usually prefetched). If not specified, defaults to no_sharing.
         String studyId = record.getString("studyId");
         String healthCode = record.getString("healthCode");
-        StudyParticipant participant = bridgeHelper.getParticipantByHealthCode(studyId, healthCode);
-        SharingScope userSharingScope = participant.getSharingScope();
+        SharingScope userSharingScope = participantSharingScopeCache.getSharingScope(metrics, studyId, healthCode);
         if (userSharingScope == null) {
             userSharingScope = SharingScope.NO_SHARING;
         }
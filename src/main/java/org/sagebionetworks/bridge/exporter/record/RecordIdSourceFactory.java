@@ -2,24 +2,43 @@ package org.sagebionetworks.bridge.exporter.record;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 import javax.annotation.Resource;
 
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
 import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
-import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 /**
  * Factory class to construct the appropriate RecordIdSource for the given request. This class abstracts away logic for
@@ -27,23 +46,56 @@ import org.sagebionetworks.bridge.s3.S3Helper;
  */
 @Component
 public class RecordIdSourceFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordIdSourceFactory.class);
+
     private static final RecordIdSource.Converter<Item> DYNAMO_ITEM_CONVERTER = from -> from.getString("id");
-    private static final RecordIdSource.Converter<String> NOOP_CONVERTER = from -> from;
 
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_QUERY_PARALLELISM = "record.query.parallelism";
+    static final String CONFIG_KEY_QUERY_QUEUE_CAPACITY = "record.query.queue.capacity";
+    static final String CONFIG_KEY_QUERY_SLICE_MAX_COUNT = "record.query.slice.max.count";
+    static final String CONFIG_KEY_QUERY_SLICE_SPLIT_THRESHOLD = "record.query.slice.split.threshold";
+    static final String CONFIG_KEY_QUERY_TABLE_FILTER_ENABLED = "record.query.table.filter.enabled";
+    static final String KEY_SCHEMA_ID = "schemaId";
+    static final String KEY_SCHEMA_REVISION = "schemaRevision";
+    static final String KEY_UPLOADED_ON = "uploadedOn";
+
+    // DDB filter expressions are limited to 4kb, and IN lists to 100 values. If a study has more whitelisted tables
+    // than this, we query the whole study and let the RecordFilterHelper filter it.
+    static final int MAX_TABLE_FILTER_SIZE = 50;
+    static final String S3_PREFIX_DELIMITER = "/";
     static final String STUDY_ID = "studyId";
 
     // config vars
     private String overrideBucket;
+    private int queryParallelism;
+    private int queryQueueCapacity;
+    private int querySliceMaxCount;
+    private int querySliceSplitThreshold;
+    private boolean queryTableFilterEnabled;
 
     // Spring helpers
     private DynamoQueryHelper ddbQueryHelper;
     private Index ddbRecordStudyUploadedOnIndex;
-    private S3Helper s3Helper;
+    private ExecutorService recordQueryExecutor;
+    private AmazonS3Client s3Client;
 
-    /** Config, used to get S3 bucket for record ID override files. */
+    /** Config, used to get S3 bucket for record ID override files and query parallelism. */
     @Autowired
     final void setConfig(Config config) {
         overrideBucket = config.get(BridgeExporterUtil.CONFIG_KEY_RECORD_ID_OVERRIDE_BUCKET);
+        queryParallelism = config.getInt(CONFIG_KEY_QUERY_PARALLELISM);
+        queryQueueCapacity = config.getInt(CONFIG_KEY_QUERY_QUEUE_CAPACITY);
+        if (queryQueueCapacity <= 0) {
+            queryQueueCapacity = 1;
+        }
+        querySliceMaxCount = config.getInt(CONFIG_KEY_QUERY_SLICE_MAX_COUNT);
+        querySliceSplitThreshold = config.getInt(CONFIG_KEY_QUERY_SLICE_SPLIT_THRESHOLD);
+
+        // The table filter runs on the study-uploadedOn-index GSI. Only enable it if schemaId and schemaRevision are
+        // projected into the index. Otherwise, DDB sees them as missing, and the filter silently drops every record.
+        // If this is off (the default), the RecordFilterHelper applies the table whitelist instead.
+        queryTableFilterEnabled = Boolean.parseBoolean(config.get(CONFIG_KEY_QUERY_TABLE_FILTER_ENABLED));
     }
 
     /** DDB Query Helper, used to abstract away query logic. */
@@ -58,45 +110,68 @@ public class RecordIdSourceFactory {
         this.ddbRecordStudyUploadedOnIndex = ddbRecordStudyUploadedOnIndex;
     }
 
-    /** S3 Helper, used to download record ID override files. */
+    /**
+     * Executor used to run per-study DDB queries in parallel. Only used if query parallelism is greater than 1. This is
+     * shared by all requests, so it should be unbounded. Query parallelism bounds the number of concurrent queries for
+     * each request.
+     */
+    @Resource(name = "recordQueryExecutorService")
+    final void setRecordQueryExecutor(ExecutorService recordQueryExecutor) {
+        this.recordQueryExecutor = recordQueryExecutor;
+    }
+
+    /** S3 Client, used to list and stream record ID override files. */
     @Autowired
-    final void setS3Helper(S3Helper s3Helper) {
-        this.s3Helper = s3Helper;
+    final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
     }
 
     /**
+     * <p>
      * Gets the record ID source for the given Bridge EX request. Returns an Iterable instead of a RecordIdSource for
      * easy mocking.
+     * </p>
+     * <p>
+     * If the request has a table whitelist (and the table filter is enabled in config), the whitelist is pushed down
+     * into the DDB query as a filter expression on schemaId and schemaRevision, so records from other tables are
+     * never returned or hydrated. Studies with no whitelisted tables aren't queried at all.
+     * </p>
      *
      * @param request
      *         Bridge EX request
+     * @param studyIdsToQuery
+     *         map of study IDs to query, keyed to the start date time of the query for that study
+     * @param metrics
+     *         metrics object for the request, used to record per-study query throughput
      * @return record ID source
      * @throws IOException
      *         if we fail reading the underlying source
      */
     public Iterable<String> getRecordSourceForRequest(BridgeExporterRequest request,
-            Map<String, DateTime> studyIdsToQuery) throws IOException {
+            Map<String, DateTime> studyIdsToQuery, Metrics metrics) throws IOException {
         if (StringUtils.isNotBlank(request.getRecordIdS3Override())) {
-            return getS3RecordIdSource(request);
+            return getS3RecordIdSource(request, metrics);
+        }
+
+        Set<UploadSchemaKey> tableFilter = queryTableFilterEnabled ? request.getTableWhitelist() : null;
+        if (queryParallelism > 1 && (studyIdsToQuery.size() > 1 || isSlicingEnabled())) {
+            return getDynamoRecordIdSourceParallel(request.getEndDateTime(), studyIdsToQuery, tableFilter, metrics);
         } else {
-            return getDynamoRecordIdSourceGeneral(request.getEndDateTime(), studyIdsToQuery);
+            return getDynamoRecordIdSourceGeneral(request.getEndDateTime(), studyIdsToQuery, tableFilter, metrics);
         }
     }
 
     /**
      * Helper method to get ddb records
      */
-    private Iterable<String> getDynamoRecordIdSourceGeneral(DateTime endDateTime, Map<String, DateTime> studyIdsToQuery) {
+    private Iterable<String> getDynamoRecordIdSourceGeneral(DateTime endDateTime, Map<String, DateTime> studyIdsToQuery,
+            Set<UploadSchemaKey> tableFilter, Metrics metrics) {
         // We need to make a separate query for _each_ study in the whitelist. That's just how DDB hash keys work.
         List<Iterable<Item>> recordItemIterList = new ArrayList<>();
         for (Map.Entry<String, DateTime> oneStudyIdAndDateTime : studyIdsToQuery.entrySet()) {
-            RangeKeyCondition rangeKeyCondition = new RangeKeyCondition("uploadedOn")
-                    .between(oneStudyIdAndDateTime.getValue().getMillis(), endDateTime.getMillis() - 1);
-
-            Iterable<Item> recordItemIterTemp = ddbQueryHelper
-                    .query(ddbRecordStudyUploadedOnIndex, "studyId", oneStudyIdAndDateTime.getKey(), rangeKeyCondition);
-
-            recordItemIterList.add(recordItemIterTemp);
+            recordItemIterList.add(queryStudy(oneStudyIdAndDateTime.getKey(),
+                    oneStudyIdAndDateTime.getValue().getMillis(), endDateTime.getMillis() - 1, tableFilter,
+                    metrics));
         }
 
         Iterable<Item> recordItemIter = Iterables.concat(recordItemIterList);
@@ -104,12 +179,193 @@ public class RecordIdSourceFactory {
         return new RecordIdSource<>(recordItemIter, DYNAMO_ITEM_CONVERTER);
     }
 
+    // Time slicing splits a study's uploadedOn range into concurrent sub-range queries. It needs both a split
+    // threshold and room for more than one slice.
+    private boolean isSlicingEnabled() {
+        return querySliceSplitThreshold > 0 && querySliceMaxCount > 1;
+    }
+
     /**
-     * Get the record ID source from a record override file in S3. We assume the list of record IDs is small enough to
-     * reasonably fit in memory.
+     * Helper method to get ddb records, with the per-study queries running in parallel. This way, a large study doesn't
+     * hold up the studies behind it. If time slicing is enabled, large studies are further split into concurrent
+     * queries over sub-ranges of uploadedOn.
      */
-    private Iterable<String> getS3RecordIdSource(BridgeExporterRequest request) throws IOException {
-        List<String> recordIdList = s3Helper.readS3FileAsLines(overrideBucket, request.getRecordIdS3Override());
-        return new RecordIdSource<>(recordIdList, NOOP_CONVERTER);
+    private Iterable<String> getDynamoRecordIdSourceParallel(DateTime endDateTime,
+            Map<String, DateTime> studyIdsToQuery, Set<UploadSchemaKey> tableFilter, Metrics metrics) {
+        ParallelRecordIdSource recordIdSource = new ParallelRecordIdSource(recordQueryExecutor, queryQueueCapacity,
+                queryParallelism, querySliceSplitThreshold, querySliceMaxCount, metrics);
+        for (Map.Entry<String, DateTime> oneStudyIdAndDateTime : studyIdsToQuery.entrySet()) {
+            String studyId = oneStudyIdAndDateTime.getKey();
+            long startMillis = oneStudyIdAndDateTime.getValue().getMillis();
+            long endMillis = endDateTime.getMillis() - 1;
+            if (isSlicingEnabled()) {
+                recordIdSource.submitRangeQuery(studyId, startMillis, endMillis,
+                        (sliceStartMillis, sliceEndMillis) -> queryStudy(studyId, sliceStartMillis, sliceEndMillis,
+                                tableFilter, metrics));
+            } else {
+                recordIdSource.submitQuery(studyId, queryStudy(studyId, startMillis, endMillis, tableFilter,
+                        metrics));
+            }
+        }
+        return recordIdSource;
+    }
+
+    // Helper method to make the (lazy) query for a single study. Both start and end are inclusive. If there's a table
+    // filter, only records from those tables are returned.
+    private Iterable<Item> queryStudy(String studyId, long startMillis, long endMillis,
+            Set<UploadSchemaKey> tableFilter, Metrics metrics) {
+        RangeKeyCondition rangeKeyCondition = new RangeKeyCondition(KEY_UPLOADED_ON).between(startMillis, endMillis);
+        if (tableFilter == null) {
+            return ddbQueryHelper.query(ddbRecordStudyUploadedOnIndex, STUDY_ID, studyId, rangeKeyCondition);
+        }
+
+        SortedMap<String, SortedSet<Integer>> revisionsBySchemaId = getRevisionsBySchemaId(studyId, tableFilter);
+        if (revisionsBySchemaId.isEmpty()) {
+            // None of this study's records would pass the table whitelist. Don't query it at all.
+            LOG.info("Skipping query for study " + studyId + ", no tables in table whitelist");
+            return ImmutableList.of();
+        }
+        int numTables = revisionsBySchemaId.values().stream().mapToInt(Set::size).sum();
+        if (numTables > MAX_TABLE_FILTER_SIZE) {
+            LOG.info("Too many whitelisted tables (" + numTables + ") for study " + studyId +
+                    ", querying the whole study");
+            return ddbQueryHelper.query(ddbRecordStudyUploadedOnIndex, STUDY_ID, studyId, rangeKeyCondition);
+        }
+
+        QuerySpec querySpec = makeTableFilterQuerySpec(studyId, rangeKeyCondition, revisionsBySchemaId);
+        return queryWithFilter(studyId, querySpec, metrics);
+    }
+
+    // Helper method which gets the whitelisted tables for the given study, as a map from schema ID to revisions.
+    // Sorted, so the generated filter expression is deterministic.
+    private static SortedMap<String, SortedSet<Integer>> getRevisionsBySchemaId(String studyId,
+            Set<UploadSchemaKey> tableFilter) {
+        SortedMap<String, SortedSet<Integer>> revisionsBySchemaId = new TreeMap<>();
+        for (UploadSchemaKey oneSchemaKey : tableFilter) {
+            if (studyId.equals(oneSchemaKey.getAppId())) {
+                revisionsBySchemaId.computeIfAbsent(oneSchemaKey.getSchemaId(), k -> new TreeSet<>())
+                        .add(oneSchemaKey.getRevision());
+            }
+        }
+        return revisionsBySchemaId;
+    }
+
+    /**
+     * Makes a query spec for the given study and uploadedOn range, with a filter expression that matches only the
+     * given tables. For example, (#schemaId = :schemaId0 AND #schemaRevision IN (:schemaRevision0_0,
+     * :schemaRevision0_1)) OR (#schemaId = :schemaId1 AND #schemaRevision IN (:schemaRevision1_0)).
+     * Package-scoped for unit tests.
+     */
+    static QuerySpec makeTableFilterQuerySpec(String studyId, RangeKeyCondition rangeKeyCondition,
+            SortedMap<String, SortedSet<Integer>> revisionsBySchemaId) {
+        NameMap nameMap = new NameMap().with("#" + KEY_SCHEMA_ID, KEY_SCHEMA_ID)
+                .with("#" + KEY_SCHEMA_REVISION, KEY_SCHEMA_REVISION);
+        ValueMap valueMap = new ValueMap();
+        List<String> schemaExpressionList = new ArrayList<>();
+
+        int schemaIndex = 0;
+        for (Map.Entry<String, SortedSet<Integer>> oneSchemaEntry : revisionsBySchemaId.entrySet()) {
+            String schemaIdValueName = ":" + KEY_SCHEMA_ID + schemaIndex;
+            valueMap.withString(schemaIdValueName, oneSchemaEntry.getKey());
+
+            List<String> revisionValueNameList = new ArrayList<>();
+            int revisionIndex = 0;
+            for (int oneRevision : oneSchemaEntry.getValue()) {
+                String revisionValueName = ":" + KEY_SCHEMA_REVISION + schemaIndex + "_" + revisionIndex;
+                valueMap.withInt(revisionValueName, oneRevision);
+                revisionValueNameList.add(revisionValueName);
+                revisionIndex++;
+            }
+
+            schemaExpressionList.add("(#" + KEY_SCHEMA_ID + " = " + schemaIdValueName + " AND #" +
+                    KEY_SCHEMA_REVISION + " IN (" + String.join(", ", revisionValueNameList) + "))");
+            schemaIndex++;
+        }
+
+        return new QuerySpec().withHashKey(STUDY_ID, studyId).withRangeKeyCondition(rangeKeyCondition)
+                .withFilterExpression(String.join(" OR ", schemaExpressionList)).withNameMap(nameMap)
+                .withValueMap(valueMap);
+    }
+
+    /**
+     * Runs the (lazy) filtered query. DDB doesn't return records excluded by the filter, but it does count them. Once
+     * the query has been read to the end, the number of excluded records is recorded in excludedByQuery[studyId].
+     * Package-scoped for unit tests.
+     */
+    Iterable<Item> queryWithFilter(String studyId, QuerySpec querySpec, Metrics metrics) {
+        return () -> {
+            ItemCollection<QueryOutcome> itemCollection = ddbRecordStudyUploadedOnIndex.query(querySpec);
+            Iterator<Item> itemIter = itemCollection.iterator();
+            return new Iterator<Item>() {
+                private boolean counted = false;
+
+                @Override
+                public boolean hasNext() {
+                    boolean hasNext = itemIter.hasNext();
+                    if (!hasNext && !counted) {
+                        counted = true;
+                        int numExcluded = itemCollection.getAccumulatedScannedCount() -
+                                itemCollection.getAccumulatedItemCount();
+                        metrics.incrementCounter("excludedByQuery[" + studyId + "]", numExcluded);
+                    }
+                    return hasNext;
+                }
+
+                @Override
+                public Item next() {
+                    return itemIter.next();
+                }
+            };
+        };
+    }
+
+    /**
+     * Get the record ID source from record override files in S3. Override files are streamed rather than loaded into
+     * memory, since backfill redrives can have millions of record IDs. If the override ends with "/", it's a key
+     * prefix, and all files under that prefix are read, concurrently if query parallelism is greater than 1.
+     */
+    private Iterable<String> getS3RecordIdSource(BridgeExporterRequest request, Metrics metrics) {
+        String override = request.getRecordIdS3Override();
+        if (!override.endsWith(S3_PREFIX_DELIMITER)) {
+            return new S3RecordIdSource(s3Client, overrideBucket, override);
+        }
+
+        List<String> keyList = listS3Keys(override);
+        LOG.info("Reading " + keyList.size() + " record ID override files with prefix " + override);
+        if (queryParallelism > 1 && keyList.size() > 1) {
+            ParallelRecordIdSource recordIdSource = new ParallelRecordIdSource(recordQueryExecutor,
+                    queryQueueCapacity, queryParallelism, 0, 1, metrics);
+            for (String oneKey : keyList) {
+                recordIdSource.submitRecordIdQuery(oneKey, new S3RecordIdSource(s3Client, overrideBucket, oneKey));
+            }
+            return recordIdSource;
+        } else {
+            // S3 record ID sources are lazy, so only one file is open at a time.
+            List<Iterable<String>> recordIdIterList = new ArrayList<>();
+            for (String oneKey : keyList) {
+                recordIdIterList.add(new S3RecordIdSource(s3Client, overrideBucket, oneKey));
+            }
+            return Iterables.concat(recordIdIterList);
+        }
+    }
+
+    // Helper method to list all files under the given prefix in the override bucket. Skips "folder" placeholders.
+    private List<String> listS3Keys(String prefix) {
+        List<String> keyList = new ArrayList<>();
+        ObjectListing listing = s3Client.listObjects(overrideBucket, prefix);
+        while (true) {
+            for (S3ObjectSummary oneSummary : listing.getObjectSummaries()) {
+                String key = oneSummary.getKey();
+                if (!key.endsWith(S3_PREFIX_DELIMITER)) {
+                    keyList.add(key);
+                }
+            }
+
+            if (!listing.isTruncated()) {
+                break;
+            }
+            listing = s3Client.listNextBatchOfObjects(listing);
+        }
+        return keyList;
     }
 }
@@ -0,0 +1,425 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * <p>
+ * Read-ahead pipeline for the records in a single request. Each stage runs on its own threads and is connected to the
+ * next stage by a bounded queue, so a stall in one stage (a throttled DDB read or a slow participant lookup) doesn't
+ * hold up the others until the queue between them fills up. The stages are:
+ * </p>
+ * <ol>
+ *     <li>ID paging - Reads record IDs from the record ID source and groups them into batches. This is always a
+ *     single thread, since it reads from a single iterator. (Query parallelism is handled by the record ID source.)
+ *     </li>
+ *     <li>Hydration - Loads the batches of records from DDB.</li>
+ *     <li>Filtering - Applies request and sharing filters.</li>
+ *     <li>Dispatch - Hands records off to the worker manager.</li>
+ * </ol>
+ * <p>
+ * With more than one thread in a stage, records may come out of that stage in a different order than they went in.
+ * With one thread per stage, records are dispatched in the order of the record ID source.
+ * </p>
+ */
+public class RecordPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordPipeline.class);
+
+    // End-of-stream markers. Compared by identity.
+    private static final List<String> END_OF_ID_BATCHES = new ArrayList<>();
+    private static final RecordEntry END_OF_RECORDS = new RecordEntry(null, null);
+
+    /**
+     * Loads a batch of records. Record IDs with no record are absent from the returned map. If loading a batch throws,
+     * the pipeline retries each record in the batch as a batch of one.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        Map<String, Item> loadRecords(List<String> recordIdList);
+    }
+
+    /**
+     * Determines whether a record should be dispatched. The record is null if it wasn't found in DDB. Implementations
+     * are responsible for logging why a record was excluded.
+     */
+    @FunctionalInterface
+    public interface Filter {
+        boolean shouldDispatch(String recordId, Item record);
+    }
+
+    /** Hands a record off to be exported. */
+    @FunctionalInterface
+    public interface Dispatcher {
+        void dispatch(String recordId, Item record);
+    }
+
+    // Record ID paired with its record, passed between the hydration, filter, and dispatch stages.
+    private static class RecordEntry {
+        private final String recordId;
+        private final Item record;
+
+        RecordEntry(String recordId, Item record) {
+            this.recordId = recordId;
+            this.record = record;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Metrics metrics;
+    private final int batchSize;
+    private final int hydrationThreads;
+    private final int filterThreads;
+    private final int dispatchThreads;
+    private final int progressReportPeriod;
+
+    private final BlockingQueue<List<String>> idBatchQueue;
+    private final BlockingQueue<RecordEntry> hydratedQueue;
+    private final BlockingQueue<RecordEntry> filteredQueue;
+
+    private final AtomicReference<RuntimeException> pagingError = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Constructs the pipeline.
+     *
+     * @param executor
+     *         executor to run the stages on; must be able to run all stage threads at once
+     * @param metrics
+     *         metrics for the request, used to count the total number of records
+     * @param queueCapacity
+     *         capacity of each of the queues between stages
+     * @param batchSize
+     *         number of record IDs to pass to each call to the loader
+     * @param hydrationThreads
+     *         number of threads loading records
+     * @param filterThreads
+     *         number of threads filtering records
+     * @param dispatchThreads
+     *         number of threads dispatching records
+     * @param progressReportPeriod
+     *         log progress every this many record IDs
+     */
+    public RecordPipeline(ExecutorService executor, Metrics metrics, int queueCapacity, int batchSize,
+            int hydrationThreads, int filterThreads, int dispatchThreads, int progressReportPeriod) {
+        this.executor = executor;
+        this.metrics = metrics;
+        this.batchSize = batchSize;
+        this.hydrationThreads = hydrationThreads;
+        this.filterThreads = filterThreads;
+        this.dispatchThreads = dispatchThreads;
+        this.progressReportPeriod = progressReportPeriod;
+
+        this.idBatchQueue = new LinkedBlockingQueue<>(queueCapacity);
+        this.hydratedQueue = new LinkedBlockingQueue<>(queueCapacity);
+        this.filteredQueue = new LinkedBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Runs all records from the given record ID source through the pipeline, and blocks until every record has been
+     * dispatched or dropped. Errors for individual records or batches are logged and don't stop the pipeline. If a
+     * batch fails to load, its records are loaded one at a time, so only the records that still fail are dropped. If
+     * the record ID source throws, the records already read are still processed, then the exception is rethrown. If
+     * the record ID source is Closeable, it's closed when the pipeline finishes, whether or not it was fully read.
+     *
+     * @param recordIdIterable
+     *         record ID source
+     * @param loader
+     *         loads batches of records for the hydration stage
+     * @param filter
+     *         filter for the filtering stage
+     * @param dispatcher
+     *         dispatcher for the dispatch stage
+     */
+    public void run(Iterable<String> recordIdIterable, Loader loader, Filter filter, Dispatcher dispatcher) {
+        try {
+            runStages(recordIdIterable, loader, filter, dispatcher);
+        } finally {
+            // If we stopped early (cancelled, or a stage failed), the record ID source may still have producers
+            // waiting to hand us record IDs. Close it so they stop.
+            if (recordIdIterable instanceof Closeable) {
+                closeQuietly((Closeable) recordIdIterable);
+            }
+        }
+    }
+
+    // Helper method which starts the stages and waits for them to finish.
+    private void runStages(Iterable<String> recordIdIterable, Loader loader, Filter filter, Dispatcher dispatcher) {
+        List<Future<?>> futureList = new ArrayList<>();
+        futureList.add(executor.submit(() -> pageRecordIds(recordIdIterable)));
+
+        AtomicInteger remainingHydrationThreads = new AtomicInteger(hydrationThreads);
+        for (int i = 0; i < hydrationThreads; i++) {
+            futureList.add(executor.submit(() -> hydrateRecords(loader, remainingHydrationThreads)));
+        }
+
+        AtomicInteger remainingFilterThreads = new AtomicInteger(filterThreads);
+        for (int i = 0; i < filterThreads; i++) {
+            futureList.add(executor.submit(() -> filterRecords(filter, remainingFilterThreads)));
+        }
+
+        for (int i = 0; i < dispatchThreads; i++) {
+            futureList.add(executor.submit(() -> dispatchRecords(dispatcher)));
+        }
+
+        try {
+            for (Future<?> oneFuture : futureList) {
+                oneFuture.get();
+            }
+        } catch (ExecutionException ex) {
+            cancelAll(futureList);
+            throw new IllegalStateException("Record pipeline stage failed: " + ex.getCause().getMessage(),
+                    ex.getCause());
+        } catch (InterruptedException ex) {
+            cancelAll(futureList);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for record pipeline", ex);
+        }
+
+        RuntimeException error = pagingError.get();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Helper method to close the record ID source, logging errors instead of throwing.
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Error closing record ID source: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Stops the pipeline early, for example because the request is going to be restarted anyway. The ID paging stage
+     * stops reading record IDs, and the other stages drop the records already in their queues instead of processing
+     * them. {@link #run} still returns normally once the stages have drained. Can be called from any thread,
+     * including from the stages themselves.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Helper method to cancel all stages, if we bail out early.
+    private static void cancelAll(List<Future<?>> futureList) {
+        for (Future<?> oneFuture : futureList) {
+            oneFuture.cancel(true);
+        }
+    }
+
+    // ID paging stage.
+    private void pageRecordIds(Iterable<String> recordIdIterable) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        List<String> recordIdBatch = new ArrayList<>();
+        try {
+            try {
+                for (String oneRecordId : recordIdIterable) {
+                    if (cancelled) {
+                        break;
+                    }
+
+                    // Count total number of records. Also, log at regular intervals, so people tailing the logs can
+                    // follow progress.
+                    int numTotal = metrics.incrementCounter("numTotal");
+                    if (numTotal % progressReportPeriod == 0) {
+                        logProgress(recordIdIterable, numTotal, stopwatch);
+                    }
+
+                    recordIdBatch.add(oneRecordId);
+                    if (recordIdBatch.size() >= batchSize) {
+                        idBatchQueue.put(recordIdBatch);
+                        recordIdBatch = new ArrayList<>();
+                    }
+                }
+            } catch (RuntimeException ex) {
+                // Let the rest of the pipeline drain before rethrowing.
+                LOG.error("Error reading record IDs: " + ex.getMessage(), ex);
+                pagingError.set(ex);
+            }
+
+            // Send the last partial batch, if there is one. This includes record IDs we read before the record ID
+            // source failed.
+            if (!recordIdBatch.isEmpty()) {
+                idBatchQueue.put(recordIdBatch);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        sendEndOfStream(idBatchQueue, END_OF_ID_BATCHES, hydrationThreads);
+    }
+
+    // Helper method which logs progress, with the depth of each queue, so we can see which stage is the bottleneck.
+    private void logProgress(Iterable<String> recordIdIterable, int numTotal, Stopwatch stopwatch) {
+        StringBuilder queueDepths = new StringBuilder();
+        if (recordIdIterable instanceof ParallelRecordIdSource) {
+            queueDepths.append("recordIds=").append(((ParallelRecordIdSource) recordIdIterable).getQueueDepth())
+                    .append(", ");
+        }
+        queueDepths.append("idBatches=").append(idBatchQueue.size()).append(", hydrated=")
+                .append(hydratedQueue.size()).append(", filtered=").append(filteredQueue.size());
+
+        LOG.info("Num records so far: " + numTotal + " in " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                " seconds, queue depths: " + queueDepths);
+    }
+
+    // Hydration stage.
+    private void hydrateRecords(Loader loader, AtomicInteger remainingThreads) {
+        try {
+            while (true) {
+                List<String> recordIdBatch = idBatchQueue.take();
+                if (recordIdBatch == END_OF_ID_BATCHES) {
+                    break;
+                } else if (cancelled) {
+                    continue;
+                }
+
+                Map<String, Item> recordsById;
+                try {
+                    recordsById = loader.loadRecords(recordIdBatch);
+                } catch (RuntimeException ex) {
+                    LOG.error("Exception loading record batch starting with record " + recordIdBatch.get(0) + ": " +
+                            ex.getMessage(), ex);
+                    hydrateRecordsIndividually(loader, recordIdBatch);
+                    continue;
+                }
+
+                for (String oneRecordId : recordIdBatch) {
+                    hydratedQueue.put(new RecordEntry(oneRecordId, recordsById.get(oneRecordId)));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (remainingThreads.decrementAndGet() == 0) {
+            sendEndOfStream(hydratedQueue, END_OF_RECORDS, filterThreads);
+        }
+    }
+
+    // Helper method which loads the records in a failed batch one at a time, so one bad record (or one bad call)
+    // doesn't drop the whole batch. Records that still fail are logged and dropped.
+    private void hydrateRecordsIndividually(Loader loader, List<String> recordIdBatch) throws InterruptedException {
+        if (recordIdBatch.size() <= 1) {
+            // Already a single record. Retrying won't help.
+            return;
+        }
+
+        for (String oneRecordId : recordIdBatch) {
+            if (cancelled) {
+                return;
+            }
+
+            Item record;
+            try {
+                record = loader.loadRecords(Collections.singletonList(oneRecordId)).get(oneRecordId);
+            } catch (RuntimeException ex) {
+                LOG.error("Exception loading record " + oneRecordId + ": " + ex.getMessage(), ex);
+                continue;
+            }
+            hydratedQueue.put(new RecordEntry(oneRecordId, record));
+        }
+    }
+
+    // Filtering stage.
+    private void filterRecords(Filter filter, AtomicInteger remainingThreads) {
+        try {
+            while (true) {
+                RecordEntry entry = hydratedQueue.take();
+                if (entry == END_OF_RECORDS) {
+                    break;
+                } else if (cancelled) {
+                    continue;
+                }
+
+                boolean shouldDispatch;
+                try {
+                    shouldDispatch = filter.shouldDispatch(entry.recordId, entry.record);
+                } catch (RuntimeException ex) {
+                    LOG.error("Exception filtering record " + entry.recordId + ": " + ex.getMessage(), ex);
+                    continue;
+                }
+
+                if (shouldDispatch) {
+                    filteredQueue.put(entry);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (remainingThreads.decrementAndGet() == 0) {
+            sendEndOfStream(filteredQueue, END_OF_RECORDS, dispatchThreads);
+        }
+    }
+
+    // Dispatch stage.
+    private void dispatchRecords(Dispatcher dispatcher) {
+        try {
+            while (true) {
+                RecordEntry entry = filteredQueue.take();
+                if (entry == END_OF_RECORDS) {
+                    break;
+                } else if (cancelled) {
+                    continue;
+                }
+
+                try {
+                    dispatcher.dispatch(entry.recordId, entry.record);
+                } catch (RuntimeException ex) {
+                    LOG.error("Exception dispatching record " + entry.recordId + ": " + ex.getMessage(), ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Helper method which tells each thread in the next stage that there's no more input.
+    private static <T> void sendEndOfStream(BlockingQueue<T> queue, T marker, int numConsumers) {
+        try {
+            for (int i = 0; i < numConsumers; i++) {
+                queue.put(marker);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Current number of record ID batches waiting to be loaded. */
+    public int getIdBatchQueueDepth() {
+        return idBatchQueue.size();
+    }
+
+    /** Current number of loaded records waiting to be filtered. */
+    public int getHydratedQueueDepth() {
+        return hydratedQueue.size();
+    }
+
+    /** Current number of filtered records waiting to be dispatched. */
+    public int getFilteredQueueDepth() {
+        return filteredQueue.size();
+    }
+}
@@ -0,0 +1,240 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.util.List;
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * <p>
+ * Token bucket governor for reads against the DDB Health Data Record table. The target rate is a configured percentage
+ * of the table's provisioned read capacity, in read capacity units (RCUs) per second.
+ * </p>
+ * <p>
+ * Callers call {@link #acquire} before each DDB read and {@link #recordConsumedCapacity} after, using the consumed
+ * capacity DDB returns. Since we only know the cost of a read after it completes, each read pays for the capacity
+ * consumed by earlier reads. On throttling, the rate is halved. It then recovers additively back to the target.
+ * </p>
+ * <p>
+ * The governor is shared by all requests, since they all read from the same table. Callers call
+ * {@link #initForRequest} when a request starts and {@link #finishRequest} when it finishes. A throttled rate is only
+ * reset when no other request is running, so a new request doesn't undo the backoff of a request that's still reading.
+ * </p>
+ */
+@Component
+public class RecordReadGovernor {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordReadGovernor.class);
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_DEFAULT_CAPACITY_UNITS = "record.read.capacity.default.units";
+    static final String CONFIG_KEY_MIN_CAPACITY_UNITS = "record.read.capacity.min.units";
+    static final String CONFIG_KEY_TARGET_PERCENT = "record.read.capacity.target.percent";
+    static final String GAUGE_READ_RATE = "ddbRecordReadRate";
+    static final String METRIC_READ_CAPACITY_UNITS = "ddbRecordReadCapacityUnits";
+    static final String METRIC_THROTTLE_EVENTS = "ddbRecordReadThrottleEvents";
+
+    // After this many reads without throttling, we increase the rate by this fraction of the target rate.
+    static final int RECOVERY_READ_COUNT = 20;
+    static final double RECOVERY_FRACTION = 0.1;
+
+    // config attributes
+    private int defaultCapacityUnits;
+    private int minCapacityUnits;
+    private int targetPercent;
+
+    // Spring helpers
+    private Table ddbRecordTable;
+
+    // state
+    private final RateLimiter rateLimiter = RateLimiter.create(1.0);
+    private double currentRate = 1.0;
+    private double targetRate = 1.0;
+    private int readsSinceLastAdjustment = 0;
+    private double unpaidCapacityUnits = 0.0;
+    private long numThrottles = 0;
+    private int numActiveRequests = 0;
+
+    /** Config, used to get the target percentage of provisioned capacity, and fallback values. */
+    @Autowired
+    public final void setConfig(Config config) {
+        this.defaultCapacityUnits = config.getInt(CONFIG_KEY_DEFAULT_CAPACITY_UNITS);
+        this.minCapacityUnits = Math.max(config.getInt(CONFIG_KEY_MIN_CAPACITY_UNITS), 1);
+        this.targetPercent = config.getInt(CONFIG_KEY_TARGET_PERCENT);
+    }
+
+    /** DDB Health Data Record table. Used to look up provisioned read capacity. */
+    @Resource(name = "ddbRecordTable")
+    public final void setDdbRecordTable(Table ddbRecordTable) {
+        this.ddbRecordTable = ddbRecordTable;
+    }
+
+    /**
+     * Looks up the table's provisioned read capacity and resets the target rate. Called at the start of each request,
+     * since provisioned capacity may change between requests. If the table has no provisioned capacity (on-demand), or
+     * if we can't describe the table, we fall back to the configured default capacity. If no other request is
+     * running, the current rate is also reset to the target. Otherwise, the current rate is kept (capped to the new
+     * target), so a throttled rate keeps recovering at its own pace. Every call must be matched by a call to
+     * {@link #finishRequest}.
+     *
+     * @param metrics
+     *         metrics object for the request, used to expose the current rate
+     */
+    public void initForRequest(Metrics metrics) {
+        long provisionedCapacityUnits = 0;
+        try {
+            TableDescription tableDescription = ddbRecordTable.describe();
+            if (tableDescription != null) {
+                ProvisionedThroughputDescription throughput = tableDescription.getProvisionedThroughput();
+                if (throughput != null && throughput.getReadCapacityUnits() != null) {
+                    provisionedCapacityUnits = throughput.getReadCapacityUnits();
+                }
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Error describing DDB record table: " + ex.getMessage(), ex);
+        }
+
+        if (provisionedCapacityUnits <= 0) {
+            provisionedCapacityUnits = defaultCapacityUnits;
+        }
+
+        double newTargetRate;
+        double newRate;
+        synchronized (this) {
+            targetRate = Math.max(provisionedCapacityUnits * targetPercent / 100.0, minCapacityUnits);
+            if (numActiveRequests == 0) {
+                currentRate = targetRate;
+                readsSinceLastAdjustment = 0;
+            } else {
+                currentRate = Math.min(currentRate, targetRate);
+            }
+            numActiveRequests++;
+            rateLimiter.setRate(currentRate);
+            newTargetRate = targetRate;
+            newRate = currentRate;
+        }
+        LOG.info("DDB record read target rate is " + newTargetRate + " RCU/sec (" + targetPercent + "% of " +
+                provisionedCapacityUnits + "), current rate is " + newRate + " RCU/sec");
+        metrics.setGauge(GAUGE_READ_RATE, Math.round(newRate));
+    }
+
+    /** Called when a request finishes, whether or not it succeeded. See {@link #initForRequest}. */
+    public synchronized void finishRequest() {
+        if (numActiveRequests > 0) {
+            numActiveRequests--;
+        }
+    }
+
+    /**
+     * Blocks until the caller is allowed to make a DDB read. Each read costs at least one permit. Any capacity
+     * consumed beyond that by previous reads is paid for here.
+     */
+    public void acquire() {
+        int permits;
+        synchronized (this) {
+            permits = Math.max((int) unpaidCapacityUnits, 1);
+            unpaidCapacityUnits -= permits;
+        }
+        rateLimiter.acquire(permits);
+    }
+
+    /**
+     * Records the capacity consumed by a DDB read. This also counts as a successful (non-throttled) read, which lets
+     * the rate recover towards the target.
+     *
+     * @param metrics
+     *         metrics object for the request
+     * @param consumedCapacityList
+     *         consumed capacity returned by DDB, may be null if DDB didn't return consumed capacity
+     */
+    public void recordConsumedCapacity(Metrics metrics, List<ConsumedCapacity> consumedCapacityList) {
+        double consumedUnits = 0.0;
+        if (consumedCapacityList != null) {
+            for (ConsumedCapacity oneConsumedCapacity : consumedCapacityList) {
+                if (oneConsumedCapacity != null && oneConsumedCapacity.getCapacityUnits() != null) {
+                    consumedUnits += oneConsumedCapacity.getCapacityUnits();
+                }
+            }
+        }
+        recordConsumedCapacity(metrics, consumedUnits);
+    }
+
+    /**
+     * Records the capacity consumed by a DDB read. See {@link #recordConsumedCapacity(Metrics, List)}.
+     *
+     * @param metrics
+     *         metrics object for the request
+     * @param consumedUnits
+     *         read capacity units consumed
+     */
+    public void recordConsumedCapacity(Metrics metrics, double consumedUnits) {
+        metrics.incrementCounter(METRIC_READ_CAPACITY_UNITS, (int) Math.round(consumedUnits));
+
+        double newRate = -1;
+        synchronized (this) {
+            unpaidCapacityUnits += consumedUnits;
+
+            readsSinceLastAdjustment++;
+            if (currentRate < targetRate && readsSinceLastAdjustment >= RECOVERY_READ_COUNT) {
+                currentRate = Math.min(currentRate + targetRate * RECOVERY_FRACTION, targetRate);
+                readsSinceLastAdjustment = 0;
+                rateLimiter.setRate(currentRate);
+                newRate = currentRate;
+            }
+        }
+
+        if (newRate > 0) {
+            metrics.setGauge(GAUGE_READ_RATE, Math.round(newRate));
+        }
+    }
+
+    /**
+     * Records that DDB throttled a read, either with a ProvisionedThroughputExceededException or by returning
+     * unprocessed keys. This halves the current rate, down to the configured minimum.
+     *
+     * @param metrics
+     *         metrics object for the request
+     */
+    public void recordThrottle(Metrics metrics) {
+        metrics.incrementCounter(METRIC_THROTTLE_EVENTS);
+
+        double newRate;
+        synchronized (this) {
+            currentRate = Math.max(currentRate / 2, minCapacityUnits);
+            readsSinceLastAdjustment = 0;
+            numThrottles++;
+            rateLimiter.setRate(currentRate);
+            newRate = currentRate;
+        }
+        LOG.warn("DDB record reads throttled, reducing rate to " + newRate + " RCU/sec");
+        metrics.setGauge(GAUGE_READ_RATE, Math.round(newRate));
+    }
+
+    /**
+     * Total number of times DDB has throttled reads since the app started. Unlike the metrics, this isn't reset per
+     * request, so it can be sampled across requests.
+     */
+    public synchronized long getNumThrottles() {
+        return numThrottles;
+    }
+
+    /** Current rate, in RCU/sec. */
+    public synchronized double getCurrentRate() {
+        return currentRate;
+    }
+
+    /** Target rate, in RCU/sec. */
+    public synchronized double getTargetRate() {
+        return targetRate;
+    }
+}
@@ -0,0 +1,145 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record ID source that streams a record ID override file from S3, one record ID per line. Unlike reading the whole
+ * file into a list, this only holds a read buffer in memory, so it works for override files with millions of record
+ * IDs. Files whose key ends in ".gz" or whose content encoding is gzip are decompressed on the fly. Blank lines are
+ * skipped. The S3 object is opened on the first call to {@link #hasNext}, and closed when the end of the file is
+ * reached.
+ */
+public class S3RecordIdSource implements Iterable<String>, Iterator<String>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(S3RecordIdSource.class);
+
+    // package-scoped to be available to unit tests
+    static final String CONTENT_ENCODING_GZIP = "gzip";
+    static final String GZIP_KEY_SUFFIX = ".gz";
+
+    private final AmazonS3Client s3Client;
+    private final String bucket;
+    private final String key;
+
+    private BufferedReader reader;
+    private boolean done = false;
+    private String nextRecordId;
+
+    /**
+     * Constructs the record ID source. This doesn't open the S3 object.
+     *
+     * @param s3Client
+     *         S3 client
+     * @param bucket
+     *         bucket the override file is in
+     * @param key
+     *         key of the override file
+     */
+    public S3RecordIdSource(AmazonS3Client s3Client, String bucket, String key) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    /** This class implements iterable out of convenience. It itself is the iterator, so iterator() returns this. */
+    @Override
+    public Iterator<String> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextRecordId != null) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+
+        try {
+            if (reader == null) {
+                reader = openReader();
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    nextRecordId = line;
+                    return true;
+                }
+            }
+        } catch (IOException ex) {
+            close();
+            throw new UncheckedIOException("Error reading record ID override file " + bucket + "/" + key + ": " +
+                    ex.getMessage(), ex);
+        }
+
+        // End of file.
+        close();
+        return false;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        String recordId = nextRecordId;
+        nextRecordId = null;
+        return recordId;
+    }
+
+    // Helper method to open the S3 object, with gzip decompression if needed.
+    private BufferedReader openReader() throws IOException {
+        S3Object s3Object = s3Client.getObject(bucket, key);
+        InputStream inputStream = s3Object.getObjectContent();
+        try {
+            if (isGzipped(s3Object.getObjectMetadata())) {
+                inputStream = new GZIPInputStream(inputStream);
+            }
+        } catch (IOException ex) {
+            inputStream.close();
+            throw ex;
+        }
+        return new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    }
+
+    // Helper method to determine if the override file is gzipped.
+    private boolean isGzipped(ObjectMetadata metadata) {
+        if (key.endsWith(GZIP_KEY_SUFFIX)) {
+            return true;
+        }
+        return metadata != null && CONTENT_ENCODING_GZIP.equalsIgnoreCase(metadata.getContentEncoding());
+    }
+
+    /** Closes the underlying S3 object, if it's open. Subsequent calls to {@link #hasNext} return false. */
+    @Override
+    public void close() {
+        done = true;
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                LOG.error("Error closing record ID override file " + bucket + "/" + key + ": " + ex.getMessage(),
+                        ex);
+            }
+            reader = null;
+        }
+    }
+}
@@ -76,7 +76,8 @@ public class BridgeExporterRequest {
 
     /**
      * Override to export a list of record IDs instead of querying DDB. This is generally used for redriving specific
-     * records.
+     * records. This is the S3 key of a file with one record ID per line, optionally gzipped. If this ends with "/",
+     * it's a key prefix, and all files under that prefix are exported.
      */
     public String getRecordIdS3Override() {
         return recordIdS3Override;
@@ -0,0 +1,32 @@
+package org.sagebionetworks.bridge.exporter.request;
+
+/**
+ * Classifies export requests for scheduling. Classes are listed in priority order, so requests that are generally
+ * short run before the large ones.
+ */
+public enum BridgeExporterRequestClass {
+    /** Redrive of records or tables that failed in an earlier request. These are generally small. */
+    REDRIVE,
+
+    /** Export of a specific list of records, from a record ID override file in S3. */
+    RECORD_LIST,
+
+    /** Export of a specific set of studies, such as custom-schedule study exports. */
+    STUDY,
+
+    /** Export of all studies, such as the nightly export. These are the largest and longest running requests. */
+    ALL_STUDIES;
+
+    /** Returns the class for the given request. */
+    public static BridgeExporterRequestClass forRequest(BridgeExporterRequest request) {
+        if (request.getRedriveCount() > 0) {
+            return REDRIVE;
+        } else if (request.getRecordIdS3Override() != null) {
+            return RECORD_LIST;
+        } else if (request.getStudyWhitelist() != null) {
+            return STUDY;
+        } else {
+            return ALL_STUDIES;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.sagebionetworks.bridge.exporter.request;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
+import org.sagebionetworks.bridge.exporter.exceptions.SynapseUnavailableException;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.record.BridgeExporterRecordProcessor;
+import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+/**
+ * <p>
+ * Runs export requests, up to a configured number at the same time, so that a long-running request (like the nightly
+ * export) doesn't block the smaller requests queued behind it. Requests past the limit wait for a free slot. Waiting
+ * requests run in priority order by {@link BridgeExporterRequestClass}, then in the order they arrived. If more than
+ * one request can run at a time, all-studies requests never take the last slot, so there's always room for a smaller
+ * request.
+ * </p>
+ * <p>
+ * A queued request holds its SQS message without acknowledging it, so it must not wait longer than the queue's
+ * visibility timeout, or SQS will deliver it again while it's still queued. Requests that wait longer than the
+ * configured max queue wait give up and throw a {@link RestartBridgeExporterException}, which leaves the message on
+ * the queue to be received again later. This must be configured well below the visibility timeout, leaving room for
+ * the request itself to run.
+ * </p>
+ * <p>
+ * Each request gets its own export task, with its own handlers, TSVs, temp dir, and metrics. Requests share the
+ * worker thread pool, the DDB read governor, and the Synapse rate limits. Each request is also limited to an equal
+ * share of the worker manager's in-flight subtask window, so that one request can't fill the worker queue while the
+ * others wait.
+ * </p>
+ */
+@Component
+public class BridgeExporterRequestScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeExporterRequestScheduler.class);
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_MAX_QUEUE_WAIT_MINUTES = "exporter.request.max.queue.wait.minutes";
+    static final String CONFIG_KEY_MAX_QUEUED_REQUESTS = "exporter.request.max.queued";
+    static final String METRIC_NUM_QUEUED_REQUESTS = "numQueuedRequests";
+    static final String METRIC_PREFIX_REQUEST_QUEUE_WAIT_MILLIS = "requestQueueWaitMillis";
+    static final String METRIC_REQUEST_CLASS = "requestClass";
+
+    // Waiting request. Sorts by class priority, then by arrival order.
+    private static class PendingRequest implements Comparable<PendingRequest> {
+        private final BridgeExporterRequestClass requestClass;
+        private final long sequenceNumber;
+
+        PendingRequest(BridgeExporterRequestClass requestClass, long sequenceNumber) {
+            this.requestClass = requestClass;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        @Override
+        public int compareTo(PendingRequest other) {
+            int classCompare = requestClass.compareTo(other.requestClass);
+            if (classCompare != 0) {
+                return classCompare;
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+
+    // config attributes
+    private int maxConcurrentRequests = 1;
+    private int maxQueuedRequests = 0;
+    private long maxQueueWaitMillis = 0;
+
+    // Spring helpers
+    private BridgeExporterRecordProcessor recordProcessor;
+
+    // state, guarded by this
+    private int numActiveAllStudiesRequests = 0;
+    private int numActiveRequests = 0;
+    private long nextSequenceNumber = 0;
+    private final PriorityQueue<PendingRequest> pendingRequestQueue = new PriorityQueue<>();
+
+    /**
+     * Config, used to get the max number of requests to run at the same time, the max number to queue, and how long a
+     * request can wait in the queue. A max queue wait of zero means requests wait as long as they need to.
+     */
+    @Autowired
+    public final void setConfig(Config config) {
+        this.maxConcurrentRequests = Math.max(1, config.getInt(
+                BridgeExporterUtil.CONFIG_KEY_MAX_CONCURRENT_REQUESTS));
+        this.maxQueuedRequests = Math.max(0, config.getInt(CONFIG_KEY_MAX_QUEUED_REQUESTS));
+        setMaxQueueWaitMillis(TimeUnit.MINUTES.toMillis(Math.max(0, config.getInt(
+                CONFIG_KEY_MAX_QUEUE_WAIT_MINUTES))));
+    }
+
+    /** Max time a request can wait in the queue. Package-scoped so unit tests can set a short wait. */
+    final void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+
+    /** Record processor, which does the actual work for each request. */
+    @Autowired
+    public final void setRecordProcessor(BridgeExporterRecordProcessor recordProcessor) {
+        this.recordProcessor = recordProcessor;
+    }
+
+    /** Max number of requests that can run at the same time. */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Max number of requests the scheduler holds at once, whether running or queued. Queued requests are what let the
+     * scheduler pick a small request ahead of a large one, so callers should receive up to this many requests at a
+     * time.
+     */
+    public int getMaxPendingRequests() {
+        return maxConcurrentRequests + maxQueuedRequests;
+    }
+
+    /** Number of requests that are currently running. Package-scoped to be available to unit tests. */
+    synchronized int getNumActiveRequests() {
+        return numActiveRequests;
+    }
+
+    /** Number of requests that are waiting to run. Package-scoped to be available to unit tests. */
+    synchronized int getNumQueuedRequests() {
+        return pendingRequestQueue.size();
+    }
+
+    /**
+     * Runs the given request, with a new metrics object. See {@link #runRequest(BridgeExporterRequest, Metrics)}.
+     */
+    public void runRequest(BridgeExporterRequest request) throws IOException, PollSqsWorkerBadRequestException,
+            RestartBridgeExporterException, SynapseUnavailableException {
+        runRequest(request, new Metrics());
+    }
+
+    /**
+     * Runs the given request. If the max number of requests are already running, or if higher priority requests are
+     * waiting, this waits for its turn first, up to the max queue wait. This blocks until the request is done, so the
+     * caller can acknowledge the request (or not) based on the result.
+     *
+     * @param request
+     *         request to run
+     * @param metrics
+     *         metrics object for the request, used to record how long the request waited, and passed through to the
+     *         record processor
+     * @throws IOException
+     *         if we fail to get the record IDs for the request
+     * @throws PollSqsWorkerBadRequestException
+     *         if the request is invalid
+     * @throws RestartBridgeExporterException
+     *         if the request needs to be restarted, or if it waited in the queue longer than the max queue wait
+     * @throws SynapseUnavailableException
+     *         if Synapse is not available in read/write mode
+     */
+    public void runRequest(BridgeExporterRequest request, Metrics metrics) throws IOException,
+            PollSqsWorkerBadRequestException, RestartBridgeExporterException, SynapseUnavailableException {
+        BridgeExporterRequestClass requestClass = BridgeExporterRequestClass.forRequest(request);
+        metrics.addKeyValuePair(METRIC_REQUEST_CLASS, requestClass.name());
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        boolean acquired;
+        try {
+            acquired = acquireSlot(requestClass, metrics);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting to run request " + request.toString(), ex);
+        }
+        long waitMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        if (!acquired) {
+            // Don't acknowledge the request. SQS delivers it again once its visibility timeout expires.
+            LOG.warn("Gave up on " + requestClass + " request after waiting " + waitMillis + " ms, returning it to " +
+                    "the queue: " + request.toString());
+            throw new RestartBridgeExporterException("Timed out waiting to run request " + request.toString());
+        }
+        metrics.setGauge(METRIC_PREFIX_REQUEST_QUEUE_WAIT_MILLIS + "[" + requestClass.name() + "]", waitMillis);
+        LOG.info("Running " + requestClass + " request after waiting " + waitMillis + " ms");
+
+        try {
+            recordProcessor.processRecordsForRequest(request, metrics);
+        } finally {
+            releaseSlot(requestClass);
+        }
+    }
+
+    // Helper method which waits until the request is at the front of the queue and there's a slot it can use, then
+    // takes the slot. Returns false if the request waited longer than the max queue wait. In that case, the request is
+    // no longer queued.
+    private synchronized boolean acquireSlot(BridgeExporterRequestClass requestClass, Metrics metrics)
+            throws InterruptedException {
+        PendingRequest pendingRequest = new PendingRequest(requestClass, nextSequenceNumber++);
+        pendingRequestQueue.add(pendingRequest);
+        metrics.setGauge(METRIC_NUM_QUEUED_REQUESTS, pendingRequestQueue.size() - 1);
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+        try {
+            while (pendingRequestQueue.peek() != pendingRequest || !hasSlotForClass(requestClass)) {
+                if (maxQueueWaitMillis <= 0) {
+                    wait();
+                    continue;
+                }
+
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    // We're no longer waiting. The next request might be able to run now.
+                    pendingRequestQueue.remove(pendingRequest);
+                    notifyAll();
+                    return false;
+                }
+                wait(remainingMillis);
+            }
+        } catch (InterruptedException ex) {
+            // We're no longer waiting. The next request might be able to run now.
+            pendingRequestQueue.remove(pendingRequest);
+            notifyAll();
+            throw ex;
+        }
+
+        pendingRequestQueue.poll();
+        numActiveRequests++;
+        if (requestClass == BridgeExporterRequestClass.ALL_STUDIES) {
+            numActiveAllStudiesRequests++;
+        }
+        LOG.info(numActiveRequests + " of " + maxConcurrentRequests + " request slots in use, " +
+                pendingRequestQueue.size() + " requests queued");
+
+        // There may still be free slots for the next request.
+        notifyAll();
+        return true;
+    }
+
+    // Helper method which returns true if a request of the given class can take a slot now. All-studies requests
+    // can't take the last slot, unless we only have one slot.
+    private boolean hasSlotForClass(BridgeExporterRequestClass requestClass) {
+        if (numActiveRequests >= maxConcurrentRequests) {
+            return false;
+        }
+        return requestClass != BridgeExporterRequestClass.ALL_STUDIES || maxConcurrentRequests == 1 ||
+                numActiveAllStudiesRequests < maxConcurrentRequests - 1;
+    }
+
+    // Helper method which frees up the slot and wakes up the waiting requests.
+    private synchronized void releaseSlot(BridgeExporterRequestClass requestClass) {
+        numActiveRequests--;
+        if (requestClass == BridgeExporterRequestClass.ALL_STUDIES) {
+            numActiveAllStudiesRequests--;
+        }
+        notifyAll();
+    }
+}
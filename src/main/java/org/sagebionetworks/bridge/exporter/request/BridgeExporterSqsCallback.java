@@ -7,23 +7,22 @@ import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.SynapseUnavailableException;
-import org.sagebionetworks.bridge.exporter.record.BridgeExporterRecordProcessor;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.sqs.PollSqsCallback;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 
 /**
- * Responds to SQS messages. This is a pass-through to the BridgeExporterRecordProcessor and only does JSON parsing.
- * This allows us to keep the RecordProcessor's interface clean.
+ * Responds to SQS messages. This is a pass-through to the BridgeExporterRequestScheduler and only does JSON parsing.
+ * This allows us to keep the scheduler's and RecordProcessor's interfaces clean.
  */
 @Component
 public class BridgeExporterSqsCallback implements PollSqsCallback {
-    private BridgeExporterRecordProcessor recordProcessor;
+    private BridgeExporterRequestScheduler requestScheduler;
 
-    /** Record processor, which this class passes the parsed message to. */
+    /** Request scheduler, which this class passes the parsed message to. */
     @Autowired
-    public final void setRecordProcessor(BridgeExporterRecordProcessor recordProcessor) {
-        this.recordProcessor = recordProcessor;
+    public final void setRequestScheduler(BridgeExporterRequestScheduler requestScheduler) {
+        this.requestScheduler = requestScheduler;
     }
 
     /** Parses the SQS message and passes it to the record processor. */
@@ -37,6 +36,6 @@ public class BridgeExporterSqsCallback implements PollSqsCallback {
             throw new PollSqsWorkerBadRequestException("Error parsing request: " + ex.getMessage(), ex);
         }
 
-        recordProcessor.processRecordsForRequest(request);
+        requestScheduler.runRequest(request);
     }
 }
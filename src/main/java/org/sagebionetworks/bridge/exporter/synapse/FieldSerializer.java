@@ -0,0 +1,39 @@
+package org.sagebionetworks.bridge.exporter.synapse;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.sagebionetworks.client.exceptions.SynapseException;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * Serializes the value of a single Bridge health data field into a Synapse table value. Serializers are compiled once
+ * per field definition by {@link SynapseHelper#compileFieldSerializer}, with the field type, max length, and sanitize
+ * settings already resolved, so the same serializer can be used for every record. Serializers are stateless and
+ * thread-safe.
+ */
+@FunctionalInterface
+public interface FieldSerializer {
+    /**
+     * Serializes the given value.
+     *
+     * @param synapseHelper
+     *         Synapse helper, used for fields that upload or download attachments
+     * @param metrics
+     *         metrics for the request
+     * @param projectId
+     *         Synapse project ID, used to determine where to upload attachments to
+     * @param recordId
+     *         Bridge record ID, used for logging
+     * @param node
+     *         value to serialize, must be non-null and not JSON null
+     * @return serialized value, to be uploaded to a Synapse table
+     * @throws IOException
+     *         if downloading the attachment from S3 fails
+     * @throws SynapseException
+     *         if uploading the attachment to Synapse fails
+     */
+    String serialize(SynapseHelper synapseHelper, Metrics metrics, String projectId, String recordId, JsonNode node)
+            throws IOException, SynapseException;
+}
@@ -8,7 +8,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.model.ObjectMetadata;
@@ -66,12 +68,16 @@ public class SynapseHelper {
     private static final Logger LOG = LoggerFactory.getLogger(SynapseHelper.class);
 
     private static final long APPEND_TIMEOUT_MILLISECONDS = 30 * 1000;
+    static final int DEFAULT_S3_MAX_CONCURRENT_CALLS = 64;
     static final long DEFAULT_STORAGE_LOCATION_ID = 1;
+    static final int DEFAULT_SYNAPSE_MAX_CONCURRENT_CALLS = 16;
 
     // Config keys. Package-scoped to allow unit tests to mock.
+    static final String CONFIG_KEY_S3_MAX_CONCURRENT_CALLS = "s3.max.concurrent.calls";
     static final String CONFIG_KEY_SYNAPSE_ASYNC_INTERVAL_MILLIS = "synapse.async.interval.millis";
     static final String CONFIG_KEY_SYNAPSE_ASYNC_TIMEOUT_LOOPS = "synapse.async.timeout.loops";
     static final String CONFIG_KEY_SYNAPSE_RATE_LIMIT_PER_SECOND = "synapse.rate.limit.per.second";
+    static final String CONFIG_KEY_SYNAPSE_MAX_CONCURRENT_CALLS = "synapse.max.concurrent.calls";
     static final String CONFIG_KEY_SYNAPSE_GET_COLUMN_MODELS_RATE_LIMIT_PER_MINUTE =
             "synapse.get.column.models.rate.limit.per.minute";
     static final String CONFIG_KEY_SYNAPSE_STORAGE_LOCATION_ID = "synapse.storage.location.id";
@@ -185,6 +191,15 @@ public class SynapseHelper {
     // for a total of 48 calls per minute. Add a safety factor and rate limit to 24 per minute.
     private final RateLimiter getColumnModelsRateLimiter = RateLimiter.create(24.0 / 60.0);
 
+    // Bound the number of attachment calls to S3 and Synapse in flight at once. When the I/O pool is elastic, it
+    // starts a thread for every I/O step, so these (and not the thread count) are what limit concurrency against
+    // each backend.
+    private Semaphore s3CallPermits = new Semaphore(DEFAULT_S3_MAX_CONCURRENT_CALLS);
+    private Semaphore synapseCallPermits = new Semaphore(DEFAULT_SYNAPSE_MAX_CONCURRENT_CALLS);
+
+    // Total time callers have spent waiting on the Synapse rate limiter, across all threads.
+    private final AtomicLong rateLimitWaitMicros = new AtomicLong();
+
     /** Config, used to get the attachment S3 bucket to get Bridge attachments. */
     @Autowired
     public final void setConfig(Config config) {
@@ -211,6 +226,18 @@ public class SynapseHelper {
         int getColumnModelsRateLimitPerMinute = config.getInt(
                 CONFIG_KEY_SYNAPSE_GET_COLUMN_MODELS_RATE_LIMIT_PER_MINUTE);
         getColumnModelsRateLimiter.setRate(getColumnModelsRateLimitPerMinute / 60.0);
+
+        int s3MaxConcurrentCalls = config.getInt(CONFIG_KEY_S3_MAX_CONCURRENT_CALLS);
+        if (s3MaxConcurrentCalls <= 0) {
+            s3MaxConcurrentCalls = DEFAULT_S3_MAX_CONCURRENT_CALLS;
+        }
+        this.s3CallPermits = new Semaphore(s3MaxConcurrentCalls);
+
+        int synapseMaxConcurrentCalls = config.getInt(CONFIG_KEY_SYNAPSE_MAX_CONCURRENT_CALLS);
+        if (synapseMaxConcurrentCalls <= 0) {
+            synapseMaxConcurrentCalls = DEFAULT_SYNAPSE_MAX_CONCURRENT_CALLS;
+        }
+        this.synapseCallPermits = new Semaphore(synapseMaxConcurrentCalls);
     }
 
     // Package-scoped for unit tests.
@@ -345,30 +372,49 @@ public class SynapseHelper {
             return null;
         }
 
+        return compileFieldSerializer(studyId, fieldDef).serialize(this, metrics, projectId, recordId, node);
+    }
+
+    /**
+     * <p>
+     * Compiles a serializer for the given field definition. The field type, max length, and sanitize settings are
+     * resolved here, once, instead of for every value. See {@link #serializeToSynapseType} for how each type is
+     * serialized.
+     * </p>
+     * <p>
+     * Like serializeToSynapseType(), this should not be called for MULTI_CHOICE or TIMESTAMP types.
+     * </p>
+     *
+     * @param studyId
+     *         Bridge study ID, used for logging
+     * @param fieldDef
+     *         field definition, to determine how to serialize the field
+     * @return serializer for the field
+     */
+    public static FieldSerializer compileFieldSerializer(String studyId, UploadFieldDefinition fieldDef) {
+        String fieldName = fieldDef.getName();
         UploadFieldType fieldType = fieldDef.getType();
         switch (fieldType) {
             case ATTACHMENT_BLOB:
             case ATTACHMENT_CSV:
             case ATTACHMENT_JSON_BLOB:
             case ATTACHMENT_JSON_TABLE:
-            case ATTACHMENT_V2: {
-                // file handles are text nodes, where the text is the attachment ID (which is the S3 Key)
-                if (node.isTextual()) {
-                    // We want to count the number of attachments we upload to Synapse, since this is the biggest source of
-                    // Synapse traffic from us.
-                    metrics.incrementCounter("numAttachments");
-
-                    String s3Key = node.textValue();
-                    return uploadFromS3ToSynapseFileHandle(projectId, s3Key);
-                }
-                return null;
-            }
-            case BOOLEAN: {
-                if (node.isBoolean()) {
-                    return String.valueOf(node.booleanValue());
-                }
-                return null;
-            }
+            case ATTACHMENT_V2:
+                return (synapseHelper, metrics, projectId, recordId, node) -> {
+                    // file handles are text nodes, where the text is the attachment ID (which is the S3 Key)
+                    if (node.isTextual()) {
+                        // We want to count the number of attachments we upload to Synapse, since this is the biggest
+                        // source of Synapse traffic from us.
+                        metrics.incrementCounter("numAttachments");
+
+                        String s3Key = node.textValue();
+                        return synapseHelper.uploadFromS3ToSynapseFileHandle(projectId, s3Key);
+                    }
+                    return null;
+                };
+            case BOOLEAN:
+                return (synapseHelper, metrics, projectId, recordId, node) -> node.isBoolean() ?
+                        String.valueOf(node.booleanValue()) : null;
             case CALENDAR_DATE:
             case DURATION_V2:
             case INLINE_JSON_BLOB:
@@ -378,54 +424,51 @@ public class SynapseHelper {
                 // These types are all strings. Some are fixed length, some are variable length. Some are short enough
                 // to use the Synapse String type. Some are too long and need to use the blob (large text) type.
                 // Regardless, they all go through the same logic here and are serialized in the TSV as just a string.
-                String nodeValue;
-                if (node.isTextual()) {
-                    nodeValue = node.textValue();
-                } else {
-                    // Some types (notably INLINE_JSON_BLOB) will use the whole JSON value.
-                    nodeValue = node.toString();
-                }
-
                 Boolean isUnboundedText = fieldDef.getUnboundedText();
                 Integer maxLength = null;
                 if (isUnboundedText == null || !isUnboundedText) {
                     maxLength = getMaxLengthForFieldDef(fieldDef);
                 }
 
-                String sanitizedValue = BridgeExporterUtil.sanitizeString(nodeValue, fieldDef.getName(), maxLength,
-                        recordId, studyId);
-                return sanitizedValue;
-            }
-            case FLOAT: {
-                if (node.isNumber()) {
-                    return String.valueOf(node.decimalValue());
-                }
-                return null;
-            }
-            case INT: {
-                if (node.isNumber()) {
-                    return String.valueOf(node.bigIntegerValue());
-                }
-                return null;
-            }
-            case LARGE_TEXT_ATTACHMENT: {
-                // This is stored in Bridge as an attachment. The JSON node is text, which is the attachment ID (which
-                // is also the S3 key).
-                if (node.isTextual()) {
-                    // We need to upload this to Synapse as a LargeText inlined in the table. Download the file content
-                    // as a string.
-                    String value = downloadLargeTextAttachment(node.textValue());
-
-                    // We also need to sanitize the content (remove HTML, newlines, tabs, quote strings, etc).
-                    String sanitizedValue = BridgeExporterUtil.sanitizeString(value, fieldDef.getName(), null,
-                            recordId, studyId);
-                    return sanitizedValue;
-                }
-                return null;
+                Integer resolvedMaxLength = maxLength;
+                return (synapseHelper, metrics, projectId, recordId, node) -> {
+                    String nodeValue;
+                    if (node.isTextual()) {
+                        nodeValue = node.textValue();
+                    } else {
+                        // Some types (notably INLINE_JSON_BLOB) will use the whole JSON value.
+                        nodeValue = node.toString();
+                    }
+
+                    return BridgeExporterUtil.sanitizeString(nodeValue, fieldName, resolvedMaxLength, recordId,
+                            studyId);
+                };
             }
+            case FLOAT:
+                return (synapseHelper, metrics, projectId, recordId, node) -> node.isNumber() ?
+                        String.valueOf(node.decimalValue()) : null;
+            case INT:
+                return (synapseHelper, metrics, projectId, recordId, node) -> node.isNumber() ?
+                        String.valueOf(node.bigIntegerValue()) : null;
+            case LARGE_TEXT_ATTACHMENT:
+                return (synapseHelper, metrics, projectId, recordId, node) -> {
+                    // This is stored in Bridge as an attachment. The JSON node is text, which is the attachment ID
+                    // (which is also the S3 key).
+                    if (node.isTextual()) {
+                        // We need to upload this to Synapse as a LargeText inlined in the table. Download the file
+                        // content as a string.
+                        String value = synapseHelper.downloadLargeTextAttachment(node.textValue());
+
+                        // We also need to sanitize the content (remove HTML, newlines, tabs, quote strings, etc).
+                        return BridgeExporterUtil.sanitizeString(value, fieldName, null, recordId, studyId);
+                    }
+                    return null;
+                };
             default:
-                LOG.error("Unexpected type " + fieldType.name() + " for record ID " + recordId);
-                return null;
+                return (synapseHelper, metrics, projectId, recordId, node) -> {
+                    LOG.error("Unexpected type " + fieldType.name() + " for record ID " + recordId);
+                    return null;
+                };
         }
     }
 
@@ -434,7 +477,12 @@ public class SynapseHelper {
      * mocking and spying in unit tests, and should never be called directly.
      */
     public String downloadLargeTextAttachment(String attachmentId) throws IOException {
-        return s3Helper.readS3FileAsString(attachmentBucket, attachmentId);
+        acquirePermit(s3CallPermits);
+        try {
+            return s3Helper.readS3FileAsString(attachmentBucket, attachmentId);
+        } finally {
+            s3CallPermits.release();
+        }
     }
 
     /**
@@ -443,7 +491,13 @@ public class SynapseHelper {
      */
     public String uploadFromS3ToSynapseFileHandle(String projectId, String attachmentId) throws SynapseException {
         // Create a Synapse S3 file handle from the S3 object metadata.
-        ObjectMetadata s3ObjectMetadata = s3Helper.getObjectMetadata(attachmentBucket, attachmentId);
+        ObjectMetadata s3ObjectMetadata;
+        acquirePermit(s3CallPermits);
+        try {
+            s3ObjectMetadata = s3Helper.getObjectMetadata(attachmentBucket, attachmentId);
+        } finally {
+            s3CallPermits.release();
+        }
         if (s3ObjectMetadata.getContentLength() == 0) {
             // Don't upload empty files.
             return null;
@@ -460,10 +514,42 @@ public class SynapseHelper {
         s3FileHandle.setContentMd5(s3ObjectMetadata.getUserMetaDataOf(BridgeExporterUtil.KEY_CUSTOM_CONTENT_MD5));
 
         // Create file handle in Synapse.
-        S3FileHandle createdS3FileHandle = createS3FileHandleWithRetry(s3FileHandle);
+        S3FileHandle createdS3FileHandle;
+        acquirePermit(synapseCallPermits);
+        try {
+            createdS3FileHandle = createS3FileHandleWithRetry(s3FileHandle);
+        } finally {
+            synapseCallPermits.release();
+        }
         return createdS3FileHandle.getId();
     }
 
+    /**
+     * Total time, in milliseconds, that calls have spent waiting on the Synapse rate limiter since the app started.
+     * Calls wait in parallel, so this can grow faster than wall clock time.
+     */
+    public long getRateLimitWaitMillis() {
+        return rateLimitWaitMicros.get() / 1000;
+    }
+
+    // Helper method which waits for the Synapse rate limiter, and keeps track of how long we waited.
+    private void acquireRateLimitPermit() {
+        double waitSeconds = rateLimiter.acquire();
+        if (waitSeconds > 0) {
+            rateLimitWaitMicros.addAndGet((long) (waitSeconds * 1000000));
+        }
+    }
+
+    // Helper method which waits for a permit to call a backend.
+    private static void acquirePermit(Semaphore permits) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for permit to call backend", ex);
+        }
+    }
+
     /**
      * Helper method to get the max string length for the given field definitions, using the field definitions
      * parameters and its type.
@@ -626,7 +712,7 @@ public class SynapseHelper {
             types = { InterruptedException.class, SynapseException.class }, randomize = false)
     public void appendRowsToTableWithRetry(AppendableRowSet rowSet, String tableId) throws InterruptedException,
             SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         synapseClient.appendRowsToTable(rowSet, APPEND_TIMEOUT_MILLISECONDS, tableId);
     }
 
@@ -642,7 +728,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public AccessControlList createAclWithRetry(AccessControlList acl) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.createACL(acl);
     }
 
@@ -658,7 +744,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public List<ColumnModel> createColumnModelsWithRetry(List<ColumnModel> columnList) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.createColumnModels(columnList);
     }
 
@@ -677,7 +763,7 @@ public class SynapseHelper {
             types = { AmazonClientException.class, SynapseException.class }, randomize = false)
     public FileHandle createFileHandleWithRetry(File file) throws IOException,
             SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         // Pass in forceRestart=true. Otherwise, retries will fail deterministically.
         return synapseClient.multipartUpload(file, null, null, true);
     }
@@ -686,7 +772,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public S3FileHandle createS3FileHandleWithRetry(S3FileHandle s3FileHandle) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.createExternalS3FileHandle(s3FileHandle);
     }
 
@@ -695,7 +781,7 @@ public class SynapseHelper {
             randomize = false)
     @SuppressWarnings("UnusedReturnValue")
     public ProjectSetting createProjectSettingWithRetry(ProjectSetting projectSetting) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.createProjectSetting(projectSetting);
     }
 
@@ -704,7 +790,7 @@ public class SynapseHelper {
             randomize = false)
     public ProjectSetting getProjectSettingWithRetry(String projectId, ProjectSettingsType type)
             throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.getProjectSetting(projectId, type);
     }
 
@@ -712,7 +798,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public void updateProjectSettingWithRetry(ProjectSetting projectSetting) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         synapseClient.updateProjectSetting(projectSetting);
     }
 
@@ -721,7 +807,7 @@ public class SynapseHelper {
             randomize = false)
     public <T extends StorageLocationSetting> T createStorageLocationSettingWithRetry(T storageLocationSetting)
             throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.createStorageLocationSetting(storageLocationSetting);
     }
 
@@ -822,7 +908,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public TableEntity createTableWithRetry(TableEntity table) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.createEntity(table);
     }
 
@@ -839,7 +925,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public void downloadFileHandleWithRetry(String fileHandleId, File toFile) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         synapseClient.downloadFromFileHandleTemporaryUrl(fileHandleId, toFile);
     }
 
@@ -855,7 +941,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public boolean isSynapseWritable() throws JSONObjectAdapterException, SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         StackStatus status = synapseClient.getCurrentStackStatus();
         return status.getStatus() == StatusEnum.READ_WRITE;
     }
@@ -888,7 +974,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public TableEntity getTableWithRetry(String tableId) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.getEntity(tableId, TableEntity.class);
     }
 
@@ -907,7 +993,7 @@ public class SynapseHelper {
             randomize = false)
     public String startTableTransactionWithRetry(List<TableUpdateRequest> changeList, String tableId)
             throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.startTableTransactionJob(changeList, tableId);
     }
 
@@ -929,7 +1015,7 @@ public class SynapseHelper {
     public List<TableUpdateResponse> getTableTransactionResultWithRetry(String jobToken, String tableId)
             throws SynapseException {
         try {
-            rateLimiter.acquire();
+            acquireRateLimitPermit();
             return synapseClient.getTableTransactionJobResults(jobToken, tableId);
         } catch (SynapseResultNotReadyException ex) {
             // catch this and return null so we don't retry on "not ready"
@@ -949,7 +1035,7 @@ public class SynapseHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     public TableEntity updateTableWithRetry(TableEntity table) throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.putEntity(table);
     }
 
@@ -958,7 +1044,7 @@ public class SynapseHelper {
             randomize = false)
     public UploadDestinationLocation[] getUploadDestinationLocationsWithRetry(String parentEntityId)
             throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.getUploadDestinationLocations(parentEntityId);
     }
 
@@ -979,7 +1065,7 @@ public class SynapseHelper {
             randomize = false)
     public String uploadTsvStartWithRetry(String tableId, String fileHandleId, CsvTableDescriptor tableDescriptor)
             throws SynapseException {
-        rateLimiter.acquire();
+        acquireRateLimitPermit();
         return synapseClient.uploadCsvToTableAsyncStart(tableId, fileHandleId, null, null, tableDescriptor, null);
     }
 
@@ -1000,7 +1086,7 @@ public class SynapseHelper {
             randomize = false)
     public UploadToTableResult getUploadTsvStatus(String jobToken, String tableId) throws SynapseException {
         try {
-            rateLimiter.acquire();
+            acquireRateLimitPermit();
             return synapseClient.uploadCsvToTableAsyncGet(jobToken, tableId);
         } catch (SynapseResultNotReadyException ex) {
             // catch this and return null so we don't retry on "not ready"
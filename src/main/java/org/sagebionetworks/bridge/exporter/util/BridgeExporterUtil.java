@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 /** Various static utility methods that don't neatly fit anywhere else. */
 public class BridgeExporterUtil {
@@ -31,6 +32,7 @@ public class BridgeExporterUtil {
 
     public static final Joiner COMMA_SPACE_JOINER = Joiner.on(", ").useForNull("");
     public static final String CONFIG_KEY_ATTACHMENT_S3_BUCKET = "attachment.bucket";
+    public static final String CONFIG_KEY_MAX_CONCURRENT_REQUESTS = "exporter.request.max.concurrent";
     public static final String CONFIG_KEY_TIME_ZONE_NAME = "time.zone.name";
     public static final String CONFIG_KEY_RECORD_ID_OVERRIDE_BUCKET = "record.id.override.bucket";
     public static final String CONFIG_KEY_SQS_QUEUE_URL = "exporter.request.sqs.queue.url";
@@ -167,7 +169,13 @@ public class BridgeExporterUtil {
 
         // Strip HTML.
         // As it turns out, Jsoup also flattens all whitespace (tabs, newlines, carriage returns, etc).
-        in = Jsoup.clean(in, Whitelist.none());
+        // Most strings are plain text, so try the fast path first, and only run Jsoup if there's markup.
+        String plainText = sanitizePlainText(in);
+        if (plainText != null) {
+            in = plainText;
+        } else {
+            in = Jsoup.clean(in, Whitelist.none());
+        }
 
         // Check against max length, truncating and warning as necessary.
         if (maxLength != null && in.length() > maxLength) {
@@ -179,6 +187,90 @@ public class BridgeExporterUtil {
         return in;
     }
 
+    /**
+     * <p>
+     * Fast path for sanitizeString(). If the string is plain text, this returns the same string that
+     * Jsoup.clean(in, Whitelist.none()) would, without parsing it as HTML. That is, whitespace runs (spaces, tabs,
+     * newlines, carriage returns, and form feeds) are collapsed to a single space, and leading and trailing whitespace
+     * is trimmed. If the string doesn't need any of that, this returns the input string itself.
+     * </p>
+     * <p>
+     * If the string has anything that Jsoup would parse or escape (&lt;, &gt;, &amp;, non-breaking spaces), or
+     * anything where Jsoup's output is less obvious (other control characters, unpaired surrogates), this returns
+     * null, and the caller should fall back to Jsoup.
+     * </p>
+     * <p>
+     * Package-scoped to be available to unit tests.
+     * </p>
+     *
+     * @param in
+     *         string to sanitize, must be non-null
+     * @return sanitized string, or null if the string needs to go through Jsoup
+     */
+    static String sanitizePlainText(String in) {
+        // First pass: check that the string is plain text, and whether it needs whitespace normalized. For most
+        // strings, this is the only pass, and we don't allocate anything.
+        int length = in.length();
+        boolean needsNormalize = false;
+        boolean prevIsWhitespace = true;
+        for (int i = 0; i < length; i++) {
+            char c = in.charAt(i);
+            if (isJsoupWhitespace(c)) {
+                // Leading whitespace, runs of whitespace, and whitespace other than a plain space all need to be
+                // normalized.
+                if (prevIsWhitespace || c != ' ') {
+                    needsNormalize = true;
+                }
+                prevIsWhitespace = true;
+                continue;
+            }
+            prevIsWhitespace = false;
+
+            if (c == '<' || c == '>' || c == '&' || c == '\u00a0' || c < ' ') {
+                return null;
+            } else if (Character.isHighSurrogate(c)) {
+                if (i + 1 < length && Character.isLowSurrogate(in.charAt(i + 1))) {
+                    // Surrogate pair. Skip the low surrogate.
+                    i++;
+                } else {
+                    return null;
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                return null;
+            }
+        }
+        if (length > 0 && prevIsWhitespace) {
+            // Trailing whitespace.
+            needsNormalize = true;
+        }
+        if (!needsNormalize) {
+            return in;
+        }
+
+        // Second pass: collapse whitespace runs and trim. We already know the string is plain text.
+        StringBuilder builder = new StringBuilder(length);
+        boolean pendingSpace = false;
+        for (int i = 0; i < length; i++) {
+            char c = in.charAt(i);
+            if (isJsoupWhitespace(c)) {
+                // Don't write leading whitespace.
+                pendingSpace = builder.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    builder.append(' ');
+                    pendingSpace = false;
+                }
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    // Whitespace, as defined by Jsoup. Note that this doesn't include other Unicode whitespace, which Jsoup keeps.
+    private static boolean isJsoupWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+
     /**
      * Helper method to convert a list of ColumnDefinition to a ColumnModel list.
      */
@@ -203,6 +295,15 @@ public class BridgeExporterUtil {
     }
 
     public static void getRowValuesFromRecordBasedOnColumnDefinition(Map<String, String> rowMap, final Item record, final List<ColumnDefinition> columnDefinitions, final String recordId) {
+        getRowValuesFromRecordBasedOnColumnDefinition(rowMap::put, record, columnDefinitions, recordId);
+    }
+
+    /**
+     * Same as above, except row values are passed to the given setter (for example, TsvRow::setValue) instead of
+     * being put into a map.
+     */
+    public static void getRowValuesFromRecordBasedOnColumnDefinition(BiConsumer<String, String> rowValueSetter,
+            final Item record, final List<ColumnDefinition> columnDefinitions, final String recordId) {
 
         for (ColumnDefinition columnDefinition : columnDefinitions) {
             // use name if there is no ddbName
@@ -221,7 +322,7 @@ public class BridgeExporterUtil {
                 valueToAdd = transferMethod.transfer(ddbName, record);
             }
 
-            rowMap.put(columnDefinition.getName(), valueToAdd);
+            rowValueSetter.accept(columnDefinition.getName(), valueToAdd);
         }
     }
     
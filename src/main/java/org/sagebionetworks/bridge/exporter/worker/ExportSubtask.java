@@ -1,5 +1,7 @@
 package org.sagebionetworks.bridge.exporter.worker;
 
+import java.io.IOException;
+
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.commons.lang3.StringUtils;
@@ -17,15 +19,17 @@ public class ExportSubtask {
     private final Item originalRecord;
     private final ExportTask parentTask;
     private final JsonNode recordData;
+    private final RecordView recordView;
     private final UploadSchemaKey schemaKey;
     private final String studyId;
 
     // Private constructor. To build, use Builder.
-    private ExportSubtask(Item originalRecord, ExportTask parentTask, JsonNode recordData, UploadSchemaKey schemaKey,
-            String studyId) {
+    private ExportSubtask(Item originalRecord, ExportTask parentTask, JsonNode recordData, RecordView recordView,
+            UploadSchemaKey schemaKey, String studyId) {
         this.originalRecord = originalRecord;
         this.parentTask = parentTask;
         this.recordData = recordData;
+        this.recordView = recordView;
         this.schemaKey = schemaKey;
         this.studyId = studyId;
     }
@@ -43,10 +47,34 @@ public class ExportSubtask {
     /**
      * JSON node representing the data normally found in the DDB health data record. This exists because legacy iOS
      * surveys wrote their answers to an attachment instead of directly to the health data record. All handlers should
-     * consume health data from getRecordData() instead of from getOriginalRecord().
+     * consume health data from getRecordData() instead of from getOriginalRecord(). If the record data wasn't
+     * specified when the subtask was built, this is parsed from the original record the first time it's needed, and
+     * cached in the record view.
+     *
+     * @return record data
+     * @throws IOException
+     *         if the record data can't be parsed
+     */
+    public JsonNode getRecordData() throws IOException {
+        return recordData != null ? recordData : recordView.getRecordData();
+    }
+
+    /**
+     * Raw JSON text of the record data, if the record data comes straight from the original record. Returns null if the
+     * record data was specified when the subtask was built (for example, converted legacy iOS surveys). Handlers that
+     * only need some of the fields can stream this instead of calling getRecordData(), which parses the whole record.
+     */
+    public String getRecordDataJsonText() {
+        return recordData == null ? recordView.getRecordDataJsonText() : null;
+    }
+
+    /**
+     * View of the original record, which parses and caches values derived from the record, such as the user metadata
+     * and phone and app version info. Subtasks for the same record should share the same view, so that each value is
+     * only computed once.
      */
-    public JsonNode getRecordData() {
-        return recordData;
+    public RecordView getRecordView() {
+        return recordView;
     }
 
     /** Shortcut method for getting the record ID, which is obtained from the original Dynamo DB record. */
@@ -72,6 +100,7 @@ public class ExportSubtask {
         private Item originalRecord;
         private ExportTask parentTask;
         private JsonNode recordData;
+        private RecordView recordView;
         private UploadSchemaKey schemaKey;
         private String studyId;
 
@@ -87,12 +116,27 @@ public class ExportSubtask {
             return this;
         }
 
-        /** @see ExportSubtask#getRecordData */
+        /**
+         * Record data. Optional. If not specified, the record data is parsed from the original record's "data"
+         * attribute when it's needed.
+         *
+         * @see ExportSubtask#getRecordData
+         */
         public Builder withRecordData(JsonNode recordData) {
             this.recordData = recordData;
             return this;
         }
 
+        /**
+         * View of the original record. Optional. If not specified, this creates a new view of the original record.
+         *
+         * @see ExportSubtask#getRecordView
+         */
+        public Builder withRecordView(RecordView recordView) {
+            this.recordView = recordView;
+            return this;
+        }
+
         /** @see ExportSubtask#getSchemaKey */
         public Builder withSchemaKey(UploadSchemaKey schemaKey) {
             this.schemaKey = schemaKey;
@@ -105,7 +149,10 @@ public class ExportSubtask {
             return this;
         }
 
-        /** Builds an ExportSubtask object and validates that all fields are valid (that is, non-null). */
+        /**
+         * Builds an ExportSubtask object and validates that all fields are valid (that is, non-null). Record data may
+         * be null if the original record has record data.
+         */
         public ExportSubtask build() {
             // validate - all fields must be non-null
             if (originalRecord == null) {
@@ -116,7 +163,12 @@ public class ExportSubtask {
                 throw new IllegalStateException("parentTask must be non-null");
             }
 
-            if (recordData == null) {
+            if (recordView != null && recordView.getRecord() != originalRecord) {
+                throw new IllegalStateException("recordView must be a view of originalRecord");
+            }
+            RecordView resolvedRecordView = recordView != null ? recordView : new RecordView(originalRecord);
+
+            if (recordData == null && !resolvedRecordView.hasRecordData()) {
                 throw new IllegalStateException("recordData must be non-null");
             }
 
@@ -124,7 +176,8 @@ public class ExportSubtask {
                 throw new IllegalStateException("studyId must be specified");
             }
 
-            return new ExportSubtask(originalRecord, parentTask, recordData, schemaKey, studyId);
+            return new ExportSubtask(originalRecord, parentTask, recordData, resolvedRecordView, schemaKey,
+                    studyId);
         }
     }
 }
@@ -1,41 +1,59 @@
 package org.sagebionetworks.bridge.exporter.worker;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
 import org.joda.time.LocalDate;
 
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 /**
  * An export task corresponds one-to-one with export requests. This class encapsulates the request as well as metadata
- * needed to process the request, such as metrics, temp dir, TSV info per table, and task queue.
+ * needed to process the request, such as metrics, temp dir, export handlers, TSV info per table, and completed subtask
+ * queue.
  */
 public class ExportTask {
+    // package-scoped to be available to unit tests
+    static final String METRIC_NUM_CANCELLED_SUBTASKS = "numCancelledSubtasks";
+
     // TASK PARAMETERS
 
+    private final ExportCheckpoint checkpoint;
     private final LocalDate exporterDate;
     private final Metrics metrics;
     private final BridgeExporterRequest request;
     private final File tmpDir;
 
     /** Private constructor. To construct, use builder. */
-    private ExportTask(LocalDate exporterDate, Metrics metrics, BridgeExporterRequest request, File tmpDir) {
+    private ExportTask(ExportCheckpoint checkpoint, LocalDate exporterDate, Metrics metrics,
+            BridgeExporterRequest request, File tmpDir) {
+        this.checkpoint = checkpoint;
         this.exporterDate = exporterDate;
         this.metrics = metrics;
         this.request = request;
         this.tmpDir = tmpDir;
     }
 
+    /**
+     * Checkpoint for the task, used to skip work already done by a previous run of the same request and to record
+     * progress for the next one. May be null, in which case the task isn't checkpointed.
+     */
+    public ExportCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
     /**
      * Calendar date that the Exporter ran. This is frequently different from the request date, since Exporter runs
      * generally export data from the day before.
@@ -64,11 +82,18 @@ public class ExportTask {
 
     /** Task builder. */
     public static class Builder {
+        private ExportCheckpoint checkpoint;
         private LocalDate exporterDate;
         private Metrics metrics;
         private BridgeExporterRequest request;
         private File tmpDir;
 
+        /** @see ExportTask#getCheckpoint */
+        public Builder withCheckpoint(ExportCheckpoint checkpoint) {
+            this.checkpoint = checkpoint;
+            return this;
+        }
+
         /** @see ExportTask#getExporterDate */
         public Builder withExporterDate(LocalDate exporterDate) {
             this.exporterDate = exporterDate;
@@ -93,9 +118,9 @@ public class ExportTask {
             return this;
         }
 
-        /** Builds an ExportTask object and validates that all fields are non-null. */
+        /** Builds an ExportTask object and validates that all fields except checkpoint are non-null. */
         public ExportTask build() {
-            // validate - all fields must be non-null
+            // validate - all fields except checkpoint must be non-null
             if (exporterDate == null) {
                 throw new IllegalStateException("exporterDate must be non-null");
             }
@@ -112,17 +137,29 @@ public class ExportTask {
                 throw new IllegalStateException("tmpDir must be non-null");
             }
 
-            return new ExportTask(exporterDate, metrics, request, tmpDir);
+            return new ExportTask(checkpoint, exporterDate, metrics, request, tmpDir);
         }
     }
 
     // TASK STATE MANAGEMENT
 
-    private final Map<UploadSchemaKey, TsvInfo> healthDataTsvInfoBySchema = new HashMap<>();
-    private final Set<String> studyIdSet = new HashSet<>();
-    private final Queue<ExportSubtaskFuture> subtaskFutureQueue = new LinkedList<>();
-    private boolean success = false;
-    private final Table<String, MetaTableType, TsvInfo> tsvInfoByStudyAndType = HashBasedTable.create();
+    // Task state is read and written by the record loop and by many workers at once, so it's all concurrent.
+    private final BlockingQueue<ExportSubtaskFuture> completedSubtaskFutureQueue = new LinkedBlockingQueue<>();
+    private final TaskHandlerRegistry handlerRegistry = new TaskHandlerRegistry();
+    private final ConcurrentMap<UploadSchemaKey, TsvInfo> healthDataTsvInfoBySchema = new ConcurrentHashMap<>();
+    private final Set<Future<?>> inFlightSubtaskFutureSet = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger numOutstandingSubtasks = new AtomicInteger();
+    private final Set<String> redriveRecordIdSet = ConcurrentHashMap.newKeySet();
+    private volatile RestartBridgeExporterException restartException;
+    private final Set<String> studyIdSet = ConcurrentHashMap.newKeySet();
+    private volatile boolean success = false;
+    private final ConcurrentMap<String, ConcurrentMap<MetaTableType, TsvInfo>> tsvInfoByStudyAndType =
+            new ConcurrentHashMap<>();
+
+    /** Export handlers for this task. Package-scoped, since only the ExportWorkerManager uses this. */
+    TaskHandlerRegistry getHandlerRegistry() {
+        return handlerRegistry;
+    }
 
     /** Gets the health data table TSV info for the specified schema. */
     public TsvInfo getHealthDataTsvInfoForSchema(UploadSchemaKey schemaKey) {
@@ -134,14 +171,119 @@ public class ExportTask {
         healthDataTsvInfoBySchema.put(schemaKey, tsvInfo);
     }
 
-    /** Gets the queue for outstanding subtask executions. */
-    public Queue<ExportSubtaskFuture> getSubtaskFutureQueue() {
-        return subtaskFutureQueue;
+    /**
+     * Signals that a subtask was submitted. The subtask is outstanding until its future is polled from the completed
+     * subtask queue.
+     */
+    public void addOutstandingSubtask() {
+        numOutstandingSubtasks.incrementAndGet();
+    }
+
+    /** Signals that a subtask that was added with {@link #addOutstandingSubtask} was never submitted after all. */
+    public void removeOutstandingSubtask() {
+        numOutstandingSubtasks.decrementAndGet();
+    }
+
+    /** Number of subtasks that have been submitted, but whose results haven't been polled yet. */
+    public int getNumOutstandingSubtasks() {
+        return numOutstandingSubtasks.get();
+    }
+
+    /** Adds a finished subtask execution to the completed subtask queue. Called from worker threads. */
+    public void addCompletedSubtaskFuture(ExportSubtaskFuture subtaskFuture) {
+        completedSubtaskFutureQueue.add(subtaskFuture);
+    }
+
+    /**
+     * Removes and returns the next finished subtask execution, in the order they finished, or null if none have
+     * finished. The subtask is no longer outstanding.
+     */
+    public ExportSubtaskFuture pollCompletedSubtaskFuture() {
+        return onPolled(completedSubtaskFutureQueue.poll());
+    }
+
+    /**
+     * Removes and returns the next finished subtask execution, waiting up to the given timeout for one to finish.
+     * Returns null if none finished before the timeout.
+     */
+    public ExportSubtaskFuture pollCompletedSubtaskFuture(long timeout, TimeUnit unit) throws InterruptedException {
+        return onPolled(completedSubtaskFutureQueue.poll(timeout, unit));
+    }
+
+    // Helper method which updates the outstanding count when a finished subtask is polled.
+    private ExportSubtaskFuture onPolled(ExportSubtaskFuture subtaskFuture) {
+        if (subtaskFuture != null) {
+            numOutstandingSubtasks.decrementAndGet();
+        }
+        return subtaskFuture;
+    }
+
+    /** Adds a record ID that failed with a retryable error and should be redriven. */
+    public void addRedriveRecordId(String recordId) {
+        redriveRecordIdSet.add(recordId);
+    }
+
+    /** Record IDs that failed with a retryable error and should be redriven. */
+    public Set<String> getRedriveRecordIdSet() {
+        return redriveRecordIdSet;
+    }
+
+    /**
+     * If a subtask failed in a way that requires restarting the whole request (for example, Synapse is down), this is
+     * the exception to throw. Null if no such failure has happened.
+     */
+    public RestartBridgeExporterException getRestartException() {
+        return restartException;
+    }
+
+    /** True if the task was aborted and the request needs to be restarted. See {@link #abort}. */
+    public boolean isAborted() {
+        return restartException != null;
+    }
+
+    /**
+     * Tracks a subtask execution that was submitted and hasn't finished, so it can be cancelled if the task is
+     * aborted.
+     */
+    public void addInFlightSubtaskFuture(Future<?> subtaskFuture) {
+        inFlightSubtaskFutureSet.add(subtaskFuture);
     }
 
-    /** Adds a subtask execution to the outstanding subtask queue. */
-    public void addSubtaskFuture(ExportSubtaskFuture subtaskFuture) {
-        subtaskFutureQueue.add(subtaskFuture);
+    /** Signals that a subtask execution added with {@link #addInFlightSubtaskFuture} has finished. */
+    public void removeInFlightSubtaskFuture(Future<?> subtaskFuture) {
+        inFlightSubtaskFutureSet.remove(subtaskFuture);
+    }
+
+    /**
+     * <p>
+     * Aborts the task, because the request needs to be restarted (for example, Synapse is down). The given exception
+     * becomes the task's restart exception. Every subtask that hasn't finished is cancelled, since its results would
+     * be thrown away anyway. Subtasks that haven't started never run. Subtasks that are already running aren't
+     * interrupted, since they might be in the middle of writing to a shared TSV. Instead, they stop at their next I/O
+     * step.
+     * </p>
+     * <p>
+     * Only the first call has any effect. Later calls keep the original restart exception.
+     * </p>
+     *
+     * @param restartException
+     *         exception to throw to restart the request
+     * @return number of subtasks cancelled, or -1 if the task was already aborted
+     */
+    public synchronized int abort(RestartBridgeExporterException restartException) {
+        if (this.restartException != null) {
+            return -1;
+        }
+        this.restartException = restartException;
+
+        int numCancelled = 0;
+        for (Future<?> oneSubtaskFuture : inFlightSubtaskFutureSet) {
+            if (oneSubtaskFuture.cancel(false)) {
+                numCancelled++;
+            }
+        }
+        metrics.incrementCounter(METRIC_NUM_CANCELLED_SUBTASKS, numCancelled);
+        return numCancelled;
     }
 
     /** Adds the study ID to the set of seen study IDs. */
@@ -166,11 +308,17 @@ public class ExportTask {
 
     /** Gets the TSV info for the specified study and meta-table type. */
     public TsvInfo getTsvInfoForStudyAndType(String studyId, MetaTableType type) {
-        return tsvInfoByStudyAndType.get(studyId, type);
+        Map<MetaTableType, TsvInfo> tsvInfoByType = tsvInfoByStudyAndType.get(studyId);
+        return tsvInfoByType != null ? tsvInfoByType.get(type) : null;
     }
 
     /** Sets the TSV info for the specified study and meta-table type into the task. */
     public void setTsvInfoForStudyAndType(String studyId, MetaTableType type, TsvInfo tsvInfo) {
-        tsvInfoByStudyAndType.put(studyId, type, tsvInfo);
+        getTsvInfoMapForStudy(studyId).put(type, tsvInfo);
+    }
+
+    // Helper method which gets the study's TSV info map, creating it atomically if needed.
+    private ConcurrentMap<MetaTableType, TsvInfo> getTsvInfoMapForStudy(String studyId) {
+        return tsvInfoByStudyAndType.computeIfAbsent(studyId, key -> new ConcurrentHashMap<>());
     }
 }
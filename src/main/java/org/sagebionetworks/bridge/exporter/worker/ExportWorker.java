@@ -2,12 +2,16 @@ package org.sagebionetworks.bridge.exporter.worker;
 
 import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.google.common.base.Stopwatch;
 import org.sagebionetworks.client.exceptions.SynapseException;
 
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
 import org.sagebionetworks.bridge.exporter.handler.ExportHandler;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 
 /**
  * <p>
@@ -24,6 +28,9 @@ import org.sagebionetworks.bridge.exporter.handler.ExportHandler;
 public class ExportWorker implements Callable<Void> {
     private final ExportHandler handler;
     private final ExportSubtask subtask;
+    private final Runnable completionCallback;
+    private final Metrics metrics;
+    private final AtomicBoolean completed = new AtomicBoolean();
 
     /**
      * Creates an ExportWorker for the given handler and subtask.
@@ -34,8 +41,44 @@ public class ExportWorker implements Callable<Void> {
      *         export subtask to handle
      */
     public ExportWorker(ExportHandler handler, ExportSubtask subtask) {
+        this(handler, subtask, null);
+    }
+
+    /**
+     * Creates an ExportWorker for the given handler and subtask, with a callback that's called when the worker
+     * finishes, whether or not it succeeds, or when the executor gets to a worker that was cancelled before it ran.
+     * The callback is called at most once, and never while the worker is still running. The ExportWorkerManager uses
+     * this to track in-flight subtasks.
+     *
+     * @param handler
+     *         export handler to run
+     * @param subtask
+     *         export subtask to handle
+     * @param completionCallback
+     *         called when the worker finishes, may be null
+     */
+    public ExportWorker(ExportHandler handler, ExportSubtask subtask, Runnable completionCallback) {
+        this(handler, subtask, completionCallback, null);
+    }
+
+    /**
+     * Creates an ExportWorker for the given handler and subtask, with a completion callback, which also records how
+     * long the worker held its worker thread in the given metrics.
+     *
+     * @param handler
+     *         export handler to run
+     * @param subtask
+     *         export subtask to handle
+     * @param completionCallback
+     *         called when the worker finishes, may be null
+     * @param metrics
+     *         metrics to record worker pool utilization in, may be null
+     */
+    public ExportWorker(ExportHandler handler, ExportSubtask subtask, Runnable completionCallback, Metrics metrics) {
         this.handler = handler;
         this.subtask = subtask;
+        this.completionCallback = completionCallback;
+        this.metrics = metrics;
     }
 
     /** Export handler to run. Package-scoped to be available to unit tests. */
@@ -48,15 +91,44 @@ public class ExportWorker implements Callable<Void> {
         return subtask;
     }
 
+    /** Callback called when the worker finishes. Package-scoped to be available to unit tests. */
+    Runnable getCompletionCallback() {
+        return completionCallback;
+    }
+
     /**
      * Calls through to the given export handler with the given export subtask. This is called indirectly through the
      * ExecutorService.
      */
     @Override
     public Void call() throws BridgeExporterException, IOException, SchemaNotFoundException, SynapseException {
-        handler.handle(subtask);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            handler.handle(subtask);
+        } finally {
+            // Complete first, so that a failure recording metrics can't leak the worker's in-flight slot.
+            try {
+                complete();
+            } finally {
+                if (metrics != null) {
+                    metrics.addToGauge(ExportWorkerManager.METRIC_CPU_POOL_BUSY_MILLIS, stopwatch.elapsed(
+                            TimeUnit.MILLISECONDS));
+                }
+            }
+        }
 
         // Callables have to have a return value. We don't have a return value, so return null.
         return null;
     }
+
+    /**
+     * Calls the completion callback, if it hasn't been called already. This is called when the worker finishes, and
+     * by the ExportWorkerFutureTask once the executor gets to it, since a worker cancelled before it starts never runs.
+     * Package-scoped, since only the ExportWorkerFutureTask and unit tests use this.
+     */
+    void complete() {
+        if (completionCallback != null && completed.compareAndSet(false, true)) {
+            completionCallback.run();
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
+
+/**
+ * <p>
+ * Future for an ExportWorker. When the worker finishes, whether or not it succeeds, this adds itself to the parent
+ * task's completed subtask queue. This lets the ExportWorkerManager process subtasks in the order they finish instead
+ * of the order they were submitted, similar to an ExecutorCompletionService, but with one completion queue per task.
+ * </p>
+ * <p>
+ * If the worker fails because Synapse is down, this aborts the parent task right away, so the other subtasks in the
+ * task are cancelled instead of making calls whose results would be thrown away. See {@link ExportTask#abort}.
+ * </p>
+ */
+public class ExportWorkerFutureTask extends FutureTask<Void> {
+    private static final Logger LOG = LoggerFactory.getLogger(ExportWorkerFutureTask.class);
+
+    private final ExportWorker worker;
+
+    /** Creates a future task for the given worker. */
+    public ExportWorkerFutureTask(ExportWorker worker) {
+        super(worker);
+        this.worker = worker;
+    }
+
+    /** Export worker that this future runs. Package-scoped to be available to unit tests. */
+    ExportWorker getWorker() {
+        return worker;
+    }
+
+    @Override
+    public void run() {
+        // The task may have been aborted after this was submitted, but before the abort could cancel it.
+        if (worker.getSubtask().getParentTask().isAborted()) {
+            cancel(false);
+        }
+
+        try {
+            super.run();
+        } finally {
+            // A worker that was cancelled before it started never runs, so it never calls its completion callback.
+            // super.run() doesn't return until the worker is done, so this never completes a worker that's still
+            // running. (A worker that ran has already completed itself, so this does nothing.)
+            worker.complete();
+        }
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+        super.setException(t);
+
+        if (ExportWorkerManager.isSynapseDown(t)) {
+            ExportSubtask subtask = worker.getSubtask();
+            int numCancelled = subtask.getParentTask().abort(new RestartBridgeExporterException(
+                    "Restarting Bridge Exporter; last recordId=" + subtask.getRecordId() + ": " + t.getMessage(), t));
+            if (numCancelled >= 0) {
+                LOG.warn("Synapse is down, aborting task and cancelling " + numCancelled + " subtasks");
+            }
+        }
+    }
+
+    @Override
+    protected void done() {
+        ExportSubtask subtask = worker.getSubtask();
+        ExportTask parentTask = subtask.getParentTask();
+        parentTask.removeInFlightSubtaskFuture(this);
+
+        // Don't complete the worker here. Cancelling a running worker calls done() right away, while the worker is
+        // still running, and completing it would free up its in-flight slot too early. See run().
+        parentTask.addCompletedSubtaskFuture(new ExportSubtaskFuture.Builder().withSubtask(subtask).withFuture(this)
+                .build());
+    }
+}
@@ -5,24 +5,33 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import javax.annotation.Resource;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Striped;
 import com.google.gson.JsonParseException;
 import com.google.gson.stream.MalformedJsonException;
 import org.apache.commons.lang3.StringUtils;
@@ -30,13 +39,19 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.sagebionetworks.client.exceptions.UnknownSynapseServerException;
+import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.cache.BoundedCache;
+import org.sagebionetworks.bridge.exporter.cache.CacheRegistry;
 import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpointHelper;
 import org.sagebionetworks.bridge.exporter.dynamo.StudyInfo;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterNonRetryableException;
@@ -56,15 +71,16 @@ import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.exporter.synapse.SynapseStatusTableHelper;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 import org.sagebionetworks.bridge.file.FileHelper;
-import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
+import org.sagebionetworks.bridge.rest.model.UploadFieldDefinition;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 import org.sagebionetworks.bridge.sqs.SqsHelper;
 
 /**
  * This class manages export handlers and workers. This includes holding the config and helper objects that the
- * handlers need, routing requests to the right handler, and handling "end of stream" events.
+ * handlers need, routing requests to the right handler, and handling "end of stream" events. Handlers belong to the
+ * export task, so several requests can be exported at the same time without sharing handler state.
  */
 @Component
 public class ExportWorkerManager {
@@ -77,10 +93,32 @@ public class ExportWorkerManager {
     public static final String CONFIG_KEY_WORKER_MANAGER_PROGRESS_REPORT_PERIOD =
             "worker.manager.progress.report.period";
 
+    // Worker pool utilization metrics. Public, so handlers can report time spent waiting on the I/O pool. Times are
+    // summed across threads, so they're recorded as long gauges, since they can overflow an int counter.
+    public static final String METRIC_CPU_POOL_BUSY_MILLIS = "cpuPool.busyMillis";
+    public static final String METRIC_CPU_POOL_IO_WAIT_MILLIS = "cpuPool.ioWaitMillis";
+    public static final String METRIC_CPU_POOL_MAX_ACTIVE_THREADS = "cpuPool.maxActiveThreads";
+    public static final String METRIC_IO_POOL_BUSY_MILLIS = "ioPool.busyMillis";
+    public static final String METRIC_IO_POOL_MAX_ACTIVE_THREADS = "ioPool.maxActiveThreads";
+    public static final String METRIC_IO_POOL_NUM_STEPS = "ioPool.numSteps";
+
     // package-scoped, to be available in tests
+    static final String CACHE_NAME_SYNAPSE_COLUMN_LIST = "synapse.column.list";
+    static final String CONFIG_KEY_MAX_IN_FLIGHT_SUBTASKS = "worker.manager.max.inflight.subtasks";
+    static final int DEFAULT_MAX_IN_FLIGHT_SUBTASKS = 10000;
+    static final int DEFAULT_SYNAPSE_COLUMN_LIST_CACHE_MAX_SIZE = 1000;
     static final String DDB_KEY_TABLE_ID = "tableId";
+    static final String METRIC_CHECKPOINT_SKIPPED_TABLE_RECORDS = "numCheckpointSkippedTableRecords";
+    static final String METRIC_MAX_IN_FLIGHT_SUBTASKS = "maxInFlightSubtasks";
+    static final String METRIC_NUM_IN_FLIGHT_SUBTASKS = "numInFlightSubtasks";
+    static final String METRIC_SUBTASK_WINDOW_WAIT_MILLIS = "subtaskWindowWaitMillis";
+    static final String METRIC_SUBTASK_WINDOW_WAITS = "numSubtaskWindowWaits";
+    static final int PROGRESS_REPORT_INTERVAL_SECONDS = 30;
     static final String REDRIVE_TAG_PREFIX = "redrive export; original: ";
     static final String SCHEMA_IOS_SURVEY = "ios-survey";
+    static final int SYNAPSE_TABLE_LOCK_STRIPES = 64;
+    static final Set<String> THROTTLING_ERROR_CODE_SET = ImmutableSet.of("ProvisionedThroughputExceededException",
+            "RequestLimitExceeded", "SlowDown", "Throttling", "ThrottlingException");
 
     // We need to delay our redrives. Otherwise, if we have a deterministic error, this may cause the Exporter to spin
     // as fast as possible retrying the request.
@@ -90,12 +128,17 @@ public class ExportWorkerManager {
     // CONFIG
 
     private String exporterDdbPrefix;
+    private int maxInFlightSubtasksPerRequest = DEFAULT_MAX_IN_FLIGHT_SUBTASKS;
     private int progressReportPeriod;
     private String recordIdOverrideBucket;
     private int redriveMaxCount;
     private long synapsePrincipalId;
     private String sqsQueueUrl;
 
+    // Guards Synapse table creation and update. Handlers belong to the task, so handler-level synchronization doesn't
+    // stop two requests from creating the same table.
+    private final Striped<Lock> synapseTableLocks = Striped.lock(SYNAPSE_TABLE_LOCK_STRIPES);
+
     /** Bridge config. */
     @Autowired
     public final void setConfig(Config config) {
@@ -110,6 +153,17 @@ public class ExportWorkerManager {
             // Avoid mod by zero. Set to some reasonable hard-coded default.
             progressReportPeriod = 250;
         }
+
+        int maxInFlightSubtasks = config.getInt(CONFIG_KEY_MAX_IN_FLIGHT_SUBTASKS);
+        if (maxInFlightSubtasks <= 0) {
+            maxInFlightSubtasks = DEFAULT_MAX_IN_FLIGHT_SUBTASKS;
+        }
+        this.subtaskWindow = new Semaphore(maxInFlightSubtasks);
+
+        // Each concurrent request gets an equal share of the window.
+        int maxConcurrentRequests = Math.max(1, config.getInt(
+                BridgeExporterUtil.CONFIG_KEY_MAX_CONCURRENT_REQUESTS));
+        this.maxInFlightSubtasksPerRequest = Math.max(1, maxInFlightSubtasks / maxConcurrentRequests);
     }
 
     /**
@@ -136,6 +190,21 @@ public class ExportWorkerManager {
 
     // DYNAMO DB HELPERS AND OVERRIDES
 
+    /**
+     * Gets the lock that guards creating and updating the Synapse table for the given DDB table map key. Callers
+     * should hold this lock from reading the Synapse table ID from DDB until the table is created (and the ID written
+     * back to DDB) or updated, so concurrent requests for the same table don't each create their own table.
+     *
+     * @param ddbTableName
+     *         Dynamo DB table that contains the Synapse table map
+     * @param ddbKeyValue
+     *         value of the hash key of the Dynamo DB table (generally the Synapse table name)
+     * @return lock for the Synapse table
+     */
+    public Lock getSynapseTableLock(String ddbTableName, String ddbKeyValue) {
+        return synapseTableLocks.get(ddbTableName + ":" + ddbKeyValue);
+    }
+
     /**
      * Gets the Synapse table ID, using the DDB Synapse table map. Returns null if the Synapse table doesn't exist (no
      * entry in the DDB table).
@@ -197,6 +266,7 @@ public class ExportWorkerManager {
     private BridgeHelper bridgeHelper;
     private DynamoDB ddbClient;
     private DynamoHelper dynamoHelper;
+    private ExportCheckpointHelper exportCheckpointHelper;
     private ExportHelper exportHelper;
     private FileHelper fileHelper;
     private S3Helper s3Helper;
@@ -207,6 +277,12 @@ public class ExportWorkerManager {
     // column definition list from conf file
     private List<ColumnDefinition> columnDefinitions;
 
+    // Synapse column lists for health data tables, keyed by the study upload metadata and schema field def lists.
+    // Column lists are derived entirely from the key, so they never expire. Starts with defaults, so we don't need a
+    // cache registry in unit tests.
+    private BoundedCache<List<List<UploadFieldDefinition>>, List<ColumnModel>> synapseColumnListCache =
+            new BoundedCache<>(CACHE_NAME_SYNAPSE_COLUMN_LIST, DEFAULT_SYNAPSE_COLUMN_LIST_CACHE_MAX_SIZE, 0);
+
     /** BridgeHelper, calls Bridge to get schemas and other data the exporter needs. */
     public final BridgeHelper getBridgeHelper() {
         return bridgeHelper;
@@ -221,12 +297,24 @@ public class ExportWorkerManager {
         return this.columnDefinitions;
     }
 
+    /** Cache of Synapse column lists for health data tables, used by the health data export handlers. */
+    public final BoundedCache<List<List<UploadFieldDefinition>>, List<ColumnModel>> getSynapseColumnListCache() {
+        return synapseColumnListCache;
+    }
+
     /** @see #getBridgeHelper */
     @Autowired
     public final void setBridgeHelper(BridgeHelper bridgeHelper) {
         this.bridgeHelper = bridgeHelper;
     }
 
+    /** Cache registry, used to create the Synapse column list cache. */
+    @Autowired
+    public final void setCacheRegistry(CacheRegistry cacheRegistry) {
+        this.synapseColumnListCache = cacheRegistry.newCache(CACHE_NAME_SYNAPSE_COLUMN_LIST,
+                DEFAULT_SYNAPSE_COLUMN_LIST_CACHE_MAX_SIZE, 0);
+    }
+
     /** DDB client, used to get the Synapse table mappings. */
     @Autowired
     public final void setDdbClient(DynamoDB ddbClient) {
@@ -239,6 +327,12 @@ public class ExportWorkerManager {
         this.dynamoHelper = dynamoHelper;
     }
 
+    /** Export checkpoint helper, used to save request progress as tables and studies are uploaded. */
+    @Autowired
+    public final void setExportCheckpointHelper(ExportCheckpointHelper exportCheckpointHelper) {
+        this.exportCheckpointHelper = exportCheckpointHelper;
+    }
+
     /** Export helper, used to handle attachments. */
     public final ExportHelper getExportHelper() {
         return exportHelper;
@@ -338,21 +432,95 @@ public class ExportWorkerManager {
     // TASK AND HANDLER MANAGEMENT
 
     private ExecutorService executor;
-    private final com.google.common.collect.Table<String, MetaTableType, SynapseExportHandler> handlersByStudyAndType
-            = HashBasedTable.create();
-    private final Map<UploadSchemaKey, SchemaBasedExportHandler> healthDataHandlersBySchema = new HashMap<>();
-    private final Map<String, IosSurveyExportHandler> surveyHandlersByStudy = new HashMap<>();
 
-    /** Executor that runs our export workers. */
+    // Runs the blocking I/O steps of a subtask (attachment uploads, large text downloads), so they don't tie up the
+    // worker pool, which is sized for CPU work. Defaults to running I/O steps in the calling thread.
+    private ExecutorService ioExecutor = MoreExecutors.newDirectExecutorService();
+
+    // Tunes the worker pool size. Defaults to a controller that isn't configured, and does nothing.
+    private WorkerConcurrencyController concurrencyController = new WorkerConcurrencyController();
+
+    // Bounds the number of subtasks that have been submitted but haven't finished, across all requests. Each pending
+    // subtask holds its DDB record and parsed record data, so without a bound, a worker pool that falls behind the
+    // record loop fills up the heap. When the window is full, the record loop blocks until a worker finishes. Each
+    // request is also limited to its share of the window (see waitForRequestWindowShare()), so that one large request
+    // can't fill the window and the worker queue while other requests wait.
+    private Semaphore subtaskWindow = new Semaphore(DEFAULT_MAX_IN_FLIGHT_SUBTASKS);
+    private final AtomicInteger numInFlightSubtasks = new AtomicInteger();
+
+    /**
+     * Executor that runs our export workers. Workers do the CPU work of a subtask (parsing, sanitizing, and building
+     * rows), and hand off blocking I/O to the I/O executor.
+     */
     @Resource(name = "workerExecutorService")
     public final void setExecutor(ExecutorService executor) {
         this.executor = executor;
     }
 
+    /** Controller that tunes the worker pool size, based on throughput and throttling. */
+    @Autowired
+    public final void setConcurrencyController(WorkerConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /** Executor that runs the blocking I/O steps of export subtasks. See {@link #submitIoStep}. */
+    @Resource(name = "ioExecutorService")
+    public final void setIoExecutor(ExecutorService ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Hands off a blocking I/O step (such as uploading an attachment to Synapse) from a worker to the I/O executor.
+     * The worker can keep doing CPU work for the subtask, then wait on the returned future for the result. This also
+     * records the I/O pool's utilization in the task's metrics.
+     *
+     * @param task
+     *         export task the I/O step is for, used for metrics
+     * @param ioStep
+     *         I/O step to run
+     * @param <T>
+     *         result type of the I/O step
+     * @return future for the result of the I/O step
+     * @throws CancellationException
+     *         if the task was aborted, in which case the subtask should stop instead of making more calls; if the
+     *         task is aborted after the I/O step is submitted, but before it runs, the future throws this instead
+     */
+    public <T> Future<T> submitIoStep(ExportTask task, Callable<T> ioStep) {
+        checkNotAborted(task);
+
+        Metrics metrics = task.getMetrics();
+        metrics.incrementCounter(METRIC_IO_POOL_NUM_STEPS);
+        return ioExecutor.submit(() -> {
+            checkNotAborted(task);
+            recordMaxActiveThreads(metrics, METRIC_IO_POOL_MAX_ACTIVE_THREADS, ioExecutor);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            try {
+                return ioStep.call();
+            } finally {
+                metrics.addToGauge(METRIC_IO_POOL_BUSY_MILLIS, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+            }
+        });
+    }
+
+    // Helper method which stops a subtask at an I/O boundary if its task was aborted.
+    private static void checkNotAborted(ExportTask task) {
+        if (task.isAborted()) {
+            throw new CancellationException("Export task was aborted");
+        }
+    }
+
+    // Helper method which records the high-water mark of active threads in the given pool, if we can get it.
+    private static void recordMaxActiveThreads(Metrics metrics, String metricName, ExecutorService executorService) {
+        if (executorService instanceof ThreadPoolExecutor) {
+            metrics.setGaugeMax(metricName, ((ThreadPoolExecutor) executorService).getActiveCount());
+        }
+    }
+
     /**
      * Given the export task and one of the health data records in that task, this creates the export sub-tasks and
-     * routes them to the appropriate export handlers. This returns immediately and queues up asynchronous workers to
-     * handle those sub-tasks.
+     * routes them to the appropriate export handlers. This queues up asynchronous workers to handle those sub-tasks.
+     * If too many sub-tasks are already in flight, this blocks until workers free up room. If the task was aborted,
+     * this does nothing, since the request will be restarted.
      *
      * @param task
      *         export task to be processed
@@ -364,32 +532,55 @@ public class ExportWorkerManager {
      *         if the schema corresponding the record can't be found
      */
     public void addSubtaskForRecord(ExportTask task, Item record) throws IOException, SchemaNotFoundException {
-        String studyId = record.getString("studyId");
-        UploadSchemaKey schemaKey = BridgeExporterUtil.getSchemaKeyForRecord(record);
+        // Process any subtasks that finished since the last record, so the completed queue stays small and failures
+        // show up while we're still reading records.
+        drainCompletedSubtasks(task);
+        if (task.isAborted()) {
+            return;
+        }
+
+        // The record view is shared by all subtasks for this record, so each handler doesn't re-parse the record.
+        RecordView recordView = new RecordView(record);
+        String studyId = recordView.getStudyId();
+        UploadSchemaKey schemaKey = recordView.getSchemaKey();
 
         // Book-keeping: We need to know what study IDs this task has seen.
         task.addStudyId(studyId);
 
-        // Make subtask. Subtasks are immutable, so we can safely use the same one for each of the handlers.
-        JsonNode recordDataNode = DefaultObjectMapper.INSTANCE.readTree(record.getString("data"));
+        // The checkpoint uses uploadedOn to compute the study's watermark once the study is done.
+        ExportCheckpoint checkpoint = task.getCheckpoint();
+        if (checkpoint != null && record.get("uploadedOn") != null) {
+            checkpoint.observeRecord(studyId, record.getLong("uploadedOn"));
+        }
+
+        // Make subtask. Subtasks are immutable, so we can safely use the same one for each of the handlers. Record data
+        // isn't parsed here. Handlers parse (or stream) it when they need it.
         ExportSubtask subtask = new ExportSubtask.Builder().withOriginalRecord(record).withParentTask(task)
-                .withRecordData(recordDataNode).withSchemaKey(schemaKey).withStudyId(studyId).build();
+                .withRecordView(recordView).withSchemaKey(schemaKey).withStudyId(studyId).build();
 
         // Multiplex on schema.
         if (schemaKey != null && SCHEMA_IOS_SURVEY.equals(schemaKey.getSchemaId())) {
             // Special case: In the olden days, iOS surveys were processed by the Exporter instead of Bridge Server
             // Upload Validation. We don't do this anymore, but sometimes we want to re-export old uploads, so we still
             // need to handle this case.
-            IosSurveyExportHandler surveyHandler = getSurveyHandlerForStudy(studyId);
-            queueWorker(surveyHandler, task, subtask);
+            IosSurveyExportHandler surveyHandler = getSurveyHandlerForStudy(task, studyId);
+            queueWorker(surveyHandler, task, subtask, true);
         } else {
-            addHealthDataSubtask(task, studyId, schemaKey, subtask);
+            addHealthDataSubtask(task, studyId, schemaKey, subtask, true);
         }
     }
 
     /**
+     * <p>
      * Add a health data sub-task. This is actually two sub-tasks, one for the app version table, one for the health
-     * data table. This is a separate method, because the IosSurveyExportHandler needs to call this directly.
+     * data table. This is a separate method, because the IosSurveyExportHandler needs to call this directly. If the
+     * task's checkpoint says the health data table was already uploaded by a previous run, only the app version
+     * sub-task is queued.
+     * </p>
+     * <p>
+     * This is called from worker threads, so it never waits for room in the in-flight window. (If it did, and every
+     * worker was waiting, nothing would ever free up room.) These sub-tasks are still counted as in flight.
+     * </p>
      *
      * @param parentTask
      *         parent export task that contains this health data sub-task
@@ -404,22 +595,35 @@ public class ExportWorkerManager {
      */
     public void addHealthDataSubtask(ExportTask parentTask, String studyId, UploadSchemaKey schemaKey,
             ExportSubtask subtask) throws SchemaNotFoundException {
+        addHealthDataSubtask(parentTask, studyId, schemaKey, subtask, false);
+    }
+
+    // Helper method which adds the health data sub-task. See addHealthDataSubtask() above.
+    private void addHealthDataSubtask(ExportTask parentTask, String studyId, UploadSchemaKey schemaKey,
+            ExportSubtask subtask, boolean waitForWindow) throws SchemaNotFoundException {
         // Queue AppVersion (Health Data Summary) worker.
-        SynapseExportHandler appVersionHandler = getHandlerForStudyAndType(studyId, MetaTableType.APP_VERSION);
-        queueWorker(appVersionHandler, parentTask, subtask);
+        SynapseExportHandler appVersionHandler = getHandlerForStudyAndType(parentTask, studyId,
+                MetaTableType.APP_VERSION);
+        queueWorker(appVersionHandler, parentTask, subtask, waitForWindow);
 
         // Queue data worker, depending on if there's a schema or not.
         SynapseExportHandler dataHandler;
         if (schemaKey != null) {
-            dataHandler = getHealthDataHandlerForSchema(parentTask.getMetrics(), schemaKey);
+            ExportCheckpoint checkpoint = parentTask.getCheckpoint();
+            if (checkpoint != null && checkpoint.isTableCompleted(schemaKey)) {
+                parentTask.getMetrics().incrementCounter(METRIC_CHECKPOINT_SKIPPED_TABLE_RECORDS);
+                return;
+            }
+
+            dataHandler = getHealthDataHandlerForSchema(parentTask, schemaKey);
         } else {
-            dataHandler = getHandlerForStudyAndType(studyId, MetaTableType.DEFAULT);
+            dataHandler = getHandlerForStudyAndType(parentTask, studyId, MetaTableType.DEFAULT);
         }
-        queueWorker(dataHandler, parentTask, subtask);
+        queueWorker(dataHandler, parentTask, subtask, waitForWindow);
     }
 
     /**
-     * Adds the given task to the task queue.
+     * Adds the given task to the task queue. If the parent task was aborted, the sub-task is dropped instead.
      *
      * @param handler
      *         handler to queue up
@@ -427,20 +631,111 @@ public class ExportWorkerManager {
      *         parent export task, contains the task queue
      * @param subtask
      *         sub-task to queue up
+     * @param waitForWindow
+     *         true if this should wait for room in the in-flight window, false if the sub-task should be queued
+     *         regardless (for sub-tasks queued from worker threads)
      */
-    private void queueWorker(ExportHandler handler, ExportTask parentTask, ExportSubtask subtask) {
-        ExportWorker worker = new ExportWorker(handler, subtask);
-        Future<Void> future = executor.submit(worker);
-        parentTask.addSubtaskFuture(new ExportSubtaskFuture.Builder().withSubtask(subtask).withFuture(future).build());
+    private void queueWorker(ExportHandler handler, ExportTask parentTask, ExportSubtask subtask,
+            boolean waitForWindow) {
+        if (parentTask.isAborted()) {
+            return;
+        }
+
+        Metrics metrics = parentTask.getMetrics();
+        if (waitForWindow) {
+            waitForRequestWindowShare(parentTask);
+
+            if (!subtaskWindow.tryAcquire()) {
+                // Workers have fallen behind. Wait for them to catch up.
+                metrics.incrementCounter(METRIC_SUBTASK_WINDOW_WAITS);
+                Stopwatch stopwatch = Stopwatch.createStarted();
+                try {
+                    subtaskWindow.acquire();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for in-flight subtasks", ex);
+                }
+                metrics.incrementCounter(METRIC_SUBTASK_WINDOW_WAIT_MILLIS, (int) stopwatch.elapsed(
+                        TimeUnit.MILLISECONDS));
+            }
+
+            // The task may have been aborted while we were waiting.
+            if (parentTask.isAborted()) {
+                subtaskWindow.release();
+                return;
+            }
+        }
+
+        int numInFlight = numInFlightSubtasks.incrementAndGet();
+        metrics.setGauge(METRIC_NUM_IN_FLIGHT_SUBTASKS, numInFlight);
+        metrics.setGaugeMax(METRIC_MAX_IN_FLIGHT_SUBTASKS, numInFlight);
+
+        // The subtask must be outstanding before it's submitted. Otherwise, it might finish and be polled first.
+        // Similarly, it must be in flight before it's submitted, so that aborting the task can cancel it.
+        ExportWorker worker = new ExportWorker(handler, subtask, () -> onWorkerDone(metrics, waitForWindow), metrics);
+        ExportWorkerFutureTask futureTask = new ExportWorkerFutureTask(worker);
+        parentTask.addOutstandingSubtask();
+        parentTask.addInFlightSubtaskFuture(futureTask);
+        try {
+            executor.execute(futureTask);
+            recordMaxActiveThreads(metrics, METRIC_CPU_POOL_MAX_ACTIVE_THREADS, executor);
+        } catch (RuntimeException ex) {
+            parentTask.removeInFlightSubtaskFuture(futureTask);
+            parentTask.removeOutstandingSubtask();
+            onWorkerDone(metrics, waitForWindow);
+            throw ex;
+        }
     }
 
-    private SynapseExportHandler getHandlerForStudyAndType(String studyId, MetaTableType type) {
-        SynapseExportHandler handler = handlersByStudyAndType.get(studyId, type);
-        if (handler == null) {
-            handler = createHandlerForStudyAndType(studyId, type);
-            handlersByStudyAndType.put(studyId, type, handler);
+    // Helper method which blocks until the task has fewer outstanding subtasks than its share of the in-flight window.
+    // While it waits, it processes the task's own finished subtasks, which is what frees up room. If the task needs to
+    // be restarted, this stops waiting, since end of stream will throw anyway.
+    private void waitForRequestWindowShare(ExportTask task) {
+        if (task.getNumOutstandingSubtasks() < maxInFlightSubtasksPerRequest) {
+            return;
         }
-        return handler;
+
+        Metrics metrics = task.getMetrics();
+        metrics.incrementCounter(METRIC_SUBTASK_WINDOW_WAITS);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (task.getNumOutstandingSubtasks() >= maxInFlightSubtasksPerRequest && !task.isAborted()) {
+            ExportSubtaskFuture subtaskFuture;
+            try {
+                subtaskFuture = task.pollCompletedSubtaskFuture(PROGRESS_REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for in-flight subtasks", ex);
+            }
+
+            if (subtaskFuture != null) {
+                try {
+                    handleCompletedSubtask(task, subtaskFuture);
+                } catch (RestartBridgeExporterException ex) {
+                    task.abort(ex);
+                }
+            }
+        }
+        metrics.incrementCounter(METRIC_SUBTASK_WINDOW_WAIT_MILLIS, (int) stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+
+    // Called when a worker finishes (or fails to submit). Frees up its spot in the in-flight window.
+    private void onWorkerDone(Metrics metrics, boolean releaseWindow) {
+        metrics.setGauge(METRIC_NUM_IN_FLIGHT_SUBTASKS, numInFlightSubtasks.decrementAndGet());
+        if (releaseWindow) {
+            subtaskWindow.release();
+        }
+        concurrencyController.recordSubtaskDone(metrics);
+    }
+
+    /** Number of sub-tasks that have been queued but haven't finished. Package-scoped for unit tests. */
+    int getNumInFlightSubtasks() {
+        return numInFlightSubtasks.get();
+    }
+
+    private SynapseExportHandler getHandlerForStudyAndType(ExportTask task, String studyId, MetaTableType type) {
+        return task.getHandlerRegistry().getHandlersByStudyAndType().computeIfAbsent(studyId,
+                key -> new ConcurrentHashMap<>()).computeIfAbsent(type, key -> createHandlerForStudyAndType(studyId,
+                key));
     }
 
     // Factory method for creating a new handler for meta-tables. This exists and is package-scoped to enable unit
@@ -453,24 +748,50 @@ public class ExportWorkerManager {
     }
 
     /**
-     * Gets the health data handler for the given schema key, with caching logic
+     * Gets the task's health data handler for the given schema key, with caching logic
      *
-     * @param metrics
-     *         metrics, used to track schema not found metrics
+     * @param task
+     *         export task that the handler belongs to, also used to track schema not found metrics
      * @param schemaKey
      *         schema for the health data handler
      * @return health data handler
      * @throws SchemaNotFoundException
      *         if getting the schema fails
      */
-    private SchemaBasedExportHandler getHealthDataHandlerForSchema(Metrics metrics, UploadSchemaKey schemaKey)
+    private SchemaBasedExportHandler getHealthDataHandlerForSchema(ExportTask task, UploadSchemaKey schemaKey)
             throws SchemaNotFoundException {
+        // Check first, so the common case doesn't lock the map's bin.
+        ConcurrentMap<UploadSchemaKey, SchemaBasedExportHandler> healthDataHandlersBySchema = task
+                .getHandlerRegistry().getHealthDataHandlersBySchema();
         SchemaBasedExportHandler handler = healthDataHandlersBySchema.get(schemaKey);
-        if (handler == null) {
-            handler = createHealthDataHandler(metrics, schemaKey);
-            healthDataHandlersBySchema.put(schemaKey, handler);
+        if (handler != null) {
+            return handler;
+        }
+
+        // computeIfAbsent() can't throw checked exceptions, so tunnel SchemaNotFoundException through.
+        try {
+            return healthDataHandlersBySchema.computeIfAbsent(schemaKey, key -> {
+                try {
+                    return createHealthDataHandler(task.getMetrics(), key);
+                } catch (SchemaNotFoundException ex) {
+                    throw new UncheckedSchemaNotFoundException(ex);
+                }
+            });
+        } catch (UncheckedSchemaNotFoundException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    // Wraps SchemaNotFoundException so it can be thrown from computeIfAbsent().
+    private static class UncheckedSchemaNotFoundException extends RuntimeException {
+        UncheckedSchemaNotFoundException(SchemaNotFoundException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SchemaNotFoundException getCause() {
+            return (SchemaNotFoundException) super.getCause();
         }
-        return handler;
     }
 
     // Factory method for creating a new health data handler. This exists and is package-scoped to enable unit tests.
@@ -489,26 +810,99 @@ public class ExportWorkerManager {
     }
 
     /**
-     * Gets the legacy survey handler for the given study, with caching logic.
+     * Gets the task's legacy survey handler for the given study, with caching logic.
      *
+     * @param task
+     *         export task that the handler belongs to
      * @param studyId
      *         study ID to get the handler for
      * @return legacy survey handler
      */
-    private IosSurveyExportHandler getSurveyHandlerForStudy(String studyId) {
-        IosSurveyExportHandler handler = surveyHandlersByStudy.get(studyId);
-        if (handler == null) {
-            handler = new IosSurveyExportHandler();
+    private IosSurveyExportHandler getSurveyHandlerForStudy(ExportTask task, String studyId) {
+        return task.getHandlerRegistry().getSurveyHandlersByStudy().computeIfAbsent(studyId, key -> {
+            IosSurveyExportHandler handler = new IosSurveyExportHandler();
             handler.setManager(this);
-            handler.setStudyId(studyId);
-            surveyHandlersByStudy.put(studyId, handler);
+            handler.setStudyId(key);
+            return handler;
+        });
+    }
+
+    /**
+     * Processes the subtasks that have finished so far, without waiting for the rest. Retryable failures are added to
+     * the task's redrive set. If a subtask failed because Synapse is down, this saves the restart exception to the
+     * task and stops, since the request will be restarted anyway. Package-scoped to be available to unit tests.
+     *
+     * @param task
+     *         export task whose finished subtasks to process
+     */
+    void drainCompletedSubtasks(ExportTask task) {
+        if (task.isAborted()) {
+            return;
+        }
+
+        ExportSubtaskFuture subtaskFuture;
+        while ((subtaskFuture = task.pollCompletedSubtaskFuture()) != null) {
+            try {
+                handleCompletedSubtask(task, subtaskFuture);
+            } catch (RestartBridgeExporterException ex) {
+                task.abort(ex);
+                return;
+            }
+        }
+    }
+
+    // Helper method which checks the result of a finished subtask. Retryable failures are added to the task's redrive
+    // set. Throws if the request needs to be restarted.
+    private void handleCompletedSubtask(ExportTask task, ExportSubtaskFuture subtaskFuture)
+            throws RestartBridgeExporterException {
+        // ExportWorkers have no return value. If Future.get() returns normally, then the task is done. The future
+        // has already finished, so this doesn't block.
+        try {
+            subtaskFuture.getFuture().get();
+        } catch (CancellationException ex) {
+            // The subtask was cancelled because the task was aborted. The request will be restarted, so there's
+            // nothing to redrive.
+        } catch (ExecutionException | InterruptedException ex) {
+            // The real exception is in the inner exception (if it's an ExecutionException).
+            Throwable originalEx = ex.getCause();
+            if (originalEx instanceof CancellationException && task.isAborted()) {
+                // The subtask stopped at an I/O step because the task was aborted. Same as above.
+                return;
+            }
+
+            ExportSubtask subtask = subtaskFuture.getSubtask();
+            String recordId = subtask.getRecordId();
+            UploadSchemaKey schemaKey = subtask.getSchemaKey();
+            if (isThrottled(originalEx)) {
+                // Let the controller know we're pushing our backends too hard.
+                concurrencyController.recordThrottle();
+            }
+
+            if (isSynapseDown(originalEx)) {
+                // If Synapse is down, we should restart the BridgeEX request. The subtask's future has usually already
+                // aborted the task, which cancels the other subtasks (see ExportWorkerFutureTask). Subtasks that were
+                // already running stop at their next I/O step. Nothing will get written to the Synapse tables, since
+                // (a) we never call upload to Synapse and (b) Synapse is down anyway.
+                throw new RestartBridgeExporterException("Restarting Bridge Exporter; last recordId=" + recordId +
+                        ": " + originalEx.getMessage(), originalEx);
+            } else {
+                LOG.error("Error completing subtask for study=" + subtask.getStudyId() + " schema=" + schemaKey +
+                        ", recordId=" + recordId + ": " + ex.getMessage(), ex);
+                // We exclude TSV exceptions here. Since TSVs cause the whole table to fail, redrive the table instead
+                // of individual records.
+                if (!(originalEx instanceof BridgeExporterTsvException) && isRetryable(originalEx)) {
+                    // This failure is recoverable. Track which record IDs need to be redriven, so we can redrive it
+                    // later.
+                    task.addRedriveRecordId(recordId);
+                }
+            }
         }
-        return handler;
     }
 
     /**
      * Signals the end of the record stream for the given export task. This waits for all of the outstanding tasks to
-     * complete and signals the handlers to upload their TSVs to Synapse.
+     * complete and signals the handlers to upload their TSVs to Synapse, one study at a time. If the task has a
+     * checkpoint, each uploaded health data table and each finished study is saved to the checkpoint.
      *
      * @param task
      *         export task to be finished
@@ -520,53 +914,56 @@ public class ExportWorkerManager {
         String tag = request.getTag();
         LOG.info("End of stream signaled for request " + request.toString());
 
-        // Wait for all outstanding tasks to complete
+        // Wait for all outstanding tasks to complete, processing them in the order they finish. A subtask that
+        // failed earlier, while we were still reading records, may have already told us to restart.
         Stopwatch stopwatch = Stopwatch.createStarted();
-        Queue<ExportSubtaskFuture> subtaskFutureQueue = task.getSubtaskFutureQueue();
-        Set<String> redriveRecordIdSet = new HashSet<>();
-        while (!subtaskFutureQueue.isEmpty()) {
-            int numOutstanding = subtaskFutureQueue.size();
-            if (numOutstanding % progressReportPeriod == 0) {
+        int numCompleted = 0;
+        while (true) {
+            RestartBridgeExporterException restartException = task.getRestartException();
+            if (restartException != null) {
+                throw restartException;
+            }
+
+            int numOutstanding = task.getNumOutstandingSubtasks();
+            if (numOutstanding <= 0) {
+                break;
+            }
+
+            ExportSubtaskFuture subtaskFuture;
+            try {
+                subtaskFuture = task.pollCompletedSubtaskFuture(PROGRESS_REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RestartBridgeExporterException("Restarting Bridge Exporter; interrupted waiting for " +
+                        numOutstanding + " outstanding tasks", ex);
+            }
+
+            if (subtaskFuture == null) {
+                // Nothing finished in a while. Log progress, so we know we're not stuck.
                 LOG.info("Num outstanding tasks: " + numOutstanding + " after " + stopwatch.elapsed(TimeUnit.SECONDS) +
                         " seconds");
+                continue;
+            }
+
+            numCompleted++;
+            if (numCompleted % progressReportPeriod == 0) {
+                LOG.info("Num outstanding tasks: " + task.getNumOutstandingSubtasks() + " after " +
+                        stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
             }
 
-            // ExportWorkers have no return value. If Future.get() returns normally, then the task is done.
-            ExportSubtaskFuture subtaskFuture = subtaskFutureQueue.remove();
             try {
-                subtaskFuture.getFuture().get();
-            } catch (ExecutionException | InterruptedException ex) {
-                // The real exception is in the inner exception (if it's an ExecutionException).
-                Throwable originalEx = ex.getCause();
-
-                ExportSubtask subtask = subtaskFuture.getSubtask();
-                String recordId = subtask.getRecordId();
-                UploadSchemaKey schemaKey = subtask.getSchemaKey();
-                if (isSynapseDown(originalEx)) {
-                    // If Synapse is down, we should restart the BridgeEX request. Note that since BridgeEX is
-                    // multi-threaded, there may be other subtasks scheduled that will run to completion. Nothing will
-                    // get written to the Synapse tables, however, since (a) we never call upload to Synapse and
-                    // (b) Synapse is down anyway.
-                    throw new RestartBridgeExporterException("Restarting Bridge Exporter; last recordId=" + recordId +
-                            ": " + originalEx.getMessage(), originalEx);
-                } else {
-                    LOG.error("Error completing subtask for study=" + subtask.getStudyId() + " schema=" + schemaKey +
-                            ", recordId=" + recordId + ": " + ex.getMessage(), ex);
-                    // We exclude TSV exceptions here. Since TSVs cause the whole table to fail, redrive the table
-                    // instead of individual records.
-                    if (!(originalEx instanceof BridgeExporterTsvException) && isRetryable(originalEx)) {
-                        // This failure is recoverable. Track which record IDs need to be redriven, so we can redrive it
-                        // later.
-                        redriveRecordIdSet.add(recordId);
-                    }
-                }
+                handleCompletedSubtask(task, subtaskFuture);
+            } catch (RestartBridgeExporterException ex) {
+                task.abort(ex);
             }
         }
+
+        Set<String> redriveRecordIdSet = task.getRedriveRecordIdSet();
         if (!redriveRecordIdSet.isEmpty() && redriveCount < redriveMaxCount) {
             // Upload the list of record IDs that need to be redriven to S3. The filename *should* be unique, since we
-            // use the timestamp for the filename, and we currently only run one Export job at a time.
-            // Use UTC timezone so we can easily sort and search for files. Redrives should be relatively rare, so
-            // performance considerations on S3 buckets aren't an issue.
+            // use the timestamp for the filename, and concurrent requests are unlikely to finish in the same
+            // millisecond. Use UTC timezone so we can easily sort and search for files. Redrives should be relatively
+            // rare, so performance considerations on S3 buckets aren't an issue.
             String filename = "redrive-record-ids." + DateTime.now().withZone(DateTimeZone.UTC).toString();
 
             // Create a copy of the original request, except add the record override and update the tag. Also, clear
@@ -596,111 +993,179 @@ public class ExportWorkerManager {
 
         LOG.info("All subtasks done for request " + request.toString());
 
-        // Tell each health data handler to upload their TSVs to Synapse.
-        // Use a TreeMap so we can iterate our redrives in a predictable order.
-        Map<String, Set<UploadSchemaKey>> redriveTablesByStudy = new TreeMap<>();
-        for (Map.Entry<UploadSchemaKey, SchemaBasedExportHandler> healthDataHandlerEntry
-                : healthDataHandlersBySchema.entrySet()) {
-            UploadSchemaKey schemaKey = healthDataHandlerEntry.getKey();
-            SchemaBasedExportHandler handler = healthDataHandlerEntry.getValue();
-            try {
-                handler.uploadToSynapseForTask(task);
-            } catch (BridgeExporterException | IOException | RuntimeException | SynapseException ex) {
-                Throwable originalEx = ex;
-                if (originalEx instanceof BridgeExporterTsvException) {
-                    // TSV exception is just a wrapper. Go down one level to get the real exception.
-                    originalEx = originalEx.getCause();
+        // Upload one study at a time, so that we can checkpoint each study as soon as it's done. If Synapse goes down
+        // part way through, the restarted request skips the studies and tables that were already uploaded. A study is
+        // only checkpointed once everything for it is either uploaded or has been sent for redrive, since the
+        // restarted request won't look at the study again.
+        ExportCheckpoint checkpoint = task.getCheckpoint();
+        Map<String, ConcurrentMap<MetaTableType, SynapseExportHandler>> handlersByStudyAndType = task
+                .getHandlerRegistry().getHandlersByStudyAndType();
+        Map<String, Map<UploadSchemaKey, SchemaBasedExportHandler>> healthDataHandlersByStudy =
+                getHealthDataHandlersByStudy(task);
+        SortedSet<String> uploadStudyIdSet = new TreeSet<>(healthDataHandlersByStudy.keySet());
+        uploadStudyIdSet.addAll(handlersByStudyAndType.keySet());
+        uploadStudyIdSet.addAll(task.getStudyIdSet());
+        for (String oneStudyId : uploadStudyIdSet) {
+            boolean isStudyUploaded = true;
+
+            // Tell each health data handler to upload their TSVs to Synapse.
+            Set<UploadSchemaKey> redriveTableSet = new HashSet<>();
+            Map<UploadSchemaKey, SchemaBasedExportHandler> studyHealthDataHandlerMap = healthDataHandlersByStudy.get(
+                    oneStudyId);
+            if (studyHealthDataHandlerMap != null) {
+                for (Map.Entry<UploadSchemaKey, SchemaBasedExportHandler> healthDataHandlerEntry
+                        : studyHealthDataHandlerMap.entrySet()) {
+                    if (!uploadHealthDataTable(task, healthDataHandlerEntry.getKey(),
+                            healthDataHandlerEntry.getValue(), redriveTableSet)) {
+                        isStudyUploaded = false;
+                    }
                 }
+            }
 
-                if (isSynapseDown(originalEx)) {
-                    // Similarly, if Synapse is down, restart BridgeEX.
-                    throw new RestartBridgeExporterException("Restarting Bridge Exporter; last schema=" + schemaKey +
-                            ": " + originalEx.getMessage(), originalEx);
-                } else {
-                    LOG.error("Error uploading health data to Synapse for schema=" + schemaKey + ": " +
-                            originalEx.getMessage(), originalEx);
-                    if (isRetryable(originalEx)) {
-                        // Similarly, track which tables (schemas) to redrive.
-                        String studyId = schemaKey.getAppId();
-                        Set<UploadSchemaKey> redriveTableSet = redriveTablesByStudy.get(studyId);
-                        if (redriveTableSet == null) {
-                            redriveTableSet = new HashSet<>();
-                            redriveTablesByStudy.put(studyId, redriveTableSet);
-                        }
-                        redriveTableSet.add(schemaKey);
+            // Also, the meta table handlers.
+            Map<MetaTableType, SynapseExportHandler> metaTableHandlerMap = handlersByStudyAndType.get(oneStudyId);
+            if (metaTableHandlerMap != null) {
+                for (Map.Entry<MetaTableType, SynapseExportHandler> handlerEntry : metaTableHandlerMap.entrySet()) {
+                    MetaTableType type = handlerEntry.getKey();
+                    SynapseExportHandler handler = handlerEntry.getValue();
+                    try {
+                        handler.uploadToSynapseForTask(task);
+                    } catch (BridgeExporterException | IOException | RuntimeException | SynapseException ex) {
+                        // TODO: Improved error handling
+                        LOG.error("Error uploading " + type + " table to Synapse for study=" + oneStudyId + ": " +
+                                ex.getMessage(), ex);
+                        isStudyUploaded = false;
                     }
                 }
             }
-        }
-        if (!redriveTablesByStudy.isEmpty() && redriveCount < redriveMaxCount) {
-            for (Map.Entry<String, Set<UploadSchemaKey>> oneRedriveTableEntry : redriveTablesByStudy.entrySet()) {
-                String oneStudyId = oneRedriveTableEntry.getKey();
-                Set<UploadSchemaKey> redriveTableWhitelist = oneRedriveTableEntry.getValue();
-
-                BridgeExporterRequest.Builder redriveTableRequestBuilder = new BridgeExporterRequest.Builder()
-                        .copyOf(request).withTableWhitelist(redriveTableWhitelist).withRedriveCount(redriveCount + 1)
-                        .withUseLastExportTime(false);
-
-                // Create a copy of the original request, except add the table whitelist and update the tag. This will
-                // be used to trigger the redrive.
-                String redriveTag;
-                if (tag.startsWith(REDRIVE_TAG_PREFIX)) {
-                    redriveTag = tag;
-                } else {
-                    redriveTag = REDRIVE_TAG_PREFIX + tag;
-                }
-                redriveTableRequestBuilder.withTag(redriveTag);
 
-                // Since this is only a single study, set the studyWhitelist
-                redriveTableRequestBuilder.withStudyWhitelist(ImmutableSet.of(oneStudyId));
-
-                // If the original request contained endDateTime but not startDateTime (which is likely because of
-                // useLastExportTime), we need to get the startDateTime from the study map.
-                if (request.getEndDateTime() != null && request.getStartDateTime() == null) {
-                    DateTime startDateTime = startDateTimeByStudy.get(oneStudyId);
-                    redriveTableRequestBuilder.withStartDateTime(startDateTime);
+            if (task.getStudyIdSet().contains(oneStudyId)) {
+                // Write status table. Status tables are individual for each study.
+                try {
+                    synapseStatusTableHelper.initTableAndWriteStatus(task, oneStudyId);
+                } catch (BridgeExporterException | InterruptedException | RuntimeException | SynapseException ex) {
+                    // TODO: Improved error handling
+                    // Similarly, status table is also not critical, but we should think about how to improve this.
+                    LOG.error("Error writing to status table for study=" + oneStudyId + ": " + ex.getMessage(), ex);
+                    isStudyUploaded = false;
                 }
+            }
 
-                BridgeExporterRequest redriveRequest = redriveTableRequestBuilder.build();
-                LOG.info("Redriving tables: " + BridgeExporterUtil.COMMA_SPACE_JOINER.join(redriveTableWhitelist));
+            // Redrive this study's failed tables now, before we checkpoint the study. If a later study restarts the
+            // request, these tables would otherwise never be redriven.
+            if (!redriveTableSet.isEmpty() && !redriveTables(request, oneStudyId, redriveTableSet,
+                    startDateTimeByStudy)) {
+                isStudyUploaded = false;
+            }
 
-                try {
-                    sqsHelper.sendMessageAsJson(sqsQueueUrl, redriveRequest, REDRIVE_DELAY_SECONDS);
-                } catch (AmazonClientException | JsonProcessingException ex) {
-                    // log error, but move on
-                    LOG.error("Error redriving tables: " + ex.getMessage(), ex);
-                }
+            // This study is done. If anything failed (and wasn't redriven), leave the study out of the checkpoint, so
+            // a restarted request exports it again.
+            if (checkpoint != null && isStudyUploaded && task.getStudyIdSet().contains(oneStudyId)) {
+                checkpoint.markStudyCompleted(oneStudyId, request.getEndDateTime());
+                exportCheckpointHelper.saveCheckpoint(checkpoint);
             }
         }
 
-        // Also, the meta table handlers.
-        for (com.google.common.collect.Table.Cell<String, MetaTableType, SynapseExportHandler> handlerCell
-                : handlersByStudyAndType.cellSet()) {
-            String studyId = handlerCell.getRowKey();
-            MetaTableType type = handlerCell.getColumnKey();
-            SynapseExportHandler handler = handlerCell.getValue();
-            try {
-                //noinspection ConstantConditions
-                handler.uploadToSynapseForTask(task);
-            } catch (BridgeExporterException | IOException | RuntimeException | SynapseException ex) {
-                // TODO: Improved error handling
-                LOG.error("Error uploading " + type + " table to Synapse for study=" + studyId + ": " +
-                        ex.getMessage(), ex);
-            }
+        LOG.info("Done uploading to Synapse for request " + request.toString());
+    }
+
+    // Helper method which groups the task's health data handlers by study.
+    private static Map<String, Map<UploadSchemaKey, SchemaBasedExportHandler>> getHealthDataHandlersByStudy(
+            ExportTask task) {
+        Map<String, Map<UploadSchemaKey, SchemaBasedExportHandler>> handlersByStudy = new HashMap<>();
+        for (Map.Entry<UploadSchemaKey, SchemaBasedExportHandler> healthDataHandlerEntry
+                : task.getHandlerRegistry().getHealthDataHandlersBySchema().entrySet()) {
+            UploadSchemaKey schemaKey = healthDataHandlerEntry.getKey();
+            handlersByStudy.computeIfAbsent(schemaKey.getAppId(), key -> new HashMap<>()).put(schemaKey,
+                    healthDataHandlerEntry.getValue());
         }
+        return handlersByStudy;
+    }
 
-        // Write status table. Status tables are individual for each study.
-        for (String oneStudyId : task.getStudyIdSet()) {
-            try {
-                synapseStatusTableHelper.initTableAndWriteStatus(task, oneStudyId);
-            } catch (BridgeExporterException | InterruptedException | RuntimeException | SynapseException ex) {
-                // TODO: Improved error handling
-                // Similarly, status table is also not critical, but we should think about how to improve this.
-                LOG.error("Error writing to status table for study=" + oneStudyId + ": " + ex.getMessage(), ex);
+    // Helper method which sends a redrive request for the given study's tables. Returns true if the redrive was sent,
+    // false if the request is out of redrives or the redrive couldn't be sent.
+    private boolean redriveTables(BridgeExporterRequest request, String studyId,
+            Set<UploadSchemaKey> redriveTableWhitelist, Map<String, DateTime> startDateTimeByStudy) {
+        int redriveCount = request.getRedriveCount();
+        if (redriveCount >= redriveMaxCount) {
+            return false;
+        }
+
+        BridgeExporterRequest.Builder redriveTableRequestBuilder = new BridgeExporterRequest.Builder()
+                .copyOf(request).withTableWhitelist(redriveTableWhitelist).withRedriveCount(redriveCount + 1)
+                .withUseLastExportTime(false);
+
+        // Create a copy of the original request, except add the table whitelist and update the tag. This will be used
+        // to trigger the redrive.
+        String tag = request.getTag();
+        String redriveTag;
+        if (tag.startsWith(REDRIVE_TAG_PREFIX)) {
+            redriveTag = tag;
+        } else {
+            redriveTag = REDRIVE_TAG_PREFIX + tag;
+        }
+        redriveTableRequestBuilder.withTag(redriveTag);
+
+        // Since this is only a single study, set the studyWhitelist
+        redriveTableRequestBuilder.withStudyWhitelist(ImmutableSet.of(studyId));
+
+        // If the original request contained endDateTime but not startDateTime (which is likely because of
+        // useLastExportTime), we need to get the startDateTime from the study map.
+        if (request.getEndDateTime() != null && request.getStartDateTime() == null) {
+            DateTime startDateTime = startDateTimeByStudy.get(studyId);
+            redriveTableRequestBuilder.withStartDateTime(startDateTime);
+        }
+
+        BridgeExporterRequest redriveRequest = redriveTableRequestBuilder.build();
+        LOG.info("Redriving tables: " + BridgeExporterUtil.COMMA_SPACE_JOINER.join(redriveTableWhitelist));
+
+        try {
+            sqsHelper.sendMessageAsJson(sqsQueueUrl, redriveRequest, REDRIVE_DELAY_SECONDS);
+            return true;
+        } catch (AmazonClientException | JsonProcessingException ex) {
+            // log error, but move on
+            LOG.error("Error redriving tables: " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    // Helper method which uploads a single health data table to Synapse. On success, the table is checkpointed. On
+    // failure, the table is added to the redrive set if the failure is retryable. Returns true if the table was
+    // uploaded or is to be redriven, false if the table failed for good.
+    private boolean uploadHealthDataTable(ExportTask task, UploadSchemaKey schemaKey, SchemaBasedExportHandler handler,
+            Set<UploadSchemaKey> redriveTableSet) throws RestartBridgeExporterException {
+        try {
+            handler.uploadToSynapseForTask(task);
+        } catch (BridgeExporterException | IOException | RuntimeException | SynapseException ex) {
+            Throwable originalEx = ex;
+            if (originalEx instanceof BridgeExporterTsvException) {
+                // TSV exception is just a wrapper. Go down one level to get the real exception.
+                originalEx = originalEx.getCause();
+            }
+
+            if (isSynapseDown(originalEx)) {
+                // Similarly, if Synapse is down, restart BridgeEX.
+                throw new RestartBridgeExporterException("Restarting Bridge Exporter; last schema=" + schemaKey +
+                        ": " + originalEx.getMessage(), originalEx);
+            } else {
+                LOG.error("Error uploading health data to Synapse for schema=" + schemaKey + ": " +
+                        originalEx.getMessage(), originalEx);
+                if (isRetryable(originalEx)) {
+                    // Similarly, track which tables (schemas) to redrive.
+                    redriveTableSet.add(schemaKey);
+                    return true;
+                }
             }
+            return false;
         }
 
-        LOG.info("Done uploading to Synapse for request " + request.toString());
+        // Only checkpoint tables that this task actually wrote to.
+        ExportCheckpoint checkpoint = task.getCheckpoint();
+        if (checkpoint != null && task.getHealthDataTsvInfoForSchema(schemaKey) != null) {
+            checkpoint.addCompletedTable(schemaKey);
+            exportCheckpointHelper.saveCheckpoint(checkpoint);
+        }
+        return true;
     }
 
     // Advice from Synapse team is that 503 means Synapse is down (either for maintenance or otherwise). In this case,
@@ -711,6 +1176,21 @@ public class ExportWorkerManager {
         return t instanceof SynapseServiceUnavailable;
     }
 
+    // Returns true if the exception means a backend is throttling us (HTTP 429, or DDB throttling).
+    //
+    // Package-scoped for unit tests.
+    static boolean isThrottled(Throwable t) {
+        if (t instanceof BridgeSDKException) {
+            return ((BridgeSDKException) t).getStatusCode() == 429;
+        } else if (t instanceof UnknownSynapseServerException) {
+            return ((UnknownSynapseServerException) t).getStatusCode() == 429;
+        } else if (t instanceof AmazonServiceException) {
+            AmazonServiceException awsEx = (AmazonServiceException) t;
+            return awsEx.getStatusCode() == 429 || THROTTLING_ERROR_CODE_SET.contains(awsEx.getErrorCode());
+        }
+        return false;
+    }
+
     // For redrives, we need to know whether an exception is retryable or not. If it is, we can redrive it. If not, we
     // log the exception but otherwise swallow it.
     //
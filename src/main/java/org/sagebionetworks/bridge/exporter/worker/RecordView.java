@@ -0,0 +1,133 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.apache.commons.lang3.StringUtils;
+
+import org.sagebionetworks.bridge.exporter.handler.PhoneAppVersionInfo;
+import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+/**
+ * <p>
+ * Read-only view of a DDB health data record, which parses each JSON attribute and computes each derived value at
+ * most once. The same record goes through the worker manager and through several handlers (app version, health data,
+ * and sometimes the iOS survey handler), each of which used to re-parse the same attributes. The view is created once
+ * per record, and shared by every subtask for that record. See {@link ExportSubtask#getRecordView}.
+ * </p>
+ * <p>
+ * Values are computed lazily, the first time they're asked for, since not every handler needs every value. The view
+ * is thread-safe, since handlers for the same record run concurrently. If parsing fails, the failure isn't cached, and
+ * the next call will try again.
+ * </p>
+ */
+public class RecordView {
+    /* package-scoped for unit tests */
+    static final String KEY_DATA = "data";
+    static final String KEY_USER_METADATA = "userMetadata";
+
+    private final Item record;
+    private final Supplier<UploadSchemaKey> schemaKeySupplier;
+    private final Supplier<PhoneAppVersionInfo> phoneAppVersionInfoSupplier;
+    private final Supplier<JsonNode> recordDataSupplier;
+    private final Supplier<JsonNode> userMetadataSupplier;
+
+    /** Creates a view of the given DDB health data record. */
+    public RecordView(Item record) {
+        this.record = record;
+        this.schemaKeySupplier = Suppliers.memoize(() -> BridgeExporterUtil.getSchemaKeyForRecord(record));
+        this.phoneAppVersionInfoSupplier = Suppliers.memoize(() -> PhoneAppVersionInfo.fromRecord(record));
+        this.recordDataSupplier = Suppliers.memoize(() -> parseJsonAttribute(record, KEY_DATA));
+        this.userMetadataSupplier = Suppliers.memoize(() -> parseJsonAttribute(record, KEY_USER_METADATA));
+    }
+
+    // Helper method which parses a JSON attribute, or returns null if the attribute is blank. Supplier can't throw
+    // checked exceptions, so this wraps IOExceptions, which unwrapJsonSupplier() unwraps.
+    private static JsonNode parseJsonAttribute(Item record, String key) {
+        String jsonText = record.getString(key);
+        if (StringUtils.isBlank(jsonText)) {
+            return null;
+        }
+
+        try {
+            return DefaultObjectMapper.INSTANCE.readTree(jsonText);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // Helper method which gets the value from a supplier made with parseJsonAttribute(), unwrapping the IOException.
+    private static JsonNode unwrapJsonSupplier(Supplier<JsonNode> supplier) throws IOException {
+        try {
+            return supplier.get();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /** The underlying DDB health data record. */
+    public Item getRecord() {
+        return record;
+    }
+
+    /** Record ID. */
+    public String getRecordId() {
+        return record.getString(ExportSubtask.KEY_RECORD_ID);
+    }
+
+    /** The study that this record comes from. */
+    public String getStudyId() {
+        return record.getString("studyId");
+    }
+
+    /** Schema key for the record, or null if the record is schemaless. */
+    public UploadSchemaKey getSchemaKey() {
+        return schemaKeySupplier.get();
+    }
+
+    /** App version and phone info, from the record metadata. */
+    public PhoneAppVersionInfo getPhoneAppVersionInfo() {
+        return phoneAppVersionInfoSupplier.get();
+    }
+
+    /** True if the record has record data (the "data" attribute). */
+    public boolean hasRecordData() {
+        return StringUtils.isNotBlank(record.getString(KEY_DATA));
+    }
+
+    /**
+     * Raw JSON text of the record data, or null if the record has no record data. This is for callers that stream the
+     * record data instead of parsing the whole thing. See {@link #getRecordData}.
+     */
+    public String getRecordDataJsonText() {
+        return record.getString(KEY_DATA);
+    }
+
+    /**
+     * Record data, parsed into a JSON tree. Returns null if the record has no record data.
+     *
+     * @return record data, may be null
+     * @throws IOException
+     *         if the record data can't be parsed
+     */
+    public JsonNode getRecordData() throws IOException {
+        return unwrapJsonSupplier(recordDataSupplier);
+    }
+
+    /**
+     * User metadata, as a JSON node. Returns null if the record has no user metadata.
+     *
+     * @return user metadata, may be null
+     * @throws IOException
+     *         if the user metadata can't be parsed
+     */
+    public JsonNode getUserMetadata() throws IOException {
+        return unwrapJsonSupplier(userMetadataSupplier);
+    }
+}
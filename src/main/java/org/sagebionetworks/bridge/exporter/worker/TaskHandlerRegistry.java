@@ -0,0 +1,40 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.sagebionetworks.bridge.exporter.handler.IosSurveyExportHandler;
+import org.sagebionetworks.bridge.exporter.handler.SchemaBasedExportHandler;
+import org.sagebionetworks.bridge.exporter.handler.SynapseExportHandler;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+/**
+ * The export handlers for a single export task. Each task gets its own handlers, so that requests running at the same
+ * time don't share handler state, and so that end of stream only uploads the tables that its own task wrote to. Only
+ * the {@link ExportWorkerManager} creates and looks up handlers.
+ */
+class TaskHandlerRegistry {
+    // Handlers are created the first time they're needed, from the record loop and from worker threads (the iOS survey
+    // handler queues health data subtasks). computeIfAbsent() makes sure each handler is only created once, without a
+    // global lock.
+    private final ConcurrentMap<String, ConcurrentMap<MetaTableType, SynapseExportHandler>> handlersByStudyAndType =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<UploadSchemaKey, SchemaBasedExportHandler> healthDataHandlersBySchema =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, IosSurveyExportHandler> surveyHandlersByStudy = new ConcurrentHashMap<>();
+
+    /** Meta-table handlers, keyed by study ID, then by meta-table type. */
+    ConcurrentMap<String, ConcurrentMap<MetaTableType, SynapseExportHandler>> getHandlersByStudyAndType() {
+        return handlersByStudyAndType;
+    }
+
+    /** Health data handlers, keyed by schema. */
+    ConcurrentMap<UploadSchemaKey, SchemaBasedExportHandler> getHealthDataHandlersBySchema() {
+        return healthDataHandlersBySchema;
+    }
+
+    /** Legacy iOS survey handlers, keyed by study ID. */
+    ConcurrentMap<String, IosSurveyExportHandler> getSurveyHandlersByStudy() {
+        return surveyHandlersByStudy;
+    }
+}
@@ -4,12 +4,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import au.com.bytecode.opencsv.CSVWriter;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,18 +19,26 @@ import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterTsvException;
 
 /**
+ * <p>
  * Helper class that keeps track of a TSV file, the writer that writes to the file, and a method for tracking and
  * incrementing TSV line counts.
+ * </p>
+ * <p>
+ * TSVs are written by many workers at once. Rows are built outside the lock, then written, along with the row's record
+ * ID, under the TsvInfo's monitor.
+ * </p>
  */
 public class TsvInfo {
     private static final Logger LOG = LoggerFactory.getLogger(TsvInfo.class);
 
     private final List<String> columnNameList;
+    private final Map<String, Integer> columnIndexByName;
     private final File file;
     private final CSVWriter tsvWriter;
     private final Throwable initError;
-    private final List<String> recordIds = new ArrayList<>();
 
+    // Guarded by this.
+    private final List<String> recordIds = new ArrayList<>();
     private int lineCount = 0;
 
     /**
@@ -46,6 +56,14 @@ public class TsvInfo {
         this.file = file;
         this.initError = null;
 
+        // Index the columns once, so rows can be filled in by column index. Synapse column names are unique, but if
+        // there are duplicates anyway, the first one wins.
+        Map<String, Integer> columnIndexByName = new HashMap<>();
+        for (int i = 0; i < columnNameList.size(); i++) {
+            columnIndexByName.putIfAbsent(columnNameList.get(i), i);
+        }
+        this.columnIndexByName = ImmutableMap.copyOf(columnIndexByName);
+
         // Set CsvWriter with tab separator character.
         this.tsvWriter = new CSVWriter(writer, '\t');
 
@@ -61,6 +79,7 @@ public class TsvInfo {
      */
     public TsvInfo(Throwable t) {
         this.columnNameList = null;
+        this.columnIndexByName = null;
         this.file = null;
         this.tsvWriter = null;
         this.initError = t;
@@ -74,7 +93,10 @@ public class TsvInfo {
         }
     }
 
-    /** Flushes and closes the writer. This also checks the writer for errors and will throw if there are errors. */
+    /**
+     * Flushes and closes the writer. This also checks the writer for errors and will throw if there are errors. This
+     * must only be called after all rows have been written, that is, after all subtasks for the TSV have finished.
+     */
     public void flushAndCloseWriter() throws BridgeExporterException {
         checkInitAndThrow();
 
@@ -111,21 +133,63 @@ public class TsvInfo {
     }
 
     /** Number of lines written to TSV file. */
-    public int getLineCount() {
+    public synchronized int getLineCount() {
         return lineCount;
     }
 
     /**
      * helper method to add a record id into the list
      */
-    public void addRecordId(String recordId) {
+    public synchronized void addRecordId(String recordId) {
         this.recordIds.add(recordId);
     }
 
-    public List<String> getRecordIds() {
+    public synchronized List<String> getRecordIds() {
         return ImmutableList.copyOf(this.recordIds);
     }
 
+    /**
+     * Gets the index of the given column, for use with {@link TsvRow#setValue(int, String)}. Returns -1 if the column
+     * isn't in the TSV, or if the TSV info was not properly initialized.
+     */
+    public int getColumnIndex(String columnName) {
+        if (columnIndexByName == null) {
+            return -1;
+        }
+        Integer columnIndex = columnIndexByName.get(columnName);
+        return columnIndex != null ? columnIndex : -1;
+    }
+
+    /**
+     * Creates a new empty row for this TSV. See {@link TsvRow}.
+     *
+     * @return new row
+     * @throws BridgeExporterException
+     *         if the TSV info was not properly initialized
+     */
+    public TsvRow newRow() throws BridgeExporterException {
+        checkInitAndThrow();
+        return new TsvRow(columnIndexByName, columnNameList.size());
+    }
+
+    /**
+     * Writes the row to the TSV writer and adds the row's record ID to the record ID list. The row must have been
+     * created by this TSV's {@link #newRow}.
+     *
+     * @param row
+     *         row to write
+     * @param recordId
+     *         record ID for the row, may be null
+     * @throws BridgeExporterException
+     *         if the TSV info was not properly initialized
+     */
+    public void writeRow(TsvRow row, String recordId) throws BridgeExporterException {
+        checkInitAndThrow();
+
+        // The row is already in column order, so there's nothing to flatten.
+        writeRowValues(row.getRowValueArray(), recordId);
+    }
+
     /**
      * Writes the row to the TSV writer and increments the line count. Automatically appends a newline. If there are
      * missing or extra values, this method silently ignores them, for backwards compatibility with older formats.
@@ -135,17 +199,41 @@ public class TsvInfo {
      * @throws BridgeExporterException
      *         if the TSV info was not properly initialized
      */
-    public synchronized void writeRow(Map<String, String> rowValueMap) throws BridgeExporterException {
+    public void writeRow(Map<String, String> rowValueMap) throws BridgeExporterException {
+        writeRow(rowValueMap, null);
+    }
+
+    /**
+     * Writes the row to the TSV writer, the same as {@link #writeRow(Map)}, and adds the row's record ID to the record
+     * ID list.
+     *
+     * @param rowValueMap
+     *         Map representing the row. Keys are column names, values are column values.
+     * @param recordId
+     *         record ID for the row, may be null
+     * @throws BridgeExporterException
+     *         if the TSV info was not properly initialized
+     */
+    public void writeRow(Map<String, String> rowValueMap, String recordId) throws BridgeExporterException {
         checkInitAndThrow();
 
-        // Using the columnNameList, go through the row values in order and flatten them into an array.
+        // Using the columnNameList, go through the row values in order and flatten them into an array. This doesn't
+        // touch any shared state, so it happens outside the lock.
         int numColumns = columnNameList.size();
         String[] rowValueArray = new String[numColumns];
         for (int i = 0; i < numColumns; i++) {
             rowValueArray[i] = rowValueMap.get(columnNameList.get(i));
         }
 
+        writeRowValues(rowValueArray, recordId);
+    }
+
+    // Writes the row and adds the record ID, together, so the record ID list always matches the rows in the TSV.
+    private synchronized void writeRowValues(String[] rowValueArray, String recordId) {
         tsvWriter.writeNext(rowValueArray);
         lineCount++;
+        if (recordId != null) {
+            recordIds.add(recordId);
+        }
     }
 }
@@ -0,0 +1,68 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * A single row for a TSV, which export handlers fill in column by column. Values go straight into a slot array, using
+ * the TSV's column index, which is computed once when the TSV is initialized. This way, we don't build and merge a
+ * map for every row, and then look up every column again when the row is written.
+ * </p>
+ * <p>
+ * Values for columns that aren't in the TSV are silently ignored, for backwards compatibility with older formats. If
+ * a column is set more than once, the last value wins. Rows aren't thread-safe, and each row can only be written to
+ * the TSV once. To create a row, use {@link TsvInfo#newRow}.
+ * </p>
+ */
+public class TsvRow {
+    private final Map<String, Integer> columnIndexByName;
+    private final String[] rowValueArray;
+
+    /** Package-scoped constructor. Rows are created by TsvInfo, which owns the column index. */
+    TsvRow(Map<String, Integer> columnIndexByName, int numColumns) {
+        this.columnIndexByName = columnIndexByName;
+        this.rowValueArray = new String[numColumns];
+    }
+
+    /**
+     * Sets the value for the given column. If the column isn't in the TSV, this does nothing.
+     *
+     * @param columnName
+     *         name of the column to set
+     * @param value
+     *         column value, may be null
+     */
+    public void setValue(String columnName, String value) {
+        Integer columnIndex = columnIndexByName.get(columnName);
+        if (columnIndex != null) {
+            rowValueArray[columnIndex] = value;
+        }
+    }
+
+    /**
+     * Sets the value for the column at the given index, as returned by {@link TsvInfo#getColumnIndex}. If the index is
+     * negative (the column isn't in the TSV), this does nothing. This skips the column name lookup, for callers that
+     * resolve their columns ahead of time.
+     *
+     * @param columnIndex
+     *         index of the column to set
+     * @param value
+     *         column value, may be null
+     */
+    public void setValue(int columnIndex, String value) {
+        if (columnIndex >= 0) {
+            rowValueArray[columnIndex] = value;
+        }
+    }
+
+    /** Gets the value for the given column, or null if it hasn't been set or if the column isn't in the TSV. */
+    public String getValue(String columnName) {
+        Integer columnIndex = columnIndexByName.get(columnName);
+        return columnIndex != null ? rowValueArray[columnIndex] : null;
+    }
+
+    /** Row values, in column order. Package-scoped, since only TsvInfo uses this. */
+    String[] getRowValueArray() {
+        return rowValueArray;
+    }
+}
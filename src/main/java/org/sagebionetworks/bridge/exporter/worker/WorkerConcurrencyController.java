@@ -0,0 +1,227 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Resource;
+
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.record.RecordReadGovernor;
+import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
+
+/**
+ * <p>
+ * Adjusts the number of threads in the export worker pool at runtime, using additive increase, multiplicative
+ * decrease (AIMD). Each worker hands its blocking I/O to the I/O pool, but then waits for that I/O before it takes the
+ * next subtask, so the number of workers is what limits how many subtasks are in progress, and how hard we push on
+ * our backends. The I/O pool is sized well above the worker pool, so it isn't the limit.
+ * </p>
+ * <p>
+ * Every adjustment interval, this looks at the subtasks finished per second, and at signs of congestion: throttled
+ * calls (429s and DDB throttling) and time spent waiting on the Synapse rate limiter. If there's congestion, the
+ * limit drops by a fraction. Otherwise, if throughput went up since the last interval, the limit goes up by one
+ * thread, to see if it keeps going up. If throughput is flat, the limit stays where it is.
+ * </p>
+ * <p>
+ * This only resizes fixed size pools.
+ * </p>
+ */
+@Component
+public class WorkerConcurrencyController {
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerConcurrencyController.class);
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_AUTOTUNE_ENABLED = "threadpool.worker.autotune.enabled";
+    static final String CONFIG_KEY_AUTOTUNE_INTERVAL_MILLIS = "threadpool.worker.autotune.interval.millis";
+    static final String CONFIG_KEY_MAX_COUNT = "threadpool.worker.max.count";
+    static final String CONFIG_KEY_MIN_COUNT = "threadpool.worker.min.count";
+    static final int DEFAULT_AUTOTUNE_INTERVAL_MILLIS = 10000;
+    static final String METRIC_CONCURRENCY_LIMIT = "cpuPool.concurrencyLimit";
+    static final String METRIC_NUM_CONCURRENCY_DECREASES = "cpuPool.numConcurrencyDecreases";
+    static final String METRIC_NUM_CONCURRENCY_INCREASES = "cpuPool.numConcurrencyIncreases";
+
+    // On congestion, the limit is multiplied by this factor.
+    static final double DECREASE_FACTOR = 0.75;
+
+    // Time spent waiting on the Synapse rate limiter in an interval, summed across threads, counts as congestion if
+    // it's at least this fraction of the interval. That is, on average, at least half a thread spent the whole
+    // interval waiting for a rate limit permit instead of doing work. This is an absolute threshold, so a steady wait
+    // counts just as much as a growing one.
+    static final double MAX_RATE_LIMIT_WAIT_FRACTION = 0.5;
+
+    // Throughput has to go up by more than this fraction to count as an improvement.
+    static final double THROUGHPUT_TOLERANCE = 0.05;
+
+    // config attributes
+    private boolean enabled = false;
+    private long intervalMillis = DEFAULT_AUTOTUNE_INTERVAL_MILLIS;
+    private int maxCount;
+    private int minCount;
+
+    // Spring helpers
+    private ExecutorService workerExecutor;
+    private RecordReadGovernor recordReadGovernor;
+    private SynapseHelper synapseHelper;
+
+    // state, guarded by this
+    private int concurrencyLimit;
+    private final Stopwatch intervalStopwatch = Stopwatch.createUnstarted();
+    private int numSubtasksThisInterval = 0;
+    private int numThrottlesThisInterval = 0;
+    private long lastNumDdbThrottles = 0;
+    private long lastRateLimitWaitMillis = 0;
+    private double lastThroughput = 0.0;
+
+    /** Config, used to turn on auto-tuning, and to get the bounds and the adjustment interval. */
+    @Autowired
+    public final void setConfig(Config config) {
+        this.enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_AUTOTUNE_ENABLED));
+        this.minCount = Math.max(1, config.getInt(CONFIG_KEY_MIN_COUNT));
+        this.maxCount = Math.max(minCount, config.getInt(CONFIG_KEY_MAX_COUNT));
+
+        int intervalMillis = config.getInt(CONFIG_KEY_AUTOTUNE_INTERVAL_MILLIS);
+        this.intervalMillis = intervalMillis > 0 ? intervalMillis : DEFAULT_AUTOTUNE_INTERVAL_MILLIS;
+    }
+
+    /** Export worker pool, which this resizes. The pool's initial size is the initial limit. */
+    @Resource(name = "workerExecutorService")
+    public final void setWorkerExecutor(ExecutorService workerExecutor) {
+        this.workerExecutor = workerExecutor;
+        if (workerExecutor instanceof ThreadPoolExecutor) {
+            this.concurrencyLimit = ((ThreadPoolExecutor) workerExecutor).getMaximumPoolSize();
+        }
+    }
+
+    /** DDB read governor, used to find out if DDB is throttling us. */
+    @Autowired
+    public final void setRecordReadGovernor(RecordReadGovernor recordReadGovernor) {
+        this.recordReadGovernor = recordReadGovernor;
+    }
+
+    /** Synapse helper, used to find out how long we're waiting on the Synapse rate limiter. */
+    @Autowired
+    public final void setSynapseHelper(SynapseHelper synapseHelper) {
+        this.synapseHelper = synapseHelper;
+    }
+
+    /** Current limit on the number of worker threads. */
+    public synchronized int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Called when a subtask finishes. Counts towards throughput, and adjusts the limit if the interval is over. This
+     * also exposes the current limit in the request's metrics.
+     *
+     * @param metrics
+     *         metrics object for the request that the subtask belongs to
+     */
+    public void recordSubtaskDone(Metrics metrics) {
+        if (!isResizable()) {
+            return;
+        }
+
+        int limit;
+        synchronized (this) {
+            numSubtasksThisInterval++;
+            if (!intervalStopwatch.isRunning()) {
+                intervalStopwatch.start();
+            } else {
+                long elapsedMillis = intervalStopwatch.elapsed(TimeUnit.MILLISECONDS);
+                if (elapsedMillis >= intervalMillis) {
+                    adjust(metrics, elapsedMillis);
+                    intervalStopwatch.reset().start();
+                }
+            }
+            limit = concurrencyLimit;
+        }
+        metrics.setGauge(METRIC_CONCURRENCY_LIMIT, limit);
+    }
+
+    /**
+     * Called when a backend call was throttled (for example, a 429). This counts as congestion in the current
+     * interval.
+     */
+    public synchronized void recordThrottle() {
+        numThrottlesThisInterval++;
+    }
+
+    /**
+     * Looks at the last interval and adjusts the limit. Package-scoped so unit tests can control the interval length.
+     *
+     * @param metrics
+     *         metrics object for the request that triggered the adjustment
+     * @param elapsedMillis
+     *         length of the interval that just ended
+     */
+    synchronized void adjust(Metrics metrics, long elapsedMillis) {
+        // Gather signals for this interval.
+        double throughput = numSubtasksThisInterval * 1000.0 / Math.max(1, elapsedMillis);
+
+        long numDdbThrottles = recordReadGovernor.getNumThrottles();
+        long numThrottles = numThrottlesThisInterval + (numDdbThrottles - lastNumDdbThrottles);
+
+        long rateLimitWaitMillis = synapseHelper.getRateLimitWaitMillis();
+        long intervalRateLimitWaitMillis = rateLimitWaitMillis - lastRateLimitWaitMillis;
+        boolean isRateLimitWaitHigh = intervalRateLimitWaitMillis >= elapsedMillis * MAX_RATE_LIMIT_WAIT_FRACTION;
+
+        // Adjust the limit.
+        int oldLimit = concurrencyLimit;
+        String reason = null;
+        if (numThrottles > 0 || isRateLimitWaitHigh) {
+            concurrencyLimit = Math.max(minCount, Math.min(concurrencyLimit - 1,
+                    (int) (concurrencyLimit * DECREASE_FACTOR)));
+            reason = numThrottles + " throttled calls, " + intervalRateLimitWaitMillis +
+                    " ms waiting on Synapse rate limit";
+            if (concurrencyLimit != oldLimit) {
+                metrics.incrementCounter(METRIC_NUM_CONCURRENCY_DECREASES);
+            }
+        } else if (throughput > lastThroughput * (1 + THROUGHPUT_TOLERANCE)) {
+            concurrencyLimit = Math.min(maxCount, concurrencyLimit + 1);
+            reason = String.format("throughput up from %.1f to %.1f subtasks/sec", lastThroughput, throughput);
+            if (concurrencyLimit != oldLimit) {
+                metrics.incrementCounter(METRIC_NUM_CONCURRENCY_INCREASES);
+            }
+        }
+
+        if (concurrencyLimit != oldLimit) {
+            resizePool(oldLimit, concurrencyLimit);
+            LOG.info("Changed worker pool limit from " + oldLimit + " to " + concurrencyLimit + ": " + reason);
+        }
+
+        // Reset for the next interval.
+        numSubtasksThisInterval = 0;
+        numThrottlesThisInterval = 0;
+        lastNumDdbThrottles = numDdbThrottles;
+        lastRateLimitWaitMillis = rateLimitWaitMillis;
+        lastThroughput = throughput;
+    }
+
+    // Only fixed size pools can be resized.
+    private boolean isResizable() {
+        if (!enabled || !(workerExecutor instanceof ThreadPoolExecutor)) {
+            return false;
+        }
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) workerExecutor;
+        return threadPoolExecutor.getCorePoolSize() == threadPoolExecutor.getMaximumPoolSize();
+    }
+
+    // Helper method which resizes the pool. Core size can't be more than max size, so the order matters.
+    private void resizePool(int oldLimit, int newLimit) {
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) workerExecutor;
+        if (newLimit > oldLimit) {
+            threadPoolExecutor.setMaximumPoolSize(newLimit);
+            threadPoolExecutor.setCorePoolSize(newLimit);
+        } else {
+            threadPoolExecutor.setCorePoolSize(newLimit);
+            threadPoolExecutor.setMaximumPoolSize(newLimit);
+        }
+    }
+}
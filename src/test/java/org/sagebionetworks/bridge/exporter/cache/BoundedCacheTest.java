@@ -0,0 +1,133 @@
+package org.sagebionetworks.bridge.exporter.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheStats;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class BoundedCacheTest {
+    private static final String CACHE_NAME = "test-cache";
+
+    // Ticker that only moves when we tell it to.
+    private static class TestTicker extends Ticker {
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+    }
+
+    private AtomicInteger loadCount;
+    private TestTicker ticker;
+
+    @BeforeMethod
+    public void before() {
+        loadCount = new AtomicInteger();
+        ticker = new TestTicker();
+    }
+
+    @Test
+    public void hitAndMiss() {
+        BoundedCache<String, String> cache = new BoundedCache<>(CACHE_NAME, 10, 5, ticker);
+        assertEquals(cache.getName(), CACHE_NAME);
+        assertEquals(cache.getMaxSize(), 10);
+        assertEquals(cache.getTtlMinutes(), 5);
+
+        assertEquals(cache.get("foo", () -> load("foo-value")), "foo-value");
+        assertEquals(cache.get("foo", () -> load("other-value")), "foo-value");
+        assertEquals(loadCount.get(), 1);
+
+        CacheStats stats = cache.getStats();
+        assertEquals(stats.hitCount(), 1);
+        assertEquals(stats.missCount(), 1);
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void nullIsCached() {
+        BoundedCache<String, String> cache = new BoundedCache<>(CACHE_NAME, 10, 5, ticker);
+        assertNull(cache.get("foo", () -> load(null)));
+        assertNull(cache.get("foo", () -> load("foo-value")));
+        assertEquals(loadCount.get(), 1);
+    }
+
+    @Test
+    public void expiresAfterTtl() {
+        BoundedCache<String, String> cache = new BoundedCache<>(CACHE_NAME, 10, 5, ticker);
+        cache.get("foo", () -> load("foo-value"));
+
+        ticker.advance(4, TimeUnit.MINUTES);
+        assertEquals(cache.get("foo", () -> load("new-value")), "foo-value");
+
+        ticker.advance(1, TimeUnit.MINUTES);
+        assertEquals(cache.get("foo", () -> load("new-value")), "new-value");
+        assertEquals(loadCount.get(), 2);
+    }
+
+    @Test
+    public void zeroTtlNeverExpires() {
+        BoundedCache<String, String> cache = new BoundedCache<>(CACHE_NAME, 10, 0, ticker);
+        cache.get("foo", () -> load("foo-value"));
+
+        ticker.advance(365, TimeUnit.DAYS);
+        assertEquals(cache.get("foo", () -> load("new-value")), "foo-value");
+        assertEquals(loadCount.get(), 1);
+    }
+
+    @Test
+    public void evictsWhenFull() {
+        BoundedCache<Integer, String> cache = new BoundedCache<>(CACHE_NAME, 5, 0, ticker);
+        for (int i = 0; i < 20; i++) {
+            int key = i;
+            cache.get(key, () -> load("value-" + key));
+        }
+
+        assertTrue(cache.size() <= 5);
+        assertTrue(cache.getStats().evictionCount() >= 15);
+    }
+
+    @Test
+    public void exceptionsAreNotCached() {
+        BoundedCache<String, String> cache = new BoundedCache<>(CACHE_NAME, 10, 5, ticker);
+        try {
+            cache.get("foo", () -> {
+                throw new IllegalArgumentException("test exception");
+            });
+            fail("expected exception");
+        } catch (IllegalArgumentException ex) {
+            assertEquals(ex.getMessage(), "test exception");
+        }
+
+        assertEquals(cache.get("foo", () -> load("foo-value")), "foo-value");
+        assertEquals(loadCount.get(), 1);
+    }
+
+    @Test
+    public void invalidateAll() {
+        BoundedCache<String, String> cache = new BoundedCache<>(CACHE_NAME, 10, 5, ticker);
+        cache.get("foo", () -> load("foo-value"));
+        cache.invalidateAll();
+        assertEquals(cache.size(), 0);
+
+        cache.get("foo", () -> load("foo-value"));
+        assertEquals(loadCount.get(), 2);
+    }
+
+    private String load(String value) {
+        loadCount.incrementAndGet();
+        return value;
+    }
+}
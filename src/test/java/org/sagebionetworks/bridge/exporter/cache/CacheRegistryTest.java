@@ -0,0 +1,114 @@
+package org.sagebionetworks.bridge.exporter.cache;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.config.PropertiesConfig;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+public class CacheRegistryTest {
+    @Test
+    public void defaults() {
+        CacheRegistry registry = new CacheRegistry();
+        registry.setConfig(mock(Config.class));
+
+        BoundedCache<String, String> cache = registry.newCache("test", 100, 5);
+        assertEquals(cache.getName(), "test");
+        assertEquals(cache.getMaxSize(), 100);
+        assertEquals(cache.getTtlMinutes(), 5);
+    }
+
+    @Test
+    public void configOverridesDefaults() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get("cache.test.max.size")).thenReturn("2000000");
+        when(mockConfig.get("cache.test.ttl.minutes")).thenReturn("30");
+
+        CacheRegistry registry = new CacheRegistry();
+        registry.setConfig(mockConfig);
+
+        BoundedCache<String, String> cache = registry.newCache("test", 100, 5);
+        assertEquals(cache.getMaxSize(), 2000000);
+        assertEquals(cache.getTtlMinutes(), 30);
+    }
+
+    @Test
+    public void nonPositiveConfigUsesDefaults() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get("cache.test.max.size")).thenReturn("0");
+        when(mockConfig.get("cache.test.ttl.minutes")).thenReturn("-1");
+
+        CacheRegistry registry = new CacheRegistry();
+        registry.setConfig(mockConfig);
+
+        BoundedCache<String, String> cache = registry.newCache("test", 100, 5);
+        assertEquals(cache.getMaxSize(), 100);
+        assertEquals(cache.getTtlMinutes(), 5);
+    }
+
+    @Test
+    public void realConfigWithoutTtlKeys() throws Exception {
+        // The real config only sets the max size for our caches, not the TTL. Use a real PropertiesConfig, since that
+        // throws for missing keys in getInt(), unlike a mock.
+        Path configPath = Paths.get(getClass().getClassLoader().getResource("BridgeExporter.conf").toURI());
+        CacheRegistry registry = new CacheRegistry();
+        registry.setConfig(new PropertiesConfig(configPath));
+
+        BoundedCache<String, String> schemaCache = registry.newCache("bridge.schema", 100, 5);
+        assertEquals(schemaCache.getMaxSize(), 10000);
+        assertEquals(schemaCache.getTtlMinutes(), 5);
+
+        BoundedCache<String, String> studyCache = registry.newCache("bridge.study", 100, 5);
+        assertEquals(studyCache.getMaxSize(), 1000);
+        assertEquals(studyCache.getTtlMinutes(), 5);
+
+        BoundedCache<String, String> studyInfoCache = registry.newCache("ddb.study.info", 100, 5);
+        assertEquals(studyInfoCache.getMaxSize(), 1000);
+        assertEquals(studyInfoCache.getTtlMinutes(), 5);
+
+        BoundedCache<String, String> columnListCache = registry.newCache("synapse.column.list", 100, 0);
+        assertEquals(columnListCache.getMaxSize(), 1000);
+        assertEquals(columnListCache.getTtlMinutes(), 0);
+
+        // Caches that aren't in config at all get the defaults.
+        BoundedCache<String, String> unconfiguredCache = registry.newCache("not.in.config", 100, 5);
+        assertEquals(unconfiguredCache.getMaxSize(), 100);
+        assertEquals(unconfiguredCache.getTtlMinutes(), 5);
+    }
+
+    @Test
+    public void captureMetrics() {
+        CacheRegistry registry = new CacheRegistry();
+        registry.setConfig(mock(Config.class));
+
+        BoundedCache<String, String> fooCache = registry.newCache("foo", 1, 0);
+        fooCache.get("a", () -> "a-value");
+        fooCache.get("a", () -> "a-value");
+        fooCache.get("b", () -> "b-value");
+
+        BoundedCache<String, String> barCache = registry.newCache("bar", 10, 0);
+        barCache.get("a", () -> "a-value");
+
+        Metrics metrics = new Metrics();
+        registry.captureMetrics(metrics);
+
+        Map<String, Long> gaugeMap = metrics.getGaugeMap();
+        assertEquals(gaugeMap.get("cacheSize[foo]").longValue(), 1);
+        assertEquals(gaugeMap.get("cacheHits[foo]").longValue(), 1);
+        assertEquals(gaugeMap.get("cacheMisses[foo]").longValue(), 2);
+        assertEquals(gaugeMap.get("cacheEvictions[foo]").longValue(), 1);
+
+        assertEquals(gaugeMap.get("cacheSize[bar]").longValue(), 1);
+        assertEquals(gaugeMap.get("cacheHits[bar]").longValue(), 0);
+        assertEquals(gaugeMap.get("cacheMisses[bar]").longValue(), 1);
+        assertEquals(gaugeMap.get("cacheEvictions[bar]").longValue(), 0);
+    }
+}
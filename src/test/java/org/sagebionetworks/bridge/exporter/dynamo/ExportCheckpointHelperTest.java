@@ -0,0 +1,165 @@
+package org.sagebionetworks.bridge.exporter.dynamo;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+public class ExportCheckpointHelperTest {
+    private static final DateTime END_DATE_TIME = DateTime.parse("2016-05-09T23:37:44.326-0700");
+    private static final String TAG = "test-tag";
+    private static final BridgeExporterRequest REQUEST = new BridgeExporterRequest.Builder()
+            .withEndDateTime(END_DATE_TIME).withTag(TAG).withUseLastExportTime(true).build();
+    private static final BridgeExporterRequest UNTAGGED_REQUEST_A = new BridgeExporterRequest.Builder()
+            .withEndDateTime(END_DATE_TIME).withUseLastExportTime(true).build();
+    private static final BridgeExporterRequest UNTAGGED_REQUEST_B = new BridgeExporterRequest.Builder()
+            .withEndDateTime(END_DATE_TIME.plusDays(1)).withUseLastExportTime(true).build();
+    private static final UploadSchemaKey SCHEMA_KEY = new UploadSchemaKey.Builder().withAppId("test-study")
+            .withSchemaId("test-schema").withRevision(1).build();
+
+    private Table mockCheckpointTable;
+    private ExportCheckpointHelper helper;
+
+    @BeforeMethod
+    public void before() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(ExportCheckpointHelper.CONFIG_KEY_CHECKPOINT_ENABLED)).thenReturn("true");
+
+        mockCheckpointTable = mock(Table.class);
+
+        helper = new ExportCheckpointHelper();
+        helper.setConfig(mockConfig);
+        helper.setDdbExportCheckpointTable(mockCheckpointTable);
+    }
+
+    @Test
+    public void disabled() {
+        helper.setConfig(mock(Config.class));
+        assertNull(helper.loadCheckpoint(REQUEST));
+        verifyZeroInteractions(mockCheckpointTable);
+    }
+
+    @Test
+    public void noSavedCheckpoint() {
+        ExportCheckpoint checkpoint = helper.loadCheckpoint(REQUEST);
+        assertEquals(checkpoint.getTag(), TAG);
+        assertTrue(checkpoint.isEmpty());
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        // Save a checkpoint with one table and one study.
+        ExportCheckpoint checkpoint = helper.loadCheckpoint(REQUEST);
+        checkpoint.addCompletedTable(SCHEMA_KEY);
+        checkpoint.markStudyCompleted("test-study", END_DATE_TIME);
+        helper.saveCheckpoint(checkpoint);
+
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockCheckpointTable).putItem(itemCaptor.capture());
+        Item item = itemCaptor.getValue();
+        String requestJson = DefaultObjectMapper.INSTANCE.writeValueAsString(REQUEST);
+        String checkpointKey = ExportCheckpointHelper.getCheckpointKey(TAG, requestJson);
+        assertTrue(checkpointKey.startsWith(TAG + ":"));
+        assertEquals(item.getString(ExportCheckpointHelper.KEY_TAG), checkpointKey);
+        assertEquals(item.getString(ExportCheckpointHelper.KEY_REQUEST), requestJson);
+        assertTrue(item.getLong(ExportCheckpointHelper.KEY_EXPIRES_ON) * 1000 > DateTime.now().getMillis());
+
+        // Load it back.
+        when(mockCheckpointTable.getItem(ExportCheckpointHelper.KEY_TAG, checkpointKey)).thenReturn(item);
+        ExportCheckpoint loaded = helper.loadCheckpoint(REQUEST);
+        assertFalse(loaded.isEmpty());
+        assertTrue(loaded.isTableCompleted(SCHEMA_KEY));
+        assertEquals(loaded.getUploadedOnWatermarkByStudy(), ImmutableMap.of("test-study",
+                END_DATE_TIME.getMillis()));
+    }
+
+    @Test
+    public void saveEmptyCheckpoint() {
+        // DDB doesn't allow empty sets, so there's no completed tables attribute.
+        helper.saveCheckpoint(new ExportCheckpoint(TAG, "dummy-request-json", null, null));
+
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockCheckpointTable).putItem(itemCaptor.capture());
+        assertFalse(itemCaptor.getValue().hasAttribute(ExportCheckpointHelper.KEY_COMPLETED_TABLES));
+    }
+
+    @Test
+    public void differentRequestSameKey() throws Exception {
+        // This would only happen on a hash collision.
+        String checkpointKey = ExportCheckpointHelper.getCheckpointKey(TAG, DefaultObjectMapper.INSTANCE
+                .writeValueAsString(REQUEST));
+        Item item = new Item().withString(ExportCheckpointHelper.KEY_TAG, checkpointKey)
+                .withString(ExportCheckpointHelper.KEY_REQUEST, "different-request-json")
+                .withStringSet(ExportCheckpointHelper.KEY_COMPLETED_TABLES, ImmutableSet.of(SCHEMA_KEY.toString()));
+        when(mockCheckpointTable.getItem(ExportCheckpointHelper.KEY_TAG, checkpointKey)).thenReturn(item);
+
+        ExportCheckpoint checkpoint = helper.loadCheckpoint(REQUEST);
+        assertTrue(checkpoint.isEmpty());
+    }
+
+    @Test
+    public void ddbErrorsAreSwallowed() {
+        when(mockCheckpointTable.getItem(anyString(), any())).thenThrow(new IllegalStateException(
+                "test exception"));
+        when(mockCheckpointTable.putItem(any(Item.class))).thenThrow(new IllegalStateException("test exception"));
+        when(mockCheckpointTable.deleteItem(anyString(), any())).thenThrow(new IllegalStateException(
+                "test exception"));
+
+        ExportCheckpoint checkpoint = helper.loadCheckpoint(REQUEST);
+        assertTrue(checkpoint.isEmpty());
+        helper.saveCheckpoint(checkpoint);
+        helper.deleteCheckpoint(checkpoint);
+    }
+
+    @Test
+    public void delete() {
+        helper.deleteCheckpoint(new ExportCheckpoint(TAG, "dummy-request-json", null, null));
+        verify(mockCheckpointTable).deleteItem(ExportCheckpointHelper.KEY_TAG, ExportCheckpointHelper
+                .getCheckpointKey(TAG, "dummy-request-json"));
+    }
+
+    @Test
+    public void untaggedRequestsDontShareCheckpoints() {
+        // Both requests have the default tag. Each one saves and deletes its own checkpoint.
+        ExportCheckpoint checkpointA = helper.loadCheckpoint(UNTAGGED_REQUEST_A);
+        ExportCheckpoint checkpointB = helper.loadCheckpoint(UNTAGGED_REQUEST_B);
+        assertEquals(checkpointA.getTag(), checkpointB.getTag());
+
+        helper.saveCheckpoint(checkpointA);
+        helper.saveCheckpoint(checkpointB);
+        helper.deleteCheckpoint(checkpointA);
+
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockCheckpointTable, times(2)).putItem(itemCaptor.capture());
+        String keyA = itemCaptor.getAllValues().get(0).getString(ExportCheckpointHelper.KEY_TAG);
+        String keyB = itemCaptor.getAllValues().get(1).getString(ExportCheckpointHelper.KEY_TAG);
+        assertNotEquals(keyA, keyB);
+
+        // Request A's delete only deletes request A's checkpoint.
+        verify(mockCheckpointTable).deleteItem(ExportCheckpointHelper.KEY_TAG, keyA);
+        verify(mockCheckpointTable, never()).deleteItem(ExportCheckpointHelper.KEY_TAG, keyB);
+    }
+}
@@ -0,0 +1,73 @@
+package org.sagebionetworks.bridge.exporter.dynamo;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+public class ExportCheckpointTest {
+    private static final DateTime END_DATE_TIME = DateTime.parse("2016-05-09T23:37:44.326-0700");
+    private static final UploadSchemaKey SCHEMA_KEY = new UploadSchemaKey.Builder().withAppId("test-study")
+            .withSchemaId("test-schema").withRevision(1).build();
+
+    @Test
+    public void empty() {
+        ExportCheckpoint checkpoint = new ExportCheckpoint("test-tag", "dummy-request-json", null, null);
+        assertEquals(checkpoint.getTag(), "test-tag");
+        assertEquals(checkpoint.getRequestJson(), "dummy-request-json");
+        assertTrue(checkpoint.isEmpty());
+        assertTrue(checkpoint.getCompletedTableSet().isEmpty());
+        assertTrue(checkpoint.getUploadedOnWatermarkByStudy().isEmpty());
+        assertFalse(checkpoint.isTableCompleted(SCHEMA_KEY));
+        assertNull(checkpoint.getUploadedOnWatermarkForStudy("test-study"));
+        assertFalse(checkpoint.isRecordCompleted("test-study", 0));
+    }
+
+    @Test
+    public void completedTable() {
+        ExportCheckpoint checkpoint = new ExportCheckpoint("test-tag", "dummy-request-json", null, null);
+        checkpoint.addCompletedTable(SCHEMA_KEY);
+        assertFalse(checkpoint.isEmpty());
+        assertTrue(checkpoint.isTableCompleted(SCHEMA_KEY));
+        assertEquals(checkpoint.getCompletedTableSet(), ImmutableSet.of(SCHEMA_KEY.toString()));
+    }
+
+    @Test
+    public void watermarkFromEndDate() {
+        ExportCheckpoint checkpoint = new ExportCheckpoint("test-tag", "dummy-request-json", null, null);
+        checkpoint.markStudyCompleted("test-study", END_DATE_TIME);
+
+        long endMillis = END_DATE_TIME.getMillis();
+        assertEquals(checkpoint.getUploadedOnWatermarkForStudy("test-study").longValue(), endMillis);
+        assertTrue(checkpoint.isRecordCompleted("test-study", endMillis - 1));
+        assertFalse(checkpoint.isRecordCompleted("test-study", endMillis));
+        assertFalse(checkpoint.isRecordCompleted("other-study", endMillis - 1));
+    }
+
+    @Test
+    public void watermarkFromObservedRecords() {
+        // No end date, like with record override requests.
+        ExportCheckpoint checkpoint = new ExportCheckpoint("test-tag", "dummy-request-json", null,
+                ImmutableMap.of("old-study", 1000L));
+        checkpoint.observeRecord("test-study", 3000L);
+        checkpoint.observeRecord("test-study", 5000L);
+        checkpoint.observeRecord("test-study", 4000L);
+
+        checkpoint.markStudyCompleted("test-study", null);
+        assertEquals(checkpoint.getUploadedOnWatermarkByStudy(), ImmutableMap.of("old-study", 1000L, "test-study",
+                5001L));
+
+        // No records seen and no end date, so no watermark. Existing watermark is kept.
+        checkpoint.markStudyCompleted("old-study", null);
+        checkpoint.markStudyCompleted("empty-study", null);
+        assertEquals(checkpoint.getUploadedOnWatermarkByStudy(), ImmutableMap.of("old-study", 1000L, "test-study",
+                5001L));
+    }
+}
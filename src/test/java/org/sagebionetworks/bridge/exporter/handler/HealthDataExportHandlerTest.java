@@ -12,11 +12,21 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -26,6 +36,7 @@ import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
 import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
 import org.sagebionetworks.repo.model.table.ColumnModel;
@@ -64,6 +75,7 @@ public class HealthDataExportHandlerTest {
     private static final String FIELD_NAME = "foo-field";
     private static final String FIELD_NAME_TIMEZONE = FIELD_NAME + ".timezone";
     private static final String FIELD_VALUE = "asdf jkl;";
+    private static final String IO_THREAD_NAME = "test-io-thread";
     private static final String RAW_DATA_ATTACHMENT_ID = "my-raw.zip";
     private static final String RAW_DATA_FILEHANDLE_ID = "my-raw-data-filehandle";
 
@@ -113,28 +125,28 @@ public class HealthDataExportHandlerTest {
     // branch coverage
     @Test
     public void nullTimestamp() {
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeTimestamp("dummy", FIELD_NAME, null);
+        Map<String, String> rowValueMap = serializeTimestamp("dummy", FIELD_NAME, null);
         assertTrue(rowValueMap.isEmpty());
     }
 
     // branch coverage
     @Test
     public void jsonNullTimestamp() {
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeTimestamp("dummy", FIELD_NAME,
+        Map<String, String> rowValueMap = serializeTimestamp("dummy", FIELD_NAME,
                 NullNode.instance);
         assertTrue(rowValueMap.isEmpty());
     }
 
     @Test
     public void invalidTypeTimestamp() {
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeTimestamp("dummy", FIELD_NAME,
+        Map<String, String> rowValueMap = serializeTimestamp("dummy", FIELD_NAME,
                 BooleanNode.TRUE);
         assertTrue(rowValueMap.isEmpty());
     }
 
     @Test
     public void malformedTimestampString() {
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeTimestamp("dummy", FIELD_NAME,
+        Map<String, String> rowValueMap = serializeTimestamp("dummy", FIELD_NAME,
                 new TextNode("Thursday June 9th 2016 @ 4:10pm"));
         assertTrue(rowValueMap.isEmpty());
     }
@@ -154,7 +166,7 @@ public class HealthDataExportHandlerTest {
     public void timestampString(String timestampString, String expectedTimezoneString) {
         long expectedMillis = DateTime.parse(timestampString).getMillis();
 
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeTimestamp("dummy", FIELD_NAME,
+        Map<String, String> rowValueMap = serializeTimestamp("dummy", FIELD_NAME,
                 new TextNode(timestampString));
 
         assertEquals(rowValueMap.size(), 2);
@@ -164,7 +176,7 @@ public class HealthDataExportHandlerTest {
 
     @Test
     public void epochMillis() {
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeTimestamp("dummy", FIELD_NAME,
+        Map<String, String> rowValueMap = serializeTimestamp("dummy", FIELD_NAME,
                 new IntNode(12345));
 
         assertEquals(rowValueMap.size(), 2);
@@ -175,7 +187,7 @@ public class HealthDataExportHandlerTest {
     // branch coverage
     @Test
     public void nullMultiChoice() {
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
+        Map<String, String> rowValueMap = serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
                 null);
         assertTrue(rowValueMap.isEmpty());
     }
@@ -183,14 +195,14 @@ public class HealthDataExportHandlerTest {
     // branch coverage
     @Test
     public void jsonNullMultiChoice() {
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
+        Map<String, String> rowValueMap = serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
                 NullNode.instance);
         assertTrue(rowValueMap.isEmpty());
     }
 
     @Test
     public void invalidTypeMultiChoice() {
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
+        Map<String, String> rowValueMap = serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
                 new TextNode("baz"));
         assertTrue(rowValueMap.isEmpty());
     }
@@ -201,7 +213,7 @@ public class HealthDataExportHandlerTest {
         String answerText = "[\"bar\", true, 42]";
         JsonNode answerNode = DefaultObjectMapper.INSTANCE.readTree(answerText);
 
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
+        Map<String, String> rowValueMap = serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
                 answerNode);
         assertEquals(rowValueMap.size(), 5);
         assertEquals(rowValueMap.get("foo-field.foo"), "false");
@@ -217,7 +229,7 @@ public class HealthDataExportHandlerTest {
         String answerText = "[\"one\"]";
         JsonNode answerNode = DefaultObjectMapper.INSTANCE.readTree(answerText);
 
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeMultiChoice("dummy", OTHER_CHOICE_FIELD_DEF,
+        Map<String, String> rowValueMap = serializeMultiChoice("dummy", OTHER_CHOICE_FIELD_DEF,
                 answerNode);
         assertEquals(rowValueMap.size(), 2);
         assertEquals(rowValueMap.get("foo-field.one"), "true");
@@ -229,7 +241,7 @@ public class HealthDataExportHandlerTest {
         String answerText = "[\"one\", \"foo\"]";
         JsonNode answerNode = DefaultObjectMapper.INSTANCE.readTree(answerText);
 
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeMultiChoice("dummy", OTHER_CHOICE_FIELD_DEF,
+        Map<String, String> rowValueMap = serializeMultiChoice("dummy", OTHER_CHOICE_FIELD_DEF,
                 answerNode);
         assertEquals(rowValueMap.size(), 3);
         assertEquals(rowValueMap.get("foo-field.one"), "true");
@@ -243,7 +255,7 @@ public class HealthDataExportHandlerTest {
         String answerText = "[\"one\", \"foo\", \"bar\", \"baz\"]";
         JsonNode answerNode = DefaultObjectMapper.INSTANCE.readTree(answerText);
 
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeMultiChoice("dummy", OTHER_CHOICE_FIELD_DEF,
+        Map<String, String> rowValueMap = serializeMultiChoice("dummy", OTHER_CHOICE_FIELD_DEF,
                 answerNode);
         assertEquals(rowValueMap.size(), 3);
         assertEquals(rowValueMap.get("foo-field.one"), "true");
@@ -258,7 +270,7 @@ public class HealthDataExportHandlerTest {
         String answerText = "[\"foo\", \"bar\", \"one\", \"two\"]";
         JsonNode answerNode = DefaultObjectMapper.INSTANCE.readTree(answerText);
 
-        Map<String, String> rowValueMap = HealthDataExportHandler.serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
+        Map<String, String> rowValueMap = serializeMultiChoice("dummy", MULTI_CHOICE_FIELD_DEF,
                 answerNode);
         assertEquals(rowValueMap.size(), 5);
         assertEquals(rowValueMap.get("foo-field.foo"), "true");
@@ -268,6 +280,40 @@ public class HealthDataExportHandlerTest {
         assertEquals(rowValueMap.get("foo-field.42"), "false");
     }
 
+    // Helper method which serializes a timestamp into a map of column names to values, so tests can check the
+    // values.
+    private static Map<String, String> serializeTimestamp(String recordId, String fieldName, JsonNode node) {
+        String[] fieldValues = new String[2];
+        HealthDataExportHandler.serializeTimestamp(recordId, fieldName, node, fieldValues);
+
+        Map<String, String> rowValueMap = new HashMap<>();
+        putIfNotNull(rowValueMap, fieldName, fieldValues[0]);
+        putIfNotNull(rowValueMap, fieldName + ".timezone", fieldValues[1]);
+        return rowValueMap;
+    }
+
+    // Helper method which serializes a multi-choice answer into a map of column names to values, so tests can check
+    // the values.
+    private static Map<String, String> serializeMultiChoice(String recordId, UploadFieldDefinition fieldDef,
+            JsonNode node) {
+        List<String> answerList = fieldDef.getMultiChoiceAnswerList();
+        String[] fieldValues = new String[answerList.size() + 1];
+        HealthDataExportHandler.serializeMultiChoice(recordId, fieldDef, node, fieldValues);
+
+        Map<String, String> rowValueMap = new HashMap<>();
+        for (int i = 0; i < answerList.size(); i++) {
+            putIfNotNull(rowValueMap, fieldDef.getName() + "." + answerList.get(i), fieldValues[i]);
+        }
+        putIfNotNull(rowValueMap, fieldDef.getName() + ".other", fieldValues[answerList.size()]);
+        return rowValueMap;
+    }
+
+    private static void putIfNotNull(Map<String, String> map, String key, String value) {
+        if (value != null) {
+            map.put(key, value);
+        }
+    }
+
     // Helper method to set up tests where we export something.
     private void setupTest(int numRows, UploadSchema schema, Study study, List<ColumnModel> expectedColumnList)
             throws Exception {
@@ -381,17 +427,20 @@ public class HealthDataExportHandlerTest {
                     .withParentTask(task).withRecordData(recordJsonNode).withSchemaKey(BridgeHelperTest.TEST_SCHEMA_KEY)
                     .withStudyId(BridgeHelperTest.TEST_STUDY_ID).build();
 
-            // execute record 1 - This should have 2 calls to getSchema(), one for TSV initialization, one for the
-            // record.
+            // execute record 1 - This should have 2 calls to getSchema(), one for TSV initialization, one to compile
+            // the serialization plan.
             handler.handle(subtask);
             numGetSchemaCalls += 2;
             verify(mockBridgeHelper, times(numGetSchemaCalls)).getSchema(any(), eq(BridgeHelperTest.TEST_SCHEMA_KEY));
 
-            // execute record 2 - This should have another call to getSchema().
+            // execute record 2 - This re-uses the serialization plan, so there are no more calls to getSchema().
             handler.handle(subtask);
-            numGetSchemaCalls++;
             verify(mockBridgeHelper, times(numGetSchemaCalls)).getSchema(any(), eq(BridgeHelperTest.TEST_SCHEMA_KEY));
 
+            // The Synapse project ID is resolved once with the serialization plan, not once per record.
+            verify(handler.getManager(), times(i + 1)).getSynapseProjectIdForStudyAndTask(
+                    eq(BridgeHelperTest.TEST_STUDY_ID), any());
+
             // Upload table and validate tsv file
             handler.uploadToSynapseForTask(task);
             List<String> tsvLineList = TestUtil.bytesToLines(tsvBytes);
@@ -403,13 +452,130 @@ public class HealthDataExportHandlerTest {
         }
 
         // Sanity check to make sure we have the expected number of getSchema calls.
-        assertEquals(numGetSchemaCalls, 6);
+        assertEquals(numGetSchemaCalls, 4);
 
         // Verify calls to upload raw data.
         verify(mockSynapseHelper, atLeastOnce()).uploadFromS3ToSynapseFileHandle(
                 SynapseExportHandlerTest.TEST_SYNAPSE_PROJECT_ID, RAW_DATA_ATTACHMENT_ID);
     }
 
+    @Test
+    public void ioStepsRunInIoPool() throws Exception {
+        Study study = new Study().identifier(BridgeHelperTest.TEST_STUDY_ID).uploadMetadataFieldDefinitions(null);
+        List<ColumnModel> expectedColumnList = ImmutableList.of(BridgeHelperTest.TEST_SYNAPSE_COLUMN);
+        setupTest(1, BridgeHelperTest.TEST_SCHEMA, study, expectedColumnList);
+
+        // The raw data upload should run in the I/O pool.
+        ExecutorService ioExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable,
+                IO_THREAD_NAME));
+        handler.getManager().setIoExecutor(ioExecutor);
+        Set<String> uploadThreadNameSet = Collections.synchronizedSet(new HashSet<>());
+        when(mockSynapseHelper.uploadFromS3ToSynapseFileHandle(SynapseExportHandlerTest.TEST_SYNAPSE_PROJECT_ID,
+                RAW_DATA_ATTACHMENT_ID)).thenAnswer(invocation -> {
+            uploadThreadNameSet.add(Thread.currentThread().getName());
+            return RAW_DATA_FILEHANDLE_ID;
+        });
+
+        try {
+            // make task and subtask
+            Metrics metrics = new Metrics();
+            File tmpDir = mockFileHelper.createTempDir();
+            ExportTask task = new ExportTask.Builder().withExporterDate(SynapseExportHandlerTest.DUMMY_REQUEST_DATE)
+                    .withMetrics(metrics).withRequest(SynapseExportHandlerTest.DUMMY_REQUEST).withTmpDir(tmpDir)
+                    .build();
+
+            String recordJsonText = "{\n" +
+                    "   \"" + BridgeHelperTest.TEST_FIELD_NAME + "\":\"" + FIELD_VALUE + "\"\n" +
+                    "}";
+            Item ddbRecord = SynapseExportHandlerTest.makeDdbRecord()
+                    .withString(HealthDataExportHandler.DDB_KEY_RAW_DATA_ATTACHMENT_ID, RAW_DATA_ATTACHMENT_ID);
+            ExportSubtask subtask = new ExportSubtask.Builder().withOriginalRecord(ddbRecord).withParentTask(task)
+                    .withRecordData(DefaultObjectMapper.INSTANCE.readTree(recordJsonText))
+                    .withSchemaKey(BridgeHelperTest.TEST_SCHEMA_KEY).withStudyId(BridgeHelperTest.TEST_STUDY_ID)
+                    .build();
+
+            // execute and validate
+            handler.handle(subtask);
+            handler.uploadToSynapseForTask(task);
+
+            List<String> tsvLineList = TestUtil.bytesToLines(tsvBytes);
+            assertEquals(tsvLineList.size(), 2);
+            SynapseExportHandlerTest.validateTsvRow(tsvLineList.get(1), FIELD_VALUE, RAW_DATA_FILEHANDLE_ID);
+
+            assertEquals(uploadThreadNameSet, ImmutableSet.of(IO_THREAD_NAME));
+            assertEquals(metrics.getCounterMap().count(ExportWorkerManager.METRIC_IO_POOL_NUM_STEPS), 1);
+        } finally {
+            ioExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void failedIoStepCancelsOtherIoSteps() throws Exception {
+        // Schema has an attachment field, so the row has 2 I/O steps: the raw data upload and the attachment upload.
+        Study study = new Study().identifier(BridgeHelperTest.TEST_STUDY_ID).uploadMetadataFieldDefinitions(null);
+        UploadSchema schema = BridgeHelperTest.simpleSchemaBuilder().fieldDefinitions(ImmutableList.of(
+                new UploadFieldDefinition().name("my-attachment").type(UploadFieldType.ATTACHMENT_V2)));
+
+        ColumnModel attachmentColumn = new ColumnModel();
+        attachmentColumn.setName("my-attachment");
+        attachmentColumn.setColumnType(ColumnType.FILEHANDLEID);
+        setupTest(1, schema, study, ImmutableList.of(attachmentColumn));
+
+        ExecutorService ioExecutor = Executors.newFixedThreadPool(2);
+        handler.getManager().setIoExecutor(ioExecutor);
+
+        // The raw data upload hangs until it's interrupted. The attachment upload waits for the raw data upload to
+        // start, then fails.
+        CountDownLatch rawDataStartedLatch = new CountDownLatch(1);
+        CountDownLatch rawDataInterruptedLatch = new CountDownLatch(1);
+        when(mockSynapseHelper.uploadFromS3ToSynapseFileHandle(SynapseExportHandlerTest.TEST_SYNAPSE_PROJECT_ID,
+                RAW_DATA_ATTACHMENT_ID)).thenAnswer(invocation -> {
+            rawDataStartedLatch.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException ex) {
+                rawDataInterruptedLatch.countDown();
+            }
+            return RAW_DATA_FILEHANDLE_ID;
+        });
+        when(mockSynapseHelper.uploadFromS3ToSynapseFileHandle(SynapseExportHandlerTest.TEST_SYNAPSE_PROJECT_ID,
+                "my-attachment-id")).thenAnswer(invocation -> {
+            rawDataStartedLatch.await();
+            throw new IOException("test exception");
+        });
+
+        try {
+            // make task and subtask
+            File tmpDir = mockFileHelper.createTempDir();
+            ExportTask task = new ExportTask.Builder().withExporterDate(SynapseExportHandlerTest.DUMMY_REQUEST_DATE)
+                    .withMetrics(new Metrics()).withRequest(SynapseExportHandlerTest.DUMMY_REQUEST)
+                    .withTmpDir(tmpDir).build();
+
+            String recordJsonText = "{\n" +
+                    "   \"my-attachment\":\"my-attachment-id\"\n" +
+                    "}";
+            Item ddbRecord = SynapseExportHandlerTest.makeDdbRecord()
+                    .withString(HealthDataExportHandler.DDB_KEY_RAW_DATA_ATTACHMENT_ID, RAW_DATA_ATTACHMENT_ID);
+            ExportSubtask subtask = new ExportSubtask.Builder().withOriginalRecord(ddbRecord).withParentTask(task)
+                    .withRecordData(DefaultObjectMapper.INSTANCE.readTree(recordJsonText))
+                    .withSchemaKey(BridgeHelperTest.TEST_SCHEMA_KEY).withStudyId(BridgeHelperTest.TEST_STUDY_ID)
+                    .build();
+
+            // execute - The attachment failure fails the row.
+            try {
+                handler.handle(subtask);
+                fail("expected exception");
+            } catch (IOException ex) {
+                assertEquals(ex.getMessage(), "test exception");
+            }
+
+            // The raw data upload was cancelled instead of left running.
+            assertTrue(rawDataInterruptedLatch.await(10, TimeUnit.SECONDS));
+        } finally {
+            ioExecutor.shutdownNow();
+        }
+    }
+
     // Similarly, this test primarily tests upload metadata. Most of the other stuff is tested in other tests.
     @Test
     public void metadataTest() throws Exception {
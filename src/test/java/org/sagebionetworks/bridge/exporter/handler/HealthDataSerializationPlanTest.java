@@ -0,0 +1,107 @@
+package org.sagebionetworks.bridge.exporter.handler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.worker.TsvInfo;
+import org.sagebionetworks.bridge.exporter.worker.TsvRow;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.rest.model.UploadFieldDefinition;
+import org.sagebionetworks.bridge.rest.model.UploadFieldType;
+
+public class HealthDataSerializationPlanTest {
+    private static final String TEST_PROJECT_ID = "test-project-id";
+    private static final String TEST_RECORD_ID = "test-record-id";
+    private static final String TEST_STUDY_ID = "test-study";
+    private static final String WHEN_STRING = "2017-09-19T03:45:47.833+0900";
+
+    @Test
+    public void compileAndWrite() throws Exception {
+        // The TSV has a metadata column that conflicts with a schema column, and is missing a few columns.
+        TsvInfo tsvInfo = new TsvInfo(ImmutableList.of("metadata.foo", "metadata.when", "metadata.when.timezone",
+                "record.int", "choice.A", "choice.other", "record.attachment",
+                HealthDataExportHandler.COLUMN_NAME_RAW_DATA), null, CharStreams.nullWriter());
+        List<UploadFieldDefinition> metadataFieldDefList = ImmutableList.of(
+                new UploadFieldDefinition().name("foo").type(UploadFieldType.STRING),
+                new UploadFieldDefinition().name("when").type(UploadFieldType.TIMESTAMP));
+        List<UploadFieldDefinition> schemaFieldDefList = ImmutableList.of(
+                new UploadFieldDefinition().name("metadata.foo").type(UploadFieldType.STRING),
+                new UploadFieldDefinition().name("record.int").type(UploadFieldType.INT),
+                new UploadFieldDefinition().name("choice").type(UploadFieldType.MULTI_CHOICE)
+                        .multiChoiceAnswerList(ImmutableList.of("A", "B")).allowOtherChoices(true),
+                new UploadFieldDefinition().name("record.attachment").type(UploadFieldType.ATTACHMENT_V2),
+                new UploadFieldDefinition().name("not.in.tsv").type(UploadFieldType.ATTACHMENT_V2));
+
+        HealthDataSerializationPlan plan = HealthDataSerializationPlan.compile(TEST_STUDY_ID, metadataFieldDefList,
+                schemaFieldDefList, tsvInfo, TEST_PROJECT_ID);
+        assertSame(plan.getTsvInfo(), tsvInfo);
+        assertEquals(plan.getSynapseProjectId(), TEST_PROJECT_ID);
+        assertTrue(plan.hasMetadataFields());
+        assertEquals(plan.getRawDataColumnIndex(), 7);
+
+        // Attachments are I/O fields. The one that's not in the TSV is dropped.
+        HealthDataSerializationPlan.SingleColumnFieldPlan[] ioFieldPlans = plan.getIoFieldPlans();
+        assertEquals(ioFieldPlans.length, 1);
+        assertEquals(ioFieldPlans[0].getFieldName(), "record.attachment");
+        assertEquals(ioFieldPlans[0].getColumnIndex(), 6);
+
+        // The record data decoder only decodes schema fields that are in the plan.
+        JsonNode decodedNode = plan.getRecordDataDecoder().decode("{\"metadata.foo\":\"a\", \"record.int\":1, " +
+                "\"choice\":[\"A\"], \"record.attachment\":\"b\", \"not.in.tsv\":\"c\", \"foo\":\"d\"}");
+        assertEquals(decodedNode.size(), 4);
+        assertFalse(decodedNode.has("not.in.tsv"));
+        assertFalse(decodedNode.has("foo"));
+
+        // Write a row using the CPU fields.
+        JsonNode recordDataNode = DefaultObjectMapper.INSTANCE.readTree("{\n" +
+                "   \"metadata.foo\":\"schema-foo\",\n" +
+                "   \"record.int\":42,\n" +
+                "   \"choice\":[\"A\", \"B\", \"C\"]\n" +
+                "}");
+        JsonNode metadataNode = DefaultObjectMapper.INSTANCE.readTree("{\n" +
+                "   \"foo\":\"metadata-foo\",\n" +
+                "   \"when\":\"" + WHEN_STRING + "\"\n" +
+                "}");
+        TsvRow row = tsvInfo.newRow();
+        for (HealthDataSerializationPlan.FieldPlan oneFieldPlan : plan.getCpuFieldPlans()) {
+            JsonNode sourceNode = oneFieldPlan.isMetadata() ? metadataNode : recordDataNode;
+            oneFieldPlan.writeValues(null, new Metrics(), TEST_PROJECT_ID, TEST_RECORD_ID,
+                    sourceNode.get(oneFieldPlan.getFieldName()), row);
+        }
+
+        // Schema wins over metadata. Columns that aren't in the TSV are skipped.
+        assertEquals(row.getValue("metadata.foo"), "schema-foo");
+        assertEquals(row.getValue("metadata.when"), String.valueOf(DateTime.parse(WHEN_STRING).getMillis()));
+        assertEquals(row.getValue("metadata.when.timezone"), "+0900");
+        assertEquals(row.getValue("record.int"), "42");
+        assertEquals(row.getValue("choice.A"), "true");
+        assertEquals(row.getValue("choice.other"), "C");
+        assertNull(row.getValue("record.attachment"));
+    }
+
+    @Test
+    public void noMetadataFields() {
+        TsvInfo tsvInfo = new TsvInfo(ImmutableList.of("foo"), null, CharStreams.nullWriter());
+        List<UploadFieldDefinition> schemaFieldDefList = ImmutableList.of(new UploadFieldDefinition().name("foo")
+                .type(UploadFieldType.STRING));
+
+        HealthDataSerializationPlan plan = HealthDataSerializationPlan.compile(TEST_STUDY_ID, null,
+                schemaFieldDefList, tsvInfo, TEST_PROJECT_ID);
+        assertFalse(plan.hasMetadataFields());
+        assertEquals(plan.getCpuFieldPlans().length, 1);
+        assertEquals(plan.getIoFieldPlans().length, 0);
+        assertEquals(plan.getRawDataColumnIndex(), -1);
+    }
+}
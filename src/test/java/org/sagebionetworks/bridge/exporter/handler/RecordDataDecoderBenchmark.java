@@ -0,0 +1,221 @@
+package org.sagebionetworks.bridge.exporter.handler;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Stopwatch;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * <p>
+ * Compares parsing record data into a full JSON tree (the old path) with streaming it through
+ * {@link RecordDataDecoder}. Both paths pull the same schema fields out of the record, and turn the inline JSON blob
+ * field into its JSON text, which is what the handler does with them. Serializing and sanitizing the values is the
+ * same for both paths, so it's left out.
+ * </p>
+ * <p>
+ * Records are generated at roughly 5 KB, 20 KB, and 50 KB, with a couple dozen scalar schema fields, a multi-choice
+ * field, and a few fields that aren't in the schema. Each size is run with the bulk of the record in two places: in
+ * an inline JSON blob field (which both paths have to render as text), and in a field that isn't in the schema (which
+ * the decoder skips).
+ * </p>
+ * <p>
+ * Reports records per second, bytes allocated per record, and GC count and time for each trial. Allocation is measured
+ * with the HotSpot per-thread allocation counter, so this needs a HotSpot JVM. For steadier GC numbers, run with a
+ * fixed heap (for example, -Xms512m -Xmx512m).
+ * </p>
+ * <p>
+ * This isn't a unit test. Run it by hand with the test classpath, for example:
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.sagebionetworks.bridge.exporter.handler.RecordDataDecoderBenchmark
+ * </p>
+ */
+public class RecordDataDecoderBenchmark {
+    private static final int NUM_SCALAR_FIELDS = 24;
+    private static final int[] RECORD_SIZES_KB = { 5, 20, 50 };
+    private static final int NUM_TRIALS = 5;
+    private static final long TRIAL_BYTES = 500L * 1024 * 1024;
+
+    private static final String BLOB_FIELD_NAME = "blob";
+    private static final String MULTI_CHOICE_FIELD_NAME = "choices";
+    private static final String[] SCALAR_FIELD_NAMES;
+    private static final RecordDataDecoder DECODER;
+    static {
+        Map<String, RecordDataDecoder.ValueMode> valueModeByFieldName = new HashMap<>();
+        SCALAR_FIELD_NAMES = new String[NUM_SCALAR_FIELDS];
+        for (int i = 0; i < NUM_SCALAR_FIELDS; i++) {
+            SCALAR_FIELD_NAMES[i] = "field" + i;
+            // Mix of string fields and non-string fields.
+            valueModeByFieldName.put(SCALAR_FIELD_NAMES[i], i % 2 == 0 ? RecordDataDecoder.ValueMode.TEXT :
+                    RecordDataDecoder.ValueMode.SCALAR);
+        }
+        valueModeByFieldName.put(BLOB_FIELD_NAME, RecordDataDecoder.ValueMode.TEXT);
+        valueModeByFieldName.put(MULTI_CHOICE_FIELD_NAME, RecordDataDecoder.ValueMode.ARRAY);
+        DECODER = new RecordDataDecoder(valueModeByFieldName);
+    }
+
+    // Extracts the schema fields from one record. Returns a value that depends on the result, so the JIT can't
+    // eliminate the work.
+    private interface Extractor {
+        int extract(String recordJsonText) throws Exception;
+    }
+
+    // Result of one trial.
+    private static class Result {
+        double recordsPerSec;
+        double bytesPerRecord;
+        long gcCount;
+        long gcMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("record\tmode\trecords/sec\tbytes/record\tGC count\tGC ms");
+        for (int oneSizeKb : RECORD_SIZES_KB) {
+            for (boolean bulkInBlob : new boolean[] { true, false }) {
+                String recordJsonText = makeRecord(oneSizeKb * 1024, bulkInBlob);
+                String recordLabel = String.format("%dKB-%s", recordJsonText.length() / 1024,
+                        bulkInBlob ? "blob" : "unknown");
+                int numRecords = (int) (TRIAL_BYTES / recordJsonText.length());
+
+                for (int trial = 0; trial < NUM_TRIALS; trial++) {
+                    // Alternate modes, so that JIT warm-up and heap state don't favor one of them.
+                    print(recordLabel, "tree", run(RecordDataDecoderBenchmark::extractWithTree, recordJsonText,
+                            numRecords));
+                    print(recordLabel, "stream", run(RecordDataDecoderBenchmark::extractWithDecoder,
+                            recordJsonText, numRecords));
+                }
+            }
+        }
+    }
+
+    // The old path. This mirrors HealthDataExportHandler before the decoder.
+    private static int extractWithTree(String recordJsonText) throws Exception {
+        JsonNode recordDataNode = DefaultObjectMapper.INSTANCE.readTree(recordJsonText);
+        int hash = 0;
+        for (String oneFieldName : SCALAR_FIELD_NAMES) {
+            hash += recordDataNode.get(oneFieldName).hashCode();
+        }
+        hash += recordDataNode.get(MULTI_CHOICE_FIELD_NAME).size();
+        JsonNode blobNode = recordDataNode.get(BLOB_FIELD_NAME);
+        hash += blobNode.isTextual() ? blobNode.textValue().length() : blobNode.toString().length();
+        return hash;
+    }
+
+    // The new path.
+    private static int extractWithDecoder(String recordJsonText) throws Exception {
+        JsonNode recordDataNode = DECODER.decode(recordJsonText);
+        int hash = 0;
+        for (String oneFieldName : SCALAR_FIELD_NAMES) {
+            hash += recordDataNode.get(oneFieldName).hashCode();
+        }
+        hash += recordDataNode.get(MULTI_CHOICE_FIELD_NAME).size();
+        JsonNode blobNode = recordDataNode.get(BLOB_FIELD_NAME);
+        hash += blobNode.isTextual() ? blobNode.textValue().length() : blobNode.toString().length();
+        return hash;
+    }
+
+    // Makes a record of roughly the given size. The bulk of the record is an array of sample objects, either in the
+    // inline JSON blob field, or in a field that isn't in the schema.
+    private static String makeRecord(int targetSize, boolean bulkInBlob) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\n");
+        for (int i = 0; i < NUM_SCALAR_FIELDS; i++) {
+            if (i % 4 == 0) {
+                builder.append("   \"").append(SCALAR_FIELD_NAMES[i]).append("\":\"Some answer text for field ")
+                        .append(i).append("\",\n");
+            } else if (i % 4 == 1) {
+                builder.append("   \"").append(SCALAR_FIELD_NAMES[i]).append("\":").append(i * 37).append(",\n");
+            } else if (i % 4 == 2) {
+                builder.append("   \"").append(SCALAR_FIELD_NAMES[i]).append("\":\"2017-09-20T16:57:24.130+0900\",\n");
+            } else {
+                builder.append("   \"").append(SCALAR_FIELD_NAMES[i]).append("\":").append(i * 0.125).append(",\n");
+            }
+        }
+        builder.append("   \"").append(MULTI_CHOICE_FIELD_NAME).append("\":[\"fencing\", \"running\"],\n");
+        builder.append("   \"appName\":\"not in schema\",\n");
+        builder.append("   \"deviceInfo\":{\"model\":\"iPhone9,3\", \"os\":\"iOS 11.2\"},\n");
+
+        // Fill the rest with samples.
+        StringBuilder bulkBuilder = new StringBuilder();
+        bulkBuilder.append('[');
+        int sampleIndex = 0;
+        while (builder.length() + bulkBuilder.length() < targetSize) {
+            if (sampleIndex > 0) {
+                bulkBuilder.append(',');
+            }
+            bulkBuilder.append("{\"timestamp\":").append(1505894244130L + sampleIndex * 10)
+                    .append(",\"x\":").append(0.001 * sampleIndex).append(",\"y\":").append(-0.5 + 0.002 * sampleIndex)
+                    .append(",\"z\":").append(9.81).append(",\"label\":\"sample-").append(sampleIndex).append("\"}");
+            sampleIndex++;
+        }
+        bulkBuilder.append(']');
+
+        if (bulkInBlob) {
+            builder.append("   \"unknown\":[],\n");
+            builder.append("   \"").append(BLOB_FIELD_NAME).append("\":").append(bulkBuilder).append('\n');
+        } else {
+            builder.append("   \"unknown\":").append(bulkBuilder).append(",\n");
+            builder.append("   \"").append(BLOB_FIELD_NAME).append("\":{\"short\":\"blob\"}\n");
+        }
+        builder.append('}');
+        return builder.toString();
+    }
+
+    // Extracts fields from the same record numRecords times.
+    private static Result run(Extractor extractor, String recordJsonText, int numRecords) throws Exception {
+        System.gc();
+        long startGcCount = getGcCount();
+        long startGcMillis = getGcMillis();
+        long startBytes = getThreadAllocatedBytes();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        int hash = 0;
+        for (int i = 0; i < numRecords; i++) {
+            hash += extractor.extract(recordJsonText);
+        }
+
+        long elapsedMicros = stopwatch.elapsed(TimeUnit.MICROSECONDS);
+        Result result = new Result();
+        result.bytesPerRecord = (double) (getThreadAllocatedBytes() - startBytes) / numRecords;
+        result.recordsPerSec = numRecords * 1000000.0 / elapsedMicros;
+        result.gcCount = getGcCount() - startGcCount;
+        result.gcMillis = getGcMillis() - startGcMillis;
+
+        if (hash == 42) {
+            // Use the hash, so the JIT can't eliminate the work. This is very unlikely to actually print.
+            System.out.println("hash=" + hash);
+        }
+        return result;
+    }
+
+    private static void print(String recordLabel, String mode, Result result) {
+        System.out.println(String.format("%s\t%s\t%.0f\t%.0f\t%d\t%d", recordLabel, mode, result.recordsPerSec,
+                result.bytesPerRecord, result.gcCount, result.gcMillis));
+    }
+
+    private static long getThreadAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean oneGcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, oneGcBean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean oneGcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, oneGcBean.getCollectionTime());
+        }
+        return millis;
+    }
+}
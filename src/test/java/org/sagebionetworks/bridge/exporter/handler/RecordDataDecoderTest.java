@@ -0,0 +1,200 @@
+package org.sagebionetworks.bridge.exporter.handler;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.rest.model.UploadFieldType;
+
+public class RecordDataDecoderTest {
+    private static final RecordDataDecoder DECODER = new RecordDataDecoder(ImmutableMap.of(
+            "scalar", RecordDataDecoder.ValueMode.SCALAR,
+            "text", RecordDataDecoder.ValueMode.TEXT,
+            "array", RecordDataDecoder.ValueMode.ARRAY));
+
+    @Test
+    public void valueModeForType() {
+        assertEquals(RecordDataDecoder.getValueModeForType(UploadFieldType.MULTI_CHOICE),
+                RecordDataDecoder.ValueMode.ARRAY);
+        assertEquals(RecordDataDecoder.getValueModeForType(UploadFieldType.INLINE_JSON_BLOB),
+                RecordDataDecoder.ValueMode.TEXT);
+        assertEquals(RecordDataDecoder.getValueModeForType(UploadFieldType.STRING),
+                RecordDataDecoder.ValueMode.TEXT);
+        assertEquals(RecordDataDecoder.getValueModeForType(UploadFieldType.ATTACHMENT_V2),
+                RecordDataDecoder.ValueMode.SCALAR);
+        assertEquals(RecordDataDecoder.getValueModeForType(UploadFieldType.INT),
+                RecordDataDecoder.ValueMode.SCALAR);
+        assertEquals(RecordDataDecoder.getValueModeForType(UploadFieldType.TIMESTAMP),
+                RecordDataDecoder.ValueMode.SCALAR);
+    }
+
+    @DataProvider(name = "valueProvider")
+    public Object[][] valueProvider() {
+        return new Object[][] {
+                { "\"plain string\"" },
+                { "\"escapes \\\" \\\\ \\n \\t \\u0001 \\u00e9 \\u2603\"" },
+                { "true" },
+                { "false" },
+                { "null" },
+                { "42" },
+                { "-7" },
+                { "12345678901" },
+                { "123456789012345678901234567890" },
+                { "3.14" },
+                { "1.10" },
+                { "1e2" },
+                { "-2.5E-3" },
+                { "{}" },
+                { "[]" },
+                { "{\"a\":1,\"b\":[true,null,\"x\"],\"c\":{\"d\":1.50}}" },
+                { "[ 1 , 2.0 , { \"nested\" : \"value\" } , [ ] ]" },
+                { "{\n   \"pretty\":\"printed\",\n   \"list\":[\n      1,\n      2\n   ]\n}" },
+                { "[{\"a\":1,\"b\":2},{\"a\":3,\"b\":4}]" },
+                { "{\"a\":{\"a\":{\"a\":1}},\"b\":{\"a\":2}}" },
+                { "{\"a\":{\"b\":1},\"b\":2}" },
+                { makeBigObject(40) },
+        };
+    }
+
+    @Test(dataProvider = "valueProvider")
+    public void matchesTree(String valueJsonText) throws Exception {
+        // Each mode should decode the value the same as the tree, as far as its serializers can tell.
+        String recordJsonText = "{\"scalar\":" + valueJsonText + ", \"text\":" + valueJsonText + ", \"array\":" +
+                valueJsonText + "}";
+        JsonNode treeValueNode = DefaultObjectMapper.INSTANCE.readTree(valueJsonText);
+        boolean isContainer = treeValueNode.isContainerNode();
+
+        ObjectNode decodedNode = DECODER.decode(recordJsonText);
+        assertEquals(decodedNode.size(), 3);
+
+        // Scalar fields serialize objects and arrays as null.
+        JsonNode scalarNode = decodedNode.get("scalar");
+        if (isContainer) {
+            assertTrue(scalarNode.isNull());
+        } else {
+            assertEquals(scalarNode, treeValueNode);
+            assertEquals(scalarNode.getClass(), treeValueNode.getClass());
+        }
+
+        // Text fields use the JSON text of objects and arrays.
+        JsonNode textNode = decodedNode.get("text");
+        if (isContainer) {
+            assertEquals(textNode.textValue(), treeValueNode.toString());
+        } else {
+            assertEquals(textNode, treeValueNode);
+            assertEquals(textNode.toString(), treeValueNode.toString());
+        }
+
+        // Array fields only care about arrays.
+        JsonNode arrayNode = decodedNode.get("array");
+        if (treeValueNode.isArray()) {
+            assertEquals(arrayNode, treeValueNode);
+        } else {
+            assertTrue(arrayNode.isNull());
+        }
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws Exception {
+        ObjectNode decodedNode = DECODER.decode("{\"unknown\":{\"deep\":[1,{\"scalar\":\"nope\"}]}," +
+                "\"scalar\":\"yes\",\"other\":\"ignored\"}");
+        assertEquals(decodedNode.size(), 1);
+        assertEquals(decodedNode.get("scalar").textValue(), "yes");
+    }
+
+    @Test
+    public void missingFields() throws Exception {
+        ObjectNode decodedNode = DECODER.decode("{\"scalar\":1}");
+        assertEquals(decodedNode.size(), 1);
+        assertNull(decodedNode.get("text"));
+        assertNull(decodedNode.get("array"));
+    }
+
+    @Test
+    public void duplicateTopLevelKeyLastWins() throws Exception {
+        // Same as the tree.
+        ObjectNode decodedNode = DECODER.decode("{\"scalar\":1,\"scalar\":{\"a\":\"b\"},\"text\":\"x\"," +
+                "\"text\":\"y\"}");
+        assertTrue(decodedNode.get("scalar").isNull());
+        assertEquals(decodedNode.get("text").textValue(), "y");
+    }
+
+    @Test
+    public void duplicateNestedKeyInTextFallsBack() throws Exception {
+        // The JSON text would have both values, but the tree only has the last one, so we can't stream this.
+        assertNull(DECODER.decode("{\"text\":{\"a\":1,\"a\":2}}"));
+    }
+
+    @Test
+    public void duplicateKeyAfterNestedObjectFallsBack() throws Exception {
+        // Keys in the nested object don't count, but the outer object's own keys still do.
+        assertNull(DECODER.decode("{\"text\":{\"a\":{\"b\":1},\"b\":2,\"a\":3}}"));
+    }
+
+    @Test
+    public void duplicateKeyInBigObjectFallsBack() throws Exception {
+        // Big enough to switch from the linear scan to a hash set, with duplicates before and after the switch.
+        String bigObjectText = makeBigObject(40);
+        String earlyDuplicateText = bigObjectText.replace("\"key2\":", "\"key1\":");
+        String lateDuplicateText = bigObjectText.replace("\"key39\":", "\"key1\":");
+        assertNull(DECODER.decode("{\"text\":" + earlyDuplicateText + "}"));
+        assertNull(DECODER.decode("{\"text\":" + lateDuplicateText + "}"));
+    }
+
+    @Test
+    public void duplicateNestedKeyInUnknownField() throws Exception {
+        // Unknown fields are skipped, so duplicates there don't matter.
+        ObjectNode decodedNode = DECODER.decode("{\"unknown\":{\"a\":1,\"a\":2},\"scalar\":3}");
+        assertEquals(decodedNode.get("scalar").intValue(), 3);
+    }
+
+    @Test
+    public void nonObjectFallsBack() throws Exception {
+        assertNull(DECODER.decode("[1, 2, 3]"));
+        assertNull(DECODER.decode("\"string\""));
+        assertNull(DECODER.decode("null"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void malformedJson() throws Exception {
+        DECODER.decode("{\"scalar\":1, \"unknown\":[1, 2}");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void truncatedJson() throws Exception {
+        DECODER.decode("{\"scalar\":1, \"unknown\":");
+    }
+
+    @Test
+    public void noFields() throws Exception {
+        // If there's nothing to decode, we don't even look at the record data.
+        RecordDataDecoder decoder = new RecordDataDecoder(ImmutableMap.of());
+        ObjectNode decodedNode = decoder.decode("not even JSON");
+        assertEquals(decodedNode.size(), 0);
+        assertFalse(decodedNode.fieldNames().hasNext());
+    }
+
+    // Makes a JSON object with the given number of keys, each with a small nested object.
+    private static String makeBigObject(int numKeys) {
+        StringBuilder builder = new StringBuilder();
+        builder.append('{');
+        for (int i = 0; i < numKeys; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("\"key").append(i).append("\":{\"key").append(i).append("\":").append(i).append('}');
+        }
+        builder.append('}');
+        return builder.toString();
+    }
+}
@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.exporter.handler;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
@@ -9,6 +10,7 @@ import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
@@ -16,6 +18,8 @@ import static org.testng.Assert.assertEquals;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.ImmutableList;
 import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
@@ -292,4 +296,74 @@ public class SynapseExportHandlerNewTableTest {
 
         validateTableCreation(handler);
     }
+
+    @Test
+    public void concurrentRequestsCreateTableOnce() throws Exception {
+        // Two requests export the same new table at the same time. Each request has its own task and handler, but
+        // they share the manager.
+        SynapseExportHandler handler = new TestSynapseHandler();
+        setup(handler);
+        ExportTask otherTask = new ExportTask.Builder().withExporterDate(SynapseExportHandlerTest.DUMMY_REQUEST_DATE)
+                .withMetrics(new Metrics()).withRequest(SynapseExportHandlerTest.DUMMY_REQUEST)
+                .withTmpDir(task.getTmpDir()).build();
+        SynapseExportHandler otherHandler = new TestSynapseHandler();
+        otherHandler.setStudyId(SynapseExportHandlerTest.TEST_STUDY_ID);
+        otherHandler.setManager(manager);
+
+        // Both tasks share the DDB Synapse table map.
+        doAnswer(invocation -> ddbSynapseTableId).when(manager).getSynapseTableIdFromDdb(any(ExportTask.class),
+                eq(handler.getDdbTableName()), eq(handler.getDdbTableKeyName()), eq(handler.getDdbTableKeyValue()));
+        doAnswer(invocation -> ddbSynapseTableId = invocation.getArgumentAt(4, String.class)).when(manager)
+                .setSynapseTableIdToDdb(any(ExportTask.class), eq(handler.getDdbTableName()),
+                        eq(handler.getDdbTableKeyName()), eq(handler.getDdbTableKeyValue()), anyString());
+
+        // Table creation blocks in Synapse until we let it finish.
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        AtomicInteger numCreateCalls = new AtomicInteger();
+        when(mockSynapseHelper.createTableWithColumnsAndAcls(any(), anyLong(), anyLong(), any(), any()))
+                .thenAnswer(invocation -> {
+                    numCreateCalls.incrementAndGet();
+                    startedLatch.countDown();
+                    finishLatch.await();
+                    return SynapseExportHandlerTest.TEST_SYNAPSE_TABLE_ID;
+                });
+
+        // The first request starts creating the table.
+        Thread firstThread = startHandleThread(handler, task);
+        startedLatch.await();
+
+        // The second request waits for the first to finish creating the table.
+        Thread secondThread = startHandleThread(otherHandler, otherTask);
+        while (secondThread.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        // Finish creating the table. The second request uses the table the first request created.
+        finishLatch.countDown();
+        firstThread.join();
+        secondThread.join();
+        assertEquals(numCreateCalls.get(), 1);
+        verify(manager, times(1)).setSynapseTableIdToDdb(any(ExportTask.class), eq(handler.getDdbTableName()),
+                eq(handler.getDdbTableKeyName()), eq(handler.getDdbTableKeyValue()),
+                eq(SynapseExportHandlerTest.TEST_SYNAPSE_TABLE_ID));
+        verify(mockSynapseHelper).getColumnModelsForTableWithRetry(SynapseExportHandlerTest.TEST_SYNAPSE_TABLE_ID);
+
+        // Both TSVs were initialized.
+        handler.getTsvInfoForTask(task).checkInitAndThrow();
+        otherHandler.getTsvInfoForTask(otherTask).checkInitAndThrow();
+    }
+
+    // Helper method which handles a record for the given handler and task in a new thread.
+    private static Thread startHandleThread(SynapseExportHandler handler, ExportTask task) {
+        Thread thread = new Thread(() -> {
+            try {
+                handler.handle(SynapseExportHandlerTest.makeSubtask(task, "foo", "single record"));
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        thread.start();
+        return thread;
+    }
 }
@@ -37,6 +37,7 @@ import org.joda.time.LocalDate;
 import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.ColumnType;
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
@@ -408,8 +409,15 @@ public class SynapseExportHandlerTest {
         // Don't bother validating metrics, tsvInfo, or anything else. That's tested above.
     }
 
-    @Test
-    public void schemaBasedExportHandlerTest() throws Exception {
+    @DataProvider(name = "streamRecordDataProvider")
+    public Object[][] streamRecordDataProvider() {
+        // Record data either comes straight from the DDB record (and is streamed), or is already parsed (legacy iOS
+        // surveys). Both should export the same values.
+        return new Object[][] { { false }, { true } };
+    }
+
+    @Test(dataProvider = "streamRecordDataProvider")
+    public void schemaBasedExportHandlerTest(boolean streamRecordData) throws Exception {
         // We don't need to exhaustively test all column types, as a lot of it is baked into
         // SynapseHelper.BRIDGE_TYPE_TO_SYNAPSE_TYPE. We just need to test multi_choice, timestamp,
         // int (non-string), short string, long string (large text aka blob), freeform text -> attachment,
@@ -452,9 +460,17 @@ public class SynapseExportHandlerTest {
                 "   \"submitTime\":\"" + submitTimeStr + "\",\n" +
                 "   \"sports\":[\"fencing\", \"running\"],\n" +
                 "   \"delicious\":[\"Yes\", \"No\", \"Maybe\"],\n" +
-                "   \"my-large-text-attachment\":\"my-large-text-attachment-id\"\n" +
+                "   \"my-large-text-attachment\":\"my-large-text-attachment-id\",\n" +
+                "   \"not-in-schema\":{\"nested\":[1, 2.5, {\"foo\":\"unused\"}]}\n" +
                 "}";
-        ExportSubtask subtask = makeSubtask(task, recordJsonText);
+        ExportSubtask subtask;
+        if (streamRecordData) {
+            subtask = new ExportSubtask.Builder().withOriginalRecord(makeDdbRecord().withString("data",
+                    recordJsonText)).withParentTask(task).withSchemaKey(DUMMY_SCHEMA_KEY).withStudyId(TEST_STUDY_ID)
+                    .build();
+        } else {
+            subtask = makeSubtask(task, recordJsonText);
+        }
 
         // execute
         handler.handle(subtask);
@@ -20,10 +20,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multiset;
 import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
@@ -46,6 +44,7 @@ import org.sagebionetworks.bridge.exporter.worker.ExportSubtask;
 import org.sagebionetworks.bridge.exporter.worker.ExportTask;
 import org.sagebionetworks.bridge.exporter.worker.ExportWorkerManager;
 import org.sagebionetworks.bridge.exporter.worker.TsvInfo;
+import org.sagebionetworks.bridge.exporter.worker.TsvRow;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -184,10 +183,11 @@ public class SynapseExportHandlerUpdateTableTest {
         // For test purposes, this will always match the schema returned by getSynapseTableColumnList. The tests will
         // validate how this interacts with the "existing" table and updates (or lack thereof).
         @Override
-        protected Map<String, String> getTsvRowValueMap(ExportSubtask subtask) throws IOException {
-            return new ImmutableMap.Builder<String, String>().put("modify-this", "modify-this value")
-                    .put("add-this", "add-this value") .put("swap-this-A", "swap-this-A value")
-                    .put("swap-this-B", "swap-this-B value").build();
+        protected void writeTsvRowValues(ExportSubtask subtask, TsvRow row) throws IOException {
+            row.setValue("modify-this", "modify-this value");
+            row.setValue("add-this", "add-this value");
+            row.setValue("swap-this-A", "swap-this-A value");
+            row.setValue("swap-this-B", "swap-this-B value");
         }
     }
 
@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.exporter.helper;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
@@ -157,6 +158,17 @@ public class BridgeHelperTest {
         assertTrue(schemasNotFoundSet.contains(TEST_SCHEMA_KEY.toString()));
     }
 
+    @Test
+    public void getSchemaIsCached() throws Exception {
+        setupBridgeHelperWithSchema(TEST_SCHEMA);
+
+        bridgeHelper.getSchema(new Metrics(), TEST_SCHEMA_KEY);
+        UploadSchema retVal = bridgeHelper.getSchema(new Metrics(), TEST_SCHEMA_KEY);
+        assertEquals(retVal, TEST_SCHEMA);
+        verify(mockWorkersApi, times(1)).getSchemaRevisionInStudy(TEST_STUDY_ID, TEST_SCHEMA_ID,
+                (long) TEST_SCHEMA_REV);
+    }
+
     private void setupBridgeHelperWithSchema(UploadSchema schema) throws Exception {
         Response<UploadSchema> response = Response.success(schema);
 
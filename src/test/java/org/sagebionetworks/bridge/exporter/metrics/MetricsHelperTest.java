@@ -40,6 +40,8 @@ public class MetricsHelperTest {
         metrics.incrementCounter("foo-counter");
         metrics.incrementCounter("bar-counter");
 
+        metrics.setGauge("foo-gauge", 3);
+
         metrics.incrementSetCounter("qwerty-set-counter", "qwerty value");
         metrics.incrementSetCounter("asdf-set-counter", "asdf value");
 
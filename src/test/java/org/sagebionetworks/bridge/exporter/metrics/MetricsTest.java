@@ -5,6 +5,7 @@ import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 import java.util.Set;
+import java.util.SortedMap;
 
 import com.google.common.collect.SortedMultiset;
 import com.google.common.collect.SortedSetMultimap;
@@ -30,6 +31,58 @@ public class MetricsTest {
         assertEquals(counterMap.count("baz"), 3);
     }
 
+    @Test
+    public void countersWithAmount() {
+        Metrics metrics = new Metrics();
+        assertEquals(metrics.incrementCounter("foo", 0), 0);
+        assertEquals(metrics.incrementCounter("foo", 25), 25);
+        assertEquals(metrics.incrementCounter("foo"), 26);
+        assertEquals(metrics.incrementCounter("foo", 74), 100);
+
+        SortedMultiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.count("foo"), 100);
+    }
+
+    @Test
+    public void gauges() {
+        Metrics metrics = new Metrics();
+        metrics.setGauge("foo", 3);
+        metrics.setGauge("bar", 5);
+        metrics.setGauge("foo", 1);
+
+        SortedMap<String, Long> gaugeMap = metrics.getGaugeMap();
+        assertEquals(gaugeMap.size(), 2);
+        assertEquals(gaugeMap.firstKey(), "bar");
+        assertEquals(gaugeMap.get("bar").longValue(), 5L);
+        assertEquals(gaugeMap.get("foo").longValue(), 1L);
+
+        // The returned copy doesn't change when the original does.
+        metrics.setGauge("foo", 7);
+        assertEquals(gaugeMap.get("foo").longValue(), 1L);
+        assertEquals(metrics.getGaugeMap().get("foo").longValue(), 7L);
+    }
+
+    @Test
+    public void gaugeMax() {
+        Metrics metrics = new Metrics();
+        metrics.setGaugeMax("foo", 3);
+        assertEquals(metrics.getGaugeMap().get("foo").longValue(), 3L);
+
+        metrics.setGaugeMax("foo", 5);
+        assertEquals(metrics.getGaugeMap().get("foo").longValue(), 5L);
+
+        metrics.setGaugeMax("foo", 4);
+        assertEquals(metrics.getGaugeMap().get("foo").longValue(), 5L);
+    }
+
+    @Test
+    public void addToGauge() {
+        Metrics metrics = new Metrics();
+        assertEquals(metrics.addToGauge("foo", 3), 3L);
+        assertEquals(metrics.addToGauge("foo", Integer.MAX_VALUE), Integer.MAX_VALUE + 3L);
+        assertEquals(metrics.getGaugeMap().get("foo").longValue(), Integer.MAX_VALUE + 3L);
+    }
+
     @Test
     public void keyValuePairs() {
         // init with some data
@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.exporter.record;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.notNull;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -17,20 +18,28 @@ import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import org.joda.time.DateTime;
 import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.cache.CacheRegistry;
 import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpointHelper;
 import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.metrics.MetricsHelper;
@@ -52,20 +61,24 @@ public class BridgeExporterRecordProcessorTest {
     private static final BridgeExporterRequest REQUEST = new BridgeExporterRequest.Builder()
             .withEndDateTime(END_DATE_TIME).withTag("unit-test-tag").withUseLastExportTime(true).build();
 
+    private CacheRegistry mockCacheRegistry;
+    private ExportCheckpointHelper mockCheckpointHelper;
     private Table mockDdbRecordTable;
     private InMemoryFileHelper mockFileHelper;
     private ExportWorkerManager mockManager;
     private MetricsHelper mockMetricsHelper;
+    private ParticipantSharingScopeCache mockParticipantCache;
     private RecordFilterHelper mockRecordFilterHelper;
     private RecordIdSourceFactory mockRecordIdFactory;
     private BridgeExporterRecordProcessor recordProcessor;
     private DynamoHelper mockDynamoHelper;
+    private RecordReadGovernor mockReadGovernor;
+    private ExecutorService pipelineExecutor;
 
     @BeforeMethod
     public void before() throws Exception {
         // mock Config - For branch coverage, make progress report period 2
         Config mockConfig = mock(Config.class);
-        when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_RECORD_LOOP_DELAY_MILLIS)).thenReturn(0);
         when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_RECORD_LOOP_PROGRESS_REPORT_PERIOD))
                 .thenReturn(2);
         when(mockConfig.get(BridgeExporterUtil.CONFIG_KEY_TIME_ZONE_NAME))
@@ -75,26 +88,41 @@ public class BridgeExporterRecordProcessorTest {
         SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
         when(mockSynapseHelper.isSynapseWritable()).thenReturn(true);
 
-        // mocks
+        // mocks - By default, the checkpoint helper returns null, meaning checkpointing is disabled.
+        mockCacheRegistry = mock(CacheRegistry.class);
+        mockCheckpointHelper = mock(ExportCheckpointHelper.class);
         mockDdbRecordTable = mock(Table.class);
         mockFileHelper = new InMemoryFileHelper();
         mockManager = mock(ExportWorkerManager.class);
         mockMetricsHelper = mock(MetricsHelper.class);
+        mockParticipantCache = mock(ParticipantSharingScopeCache.class);
         mockRecordFilterHelper = mock(RecordFilterHelper.class);
         mockRecordIdFactory = mock(RecordIdSourceFactory.class);
         mockDynamoHelper = mock(DynamoHelper.class);
+        mockReadGovernor = mock(RecordReadGovernor.class);
+        pipelineExecutor = Executors.newCachedThreadPool();
 
         // set up record processor
         recordProcessor = spy(new BridgeExporterRecordProcessor());
+        recordProcessor.setCacheRegistry(mockCacheRegistry);
         recordProcessor.setConfig(mockConfig);
         recordProcessor.setDdbRecordTable(mockDdbRecordTable);
+        recordProcessor.setExportCheckpointHelper(mockCheckpointHelper);
         recordProcessor.setFileHelper(mockFileHelper);
         recordProcessor.setMetricsHelper(mockMetricsHelper);
+        recordProcessor.setParticipantSharingScopeCache(mockParticipantCache);
         recordProcessor.setRecordFilterHelper(mockRecordFilterHelper);
         recordProcessor.setRecordIdSourceFactory(mockRecordIdFactory);
         recordProcessor.setSynapseHelper(mockSynapseHelper);
         recordProcessor.setWorkerManager(mockManager);
         recordProcessor.setDynamoHelper(mockDynamoHelper);
+        recordProcessor.setRecordReadGovernor(mockReadGovernor);
+        recordProcessor.setPipelineExecutor(pipelineExecutor);
+    }
+
+    @AfterMethod
+    public void after() {
+        pipelineExecutor.shutdownNow();
     }
 
     @Test
@@ -128,7 +156,8 @@ public class BridgeExporterRecordProcessorTest {
         List<String> recordIdList = ImmutableList.of("success-record-1", "filtered-record", "missing-record",
                 "error-record", "success-record-2");
         Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
-        when(mockRecordIdFactory.getRecordSourceForRequest(REQUEST, fakeStudyIds)).thenReturn(recordIdList);
+        when(mockRecordIdFactory.getRecordSourceForRequest(eq(REQUEST), eq(fakeStudyIds),
+                notNull(Metrics.class))).thenReturn(recordIdList);
         when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
 
         // mock export worker manager - Only mock error record. The others will just no-op by default in Mockito.
@@ -153,6 +182,9 @@ public class BridgeExporterRecordProcessorTest {
         assertSame(metricsHelperArgList.get(2), metricsHelperArgList.get(0));
         assertSame(metricsHelperArgList.get(3), metricsHelperArgList.get(0));
 
+        // Cache stats are added to the same metrics object.
+        verify(mockCacheRegistry).captureMetrics(same(metricsHelperArgList.get(0)));
+
         // validate worker manager - Similarly, validate that we're passing the same task for each record, and that
         // we're calling endOfStream() with that same task at the end.
         ArgumentCaptor<ExportTask> managerTaskArgCaptor = ArgumentCaptor.forClass(ExportTask.class);
@@ -171,6 +203,13 @@ public class BridgeExporterRecordProcessorTest {
         // verify that we marked the task as success
         verify(recordProcessor).setTaskSuccess(any());
 
+        // All 5 reads go through the read governor.
+        verify(mockReadGovernor).initForRequest(same(recordFilterMetricsCaptor.getValue()));
+        verify(mockReadGovernor, times(5)).acquire();
+        verify(mockReadGovernor, times(5)).recordConsumedCapacity(any(Metrics.class),
+                eq(RecordBatchLoader.FALLBACK_GET_CAPACITY_UNITS));
+        verify(mockReadGovernor).finishRequest();
+
         // validate record filter metrics is the same as the one passed to the metrics helper
         Metrics recordFilterMetrics = recordFilterMetricsCaptor.getValue();
         assertSame(recordFilterMetrics, metricsHelperArgList.get(0));
@@ -178,7 +217,8 @@ public class BridgeExporterRecordProcessorTest {
         // validate that we cleaned up all our files
         assertTrue(mockFileHelper.isEmpty());
 
-        verify(mockRecordIdFactory).getRecordSourceForRequest(REQUEST, fakeStudyIds);
+        verify(mockRecordIdFactory).getRecordSourceForRequest(eq(REQUEST), eq(fakeStudyIds),
+                notNull(Metrics.class));
         verify(mockDynamoHelper).bootstrapStudyIdsToQuery(REQUEST);
         ArgumentCaptor<List> listArgumentCaptor = ArgumentCaptor.forClass(List.class);
         verify(mockDynamoHelper).updateExportTimeTable(listArgumentCaptor.capture(), eq(END_DATE_TIME));
@@ -187,6 +227,145 @@ public class BridgeExporterRecordProcessorTest {
         assertEquals(studyIdsToUpdate.get(0), "fake-key");
     }
 
+    @Test
+    public void batchedRecords() throws Exception {
+        // Reconfigure the record processor with batching enabled.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(BridgeExporterRecordProcessor.CONFIG_KEY_RECORD_BATCH_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_RECORD_LOOP_PROGRESS_REPORT_PERIOD))
+                .thenReturn(2);
+        when(mockConfig.get(BridgeExporterUtil.CONFIG_KEY_TIME_ZONE_NAME))
+                .thenReturn("America/Los_Angeles");
+        recordProcessor.setConfig(mockConfig);
+
+        // 6 records, batch size 2, so we have 3 batches. The second batch fails, so its records are loaded one at a
+        // time, and only the first of those fails. The first batch has a filtered record and the last batch has a
+        // missing record.
+        Item dummySuccessRecord1 = new Item();
+        Item dummyFilteredRecord = new Item();
+        Item dummyRecoveredRecord = new Item();
+        Item dummySuccessRecord2 = new Item();
+
+        RecordBatchLoader mockBatchLoader = mock(RecordBatchLoader.class);
+        when(mockBatchLoader.getBatchSize()).thenReturn(2);
+        when(mockBatchLoader.loadRecords(any(), eq(ImmutableList.of("success-record-1", "filtered-record"))))
+                .thenReturn(ImmutableMap.of("success-record-1", dummySuccessRecord1, "filtered-record",
+                        dummyFilteredRecord));
+        when(mockBatchLoader.loadRecords(any(), eq(ImmutableList.of("error-record-1", "error-record-2"))))
+                .thenThrow(RuntimeException.class);
+        when(mockBatchLoader.loadRecords(any(), eq(ImmutableList.of("success-record-2", "missing-record"))))
+                .thenReturn(ImmutableMap.of("success-record-2", dummySuccessRecord2));
+        recordProcessor.setRecordBatchLoader(mockBatchLoader);
+
+        when(mockDdbRecordTable.getItem("id", "error-record-1")).thenThrow(RuntimeException.class);
+        when(mockDdbRecordTable.getItem("id", "error-record-2")).thenReturn(dummyRecoveredRecord);
+
+        when(mockRecordFilterHelper.shouldExcludeRecord(any(), same(REQUEST), same(dummyFilteredRecord)))
+                .thenReturn(true);
+
+        // mock record ID factory
+        List<String> recordIdList = ImmutableList.of("success-record-1", "filtered-record", "error-record-1",
+                "error-record-2", "success-record-2", "missing-record");
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockRecordIdFactory.getRecordSourceForRequest(eq(REQUEST), eq(fakeStudyIds),
+                notNull(Metrics.class))).thenReturn(recordIdList);
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+
+        // execute
+        recordProcessor.processRecordsForRequest(REQUEST);
+
+        // We only call DDB directly for the records in the failed batch.
+        verify(mockBatchLoader, times(3)).loadRecords(any(), any());
+        verify(mockDdbRecordTable).getItem("id", "error-record-1");
+        verify(mockDdbRecordTable).getItem("id", "error-record-2");
+        verify(mockDdbRecordTable, times(2)).getItem(any(String.class), any());
+
+        // Participants are prefetched for each batch or single record that loaded.
+        verify(mockParticipantCache, times(3)).prefetch(any(Metrics.class), any(Iterable.class));
+
+        // Validate records passed to the worker manager, in order.
+        ArgumentCaptor<Item> recordCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockManager, times(3)).addSubtaskForRecord(any(ExportTask.class), recordCaptor.capture());
+        List<Item> recordList = recordCaptor.getAllValues();
+        assertSame(recordList.get(0), dummySuccessRecord1);
+        assertSame(recordList.get(1), dummyRecoveredRecord);
+        assertSame(recordList.get(2), dummySuccessRecord2);
+
+        verify(mockManager).endOfStream(any(), eq(fakeStudyIds));
+        verify(recordProcessor).setTaskSuccess(any());
+    }
+
+    @Test
+    public void throttledRead() throws Exception {
+        // Two records. The first is throttled, the second succeeds.
+        Item dummySuccessRecord = new Item();
+        when(mockDdbRecordTable.getItem("id", "throttled-record")).thenThrow(
+                new ProvisionedThroughputExceededException("test exception"));
+        when(mockDdbRecordTable.getItem("id", "success-record")).thenReturn(dummySuccessRecord);
+
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockRecordIdFactory.getRecordSourceForRequest(eq(REQUEST), eq(fakeStudyIds),
+                notNull(Metrics.class))).thenReturn(ImmutableList.of("throttled-record", "success-record"));
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+
+        // execute
+        recordProcessor.processRecordsForRequest(REQUEST);
+
+        // The throttle is reported to the governor, and the throttled record is skipped.
+        verify(mockReadGovernor, times(2)).acquire();
+        verify(mockReadGovernor).recordThrottle(any(Metrics.class));
+        verify(mockReadGovernor).recordConsumedCapacity(any(Metrics.class),
+                eq(RecordBatchLoader.FALLBACK_GET_CAPACITY_UNITS));
+
+        verify(mockManager).addSubtaskForRecord(any(ExportTask.class), same(dummySuccessRecord));
+        verify(mockManager).endOfStream(any(), eq(fakeStudyIds));
+        verifyNoMoreInteractions(mockManager);
+    }
+
+    @Test
+    public void recordIdSourceThrows() throws Exception {
+        // Record ID source returns one record, then throws.
+        Item dummyRecord = new Item();
+        when(mockDdbRecordTable.getItem("id", "dummy-record")).thenReturn(dummyRecord);
+
+        Iterable<String> failingIterable = () -> new Iterator<String>() {
+            private boolean first = true;
+
+            @Override
+            public boolean hasNext() {
+                if (first) {
+                    return true;
+                }
+                throw new IllegalStateException("test exception");
+            }
+
+            @Override
+            public String next() {
+                first = false;
+                return "dummy-record";
+            }
+        };
+
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockRecordIdFactory.getRecordSourceForRequest(eq(REQUEST), eq(fakeStudyIds),
+                notNull(Metrics.class))).thenReturn(failingIterable);
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+
+        // execute (this will throw)
+        try {
+            recordProcessor.processRecordsForRequest(REQUEST);
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            assertEquals(ex.getMessage(), "test exception");
+        }
+
+        // The record we already read is still dispatched, but we never finish the task.
+        verify(mockManager).addSubtaskForRecord(any(ExportTask.class), same(dummyRecord));
+        verify(mockManager, never()).endOfStream(any(), any());
+        verify(recordProcessor, never()).setTaskSuccess(any());
+        verify(mockMetricsHelper).publishMetrics(any());
+    }
+
     @Test
     public void testIgnoreLastExportTime() throws Exception {
         BridgeExporterRequest newRequest = new BridgeExporterRequest.Builder().withStartDateTime(START_DATE_TIME)
@@ -201,7 +380,8 @@ public class BridgeExporterRecordProcessorTest {
         // mock record ID factory
         List<String> recordIdList = ImmutableList.of("success-record-1");
         Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
-        when(mockRecordIdFactory.getRecordSourceForRequest(newRequest, fakeStudyIds)).thenReturn(recordIdList);
+        when(mockRecordIdFactory.getRecordSourceForRequest(eq(newRequest), eq(fakeStudyIds),
+                notNull(Metrics.class))).thenReturn(recordIdList);
         when(mockDynamoHelper.bootstrapStudyIdsToQuery(newRequest)).thenReturn(fakeStudyIds);
 
         // execute
@@ -212,15 +392,62 @@ public class BridgeExporterRecordProcessorTest {
         verify(mockDynamoHelper, times(0)).updateExportTimeTable(any(), any());
     }
 
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        // 3 studies: done-study finished in the previous run, partial-study finished up to a watermark (this happens
+        // with record override requests), and new-study hasn't been started.
+        long partialWatermark = START_DATE_TIME.plusHours(1).getMillis();
+        ExportCheckpoint checkpoint = new ExportCheckpoint(REQUEST.getTag(), "dummy-request-json", null,
+                ImmutableMap.of("done-study", END_DATE_TIME.getMillis(), "partial-study", partialWatermark));
+        when(mockCheckpointHelper.loadCheckpoint(REQUEST)).thenReturn(checkpoint);
+
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("done-study", START_DATE_TIME, "partial-study",
+                START_DATE_TIME, "new-study", START_DATE_TIME);
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+
+        // Done study is skipped entirely. Partial study starts at the watermark.
+        Map<String, DateTime> expectedStudyIdsToQuery = ImmutableMap.of("partial-study",
+                new DateTime(partialWatermark, START_DATE_TIME.getZone()), "new-study", START_DATE_TIME);
+        when(mockRecordIdFactory.getRecordSourceForRequest(eq(REQUEST), eq(expectedStudyIdsToQuery),
+                notNull(Metrics.class))).thenReturn(ImmutableList.of("old-record", "new-record"));
+
+        // old-record is below the watermark and is skipped. new-record is exported.
+        Item oldRecord = new Item().withString("studyId", "partial-study").withLong("uploadedOn",
+                partialWatermark - 1);
+        Item newRecord = new Item().withString("studyId", "partial-study").withLong("uploadedOn", partialWatermark);
+        when(mockDdbRecordTable.getItem("id", "old-record")).thenReturn(oldRecord);
+        when(mockDdbRecordTable.getItem("id", "new-record")).thenReturn(newRecord);
+
+        // execute
+        recordProcessor.processRecordsForRequest(REQUEST);
+
+        // verify the task has the checkpoint
+        ArgumentCaptor<ExportTask> taskCaptor = ArgumentCaptor.forClass(ExportTask.class);
+        verify(mockManager).addSubtaskForRecord(taskCaptor.capture(), same(newRecord));
+        verify(mockManager, never()).addSubtaskForRecord(any(), same(oldRecord));
+        assertSame(taskCaptor.getValue().getCheckpoint(), checkpoint);
+        assertEquals(taskCaptor.getValue().getMetrics().getCounterMap().count(
+                BridgeExporterRecordProcessor.METRIC_CHECKPOINT_SKIPPED_RECORDS), 1);
+
+        // End of stream and export time table still use the original study map.
+        verify(mockManager).endOfStream(same(taskCaptor.getValue()), eq(fakeStudyIds));
+
+        // Checkpoint is deleted on success.
+        verify(recordProcessor).setTaskSuccess(any());
+        verify(mockCheckpointHelper).deleteCheckpoint(checkpoint);
+    }
+
     @Test
     public void endOfStreamThrows() throws Exception {
         // Only need 1 test record this time.
+        ExportCheckpoint checkpoint = new ExportCheckpoint(REQUEST.getTag(), "dummy-request-json", null, null);
+        when(mockCheckpointHelper.loadCheckpoint(REQUEST)).thenReturn(checkpoint);
 
         // mock DDB record table and record ID factory
         when(mockDdbRecordTable.getItem("id", "dummy-record")).thenReturn(new Item());
         Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
-        when(mockRecordIdFactory.getRecordSourceForRequest(REQUEST, fakeStudyIds)).thenReturn(ImmutableList.of(
-                "dummy-record"));
+        when(mockRecordIdFactory.getRecordSourceForRequest(eq(REQUEST), eq(fakeStudyIds),
+                notNull(Metrics.class))).thenReturn(ImmutableList.of("dummy-record"));
         when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
 
         // ExportWorkerManager throws in endOfStream()
@@ -234,7 +461,8 @@ public class BridgeExporterRecordProcessorTest {
             // expected exception
         }
 
-        // verify that we're NOT marking the task as success
+        // verify that we're NOT marking the task as success, and we keep the checkpoint for the restart
         verify(recordProcessor, never()).setTaskSuccess(any());
+        verify(mockCheckpointHelper, never()).deleteCheckpoint(any());
     }
 }
@@ -0,0 +1,325 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+public class ParallelRecordIdSourceTest {
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void before() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterMethod
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    private static List<Item> makeItemList(String prefix, int numItems) {
+        List<Item> itemList = new ArrayList<>();
+        for (int i = 0; i < numItems; i++) {
+            itemList.add(new Item().withString("id", prefix + i));
+        }
+        return itemList;
+    }
+
+    @Test
+    public void noQueries() {
+        ParallelRecordIdSource source = new ParallelRecordIdSource(executor, 10, new Metrics());
+        assertSame(source.iterator(), source);
+        assertFalse(source.hasNext());
+        assertEquals(source.getNumOutstandingQueries(), 0);
+
+        try {
+            source.next();
+            fail("expected exception");
+        } catch (NoSuchElementException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void multipleQueries() {
+        // Queue capacity is much smaller than the number of records, which exercises back pressure.
+        Metrics metrics = new Metrics();
+        ParallelRecordIdSource source = new ParallelRecordIdSource(executor, 2, metrics);
+        source.submitQuery("study-A", makeItemList("A-", 50));
+        source.submitQuery("study-B", makeItemList("B-", 10));
+        source.submitQuery("study-C", ImmutableList.of());
+        source.submitQuery("study-D", makeItemList("D-", 25));
+
+        // Validate each record ID comes out exactly once, and that per-study order is preserved.
+        List<String> recordIdList = ImmutableList.copyOf(source.iterator());
+        assertEquals(recordIdList.size(), 85);
+        assertEquals(new HashSet<>(recordIdList).size(), 85);
+        for (int i = 1; i < 50; i++) {
+            assertTrue(recordIdList.indexOf("A-" + (i - 1)) < recordIdList.indexOf("A-" + i));
+        }
+
+        assertEquals(source.getQueueDepth(), 0);
+        assertEquals(source.getNumOutstandingQueries(), 0);
+
+        // Validate metrics.
+        assertEquals(metrics.getCounterMap().count("numRecordIds[study-A]"), 50);
+        assertEquals(metrics.getCounterMap().count("numRecordIds[study-B]"), 10);
+        assertEquals(metrics.getCounterMap().count("numRecordIds[study-C]"), 0);
+        assertEquals(metrics.getCounterMap().count("numRecordIds[study-D]"), 25);
+
+        Set<String> keySet = metrics.getKeyValuesMap().keySet();
+        assertTrue(keySet.contains("recordIdQueryRate[study-A]"));
+        assertTrue(keySet.contains("recordIdQueryRate[study-B]"));
+        assertTrue(keySet.contains("recordIdQueryRate[study-C]"));
+        assertTrue(keySet.contains("recordIdQueryRate[study-D]"));
+    }
+
+    // Fake range query over a sorted list of items. Items are filtered lazily, like a real DDB query.
+    private static ParallelRecordIdSource.RangeQuery makeRangeQuery(List<Item> sortedItemList,
+            List<long[]> queriedRangeList) {
+        return (startMillis, endMillis) -> {
+            synchronized (queriedRangeList) {
+                queriedRangeList.add(new long[] { startMillis, endMillis });
+            }
+            return () -> sortedItemList.stream().filter(item -> {
+                long uploadedOn = item.getLong(ParallelRecordIdSource.KEY_UPLOADED_ON);
+                return uploadedOn >= startMillis && uploadedOn <= endMillis;
+            }).iterator();
+        };
+    }
+
+    private static List<Item> makeTimedItemList(String prefix, int numItems) {
+        // Two records per millisecond, to test records that share an uploadedOn.
+        List<Item> itemList = new ArrayList<>();
+        for (int i = 0; i < numItems; i++) {
+            itemList.add(new Item().withString("id", prefix + i).withLong(ParallelRecordIdSource.KEY_UPLOADED_ON,
+                    1000 + i / 2));
+        }
+        return itemList;
+    }
+
+    @Test
+    public void rangeQuerySlicing() {
+        // 200 records over 100 millis. Split every 10 records, with at most 6 slices.
+        List<Item> itemList = makeTimedItemList("A-", 200);
+        List<long[]> queriedRangeList = new ArrayList<>();
+
+        Metrics metrics = new Metrics();
+        ParallelRecordIdSource source = new ParallelRecordIdSource(executor, 5, 10, 6, metrics);
+        source.submitRangeQuery("study-A", 1000, 1099, makeRangeQuery(itemList, queriedRangeList));
+
+        // Every record comes out exactly once.
+        List<String> recordIdList = ImmutableList.copyOf(source.iterator());
+        assertEquals(recordIdList.size(), 200);
+        assertEquals(new HashSet<>(recordIdList).size(), 200);
+
+        // We split into the max number of slices.
+        assertEquals(metrics.getCounterMap().count("numQuerySlices[study-A]"), 6);
+        assertEquals(queriedRangeList.size(), 6);
+        assertEquals(metrics.getCounterMap().count("numRecordIds[study-A]"), 200);
+    }
+
+    @Test
+    public void rangeQueryNoSlicing() {
+        // Split threshold is larger than the study, so we never split.
+        List<Item> itemList = makeTimedItemList("A-", 20);
+        List<long[]> queriedRangeList = new ArrayList<>();
+
+        Metrics metrics = new Metrics();
+        ParallelRecordIdSource source = new ParallelRecordIdSource(executor, 5, 100, 6, metrics);
+        source.submitRangeQuery("study-A", 1000, 1009, makeRangeQuery(itemList, queriedRangeList));
+
+        // Single slice, so order is preserved.
+        List<String> recordIdList = ImmutableList.copyOf(source.iterator());
+        assertEquals(recordIdList.size(), 20);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(recordIdList.get(i), "A-" + i);
+        }
+
+        assertEquals(metrics.getCounterMap().count("numQuerySlices[study-A]"), 1);
+        assertEquals(queriedRangeList.size(), 1);
+        assertEquals(queriedRangeList.get(0)[0], 1000L);
+        assertEquals(queriedRangeList.get(0)[1], 1009L);
+    }
+
+    @Test
+    public void rangeQueryNarrowRangeDoesNotSplit() {
+        // All records have the same uploadedOn, so there's nothing to split.
+        List<Item> itemList = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            itemList.add(new Item().withString("id", "A-" + i).withLong(ParallelRecordIdSource.KEY_UPLOADED_ON,
+                    1000));
+        }
+        List<long[]> queriedRangeList = new ArrayList<>();
+
+        Metrics metrics = new Metrics();
+        ParallelRecordIdSource source = new ParallelRecordIdSource(executor, 5, 5, 6, metrics);
+        source.submitRangeQuery("study-A", 1000, 1000, makeRangeQuery(itemList, queriedRangeList));
+
+        List<String> recordIdList = ImmutableList.copyOf(source.iterator());
+        assertEquals(recordIdList.size(), 30);
+        assertEquals(metrics.getCounterMap().count("numQuerySlices[study-A]"), 1);
+    }
+
+    // Query that never ends, like a huge study. Only stops if the source is cancelled.
+    private static Iterable<Item> makeEndlessItemIterable(String prefix) {
+        return () -> new Iterator<Item>() {
+            private int numReturned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Item next() {
+                return new Item().withString("id", prefix + (numReturned++));
+            }
+        };
+    }
+
+    // Helper method which waits up to 5 seconds for the source's producers to finish.
+    static boolean waitForQueriesDone(ParallelRecordIdSource source) throws Exception {
+        for (int i = 0; i < 50 && source.getNumOutstandingQueries() > 0; i++) {
+            Thread.sleep(100);
+        }
+        return source.getNumOutstandingQueries() == 0;
+    }
+
+    @Test
+    public void closeStopsProducers() throws Exception {
+        // The consumer reads a few record IDs and stops. Without closing, the producers would block on the full queue
+        // forever.
+        ParallelRecordIdSource source = new ParallelRecordIdSource(executor, 2, new Metrics());
+        source.submitQuery("study-A", makeEndlessItemIterable("A-"));
+        source.submitQuery("study-B", makeEndlessItemIterable("B-"));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(source.hasNext());
+            source.next();
+        }
+
+        source.close();
+        assertTrue(waitForQueriesDone(source));
+        assertEquals(source.getQueueDepth(), 0);
+
+        // Closing again is a no-op.
+        source.close();
+    }
+
+    @Test
+    public void maxConcurrentQueries() throws Exception {
+        // 4 endless queries, but the source only runs 2 at a time. The consumer doesn't read, so the first 2 block on
+        // the full queue, and the other 2 never start.
+        AtomicInteger numStartedQueries = new AtomicInteger();
+        ExecutorService cachedExecutor = Executors.newCachedThreadPool();
+        try {
+            ParallelRecordIdSource source = new ParallelRecordIdSource(cachedExecutor, 1, 2, 0, 1, new Metrics());
+            for (int i = 0; i < 4; i++) {
+                source.submitRecordIdQuery("source-" + i, countStarts(numStartedQueries,
+                        Iterables.transform(makeEndlessItemIterable(i + "-"), item -> item.getString("id"))));
+            }
+            Thread.sleep(500);
+            assertEquals(numStartedQueries.get(), 2);
+            assertEquals(source.getNumOutstandingQueries(), 4);
+
+            // Closing stops the running queries. The waiting queries finish without ever starting.
+            source.close();
+            assertTrue(waitForQueriesDone(source));
+            assertEquals(numStartedQueries.get(), 2);
+        } finally {
+            cachedExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sourcesSharingExecutorDontBlockEachOther() throws Exception {
+        // Two requests share the executor. The first request's consumer stalls, so its producers block on its full
+        // queue, holding their threads. The second request still gets all of its record IDs.
+        ExecutorService cachedExecutor = Executors.newCachedThreadPool();
+        try {
+            ParallelRecordIdSource stalledSource = new ParallelRecordIdSource(cachedExecutor, 1, 3, 0, 1,
+                    new Metrics());
+            for (int i = 0; i < 6; i++) {
+                stalledSource.submitQuery("stalled-" + i, makeEndlessItemIterable("stalled-" + i + "-"));
+            }
+
+            ParallelRecordIdSource source = new ParallelRecordIdSource(cachedExecutor, 2, 3, 0, 1, new Metrics());
+            source.submitQuery("study-A", makeItemList("A-", 50));
+            source.submitQuery("study-B", makeItemList("B-", 10));
+            source.submitQuery("study-C", makeItemList("C-", 25));
+            source.submitQuery("study-D", makeItemList("D-", 5));
+
+            List<String> recordIdList = ImmutableList.copyOf(source.iterator());
+            assertEquals(new HashSet<>(recordIdList).size(), 90);
+            assertEquals(source.getNumOutstandingQueries(), 0);
+
+            stalledSource.close();
+            assertTrue(waitForQueriesDone(stalledSource));
+        } finally {
+            cachedExecutor.shutdownNow();
+        }
+    }
+
+    // Wraps the record ID source, and counts the number of times it's started.
+    private static Iterable<String> countStarts(AtomicInteger numStarts, Iterable<String> recordIdIterable) {
+        return () -> {
+            numStarts.incrementAndGet();
+            return recordIdIterable.iterator();
+        };
+    }
+
+    @Test
+    public void queryError() {
+        // Query returns one record, then fails.
+        Iterable<Item> failingIterable = () -> new Iterator<Item>() {
+            private boolean first = true;
+
+            @Override
+            public boolean hasNext() {
+                if (first) {
+                    return true;
+                }
+                throw new IllegalArgumentException("test exception");
+            }
+
+            @Override
+            public Item next() {
+                first = false;
+                return new Item().withString("id", "bad-0");
+            }
+        };
+
+        ParallelRecordIdSource source = new ParallelRecordIdSource(executor, 100, new Metrics());
+        source.submitQuery("bad-study", failingIterable);
+
+        try {
+            while (source.hasNext()) {
+                source.next();
+            }
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getCause() instanceof IllegalArgumentException);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+public class ParticipantSharingScopeCacheTest {
+    private static final String TEST_STUDY = "test-study";
+
+    private BridgeHelper mockBridgeHelper;
+    private ParticipantSharingScopeCache cache;
+    private Metrics metrics;
+
+    @BeforeMethod
+    public void before() {
+        DateTimeUtils.setCurrentMillisFixed(1000000L);
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(ParticipantSharingScopeCache.CONFIG_KEY_MAX_SIZE)).thenReturn(3);
+
+        mockBridgeHelper = mock(BridgeHelper.class);
+        mockParticipant("health-code-1", SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        mockParticipant("health-code-2", SharingScope.SPONSORS_AND_PARTNERS);
+
+        cache = new ParticipantSharingScopeCache();
+        cache.setConfig(mockConfig);
+        cache.setBridgeHelper(mockBridgeHelper);
+        cache.setPrefetchExecutor(MoreExecutors.newDirectExecutorService());
+
+        metrics = new Metrics();
+    }
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    private void mockParticipant(String healthCode, SharingScope sharingScope) {
+        StudyParticipant participant = new StudyParticipant();
+        participant.setSharingScope(sharingScope);
+        when(mockBridgeHelper.getParticipantByHealthCode(TEST_STUDY, healthCode)).thenReturn(participant);
+    }
+
+    private static Item makeRecord(String healthCode) {
+        return new Item().withString("studyId", TEST_STUDY).withString("healthCode", healthCode);
+    }
+
+    @Test
+    public void prefetchThenHit() {
+        // Same health code twice in a batch. We only call Bridge once per health code.
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-1"), makeRecord("health-code-2"),
+                makeRecord("health-code-1")));
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(TEST_STUDY, "health-code-1");
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(TEST_STUDY, "health-code-2");
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_PREFETCH_SUBMITTED), 2);
+
+        assertEquals(cache.getSharingScope(metrics, TEST_STUDY, "health-code-1"),
+                SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        assertEquals(cache.getSharingScope(metrics, TEST_STUDY, "health-code-2"),
+                SharingScope.SPONSORS_AND_PARTNERS);
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_HIT), 2);
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_MISS), 0);
+        verify(mockBridgeHelper, times(2)).getParticipantByHealthCode(any(), any());
+    }
+
+    @Test
+    public void missLoadsSynchronously() {
+        assertEquals(cache.getSharingScope(metrics, TEST_STUDY, "health-code-1"),
+                SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_MISS), 1);
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_HIT), 0);
+
+        // Second call is a hit.
+        assertEquals(cache.getSharingScope(metrics, TEST_STUDY, "health-code-1"),
+                SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_HIT), 1);
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(TEST_STUDY, "health-code-1");
+    }
+
+    @Test
+    public void waitsForInFlightPrefetch() throws Exception {
+        // Capture prefetches and run them on another thread after a delay.
+        List<Runnable> prefetchList = new ArrayList<>();
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+        doAnswer(invocation -> {
+            prefetchList.add(invocation.getArgumentAt(0, Runnable.class));
+            return null;
+        }).when(mockExecutor).execute(any());
+        cache.setPrefetchExecutor(mockExecutor);
+
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-1")));
+        assertEquals(prefetchList.size(), 1);
+
+        Thread prefetchThread = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            prefetchList.get(0).run();
+        });
+        prefetchThread.start();
+
+        assertEquals(cache.getSharingScope(metrics, TEST_STUDY, "health-code-1"),
+                SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        prefetchThread.join();
+
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_PREFETCH_WAIT), 1);
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_HIT), 0);
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_MISS), 0);
+        assertTrue(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_PREFETCH_LAG_MILLIS) > 0);
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(TEST_STUDY, "health-code-1");
+    }
+
+    @Test
+    public void expiredEntryIsReloaded() {
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-1")));
+
+        // Just before expiry, still cached.
+        long ttlMillis = ParticipantSharingScopeCache.DEFAULT_TTL_MINUTES * 60 * 1000;
+        DateTimeUtils.setCurrentMillisFixed(1000000L + ttlMillis - 1);
+        cache.getSharingScope(metrics, TEST_STUDY, "health-code-1");
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(TEST_STUDY, "health-code-1");
+
+        // After expiry, prefetch loads it again.
+        DateTimeUtils.setCurrentMillisFixed(1000000L + ttlMillis);
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-1")));
+        verify(mockBridgeHelper, times(2)).getParticipantByHealthCode(TEST_STUDY, "health-code-1");
+    }
+
+    @Test
+    public void errorsAreNotCached() {
+        StudyParticipant participant = new StudyParticipant();
+        participant.setSharingScope(SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        when(mockBridgeHelper.getParticipantByHealthCode(TEST_STUDY, "health-code-1"))
+                .thenThrow(new IllegalStateException("test exception")).thenReturn(participant);
+
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-1")));
+        try {
+            cache.getSharingScope(metrics, TEST_STUDY, "health-code-1");
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            assertEquals(ex.getMessage(), "test exception");
+        }
+
+        // Next call retries.
+        assertEquals(cache.getSharingScope(metrics, TEST_STUDY, "health-code-1"),
+                SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        assertEquals(metrics.getCounterMap().count(ParticipantSharingScopeCache.METRIC_MISS), 1);
+    }
+
+    @Test
+    public void nullParticipant() {
+        assertNull(cache.getSharingScope(metrics, TEST_STUDY, "no-such-health-code"));
+    }
+
+    @Test
+    public void recordsWithoutHealthCodeAreSkipped() {
+        cache.prefetch(metrics, ImmutableList.of(new Item().withString("studyId", TEST_STUDY),
+                new Item().withString("healthCode", "health-code-1")));
+        verify(mockBridgeHelper, never()).getParticipantByHealthCode(any(), any());
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void evictsWhenFull() {
+        // Max size is 3. Adding the 4th entry evicts only the least recently used entry.
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-1"), makeRecord("health-code-2"),
+                makeRecord("health-code-3")));
+        assertEquals(cache.size(), 3);
+
+        // Touch health-code-1, so health-code-2 is now the least recently used.
+        cache.getSharingScope(metrics, TEST_STUDY, "health-code-1");
+
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-4")));
+        assertEquals(cache.size(), 3);
+
+        // health-code-1 is still cached. health-code-2 needs another call to Bridge.
+        cache.getSharingScope(metrics, TEST_STUDY, "health-code-1");
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(TEST_STUDY, "health-code-1");
+        cache.getSharingScope(metrics, TEST_STUDY, "health-code-2");
+        verify(mockBridgeHelper, times(2)).getParticipantByHealthCode(TEST_STUDY, "health-code-2");
+    }
+
+    @Test
+    public void inFlightEntriesAreNotEvicted() {
+        // Prefetches don't run until we say so.
+        List<Runnable> prefetchList = new ArrayList<>();
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+        doAnswer(invocation -> {
+            prefetchList.add(invocation.getArgumentAt(0, Runnable.class));
+            return null;
+        }).when(mockExecutor).execute(any());
+        cache.setPrefetchExecutor(mockExecutor);
+
+        // Fill the cache with in-flight prefetches, then go over. Nothing can be evicted.
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-1"), makeRecord("health-code-2"),
+                makeRecord("health-code-3"), makeRecord("health-code-4")));
+        assertEquals(cache.size(), 4);
+
+        // Once the prefetches finish, the next new entry brings the cache back down to max size.
+        for (Runnable onePrefetch : prefetchList) {
+            onePrefetch.run();
+        }
+        cache.prefetch(metrics, ImmutableList.of(makeRecord("health-code-5")));
+        assertEquals(cache.size(), 3);
+    }
+}
@@ -0,0 +1,286 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+public class RecordBatchLoaderTest {
+    private static final String TABLE_NAME = "test-record-table";
+
+    private List<Object> requestedKeyList;
+    private DynamoDB mockDdbClient;
+    private Table mockDdbRecordTable;
+    private RecordReadGovernor mockReadGovernor;
+    private RecordBatchLoader loader;
+
+    @BeforeMethod
+    public void before() {
+        requestedKeyList = new ArrayList<>();
+
+        mockDdbClient = mock(DynamoDB.class);
+        mockDdbRecordTable = mock(Table.class);
+        when(mockDdbRecordTable.getTableName()).thenReturn(TABLE_NAME);
+        mockReadGovernor = mock(RecordReadGovernor.class);
+
+        loader = spy(new RecordBatchLoader());
+        loader.setConfig(mockConfig(5));
+        loader.setDdbClient(mockDdbClient);
+        loader.setDdbRecordTable(mockDdbRecordTable);
+        loader.setReadGovernor(mockReadGovernor);
+
+        // Don't actually sleep in unit tests.
+        doNothing().when(loader).sleep(anyLong());
+    }
+
+    private static Config mockConfig(int batchSize) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(RecordBatchLoader.CONFIG_KEY_BATCH_SIZE)).thenReturn(batchSize);
+        when(mockConfig.getInt(RecordBatchLoader.CONFIG_KEY_RETRY_BASE_DELAY_MILLIS)).thenReturn(10);
+        when(mockConfig.getInt(RecordBatchLoader.CONFIG_KEY_RETRY_MAX_COUNT)).thenReturn(2);
+        return mockConfig;
+    }
+
+    private void mockBatchGetItem(BatchGetItemOutcome outcome) {
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenAnswer(invocation -> {
+            TableKeysAndAttributes keysAndAttributes = (TableKeysAndAttributes) invocation.getArguments()[1];
+            assertEquals(keysAndAttributes.getTableName(), TABLE_NAME);
+            for (PrimaryKey onePrimaryKey : keysAndAttributes.getPrimaryKeys()) {
+                for (KeyAttribute oneKeyAttr : onePrimaryKey.getComponents()) {
+                    assertEquals(oneKeyAttr.getName(), RecordBatchLoader.KEY_ID);
+                    requestedKeyList.add(oneKeyAttr.getValue());
+                }
+            }
+            return outcome;
+        });
+    }
+
+    private static BatchGetItemOutcome mockOutcome(List<Item> itemList,
+            Map<String, KeysAndAttributes> unprocessedKeys) {
+        BatchGetItemOutcome mockOutcome = mock(BatchGetItemOutcome.class);
+        when(mockOutcome.getTableItems()).thenReturn(ImmutableMap.of(TABLE_NAME, itemList));
+        when(mockOutcome.getUnprocessedKeys()).thenReturn(unprocessedKeys);
+        return mockOutcome;
+    }
+
+    private static Map<String, KeysAndAttributes> makeUnprocessedKeys(String... recordIds) {
+        List<Map<String, AttributeValue>> keyList = new ArrayList<>();
+        for (String oneRecordId : recordIds) {
+            keyList.add(ImmutableMap.of(RecordBatchLoader.KEY_ID, new AttributeValue().withS(oneRecordId)));
+        }
+        return ImmutableMap.of(TABLE_NAME, new KeysAndAttributes().withKeys(keyList));
+    }
+
+    private static Item makeRecord(String recordId) {
+        return new Item().withString(RecordBatchLoader.KEY_ID, recordId);
+    }
+
+    @Test
+    public void batchSizeDefaultsToMax() {
+        RecordBatchLoader zeroLoader = new RecordBatchLoader();
+        zeroLoader.setConfig(mockConfig(0));
+        assertEquals(zeroLoader.getBatchSize(), RecordBatchLoader.MAX_BATCH_SIZE);
+
+        RecordBatchLoader tooBigLoader = new RecordBatchLoader();
+        tooBigLoader.setConfig(mockConfig(RecordBatchLoader.MAX_BATCH_SIZE + 1));
+        assertEquals(tooBigLoader.getBatchSize(), RecordBatchLoader.MAX_BATCH_SIZE);
+
+        assertEquals(loader.getBatchSize(), 5);
+    }
+
+    @Test
+    public void emptyBatch() {
+        Map<String, Item> recordsById = loader.loadRecords(new Metrics(), ImmutableList.of());
+        assertTrue(recordsById.isEmpty());
+        verifyZeroInteractions(mockDdbClient);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void batchTooLarge() {
+        loader.loadRecords(new Metrics(), ImmutableList.of("a", "b", "c", "d", "e", "f"));
+    }
+
+    @Test
+    public void normalCase() {
+        // 4 record IDs, one duplicated, one missing.
+        Item fooRecord = makeRecord("foo");
+        Item barRecord = makeRecord("bar");
+        mockBatchGetItem(mockOutcome(ImmutableList.of(fooRecord, barRecord), ImmutableMap.of()));
+
+        Metrics metrics = new Metrics();
+        Map<String, Item> recordsById = loader.loadRecords(metrics, ImmutableList.of("foo", "bar", "missing",
+                "foo"));
+
+        // Validate result.
+        assertEquals(recordsById.size(), 2);
+        assertSame(recordsById.get("foo"), fooRecord);
+        assertSame(recordsById.get("bar"), barRecord);
+
+        // Duplicate keys are only requested once, since DDB rejects batches with duplicate keys.
+        assertEquals(requestedKeyList, ImmutableList.of("foo", "bar", "missing"));
+
+        // Validate metrics. 3 unique keys in a batch of 5 is 60% full.
+        assertEquals(metrics.getCounterMap().count("numRecordBatches"), 1);
+        assertEquals(metrics.getCounterMap().count("numRecordBatchKeys"), 3);
+        assertEquals(metrics.getCounterMap().count("recordBatchFillPercent[60]"), 1);
+        assertEquals(metrics.getCounterMap().count("numRecordBatchRetries"), 0);
+
+        verify(mockDdbClient, never()).batchGetItemUnprocessed(any(ReturnConsumedCapacity.class),
+                anyMapOf(String.class, KeysAndAttributes.class));
+        verify(mockDdbRecordTable, never()).getItem(anyString(), any());
+        verify(loader, never()).sleep(anyLong());
+
+        // The call went through the read governor.
+        verify(mockReadGovernor).acquire();
+        verify(mockReadGovernor).recordConsumedCapacity(same(metrics), anyListOf(ConsumedCapacity.class));
+        verify(mockReadGovernor, never()).recordThrottle(any());
+    }
+
+    @Test
+    public void unprocessedKeysRetried() {
+        Item fooRecord = makeRecord("foo");
+        Item barRecord = makeRecord("bar");
+        Item bazRecord = makeRecord("baz");
+
+        // First call returns foo, with bar and baz unprocessed. First retry returns bar. Second retry returns baz.
+        Map<String, KeysAndAttributes> unprocessedKeys1 = makeUnprocessedKeys("bar", "baz");
+        Map<String, KeysAndAttributes> unprocessedKeys2 = makeUnprocessedKeys("baz");
+        mockBatchGetItem(mockOutcome(ImmutableList.of(fooRecord), unprocessedKeys1));
+
+        BatchGetItemOutcome retryOutcome1 = mockOutcome(ImmutableList.of(barRecord), unprocessedKeys2);
+        when(mockDdbClient.batchGetItemUnprocessed(eq(ReturnConsumedCapacity.TOTAL), same(unprocessedKeys1))).thenReturn(retryOutcome1);
+
+        BatchGetItemOutcome retryOutcome2 = mockOutcome(ImmutableList.of(bazRecord), null);
+        when(mockDdbClient.batchGetItemUnprocessed(eq(ReturnConsumedCapacity.TOTAL), same(unprocessedKeys2))).thenReturn(retryOutcome2);
+
+        // Execute and validate.
+        Metrics metrics = new Metrics();
+        Map<String, Item> recordsById = loader.loadRecords(metrics, ImmutableList.of("foo", "bar", "baz"));
+        assertEquals(recordsById.size(), 3);
+        assertSame(recordsById.get("foo"), fooRecord);
+        assertSame(recordsById.get("bar"), barRecord);
+        assertSame(recordsById.get("baz"), bazRecord);
+
+        assertEquals(metrics.getCounterMap().count("numRecordBatchRetries"), 2);
+
+        // Backoff is exponential.
+        verify(loader).sleep(10L);
+        verify(loader).sleep(20L);
+        verify(mockDdbRecordTable, never()).getItem(anyString(), any());
+
+        // Unprocessed keys are reported to the governor as throttling.
+        verify(mockReadGovernor, times(2)).recordThrottle(same(metrics));
+        verify(mockReadGovernor, times(3)).acquire();
+    }
+
+    @Test
+    public void retriesExhaustedFallsBackToGetItem() {
+        Item fooRecord = makeRecord("foo");
+        Item barRecord = makeRecord("bar");
+
+        // DDB never processes bar or missing. Max retries is 2.
+        Map<String, KeysAndAttributes> unprocessedKeys = makeUnprocessedKeys("bar", "missing");
+        mockBatchGetItem(mockOutcome(ImmutableList.of(fooRecord), unprocessedKeys));
+
+        BatchGetItemOutcome retryOutcome = mockOutcome(ImmutableList.of(), unprocessedKeys);
+        when(mockDdbClient.batchGetItemUnprocessed(eq(ReturnConsumedCapacity.TOTAL), same(unprocessedKeys))).thenReturn(retryOutcome);
+
+        when(mockDdbRecordTable.getItem(RecordBatchLoader.KEY_ID, "bar")).thenReturn(barRecord);
+
+        // Execute and validate.
+        Metrics metrics = new Metrics();
+        Map<String, Item> recordsById = loader.loadRecords(metrics, ImmutableList.of("foo", "bar", "missing"));
+        assertEquals(recordsById.size(), 2);
+        assertSame(recordsById.get("foo"), fooRecord);
+        assertSame(recordsById.get("bar"), barRecord);
+
+        assertEquals(metrics.getCounterMap().count("numRecordBatchRetries"), 2);
+        assertEquals(metrics.getCounterMap().count("numRecordBatchFallbackGets"), 2);
+
+        verify(mockDdbClient, times(2)).batchGetItemUnprocessed(eq(ReturnConsumedCapacity.TOTAL), same(unprocessedKeys));
+        verify(mockDdbRecordTable).getItem(RecordBatchLoader.KEY_ID, "bar");
+        verify(mockDdbRecordTable).getItem(RecordBatchLoader.KEY_ID, "missing");
+
+        // Fallback gets also go through the governor.
+        verify(mockReadGovernor, times(2)).recordConsumedCapacity(same(metrics),
+                eq(RecordBatchLoader.FALLBACK_GET_CAPACITY_UNITS));
+    }
+
+    @Test
+    public void throughputExceptionRetried() {
+        // First call throws, second call succeeds.
+        Item fooRecord = makeRecord("foo");
+        BatchGetItemOutcome outcome = mockOutcome(ImmutableList.of(fooRecord), null);
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenThrow(new ProvisionedThroughputExceededException("test exception")).thenReturn(outcome);
+
+        // Execute and validate.
+        Metrics metrics = new Metrics();
+        Map<String, Item> recordsById = loader.loadRecords(metrics, ImmutableList.of("foo"));
+        assertEquals(recordsById.size(), 1);
+        assertSame(recordsById.get("foo"), fooRecord);
+
+        verify(mockReadGovernor, times(2)).acquire();
+        verify(mockReadGovernor).recordThrottle(same(metrics));
+        verify(loader).sleep(10L);
+    }
+
+    @Test
+    public void throughputExceptionRetriesExhausted() {
+        ProvisionedThroughputExceededException ex = new ProvisionedThroughputExceededException("test exception");
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenThrow(ex);
+
+        // Max retries is 2, so we make 3 calls, then rethrow.
+        Metrics metrics = new Metrics();
+        try {
+            loader.loadRecords(metrics, ImmutableList.of("foo"));
+            fail("expected exception");
+        } catch (ProvisionedThroughputExceededException thrown) {
+            assertSame(thrown, ex);
+        }
+
+        verify(mockReadGovernor, times(3)).acquire();
+        verify(mockReadGovernor, times(3)).recordThrottle(same(metrics));
+    }
+}
@@ -9,10 +9,12 @@ import static org.testng.Assert.assertTrue;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.joda.time.DateTime;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
@@ -282,9 +284,15 @@ public class RecordFilterHelperTest {
         BridgeHelper mockBridgeHelper = mock(BridgeHelper.class);
         when(mockBridgeHelper.getParticipantByHealthCode(TEST_STUDY, DUMMY_HEALTH_CODE)).thenReturn(participant);
 
+        // set up participant cache - Direct executor, so prefetches complete immediately.
+        ParticipantSharingScopeCache participantSharingScopeCache = new ParticipantSharingScopeCache();
+        participantSharingScopeCache.setConfig(mock(Config.class));
+        participantSharingScopeCache.setBridgeHelper(mockBridgeHelper);
+        participantSharingScopeCache.setPrefetchExecutor(MoreExecutors.newDirectExecutorService());
+
         // set up record filter helper
         RecordFilterHelper helper = new RecordFilterHelper();
-        helper.setBridgeHelper(mockBridgeHelper);
+        helper.setParticipantSharingScopeCache(participantSharingScopeCache);
         return helper;
     }
 
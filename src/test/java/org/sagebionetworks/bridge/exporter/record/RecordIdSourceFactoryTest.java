@@ -1,30 +1,55 @@
 package org.sagebionetworks.bridge.exporter.record;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.sagebionetworks.bridge.exporter.record.RecordIdSourceFactory.STUDY_ID;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
 import com.amazonaws.services.dynamodbv2.document.KeyConditions;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
 import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.internal.IteratorSupport;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
 import org.mockito.ArgumentCaptor;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
-import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 public class RecordIdSourceFactoryTest {
     private static final String FOO_LAST_EXPORT_TIME_STRING = "2016-05-09T20:25:31.346-0700";
@@ -69,7 +94,8 @@ public class RecordIdSourceFactoryTest {
         // execute and validate
         BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
                 .withUseLastExportTime(true).build();
-        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, studyIdsToQuery);
+        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, studyIdsToQuery,
+                new Metrics());
 
         List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
         assertEquals(recordIdList.size(), 4); // only output records in given time range
@@ -82,6 +108,127 @@ public class RecordIdSourceFactoryTest {
         validateRangeKey(barRangeKeyCaptor.getValue(), BAR_LAST_EXPORT_TIME.getMillis(), END_DATE_TIME.getMillis());
     }
 
+    @Test
+    public void fromDdbParallel() throws Exception {
+        // mock map
+        Map<String, DateTime> studyIdsToQuery = ImmutableMap.<String, DateTime>builder()
+                .put("ddb-foo", FOO_LAST_EXPORT_TIME).put("ddb-bar", BAR_LAST_EXPORT_TIME).build();
+
+        Index mockRecordIndex = mock(Index.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+
+        ArgumentCaptor<RangeKeyCondition> barRangeKeyCaptor = ArgumentCaptor.forClass(RangeKeyCondition.class);
+        ArgumentCaptor<RangeKeyCondition> fooRangeKeyCaptor = ArgumentCaptor.forClass(RangeKeyCondition.class);
+
+        // mock DDB
+        List<Item> fooStudyItemList = ImmutableList.of(new Item().withString("id", "foo-1"),
+                new Item().withString("id", "foo-2"));
+        List<Item> barStudyItemList = ImmutableList.of(new Item().withString("id", "bar-1"),
+                new Item().withString("id", "bar-2"), new Item().withString("id", "bar-3"));
+
+        when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-bar"), barRangeKeyCaptor.capture()))
+                .thenReturn(barStudyItemList);
+
+        when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-foo"), fooRangeKeyCaptor.capture()))
+                .thenReturn(fooStudyItemList);
+
+        // set up factory
+        Config mockConfig = mockConfig();
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_QUERY_PARALLELISM)).thenReturn(2);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_QUERY_QUEUE_CAPACITY)).thenReturn(2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            RecordIdSourceFactory factory = new RecordIdSourceFactory();
+            factory.setDdbQueryHelper(mockQueryHelper);
+            factory.setConfig(mockConfig);
+            factory.setDdbRecordStudyUploadedOnIndex(mockRecordIndex);
+            factory.setRecordQueryExecutor(executor);
+
+            // execute and validate
+            BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                    .withUseLastExportTime(true).build();
+            Metrics metrics = new Metrics();
+            Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, studyIdsToQuery, metrics);
+            assertTrue(recordIdIter instanceof ParallelRecordIdSource);
+
+            // Order between studies is not guaranteed, but order within a study is.
+            List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
+            assertEquals(recordIdList.size(), 5);
+            assertTrue(recordIdList.indexOf("foo-1") < recordIdList.indexOf("foo-2"));
+            assertTrue(recordIdList.indexOf("bar-1") < recordIdList.indexOf("bar-2"));
+            assertTrue(recordIdList.indexOf("bar-2") < recordIdList.indexOf("bar-3"));
+
+            validateRangeKey(fooRangeKeyCaptor.getValue(), FOO_LAST_EXPORT_TIME.getMillis(),
+                    END_DATE_TIME.getMillis());
+            validateRangeKey(barRangeKeyCaptor.getValue(), BAR_LAST_EXPORT_TIME.getMillis(),
+                    END_DATE_TIME.getMillis());
+
+            // per-study counters
+            assertEquals(metrics.getCounterMap().count("numRecordIds[ddb-foo]"), 2);
+            assertEquals(metrics.getCounterMap().count("numRecordIds[ddb-bar]"), 3);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void fromDdbTimeSliced() throws Exception {
+        // One study with 100 records, one per millisecond.
+        long startMillis = FOO_LAST_EXPORT_TIME.getMillis();
+        Map<String, DateTime> studyIdsToQuery = ImmutableMap.of("ddb-foo", FOO_LAST_EXPORT_TIME);
+        DateTime endDateTime = FOO_LAST_EXPORT_TIME.plusMillis(100);
+
+        List<Item> fooStudyItemList = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            fooStudyItemList.add(new Item().withString("id", "foo-" + i).withLong("uploadedOn", startMillis + i));
+        }
+
+        // Mock DDB. Query results honor the range key condition.
+        Index mockRecordIndex = mock(Index.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-foo"), any(RangeKeyCondition.class)))
+                .thenAnswer(invocation -> {
+                    RangeKeyCondition rangeKey = invocation.getArgumentAt(3, RangeKeyCondition.class);
+                    long rangeStart = (long) rangeKey.getValues()[0];
+                    long rangeEnd = (long) rangeKey.getValues()[1];
+                    return fooStudyItemList.stream().filter(item -> item.getLong("uploadedOn") >= rangeStart &&
+                            item.getLong("uploadedOn") <= rangeEnd).collect(Collectors.toList());
+                });
+
+        // set up factory
+        Config mockConfig = mockConfig();
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_QUERY_PARALLELISM)).thenReturn(4);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_QUERY_QUEUE_CAPACITY)).thenReturn(10);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_QUERY_SLICE_MAX_COUNT)).thenReturn(4);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_QUERY_SLICE_SPLIT_THRESHOLD)).thenReturn(5);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            RecordIdSourceFactory factory = new RecordIdSourceFactory();
+            factory.setDdbQueryHelper(mockQueryHelper);
+            factory.setConfig(mockConfig);
+            factory.setDdbRecordStudyUploadedOnIndex(mockRecordIndex);
+            factory.setRecordQueryExecutor(executor);
+
+            // execute and validate
+            BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(endDateTime)
+                    .withUseLastExportTime(true).build();
+            Metrics metrics = new Metrics();
+            Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, studyIdsToQuery, metrics);
+
+            // No duplicates or missing records.
+            List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
+            assertEquals(recordIdList.size(), 100);
+            assertEquals(ImmutableSet.copyOf(recordIdList).size(), 100);
+
+            assertEquals(metrics.getCounterMap().count("numQuerySlices[ddb-foo]"), 4);
+            assertEquals(metrics.getCounterMap().count("numRecordIds[ddb-foo]"), 100);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private static void validateRangeKey(RangeKeyCondition rangeKey, long expectedStartMillis,
             long expectedEndMillis) {
         assertEquals(rangeKey.getAttrName(), "uploadedOn");
@@ -98,19 +245,20 @@ public class RecordIdSourceFactoryTest {
     @Test
     public void fromS3Override() throws Exception {
         // mock S3
-        List<String> s3Lines = ImmutableList.of("s3-foo", "s3-bar", "s3-baz");
-        S3Helper mockS3Helper = mock(S3Helper.class);
-        when(mockS3Helper.readS3FileAsLines("dummy-override-bucket", "dummy-override-file")).thenReturn(s3Lines);
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.getObject("dummy-override-bucket", "dummy-override-file")).thenReturn(
+                S3RecordIdSourceTest.makeS3Object("s3-foo\ns3-bar\ns3-baz\n", false, null));
 
         // set up factory
         RecordIdSourceFactory factory = new RecordIdSourceFactory();
         factory.setConfig(mockConfig());
-        factory.setS3Helper(mockS3Helper);
+        factory.setS3Client(mockS3Client);
 
         // execute and validate
         BridgeExporterRequest request = new BridgeExporterRequest.Builder()
                 .withRecordIdS3Override("dummy-override-file").withUseLastExportTime(false).build();
-        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, ImmutableMap.of());
+        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, ImmutableMap.of(),
+                new Metrics());
 
         List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
         assertEquals(recordIdList.size(), 3);
@@ -119,6 +267,195 @@ public class RecordIdSourceFactoryTest {
         assertEquals(recordIdList.get(2), "s3-baz");
     }
 
+    // Mocks an S3 listing for prefix "redrive/" with 2 pages. The first page includes a folder placeholder.
+    private static AmazonS3Client mockS3ClientWithPrefix() throws Exception {
+        ObjectListing listing1 = new ObjectListing();
+        listing1.getObjectSummaries().add(makeObjectSummary("redrive/"));
+        listing1.getObjectSummaries().add(makeObjectSummary("redrive/part-0"));
+        listing1.getObjectSummaries().add(makeObjectSummary("redrive/part-1.gz"));
+        listing1.setTruncated(true);
+
+        ObjectListing listing2 = new ObjectListing();
+        listing2.getObjectSummaries().add(makeObjectSummary("redrive/part-2"));
+        listing2.setTruncated(false);
+
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.listObjects("dummy-override-bucket", "redrive/")).thenReturn(listing1);
+        when(mockS3Client.listNextBatchOfObjects(listing1)).thenReturn(listing2);
+        when(mockS3Client.getObject("dummy-override-bucket", "redrive/part-0")).thenReturn(
+                S3RecordIdSourceTest.makeS3Object("a-0\na-1\n", false, null));
+        when(mockS3Client.getObject("dummy-override-bucket", "redrive/part-1.gz")).thenReturn(
+                S3RecordIdSourceTest.makeS3Object("b-0\nb-1\nb-2\n", true, null));
+        when(mockS3Client.getObject("dummy-override-bucket", "redrive/part-2")).thenReturn(
+                S3RecordIdSourceTest.makeS3Object("c-0\n", false, null));
+        return mockS3Client;
+    }
+
+    private static S3ObjectSummary makeObjectSummary(String key) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName("dummy-override-bucket");
+        summary.setKey(key);
+        return summary;
+    }
+
+    @Test
+    public void fromS3OverridePrefix() throws Exception {
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setConfig(mockConfig());
+        factory.setS3Client(mockS3ClientWithPrefix());
+
+        // Without parallelism, files are read in listing order.
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withRecordIdS3Override("redrive/")
+                .withUseLastExportTime(false).build();
+        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, ImmutableMap.of(),
+                new Metrics());
+        assertEquals(ImmutableList.copyOf(recordIdIter), ImmutableList.of("a-0", "a-1", "b-0", "b-1", "b-2",
+                "c-0"));
+    }
+
+    @Test
+    public void fromS3OverridePrefixParallel() throws Exception {
+        Config mockConfig = mockConfig();
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_QUERY_PARALLELISM)).thenReturn(2);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_QUERY_QUEUE_CAPACITY)).thenReturn(2);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            RecordIdSourceFactory factory = new RecordIdSourceFactory();
+            factory.setConfig(mockConfig);
+            factory.setRecordQueryExecutor(executor);
+            factory.setS3Client(mockS3ClientWithPrefix());
+
+            BridgeExporterRequest request = new BridgeExporterRequest.Builder().withRecordIdS3Override("redrive/")
+                    .withUseLastExportTime(false).build();
+            Metrics metrics = new Metrics();
+            Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, ImmutableMap.of(),
+                    metrics);
+            assertTrue(recordIdIter instanceof ParallelRecordIdSource);
+
+            // Order between files is not guaranteed, but order within a file is.
+            List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
+            assertEquals(ImmutableSet.copyOf(recordIdList), ImmutableSet.of("a-0", "a-1", "b-0", "b-1", "b-2",
+                    "c-0"));
+            assertEquals(recordIdList.size(), 6);
+            assertTrue(recordIdList.indexOf("b-0") < recordIdList.indexOf("b-1"));
+            assertTrue(recordIdList.indexOf("b-1") < recordIdList.indexOf("b-2"));
+
+            // per-file counters
+            assertEquals(metrics.getCounterMap().count("numRecordIds[redrive/part-0]"), 2);
+            assertEquals(metrics.getCounterMap().count("numRecordIds[redrive/part-1.gz]"), 3);
+            assertEquals(metrics.getCounterMap().count("numRecordIds[redrive/part-2]"), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void tableWhitelistPushedDownToQuery() throws Exception {
+        // ddb-foo has whitelisted tables. ddb-bar doesn't, so it isn't queried at all.
+        Map<String, DateTime> studyIdsToQuery = ImmutableMap.<String, DateTime>builder()
+                .put("ddb-foo", FOO_LAST_EXPORT_TIME).put("ddb-bar", BAR_LAST_EXPORT_TIME).build();
+        UploadSchemaKey fooSchemaKey = new UploadSchemaKey.Builder().withAppId("ddb-foo").withSchemaId("foo-schema")
+                .withRevision(2).build();
+        UploadSchemaKey otherStudySchemaKey = new UploadSchemaKey.Builder().withAppId("other-study")
+                .withSchemaId("other-schema").withRevision(1).build();
+
+        // mock DDB - 2 records pass the filter, and DDB scanned 5
+        Iterator<Item> fooItemIter = ImmutableList.of(new Item().withString("id", "foo-1"),
+                new Item().withString("id", "foo-2")).iterator();
+        IteratorSupport<Item, QueryOutcome> mockIter = mock(IteratorSupport.class);
+        when(mockIter.hasNext()).thenAnswer(invocation -> fooItemIter.hasNext());
+        when(mockIter.next()).thenAnswer(invocation -> fooItemIter.next());
+
+        ItemCollection<QueryOutcome> mockItemCollection = mock(ItemCollection.class);
+        when(mockItemCollection.iterator()).thenReturn(mockIter);
+        when(mockItemCollection.getAccumulatedItemCount()).thenReturn(2);
+        when(mockItemCollection.getAccumulatedScannedCount()).thenReturn(5);
+
+        Index mockRecordIndex = mock(Index.class);
+        ArgumentCaptor<QuerySpec> querySpecCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+        when(mockRecordIndex.query(querySpecCaptor.capture())).thenReturn(mockItemCollection);
+
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+
+        // set up factory
+        Config mockConfig = mockConfig();
+        when(mockConfig.get(RecordIdSourceFactory.CONFIG_KEY_QUERY_TABLE_FILTER_ENABLED)).thenReturn("true");
+
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setDdbQueryHelper(mockQueryHelper);
+        factory.setConfig(mockConfig);
+        factory.setDdbRecordStudyUploadedOnIndex(mockRecordIndex);
+
+        // execute and validate
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                .withTableWhitelist(ImmutableSet.of(fooSchemaKey, otherStudySchemaKey)).withUseLastExportTime(true)
+                .build();
+        Metrics metrics = new Metrics();
+        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, studyIdsToQuery, metrics);
+
+        List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
+        assertEquals(recordIdList, ImmutableList.of("foo-1", "foo-2"));
+        assertEquals(metrics.getCounterMap().count("excludedByQuery[ddb-foo]"), 3);
+
+        QuerySpec querySpec = querySpecCaptor.getValue();
+        assertEquals(querySpec.getHashKey().getValue(), "ddb-foo");
+        assertEquals(querySpec.getFilterExpression(),
+                "(#schemaId = :schemaId0 AND #schemaRevision IN (:schemaRevision0_0))");
+        assertEquals(querySpec.getValueMap().get(":schemaId0"), "foo-schema");
+        assertEquals(querySpec.getValueMap().get(":schemaRevision0_0"), 2);
+
+        verify(mockRecordIndex, times(1)).query(any(QuerySpec.class));
+        verifyZeroInteractions(mockQueryHelper);
+    }
+
+    @Test
+    public void tableFilterExpressionMultipleTables() {
+        SortedMap<String, SortedSet<Integer>> revisionsBySchemaId = new TreeMap<>();
+        revisionsBySchemaId.put("schema-a", new TreeSet<>(ImmutableSet.of(3, 1)));
+        revisionsBySchemaId.put("schema-b", new TreeSet<>(ImmutableSet.of(7)));
+
+        RangeKeyCondition rangeKeyCondition = new RangeKeyCondition("uploadedOn").between(1000L, 2000L);
+        QuerySpec querySpec = RecordIdSourceFactory.makeTableFilterQuerySpec("test-study", rangeKeyCondition,
+                revisionsBySchemaId);
+
+        assertEquals(querySpec.getHashKey().getName(), STUDY_ID);
+        assertEquals(querySpec.getHashKey().getValue(), "test-study");
+        assertSame(querySpec.getRangeKeyCondition(), rangeKeyCondition);
+        assertEquals(querySpec.getFilterExpression(), "(#schemaId = :schemaId0 AND #schemaRevision IN " +
+                "(:schemaRevision0_0, :schemaRevision0_1)) OR (#schemaId = :schemaId1 AND #schemaRevision IN " +
+                "(:schemaRevision1_0))");
+        assertEquals(querySpec.getNameMap(), ImmutableMap.of("#schemaId", "schemaId", "#schemaRevision",
+                "schemaRevision"));
+        assertEquals(querySpec.getValueMap(), ImmutableMap.builder().put(":schemaId0", "schema-a")
+                .put(":schemaRevision0_0", 1).put(":schemaRevision0_1", 3).put(":schemaId1", "schema-b")
+                .put(":schemaRevision1_0", 7).build());
+    }
+
+    @Test
+    public void tableFilterDisabled() throws Exception {
+        // By default, the table filter is disabled. The whitelist is ignored, and we query the whole study.
+        Index mockRecordIndex = mock(Index.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-foo"), any(RangeKeyCondition.class)))
+                .thenReturn(ImmutableList.of(new Item().withString("id", "foo-1")));
+
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setDdbQueryHelper(mockQueryHelper);
+        factory.setConfig(mockConfig());
+        factory.setDdbRecordStudyUploadedOnIndex(mockRecordIndex);
+
+        UploadSchemaKey otherSchemaKey = new UploadSchemaKey.Builder().withAppId("ddb-foo")
+                .withSchemaId("other-schema").withRevision(1).build();
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                .withTableWhitelist(ImmutableSet.of(otherSchemaKey)).withUseLastExportTime(true).build();
+        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request,
+                ImmutableMap.of("ddb-foo", FOO_LAST_EXPORT_TIME), new Metrics());
+        assertEquals(ImmutableList.copyOf(recordIdIter), ImmutableList.of("foo-1"));
+        verify(mockRecordIndex, never()).query(any(QuerySpec.class));
+    }
+
     private static Config mockConfig() {
         Config mockConfig = mock(Config.class);
         when(mockConfig.get(BridgeExporterUtil.CONFIG_KEY_RECORD_ID_OVERRIDE_BUCKET))
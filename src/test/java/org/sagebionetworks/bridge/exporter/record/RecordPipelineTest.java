@@ -0,0 +1,255 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+public class RecordPipelineTest {
+    private ExecutorService executor;
+    private List<List<String>> loadedBatchList;
+    private List<String> dispatchedRecordIdList;
+
+    @BeforeMethod
+    public void before() {
+        executor = Executors.newCachedThreadPool();
+        loadedBatchList = Collections.synchronizedList(new ArrayList<>());
+        dispatchedRecordIdList = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @AfterMethod
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    private static List<String> makeRecordIdList(int numRecords) {
+        List<String> recordIdList = new ArrayList<>();
+        for (int i = 0; i < numRecords; i++) {
+            recordIdList.add("record-" + i);
+        }
+        return recordIdList;
+    }
+
+    // Fake loader. Records whose ID contains "missing" aren't found. Batches with an ID that contains "error" throw.
+    private Map<String, Item> loadRecords(List<String> recordIdList) {
+        loadedBatchList.add(recordIdList);
+        for (String oneRecordId : recordIdList) {
+            if (oneRecordId.contains("error")) {
+                throw new IllegalArgumentException("test exception");
+            }
+        }
+
+        Map<String, Item> recordsById = new HashMap<>();
+        for (String oneRecordId : recordIdList) {
+            if (!oneRecordId.contains("missing")) {
+                recordsById.put(oneRecordId, new Item().withString("id", oneRecordId));
+            }
+        }
+        return recordsById;
+    }
+
+    // Fake filter. Records whose ID contains "filtered" are filtered, and missing records are dropped.
+    private static boolean shouldDispatch(String recordId, Item record) {
+        if (recordId.contains("throw")) {
+            throw new IllegalArgumentException("test exception");
+        }
+        return record != null && !recordId.contains("filtered");
+    }
+
+    private void runPipeline(Iterable<String> recordIdIterable, Metrics metrics, int batchSize, int hydrationThreads,
+            int filterThreads, int dispatchThreads) {
+        RecordPipeline pipeline = new RecordPipeline(executor, metrics, 3, batchSize, hydrationThreads,
+                filterThreads, dispatchThreads, 10);
+        pipeline.run(recordIdIterable, this::loadRecords, RecordPipelineTest::shouldDispatch,
+                (recordId, record) -> {
+                    assertEquals(record.getString("id"), recordId);
+                    dispatchedRecordIdList.add(recordId);
+                });
+
+        // All queues are drained at the end.
+        assertEquals(pipeline.getIdBatchQueueDepth(), 0);
+        assertEquals(pipeline.getHydratedQueueDepth(), 0);
+        assertEquals(pipeline.getFilteredQueueDepth(), 0);
+    }
+
+    @Test
+    public void noRecords() {
+        Metrics metrics = new Metrics();
+        runPipeline(ImmutableList.of(), metrics, 5, 2, 2, 2);
+        assertTrue(loadedBatchList.isEmpty());
+        assertTrue(dispatchedRecordIdList.isEmpty());
+        assertEquals(metrics.getCounterMap().count("numTotal"), 0);
+    }
+
+    @Test
+    public void singleThreadedPreservesOrder() {
+        // 12 records, batch size 5, so 2 full batches and 1 partial batch.
+        List<String> recordIdList = makeRecordIdList(12);
+        Metrics metrics = new Metrics();
+        runPipeline(recordIdList, metrics, 5, 1, 1, 1);
+
+        assertEquals(loadedBatchList, ImmutableList.of(recordIdList.subList(0, 5), recordIdList.subList(5, 10),
+                recordIdList.subList(10, 12)));
+        assertEquals(dispatchedRecordIdList, recordIdList);
+        assertEquals(metrics.getCounterMap().count("numTotal"), 12);
+    }
+
+    @Test
+    public void multiThreaded() {
+        // Queue capacity is much smaller than the number of records, which exercises back pressure.
+        List<String> recordIdList = makeRecordIdList(500);
+        Metrics metrics = new Metrics();
+        runPipeline(recordIdList, metrics, 7, 4, 3, 2);
+
+        // Every record is dispatched exactly once, but not necessarily in order.
+        assertEquals(dispatchedRecordIdList.size(), 500);
+        assertEquals(new HashSet<>(dispatchedRecordIdList), new HashSet<>(recordIdList));
+        assertEquals(loadedBatchList.size(), 72);
+        assertEquals(metrics.getCounterMap().count("numTotal"), 500);
+    }
+
+    @Test
+    public void errorsAndFilteredRecords() {
+        // Batch size 2. The second batch fails to load, and so do both of its records on their own. The third and
+        // fourth batches have a missing record, a filtered record, and a record that makes the filter throw.
+        List<String> recordIdList = ImmutableList.of("success-1", "success-2", "error-1", "error-2", "missing",
+                "filtered", "throw", "success-3");
+        runPipeline(recordIdList, new Metrics(), 2, 1, 1, 1);
+        assertEquals(loadedBatchList, ImmutableList.of(ImmutableList.of("success-1", "success-2"),
+                ImmutableList.of("error-1", "error-2"), ImmutableList.of("error-1"), ImmutableList.of("error-2"),
+                ImmutableList.of("missing", "filtered"), ImmutableList.of("throw", "success-3")));
+        assertEquals(dispatchedRecordIdList, ImmutableList.of("success-1", "success-2", "success-3"));
+    }
+
+    @Test
+    public void failedBatchLoadsRecordsIndividually() {
+        // Batch size 3. The first batch fails because of one record. The other records in that batch are loaded on
+        // their own, and dispatched in order. The bad record is dropped.
+        List<String> recordIdList = ImmutableList.of("success-1", "error", "success-2", "success-3");
+        runPipeline(recordIdList, new Metrics(), 3, 1, 1, 1);
+        assertEquals(loadedBatchList, ImmutableList.of(ImmutableList.of("success-1", "error", "success-2"),
+                ImmutableList.of("success-1"), ImmutableList.of("error"), ImmutableList.of("success-2"),
+                ImmutableList.of("success-3")));
+        assertEquals(dispatchedRecordIdList, ImmutableList.of("success-1", "success-2", "success-3"));
+    }
+
+    @Test
+    public void failedSingleRecordBatchIsNotRetried() {
+        // Batch size 1. A failed batch is already a single record, so it's dropped without retrying.
+        List<String> recordIdList = ImmutableList.of("error", "success");
+        runPipeline(recordIdList, new Metrics(), 1, 1, 1, 1);
+        assertEquals(loadedBatchList, ImmutableList.of(ImmutableList.of("error"), ImmutableList.of("success")));
+        assertEquals(dispatchedRecordIdList, ImmutableList.of("success"));
+    }
+
+    @Test
+    public void dispatchErrorDoesNotStopPipeline() {
+        RecordPipeline pipeline = new RecordPipeline(executor, new Metrics(), 3, 2, 1, 1, 1, 10);
+        pipeline.run(makeRecordIdList(4), this::loadRecords, RecordPipelineTest::shouldDispatch,
+                (recordId, record) -> {
+                    if (recordId.equals("record-1")) {
+                        throw new IllegalArgumentException("test exception");
+                    }
+                    dispatchedRecordIdList.add(recordId);
+                });
+        assertEquals(dispatchedRecordIdList, ImmutableList.of("record-0", "record-2", "record-3"));
+    }
+
+    @Test
+    public void cancel() {
+        // The dispatcher cancels the pipeline on the third record. The pipeline stops reading record IDs, drops the
+        // records still in its queues, and returns normally.
+        RecordPipeline pipeline = new RecordPipeline(executor, new Metrics(), 3, 1, 1, 1, 1, 10);
+        pipeline.run(makeRecordIdList(1000), this::loadRecords, RecordPipelineTest::shouldDispatch,
+                (recordId, record) -> {
+                    dispatchedRecordIdList.add(recordId);
+                    if (recordId.equals("record-2")) {
+                        pipeline.cancel();
+                    }
+                });
+        assertEquals(dispatchedRecordIdList, ImmutableList.of("record-0", "record-1", "record-2"));
+        assertTrue(loadedBatchList.size() < 1000);
+        assertEquals(pipeline.getIdBatchQueueDepth(), 0);
+        assertEquals(pipeline.getHydratedQueueDepth(), 0);
+        assertEquals(pipeline.getFilteredQueueDepth(), 0);
+    }
+
+    @Test
+    public void cancelClosesRecordIdSource() throws Exception {
+        // The record ID source has a query that never ends. When the pipeline is cancelled, it closes the source, so
+        // the query stops, instead of blocking on the source's full queue forever.
+        Iterable<Item> endlessItemIterable = () -> new Iterator<Item>() {
+            private int numReturned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Item next() {
+                return new Item().withString("id", "record-" + (numReturned++));
+            }
+        };
+        ParallelRecordIdSource source = new ParallelRecordIdSource(executor, 3, new Metrics());
+        source.submitQuery("endless-study", endlessItemIterable);
+
+        RecordPipeline pipeline = new RecordPipeline(executor, new Metrics(), 3, 1, 1, 1, 1, 10);
+        pipeline.run(source, this::loadRecords, RecordPipelineTest::shouldDispatch, (recordId, record) -> {
+            dispatchedRecordIdList.add(recordId);
+            if (recordId.equals("record-2")) {
+                pipeline.cancel();
+            }
+        });
+        assertEquals(dispatchedRecordIdList, ImmutableList.of("record-0", "record-1", "record-2"));
+        assertTrue(ParallelRecordIdSourceTest.waitForQueriesDone(source));
+    }
+
+    @Test
+    public void recordIdSourceError() {
+        // Record ID source returns 3 records, then fails.
+        Iterable<String> failingIterable = () -> new Iterator<String>() {
+            private int numReturned = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (numReturned < 3) {
+                    return true;
+                }
+                throw new IllegalStateException("test exception");
+            }
+
+            @Override
+            public String next() {
+                return "record-" + (numReturned++);
+            }
+        };
+
+        try {
+            runPipeline(failingIterable, new Metrics(), 2, 2, 2, 1);
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            assertEquals(ex.getMessage(), "test exception");
+        }
+
+        // The records we read before the failure are still processed.
+        assertEquals(new HashSet<>(dispatchedRecordIdList), new HashSet<>(makeRecordIdList(3)));
+    }
+}
@@ -0,0 +1,186 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.util.List;
+
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+public class RecordReadGovernorTest {
+    private static final double DELTA = 0.001;
+
+    private Table mockDdbRecordTable;
+    private RecordReadGovernor governor;
+
+    @BeforeMethod
+    public void before() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(RecordReadGovernor.CONFIG_KEY_DEFAULT_CAPACITY_UNITS)).thenReturn(40);
+        when(mockConfig.getInt(RecordReadGovernor.CONFIG_KEY_MIN_CAPACITY_UNITS)).thenReturn(5);
+        when(mockConfig.getInt(RecordReadGovernor.CONFIG_KEY_TARGET_PERCENT)).thenReturn(50);
+
+        mockDdbRecordTable = mock(Table.class);
+
+        governor = new RecordReadGovernor();
+        governor.setConfig(mockConfig);
+        governor.setDdbRecordTable(mockDdbRecordTable);
+    }
+
+    private void mockProvisionedCapacity(Long readCapacityUnits) {
+        TableDescription tableDescription = new TableDescription().withProvisionedThroughput(
+                new ProvisionedThroughputDescription().withReadCapacityUnits(readCapacityUnits));
+        when(mockDdbRecordTable.describe()).thenReturn(tableDescription);
+    }
+
+    @Test
+    public void targetIsPercentOfProvisionedCapacity() {
+        mockProvisionedCapacity(200L);
+
+        Metrics metrics = new Metrics();
+        governor.initForRequest(metrics);
+        assertEquals(governor.getTargetRate(), 100.0, DELTA);
+        assertEquals(governor.getCurrentRate(), 100.0, DELTA);
+        assertEquals(metrics.getGaugeMap().get(RecordReadGovernor.GAUGE_READ_RATE).longValue(), 100L);
+    }
+
+    @Test
+    public void targetHasMinimum() {
+        mockProvisionedCapacity(4L);
+        governor.initForRequest(new Metrics());
+        assertEquals(governor.getTargetRate(), 5.0, DELTA);
+    }
+
+    @Test
+    public void noProvisionedCapacityUsesDefault() {
+        // On-demand tables report 0 provisioned capacity.
+        mockProvisionedCapacity(0L);
+        governor.initForRequest(new Metrics());
+        assertEquals(governor.getTargetRate(), 20.0, DELTA);
+    }
+
+    @Test
+    public void describeErrorUsesDefault() {
+        when(mockDdbRecordTable.describe()).thenThrow(new IllegalStateException("test exception"));
+        governor.initForRequest(new Metrics());
+        assertEquals(governor.getTargetRate(), 20.0, DELTA);
+    }
+
+    @Test
+    public void throttleAndRecover() {
+        mockProvisionedCapacity(200L);
+        Metrics metrics = new Metrics();
+        governor.initForRequest(metrics);
+
+        // Throttling halves the rate, down to the minimum.
+        governor.recordThrottle(metrics);
+        assertEquals(governor.getCurrentRate(), 50.0, DELTA);
+        governor.recordThrottle(metrics);
+        governor.recordThrottle(metrics);
+        governor.recordThrottle(metrics);
+        governor.recordThrottle(metrics);
+        assertEquals(governor.getCurrentRate(), 6.25, DELTA);
+        governor.recordThrottle(metrics);
+        assertEquals(governor.getCurrentRate(), 5.0, DELTA);
+        assertEquals(metrics.getCounterMap().count(RecordReadGovernor.METRIC_THROTTLE_EVENTS), 6);
+        assertEquals(governor.getNumThrottles(), 6);
+        assertEquals(metrics.getGaugeMap().get(RecordReadGovernor.GAUGE_READ_RATE).longValue(), 5L);
+
+        // Not enough successful reads to recover.
+        for (int i = 0; i < RecordReadGovernor.RECOVERY_READ_COUNT - 1; i++) {
+            governor.recordConsumedCapacity(metrics, 1.0);
+        }
+        assertEquals(governor.getCurrentRate(), 5.0, DELTA);
+
+        // One more read, and we recover by 10% of the target.
+        governor.recordConsumedCapacity(metrics, ImmutableList.of(new ConsumedCapacity().withCapacityUnits(2.0)));
+        assertEquals(governor.getCurrentRate(), 15.0, DELTA);
+        assertEquals(metrics.getGaugeMap().get(RecordReadGovernor.GAUGE_READ_RATE).longValue(), 15L);
+
+        // 19 reads of 1 unit plus 1 read of 2 units is 21 units.
+        assertEquals(metrics.getCounterMap().count(RecordReadGovernor.METRIC_READ_CAPACITY_UNITS), 21);
+
+        // Recovery never goes above the target.
+        for (int i = 0; i < RecordReadGovernor.RECOVERY_READ_COUNT * 20; i++) {
+            governor.recordConsumedCapacity(metrics, 0.0);
+        }
+        assertEquals(governor.getCurrentRate(), 100.0, DELTA);
+    }
+
+    @Test
+    public void concurrentRequestKeepsThrottledRate() {
+        mockProvisionedCapacity(200L);
+        Metrics metrics = new Metrics();
+        governor.initForRequest(metrics);
+        governor.recordThrottle(metrics);
+        assertEquals(governor.getCurrentRate(), 50.0, DELTA);
+
+        // A second request starts while the first is still running. The throttled rate is kept.
+        Metrics otherMetrics = new Metrics();
+        governor.initForRequest(otherMetrics);
+        assertEquals(governor.getTargetRate(), 100.0, DELTA);
+        assertEquals(governor.getCurrentRate(), 50.0, DELTA);
+        assertEquals(otherMetrics.getGaugeMap().get(RecordReadGovernor.GAUGE_READ_RATE).longValue(), 50L);
+
+        // Provisioned capacity drops, and a third request starts. The rate is capped to the new target.
+        mockProvisionedCapacity(40L);
+        governor.initForRequest(new Metrics());
+        assertEquals(governor.getTargetRate(), 20.0, DELTA);
+        assertEquals(governor.getCurrentRate(), 20.0, DELTA);
+
+        // One request finishes. The next request still keeps the current rate.
+        governor.finishRequest();
+        governor.recordThrottle(metrics);
+        mockProvisionedCapacity(200L);
+        governor.initForRequest(new Metrics());
+        assertEquals(governor.getCurrentRate(), 10.0, DELTA);
+
+        // All requests finish. The next request resets the rate to the target.
+        governor.finishRequest();
+        governor.finishRequest();
+        governor.finishRequest();
+        governor.initForRequest(new Metrics());
+        assertEquals(governor.getCurrentRate(), 100.0, DELTA);
+    }
+
+    @Test
+    public void extraFinishRequestIsIgnored() {
+        mockProvisionedCapacity(200L);
+        Metrics metrics = new Metrics();
+        governor.finishRequest();
+        governor.initForRequest(metrics);
+        governor.recordThrottle(metrics);
+
+        // The extra finishRequest() didn't count as a running request, so this request keeps the throttled rate.
+        governor.initForRequest(new Metrics());
+        assertEquals(governor.getCurrentRate(), 50.0, DELTA);
+    }
+
+    @Test
+    public void acquire() {
+        mockProvisionedCapacity(200L);
+        governor.initForRequest(new Metrics());
+
+        // Smoke test. At 100 RCU/sec, this should return almost immediately.
+        governor.recordConsumedCapacity(new Metrics(), 3.0);
+        governor.acquire();
+        governor.acquire();
+    }
+
+    @Test
+    public void nullConsumedCapacity() {
+        Metrics metrics = new Metrics();
+        governor.recordConsumedCapacity(metrics, (List<ConsumedCapacity>) null);
+        assertEquals(metrics.getCounterMap().count(RecordReadGovernor.METRIC_READ_CAPACITY_UNITS), 0);
+    }
+}
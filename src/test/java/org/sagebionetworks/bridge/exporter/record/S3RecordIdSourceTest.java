@@ -0,0 +1,133 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPOutputStream;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+public class S3RecordIdSourceTest {
+    private static final String BUCKET = "dummy-bucket";
+
+    // Makes an S3 object with the given content. Package-scoped so other record tests can use it.
+    static S3Object makeS3Object(String content, boolean gzip, String contentEncoding) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        if (gzip) {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+                gzipOutputStream.write(bytes);
+            }
+            bytes = byteArrayOutputStream.toByteArray();
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (contentEncoding != null) {
+            metadata.setContentEncoding(contentEncoding);
+        }
+
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new ByteArrayInputStream(bytes));
+        s3Object.setObjectMetadata(metadata);
+        return s3Object;
+    }
+
+    @Test
+    public void plainText() throws Exception {
+        // Includes blank lines, surrounding whitespace, and no trailing newline.
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.getObject(BUCKET, "record-ids")).thenReturn(makeS3Object("foo\n\n  bar \r\nbaz", false,
+                null));
+
+        S3RecordIdSource source = new S3RecordIdSource(mockS3Client, BUCKET, "record-ids");
+        assertSame(source.iterator(), source);
+        assertEquals(ImmutableList.copyOf(source.iterator()), ImmutableList.of("foo", "bar", "baz"));
+        assertFalse(source.hasNext());
+
+        try {
+            source.next();
+            fail("expected exception");
+        } catch (NoSuchElementException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void gzipByKeySuffix() throws Exception {
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.getObject(BUCKET, "record-ids.gz")).thenReturn(makeS3Object("foo\nbar\n", true, null));
+
+        S3RecordIdSource source = new S3RecordIdSource(mockS3Client, BUCKET, "record-ids.gz");
+        assertEquals(ImmutableList.copyOf(source.iterator()), ImmutableList.of("foo", "bar"));
+    }
+
+    @Test
+    public void gzipByContentEncoding() throws Exception {
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.getObject(BUCKET, "record-ids")).thenReturn(makeS3Object("foo\nbar\n", true, "gzip"));
+
+        S3RecordIdSource source = new S3RecordIdSource(mockS3Client, BUCKET, "record-ids");
+        assertEquals(ImmutableList.copyOf(source.iterator()), ImmutableList.of("foo", "bar"));
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.getObject(BUCKET, "record-ids")).thenReturn(makeS3Object("", false, null));
+
+        S3RecordIdSource source = new S3RecordIdSource(mockS3Client, BUCKET, "record-ids");
+        assertFalse(source.hasNext());
+    }
+
+    @Test
+    public void lazyOpen() {
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        new S3RecordIdSource(mockS3Client, BUCKET, "record-ids");
+        verify(mockS3Client, never()).getObject(BUCKET, "record-ids");
+    }
+
+    @Test
+    public void closeStopsIteration() throws Exception {
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.getObject(BUCKET, "record-ids")).thenReturn(makeS3Object("foo\nbar\n", false, null));
+
+        S3RecordIdSource source = new S3RecordIdSource(mockS3Client, BUCKET, "record-ids");
+        assertTrue(source.hasNext());
+        assertEquals(source.next(), "foo");
+        source.close();
+        assertFalse(source.hasNext());
+    }
+
+    @Test
+    public void corruptGzip() throws Exception {
+        // Not actually gzipped.
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.getObject(BUCKET, "record-ids.gz")).thenReturn(makeS3Object("foo\nbar\n", false, null));
+
+        S3RecordIdSource source = new S3RecordIdSource(mockS3Client, BUCKET, "record-ids.gz");
+        try {
+            source.hasNext();
+            fail("expected exception");
+        } catch (UncheckedIOException ex) {
+            // expected exception
+        }
+        assertFalse(source.hasNext());
+    }
+}
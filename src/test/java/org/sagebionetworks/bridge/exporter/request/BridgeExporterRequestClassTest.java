@@ -0,0 +1,50 @@
+package org.sagebionetworks.bridge.exporter.request;
+
+import static org.testng.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+public class BridgeExporterRequestClassTest {
+    private static final DateTime START_DATE_TIME = DateTime.parse("2015-10-31T00:00:00.000Z");
+    private static final DateTime END_DATE_TIME = DateTime.parse("2015-10-31T23:59:59.999Z");
+    private static final UploadSchemaKey SCHEMA_KEY = new UploadSchemaKey.Builder().withAppId("test-study")
+            .withSchemaId("test-schema").withRevision(1).build();
+
+    @DataProvider(name = "requestClassProvider")
+    public Object[][] requestClassProvider() {
+        return new Object[][] {
+                // Record redrive
+                { new BridgeExporterRequest.Builder().withRecordIdS3Override("redrive-record-ids").withRedriveCount(1)
+                        .withUseLastExportTime(false).build(), BridgeExporterRequestClass.REDRIVE },
+                // Table redrive
+                { new BridgeExporterRequest.Builder().withStartDateTime(START_DATE_TIME)
+                        .withEndDateTime(END_DATE_TIME).withRedriveCount(2).withStudyWhitelist(ImmutableSet.of(
+                        "test-study")).withTableWhitelist(ImmutableSet.of(SCHEMA_KEY)).withUseLastExportTime(false)
+                        .build(), BridgeExporterRequestClass.REDRIVE },
+                // Record list
+                { new BridgeExporterRequest.Builder().withRecordIdS3Override("record-ids")
+                        .withUseLastExportTime(false).build(), BridgeExporterRequestClass.RECORD_LIST },
+                // Custom schedule study export
+                { new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                        .withStudyWhitelist(ImmutableSet.of("test-study")).withUseLastExportTime(true).build(),
+                        BridgeExporterRequestClass.STUDY },
+                // Nightly export
+                { new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME).withUseLastExportTime(true)
+                        .build(), BridgeExporterRequestClass.ALL_STUDIES },
+                // Time range for all studies
+                { new BridgeExporterRequest.Builder().withStartDateTime(START_DATE_TIME)
+                        .withEndDateTime(END_DATE_TIME).withUseLastExportTime(false).build(),
+                        BridgeExporterRequestClass.ALL_STUDIES },
+        };
+    }
+
+    @Test(dataProvider = "requestClassProvider")
+    public void forRequest(BridgeExporterRequest request, BridgeExporterRequestClass expected) {
+        assertEquals(BridgeExporterRequestClass.forRequest(request), expected);
+    }
+}
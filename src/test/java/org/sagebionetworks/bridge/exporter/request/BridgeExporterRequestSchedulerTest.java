@@ -0,0 +1,290 @@
+package org.sagebionetworks.bridge.exporter.request;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.record.BridgeExporterRecordProcessor;
+import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
+
+public class BridgeExporterRequestSchedulerTest {
+    private static final BridgeExporterRequest REQUEST_A = new BridgeExporterRequest.Builder()
+            .withRecordIdS3Override("dummy-override-a").withTag("request A").withUseLastExportTime(false).build();
+    private static final BridgeExporterRequest REQUEST_B = new BridgeExporterRequest.Builder()
+            .withRecordIdS3Override("dummy-override-b").withTag("request B").withUseLastExportTime(false).build();
+    private static final BridgeExporterRequest ALL_STUDIES_REQUEST = new BridgeExporterRequest.Builder()
+            .withEndDateTime(DateTime.parse("2015-10-31T23:59:59.999Z")).withTag("all studies")
+            .withUseLastExportTime(true).build();
+    private static final BridgeExporterRequest REDRIVE_REQUEST = new BridgeExporterRequest.Builder()
+            .withRecordIdS3Override("dummy-redrive").withRedriveCount(1).withTag("redrive")
+            .withUseLastExportTime(false).build();
+
+    private BridgeExporterRecordProcessor mockRecordProcessor;
+    private BridgeExporterRequestScheduler scheduler;
+
+    @BeforeMethod
+    public void before() {
+        mockRecordProcessor = mock(BridgeExporterRecordProcessor.class);
+
+        scheduler = new BridgeExporterRequestScheduler();
+        scheduler.setRecordProcessor(mockRecordProcessor);
+    }
+
+    @Test
+    public void defaultConfig() {
+        scheduler.setConfig(mock(Config.class));
+        assertEquals(scheduler.getMaxConcurrentRequests(), 1);
+    }
+
+    @Test
+    public void runRequest() throws Exception {
+        scheduler.setConfig(mockConfig(2));
+        scheduler.runRequest(REQUEST_A);
+        verify(mockRecordProcessor).processRecordsForRequest(eq(REQUEST_A), any());
+        assertEquals(scheduler.getNumActiveRequests(), 0);
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        scheduler.setConfig(mockConfig(2));
+
+        Metrics metrics = new Metrics();
+        scheduler.runRequest(REDRIVE_REQUEST, metrics);
+        verify(mockRecordProcessor).processRecordsForRequest(REDRIVE_REQUEST, metrics);
+
+        assertEquals(metrics.getKeyValuesMap().get(BridgeExporterRequestScheduler.METRIC_REQUEST_CLASS),
+                ImmutableSet.of("REDRIVE"));
+        assertTrue(metrics.getGaugeMap().containsKey(
+                BridgeExporterRequestScheduler.METRIC_PREFIX_REQUEST_QUEUE_WAIT_MILLIS + "[REDRIVE]"));
+        assertEquals(metrics.getGaugeMap().get(BridgeExporterRequestScheduler.METRIC_NUM_QUEUED_REQUESTS)
+                .longValue(), 0);
+    }
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        scheduler.setConfig(mockConfig(2));
+
+        // Both requests block until we let them finish. If they couldn't run at the same time, this would deadlock.
+        CountDownLatch startedLatch = new CountDownLatch(2);
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            startedLatch.countDown();
+            finishLatch.await();
+            return null;
+        }).when(mockRecordProcessor).processRecordsForRequest(any(), any());
+
+        Thread threadA = startRequestThread(REQUEST_A);
+        Thread threadB = startRequestThread(REQUEST_B);
+        startedLatch.await();
+        assertEquals(scheduler.getNumActiveRequests(), 2);
+
+        finishLatch.countDown();
+        threadA.join();
+        threadB.join();
+        assertEquals(scheduler.getNumActiveRequests(), 0);
+    }
+
+    @Test
+    public void requestWaitsForSlot() throws Exception {
+        scheduler.setConfig(mockConfig(1));
+
+        // Request A blocks until we let it finish.
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            startedLatch.countDown();
+            finishLatch.await();
+            return null;
+        }).when(mockRecordProcessor).processRecordsForRequest(eq(REQUEST_A), any());
+
+        Thread threadA = startRequestThread(REQUEST_A);
+        startedLatch.await();
+
+        // Request B waits for request A.
+        Thread threadB = startRequestThread(REQUEST_B);
+        while (threadB.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        verify(mockRecordProcessor, times(0)).processRecordsForRequest(eq(REQUEST_B), any());
+        assertEquals(scheduler.getNumActiveRequests(), 1);
+
+        // Finish request A. Request B runs.
+        finishLatch.countDown();
+        threadA.join();
+        threadB.join();
+        verify(mockRecordProcessor).processRecordsForRequest(eq(REQUEST_B), any());
+        assertEquals(scheduler.getNumActiveRequests(), 0);
+    }
+
+    @Test
+    public void queuedRequestGivesUpAfterMaxWait() throws Exception {
+        scheduler.setConfig(mockConfig(1));
+        scheduler.setMaxQueueWaitMillis(100);
+
+        // Request A blocks until we let it finish.
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            startedLatch.countDown();
+            finishLatch.await();
+            return null;
+        }).when(mockRecordProcessor).processRecordsForRequest(eq(REQUEST_A), any());
+
+        Thread threadA = startRequestThread(REQUEST_A);
+        startedLatch.await();
+
+        // Request B gives up, so its SQS message can be received again later.
+        try {
+            scheduler.runRequest(REQUEST_B);
+            fail("expected exception");
+        } catch (RestartBridgeExporterException ex) {
+            // expected exception
+        }
+        verify(mockRecordProcessor, times(0)).processRecordsForRequest(eq(REQUEST_B), any());
+        assertEquals(scheduler.getNumQueuedRequests(), 0);
+        assertEquals(scheduler.getNumActiveRequests(), 1);
+
+        // Finish request A. The next request runs right away.
+        finishLatch.countDown();
+        threadA.join();
+        scheduler.runRequest(REQUEST_B);
+        verify(mockRecordProcessor).processRecordsForRequest(eq(REQUEST_B), any());
+    }
+
+    @Test
+    public void higherPriorityRequestRunsFirst() throws Exception {
+        scheduler.setConfig(mockConfig(1));
+
+        // Request A blocks until we let it finish. Keep track of the order requests run in.
+        List<BridgeExporterRequest> runOrder = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            BridgeExporterRequest request = invocation.getArgumentAt(0, BridgeExporterRequest.class);
+            runOrder.add(request);
+            if (request == REQUEST_A) {
+                startedLatch.countDown();
+                finishLatch.await();
+            }
+            return null;
+        }).when(mockRecordProcessor).processRecordsForRequest(any(), any());
+
+        Thread threadA = startRequestThread(REQUEST_A);
+        startedLatch.await();
+
+        // The all-studies request arrives before the redrive, but the redrive runs first.
+        Thread allStudiesThread = startRequestThread(ALL_STUDIES_REQUEST);
+        waitForNumQueuedRequests(1);
+        Thread redriveThread = startRequestThread(REDRIVE_REQUEST);
+        waitForNumQueuedRequests(2);
+
+        finishLatch.countDown();
+        threadA.join();
+        allStudiesThread.join();
+        redriveThread.join();
+        assertEquals(runOrder, ImmutableList.of(REQUEST_A, REDRIVE_REQUEST, ALL_STUDIES_REQUEST));
+    }
+
+    @Test
+    public void allStudiesRequestLeavesSlotForSmallRequests() throws Exception {
+        scheduler.setConfig(mockConfig(2));
+
+        // The first all-studies request blocks until we let it finish.
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            startedLatch.countDown();
+            finishLatch.await();
+            return null;
+        }).when(mockRecordProcessor).processRecordsForRequest(eq(ALL_STUDIES_REQUEST), any());
+
+        Thread allStudiesThread1 = startRequestThread(ALL_STUDIES_REQUEST);
+        startedLatch.await();
+
+        // A second all-studies request can't take the last slot.
+        Thread allStudiesThread2 = startRequestThread(ALL_STUDIES_REQUEST);
+        waitForNumQueuedRequests(1);
+        assertEquals(scheduler.getNumActiveRequests(), 1);
+
+        // But a smaller request can, even though it arrived later.
+        scheduler.runRequest(REQUEST_A);
+        verify(mockRecordProcessor).processRecordsForRequest(eq(REQUEST_A), any());
+        assertEquals(scheduler.getNumQueuedRequests(), 1);
+
+        // Finish the first all-studies request. The second one runs.
+        finishLatch.countDown();
+        allStudiesThread1.join();
+        allStudiesThread2.join();
+        verify(mockRecordProcessor, times(2)).processRecordsForRequest(eq(ALL_STUDIES_REQUEST), any());
+        assertEquals(scheduler.getNumActiveRequests(), 0);
+    }
+
+    @Test
+    public void failedRequestReleasesSlot() throws Exception {
+        scheduler.setConfig(mockConfig(1));
+        doThrow(RestartBridgeExporterException.class).when(mockRecordProcessor).processRecordsForRequest(
+                eq(REQUEST_A), any());
+
+        try {
+            scheduler.runRequest(REQUEST_A);
+            fail("expected exception");
+        } catch (RestartBridgeExporterException ex) {
+            // expected exception
+        }
+        assertEquals(scheduler.getNumActiveRequests(), 0);
+
+        // The next request can still run.
+        scheduler.runRequest(REQUEST_B);
+        verify(mockRecordProcessor).processRecordsForRequest(eq(REQUEST_B), any());
+    }
+
+    // Helper method which mocks the config with the given max concurrent requests.
+    private static Config mockConfig(int maxConcurrentRequests) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(BridgeExporterUtil.CONFIG_KEY_MAX_CONCURRENT_REQUESTS)).thenReturn(
+                maxConcurrentRequests);
+        return mockConfig;
+    }
+
+    // Helper method which waits until the given number of requests are queued.
+    private void waitForNumQueuedRequests(int expected) throws InterruptedException {
+        while (scheduler.getNumQueuedRequests() != expected) {
+            Thread.sleep(10);
+        }
+    }
+
+    // Helper method which runs the given request in a new thread.
+    private Thread startRequestThread(BridgeExporterRequest request) {
+        Thread thread = new Thread(() -> {
+            try {
+                scheduler.runRequest(request);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
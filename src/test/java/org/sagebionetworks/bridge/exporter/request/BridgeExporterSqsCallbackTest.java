@@ -8,7 +8,6 @@ import org.mockito.ArgumentCaptor;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
-import org.sagebionetworks.bridge.exporter.record.BridgeExporterRecordProcessor;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 
 public class BridgeExporterSqsCallbackTest {
@@ -17,16 +16,16 @@ public class BridgeExporterSqsCallbackTest {
         // Basic test that tests data flow. JSON parsing is already tested by BridgeExporterRequestTest.
 
         // set up test callback
-        BridgeExporterRecordProcessor mockRecordProcessor = mock(BridgeExporterRecordProcessor.class);
+        BridgeExporterRequestScheduler mockRequestScheduler = mock(BridgeExporterRequestScheduler.class);
 
         BridgeExporterSqsCallback callback = new BridgeExporterSqsCallback();
-        callback.setRecordProcessor(mockRecordProcessor);
+        callback.setRequestScheduler(mockRequestScheduler);
 
         // execute and verify
         callback.callback("{\"endDateTime\":\"2015-10-31T23:59:59.000Z\", \"useLastExportTime\":true}");
 
         ArgumentCaptor<BridgeExporterRequest> requestCaptor = ArgumentCaptor.forClass(BridgeExporterRequest.class);
-        verify(mockRecordProcessor).processRecordsForRequest(requestCaptor.capture());
+        verify(mockRequestScheduler).runRequest(requestCaptor.capture());
         BridgeExporterRequest request = requestCaptor.getValue();
         assertEquals(request.getEndDateTime().toString(), "2015-10-31T23:59:59.000Z");
     }
@@ -85,6 +85,20 @@ public class SynapseHelperSerializeTest {
         testHelper(new Metrics(), fieldDefForType(fieldType), input, expected);
     }
 
+    @Test
+    public void compiledSerializerIsReusable() throws Exception {
+        // Compile once, then serialize several values. Max length is resolved at compile time.
+        UploadFieldDefinition fieldDef = new UploadFieldDefinition().name(TEST_FIELD_NAME)
+                .type(UploadFieldType.STRING).maxLength(3);
+        FieldSerializer serializer = SynapseHelper.compileFieldSerializer(TEST_STUDY_ID, fieldDef);
+
+        SynapseHelper synapseHelper = new SynapseHelper();
+        assertEquals(serializer.serialize(synapseHelper, new Metrics(), TEST_PROJECT_ID, TEST_RECORD_ID,
+                new TextNode("foobar")), "foo");
+        assertEquals(serializer.serialize(synapseHelper, new Metrics(), TEST_PROJECT_ID, TEST_RECORD_ID,
+                new TextNode("<b>ab</b>")), "ab");
+    }
+
     @Test
     public void inlineJsonBlob() throws Exception {
         // based on real JSON blobs
@@ -8,6 +8,9 @@ import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNull;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.client.SynapseClient;
@@ -95,6 +98,57 @@ public class SynapseHelperUploadAttachmentTest {
         verify(mockClient, never()).createExternalS3FileHandle(any());
     }
 
+    @Test
+    public void concurrentSynapseCallsAreLimited() throws Exception {
+        // Only 1 Synapse call at a time.
+        Config mockConfig = mockConfig();
+        when(mockConfig.getInt(SynapseHelper.CONFIG_KEY_SYNAPSE_MAX_CONCURRENT_CALLS)).thenReturn(1);
+        helper.setConfig(mockConfig);
+
+        // The first call blocks in Synapse until we let it finish.
+        S3FileHandle createdFileHandle = new S3FileHandle();
+        createdFileHandle.setId(TEST_FILE_HANDLE_ID);
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        AtomicInteger numCalls = new AtomicInteger();
+        when(mockClient.createExternalS3FileHandle(any())).thenAnswer(invocation -> {
+            if (numCalls.incrementAndGet() == 1) {
+                startedLatch.countDown();
+                finishLatch.await();
+            }
+            return createdFileHandle;
+        });
+
+        Thread firstThread = startUploadThread();
+        startedLatch.await();
+
+        // The second call waits for a permit, and doesn't call Synapse.
+        Thread secondThread = startUploadThread();
+        while (secondThread.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        assertEquals(numCalls.get(), 1);
+
+        // Finish the first call. The second call goes through.
+        finishLatch.countDown();
+        firstThread.join();
+        secondThread.join();
+        assertEquals(numCalls.get(), 2);
+    }
+
+    // Helper method which uploads the test attachment in a new thread.
+    private Thread startUploadThread() {
+        Thread thread = new Thread(() -> {
+            try {
+                helper.uploadFromS3ToSynapseFileHandle(TEST_PROJECT_ID, TEST_ATTACHMENT_ID);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
     private static Config mockConfig() {
         Config mockConfig = mock(Config.class);
         when(mockConfig.get(BridgeExporterUtil.CONFIG_KEY_ATTACHMENT_S3_BUCKET)).thenReturn(TEST_ATTACHMENTS_BUCKET);
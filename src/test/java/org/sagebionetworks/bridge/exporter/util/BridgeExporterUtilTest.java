@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.exporter.util;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import java.util.HashMap;
@@ -13,6 +14,8 @@ import com.amazonaws.services.dynamodbv2.document.Item;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import org.jsoup.Jsoup;
+import org.jsoup.safety.Whitelist;
 
 import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
 import org.sagebionetworks.bridge.exporter.synapse.TransferMethod;
@@ -183,6 +186,95 @@ public class BridgeExporterUtilTest {
                 "dummy-study"), expected);
     }
 
+    @DataProvider(name = "jsoupEquivalenceDataProvider")
+    public Object[][] jsoupEquivalenceDataProvider() {
+        return new Object[][] {
+                // Plain text, which takes the fast path.
+                { "" },
+                { "a" },
+                { "lorem ipsum" },
+                { " " },
+                { " \t\r\n\f " },
+                { "  leading spaces" },
+                { "trailing spaces  " },
+                { "\tleading tab" },
+                { "trailing newline\n" },
+                { "double  space" },
+                { "newlines\n\n\nCRLF\r\ntabs\t\ttabs" },
+                { "form\ffeed" },
+                { "quote\"quote 'single' `back`" },
+                { "escaped\\\"quote" },
+                { "[ \"inline\", \"json\", \"blob\" ]" },
+                { "{\"key\":\"value\", \"nested\":{\"list\":[1, 2.5, true, null]}}" },
+                { "2017-09-20T16:57:24.130+0900" },
+                { "caf\u00e9 na\u00efve \u00fcber" },
+                { "\u65e5\u672c\u8a9e \u4e2d\u6587 \ud55c\uad6d\uc5b4" },
+                { "snowman \u2603 and emoji \ud83d\ude00\ud83d\udc4d" },
+                { "ideographic\u3000space and en\u2002space" },
+                { "del\u007f and c1\u0085 controls" },
+                { "!#$%()*+,-./:;=?@[]^_{|}~" },
+
+                // Markup, entities, and special characters, which go through Jsoup.
+                { "<b>bold text</b>" },
+                { "imbalanced</i> <p>tags" },
+                { "<script>alert('hi')</script>after" },
+                { "<img src=\"x\" onerror=\"alert(1)\">" },
+                { "a < b" },
+                { "a > b" },
+                { "fish & chips" },
+                { "&amp; &lt; &gt; &quot; &nbsp; &#x41; &bogus;" },
+                { "non\u00a0breaking space" },
+                { "null\u0000char" },
+                { "bell\u0007char" },
+                { "vertical\u000btab" },
+                { "\u0001leading control" },
+                { "unpaired \ud83d high surrogate" },
+                { "unpaired \ude00 low surrogate" },
+                { "trailing high surrogate \ud83d" },
+                { "  <p>  spaces  around  tags  </p>  " },
+        };
+    }
+
+    @Test(dataProvider = "jsoupEquivalenceDataProvider")
+    public void sanitizeStringMatchesJsoup(String in) {
+        // Whether or not the string takes the fast path, the output should be the same as Jsoup.
+        assertEquals(BridgeExporterUtil.sanitizeString(in, "key", null, "dummy-record", "dummy-study"),
+                Jsoup.clean(in, Whitelist.none()));
+    }
+
+    @Test
+    public void sanitizePlainTextUnchanged() {
+        // If the string doesn't need sanitizing, we return the same string, without copying it.
+        String in = "plain text with \"quotes\" and caf\u00e9";
+        assertSame(BridgeExporterUtil.sanitizePlainText(in), in);
+    }
+
+    @Test
+    public void sanitizePlainTextNormalizesWhitespace() {
+        assertEquals(BridgeExporterUtil.sanitizePlainText("\r\n  multi\tline\r\n\r\ntext \f"), "multi line text");
+        assertEquals(BridgeExporterUtil.sanitizePlainText(" \t\n "), "");
+    }
+
+    @DataProvider(name = "needsJsoupDataProvider")
+    public Object[][] needsJsoupDataProvider() {
+        return new Object[][] {
+                { "<b>bold</b>" },
+                { "a < b" },
+                { "a > b" },
+                { "fish & chips" },
+                { "non\u00a0breaking" },
+                { "null\u0000char" },
+                { "vertical\u000btab" },
+                { "unpaired \ud83d" },
+                { "unpaired \ude00" },
+        };
+    }
+
+    @Test(dataProvider = "needsJsoupDataProvider")
+    public void sanitizePlainTextFallsBack(String in) {
+        assertNull(BridgeExporterUtil.sanitizePlainText(in));
+    }
+
     @Test
     public void canConvertToColumnList() {
         // Make column definitions, one for each type.
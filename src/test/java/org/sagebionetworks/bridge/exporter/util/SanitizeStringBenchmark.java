@@ -0,0 +1,156 @@
+package org.sagebionetworks.bridge.exporter.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.google.common.base.Stopwatch;
+import org.jsoup.Jsoup;
+import org.jsoup.safety.Whitelist;
+
+/**
+ * <p>
+ * Compares sanitizing strings with Jsoup on every string (the old path) with
+ * {@link BridgeExporterUtil#sanitizeString}, which only runs Jsoup if the string has markup. Truncation is the same
+ * for both paths, so it's left out.
+ * </p>
+ * <p>
+ * Strings are a mix of what we see in health data: short answers, timestamps, multi-line free text, inline JSON
+ * blobs, and (rarely) strings with HTML in them. Each workload is run separately, so you can see the cost of the
+ * fast path on plain text, and the (small) overhead of the pre-scan on strings that still need Jsoup.
+ * </p>
+ * <p>
+ * Reports strings per second, bytes allocated per string, and GC count and time for each trial. Allocation is
+ * measured with the HotSpot per-thread allocation counter, so this needs a HotSpot JVM. For steadier GC numbers, run
+ * with a fixed heap (for example, -Xms512m -Xmx512m).
+ * </p>
+ * <p>
+ * This isn't a unit test. Run it by hand with the test classpath, for example:
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.sagebionetworks.bridge.exporter.util.SanitizeStringBenchmark
+ * </p>
+ */
+public class SanitizeStringBenchmark {
+    private static final int NUM_TRIALS = 5;
+    private static final long TRIAL_CHARS = 200L * 1024 * 1024;
+
+    private static final String[] SHORT_STRINGS = {
+            "Yes",
+            "fencing",
+            "2017-09-20T16:57:24.130+0900",
+            "Bridge-EX 2.0",
+            "iPhone9,3",
+            "I felt a little tired today, but otherwise fine.",
+    };
+    private static final String[] FREE_TEXT_STRINGS = {
+            "Slept badly last night.\nWoke up twice, around 2am and again at 5am.\n\nTook medication at 8am.",
+            "  Walked to the park and back.\tAbout 30 minutes.  ",
+            "Had a headache in the afternoon.\r\nIt went away after lunch.\r\n",
+    };
+    private static final String[] JSON_BLOB_STRINGS = {
+            "{\"timestamp\":1505894244130,\"x\":0.001,\"y\":-0.498,\"z\":9.81,\"label\":\"sample-0\"}",
+            "[\"fencing\",\"running\",\"swimming\"]",
+            "{\"deviceInfo\":{\"model\":\"iPhone9,3\",\"os\":\"iOS 11.2\"},\"appName\":\"Bridge-EX\"}",
+    };
+    private static final String[] MARKUP_STRINGS = {
+            "<b>bold text</b>",
+            "imbalanced</i> <p>tags",
+            "fish & chips",
+            "a < b and b > c",
+    };
+
+    // Result of one trial.
+    private static class Result {
+        double stringsPerSec;
+        double bytesPerString;
+        long gcCount;
+        long gcMillis;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("workload\tmode\tstrings/sec\tbytes/string\tGC count\tGC ms");
+        runWorkload("short", SHORT_STRINGS);
+        runWorkload("freeText", FREE_TEXT_STRINGS);
+        runWorkload("jsonBlob", JSON_BLOB_STRINGS);
+        runWorkload("markup", MARKUP_STRINGS);
+    }
+
+    private static void runWorkload(String workloadLabel, String[] strings) {
+        int totalChars = 0;
+        for (String oneString : strings) {
+            totalChars += oneString.length();
+        }
+        int numStrings = (int) (TRIAL_CHARS * strings.length / totalChars);
+
+        for (int trial = 0; trial < NUM_TRIALS; trial++) {
+            // Alternate modes, so that JIT warm-up and heap state don't favor one of them.
+            print(workloadLabel, "jsoup", run(SanitizeStringBenchmark::sanitizeWithJsoup, strings, numStrings));
+            print(workloadLabel, "fastPath", run(SanitizeStringBenchmark::sanitizeWithFastPath, strings,
+                    numStrings));
+        }
+    }
+
+    // The old path. This mirrors sanitizeString() before the fast path.
+    private static String sanitizeWithJsoup(String in) {
+        return Jsoup.clean(in, Whitelist.none());
+    }
+
+    // The new path.
+    private static String sanitizeWithFastPath(String in) {
+        return BridgeExporterUtil.sanitizeString(in, "key", null, "dummy-record", "dummy-study");
+    }
+
+    // Sanitizes numStrings strings, cycling through the given strings.
+    private static Result run(Function<String, String> sanitizer, String[] strings, int numStrings) {
+        System.gc();
+        long startGcCount = getGcCount();
+        long startGcMillis = getGcMillis();
+        long startBytes = getThreadAllocatedBytes();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        int hash = 0;
+        for (int i = 0; i < numStrings; i++) {
+            hash += sanitizer.apply(strings[i % strings.length]).length();
+        }
+
+        long elapsedMicros = stopwatch.elapsed(TimeUnit.MICROSECONDS);
+        Result result = new Result();
+        result.bytesPerString = (double) (getThreadAllocatedBytes() - startBytes) / numStrings;
+        result.stringsPerSec = numStrings * 1000000.0 / elapsedMicros;
+        result.gcCount = getGcCount() - startGcCount;
+        result.gcMillis = getGcMillis() - startGcMillis;
+
+        if (hash == 42) {
+            // Use the hash, so the JIT can't eliminate the work. This is very unlikely to actually print.
+            System.out.println("hash=" + hash);
+        }
+        return result;
+    }
+
+    private static void print(String workloadLabel, String mode, Result result) {
+        System.out.println(String.format("%s\t%s\t%.0f\t%.0f\t%d\t%d", workloadLabel, mode, result.stringsPerSec,
+                result.bytesPerString, result.gcCount, result.gcMillis));
+    }
+
+    private static long getThreadAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean oneGcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, oneGcBean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean oneGcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, oneGcBean.getCollectionTime());
+        }
+        return millis;
+    }
+}
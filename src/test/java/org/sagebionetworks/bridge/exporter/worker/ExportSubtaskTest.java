@@ -71,7 +71,7 @@ public class ExportSubtaskTest {
     }
 
     @Test
-    public void happyCase() {
+    public void happyCase() throws Exception {
         // build
         ExportSubtask subtask = makeValidSubtaskBuilder().build();
 
@@ -79,11 +79,49 @@ public class ExportSubtaskTest {
         assertSame(subtask.getOriginalRecord(), ORIGINAL_RECORD);
         assertSame(subtask.getParentTask(), DUMMY_PARENT_TASK);
         assertSame(subtask.getRecordData(), DUMMY_RECORD_DATA);
+        assertNull(subtask.getRecordDataJsonText());
         assertEquals(subtask.getRecordId(), DUMMY_RECORD_ID);
         assertNull(subtask.getSchemaKey());
         assertEquals(subtask.getStudyId(), STUDY_ID);
     }
 
+    @Test
+    public void recordDataFromOriginalRecord() throws Exception {
+        // If record data isn't specified, it comes from the original record, and is parsed when it's needed.
+        Item record = new Item().withString(ExportSubtask.KEY_RECORD_ID, DUMMY_RECORD_ID).withString("data",
+                "{\"foo\":\"foo-value\"}");
+        ExportSubtask subtask = new ExportSubtask.Builder().withOriginalRecord(record)
+                .withParentTask(DUMMY_PARENT_TASK).withStudyId(STUDY_ID).build();
+        assertEquals(subtask.getRecordDataJsonText(), "{\"foo\":\"foo-value\"}");
+
+        JsonNode recordData = subtask.getRecordData();
+        assertEquals(recordData.get("foo").textValue(), "foo-value");
+
+        // The parsed record data is cached in the record view.
+        assertSame(subtask.getRecordData(), recordData);
+        assertSame(subtask.getRecordView().getRecordData(), recordData);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
+            "recordView must be a view of originalRecord")
+    public void recordViewOfDifferentRecord() {
+        makeValidSubtaskBuilder().withRecordView(new RecordView(new Item())).build();
+    }
+
+    @Test
+    public void defaultRecordView() {
+        ExportSubtask subtask = makeValidSubtaskBuilder().build();
+        assertSame(subtask.getRecordView().getRecord(), ORIGINAL_RECORD);
+    }
+
+    @Test
+    public void withRecordView() {
+        // Subtasks for the same record can share the same view.
+        RecordView recordView = new RecordView(ORIGINAL_RECORD);
+        ExportSubtask subtask = makeValidSubtaskBuilder().withRecordView(recordView).build();
+        assertSame(subtask.getRecordView(), recordView);
+    }
+
     @Test
     public void withSchemaKey() {
         // Just validate schema key.
@@ -2,19 +2,24 @@ package org.sagebionetworks.bridge.exporter.worker;
 
 import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import java.io.File;
 import java.io.Writer;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
@@ -115,21 +120,70 @@ public class ExportTaskTest {
     }
 
     @Test
-    public void taskQueue() {
+    public void completedSubtaskQueue() throws Exception {
         ExportTask task = createTask();
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
+        assertNull(task.pollCompletedSubtaskFuture());
 
-        // add mock tasks to queue
-        ExportSubtaskFuture mockFooFuture = mock(ExportSubtaskFuture.class);
-        task.addSubtaskFuture(mockFooFuture);
+        // Submit 3 subtasks. One is rejected by the executor.
+        task.addOutstandingSubtask();
+        task.addOutstandingSubtask();
+        task.addOutstandingSubtask();
+        task.removeOutstandingSubtask();
+        assertEquals(task.getNumOutstandingSubtasks(), 2);
 
+        // Subtasks finish in a different order than they were submitted.
         ExportSubtaskFuture mockBarFuture = mock(ExportSubtaskFuture.class);
-        task.addSubtaskFuture(mockBarFuture);
+        task.addCompletedSubtaskFuture(mockBarFuture);
+
+        ExportSubtaskFuture mockFooFuture = mock(ExportSubtaskFuture.class);
+        task.addCompletedSubtaskFuture(mockFooFuture);
+
+        // Get them back in the order they finished.
+        assertSame(task.pollCompletedSubtaskFuture(), mockBarFuture);
+        assertEquals(task.getNumOutstandingSubtasks(), 1);
+        assertSame(task.pollCompletedSubtaskFuture(1, TimeUnit.MILLISECONDS), mockFooFuture);
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
+        assertNull(task.pollCompletedSubtaskFuture(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void abort() {
+        ExportTask task = createTask();
+        assertFalse(task.isAborted());
+
+        // 3 subtasks are in flight. One of them finishes.
+        FutureTask<Void> fooFuture = new FutureTask<>(() -> null);
+        FutureTask<Void> barFuture = new FutureTask<>(() -> null);
+        FutureTask<Void> bazFuture = new FutureTask<>(() -> null);
+        task.addInFlightSubtaskFuture(fooFuture);
+        task.addInFlightSubtaskFuture(barFuture);
+        task.addInFlightSubtaskFuture(bazFuture);
+        bazFuture.run();
+        task.removeInFlightSubtaskFuture(bazFuture);
+
+        // Abort cancels the subtasks that haven't finished.
+        RestartBridgeExporterException restartEx = new RestartBridgeExporterException("first");
+        assertEquals(task.abort(restartEx), 2);
+        assertTrue(task.isAborted());
+        assertSame(task.getRestartException(), restartEx);
+        assertTrue(fooFuture.isCancelled());
+        assertTrue(barFuture.isCancelled());
+        assertFalse(bazFuture.isCancelled());
+        assertEquals(task.getMetrics().getCounterMap().count(ExportTask.METRIC_NUM_CANCELLED_SUBTASKS), 2);
+
+        // Aborting again does nothing, and keeps the first exception.
+        assertEquals(task.abort(new RestartBridgeExporterException("second")), -1);
+        assertSame(task.getRestartException(), restartEx);
+    }
 
-        // get tasks back in order
-        Queue<ExportSubtaskFuture> taskQueue = task.getSubtaskFutureQueue();
-        assertSame(taskQueue.remove(), mockFooFuture);
-        assertSame(taskQueue.remove(), mockBarFuture);
-        assertTrue(taskQueue.isEmpty());
+    @Test
+    public void redriveRecordIdSet() {
+        ExportTask task = createTask();
+        task.addRedriveRecordId("foo");
+        task.addRedriveRecordId("bar");
+        task.addRedriveRecordId("foo");
+        assertEquals(task.getRedriveRecordIdSet(), ImmutableSet.of("foo", "bar"));
     }
 
     @Test
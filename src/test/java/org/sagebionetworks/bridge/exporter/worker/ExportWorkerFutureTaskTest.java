@@ -0,0 +1,158 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import org.mockito.ArgumentCaptor;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
+import org.sagebionetworks.bridge.exporter.handler.ExportHandler;
+
+public class ExportWorkerFutureTaskTest {
+    private ExportHandler mockHandler;
+    private ExportSubtask mockSubtask;
+    private ExportTask mockTask;
+
+    @BeforeMethod
+    public void before() {
+        mockHandler = mock(ExportHandler.class);
+        mockTask = mock(ExportTask.class);
+        mockSubtask = mock(ExportSubtask.class);
+        when(mockSubtask.getParentTask()).thenReturn(mockTask);
+        when(mockSubtask.getRecordId()).thenReturn("test-record");
+    }
+
+    @Test
+    public void success() throws Exception {
+        ExportWorkerFutureTask futureTask = new ExportWorkerFutureTask(new ExportWorker(mockHandler, mockSubtask));
+        futureTask.run();
+
+        ExportSubtaskFuture subtaskFuture = getCompletedSubtaskFuture();
+        assertSame(subtaskFuture.getSubtask(), mockSubtask);
+        assertSame(subtaskFuture.getFuture(), futureTask);
+        assertNull(subtaskFuture.getFuture().get());
+    }
+
+    @Test
+    public void failure() throws Exception {
+        doThrow(BridgeExporterException.class).when(mockHandler).handle(mockSubtask);
+
+        ExportWorkerFutureTask futureTask = new ExportWorkerFutureTask(new ExportWorker(mockHandler, mockSubtask));
+        futureTask.run();
+
+        ExportSubtaskFuture subtaskFuture = getCompletedSubtaskFuture();
+        assertSame(subtaskFuture.getSubtask(), mockSubtask);
+        try {
+            subtaskFuture.getFuture().get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof BridgeExporterException);
+        }
+
+        // Other failures don't abort the task.
+        verify(mockTask, never()).abort(any());
+    }
+
+    @Test
+    public void synapseDownAbortsTask() throws Exception {
+        SynapseServiceUnavailable synapseEx = new SynapseServiceUnavailable("test exception");
+        doThrow(synapseEx).when(mockHandler).handle(mockSubtask);
+
+        ExportWorkerFutureTask futureTask = new ExportWorkerFutureTask(new ExportWorker(mockHandler, mockSubtask));
+        futureTask.run();
+        getCompletedSubtaskFuture();
+
+        ArgumentCaptor<RestartBridgeExporterException> restartExCaptor = ArgumentCaptor.forClass(
+                RestartBridgeExporterException.class);
+        verify(mockTask).abort(restartExCaptor.capture());
+        RestartBridgeExporterException restartEx = restartExCaptor.getValue();
+        assertEquals(restartEx.getMessage(), "Restarting Bridge Exporter; last recordId=test-record: test exception");
+        assertSame(restartEx.getCause(), synapseEx);
+    }
+
+    @Test
+    public void cancelBeforeRun() throws Exception {
+        Runnable mockCallback = mock(Runnable.class);
+        ExportWorkerFutureTask futureTask = new ExportWorkerFutureTask(new ExportWorker(mockHandler, mockSubtask,
+                mockCallback));
+        futureTask.cancel(false);
+
+        // The cancelled worker is added to the completed queue right away.
+        verify(mockTask).removeInFlightSubtaskFuture(futureTask);
+        assertSame(getCompletedSubtaskFuture().getFuture(), futureTask);
+
+        // When the executor gets to it, it doesn't run, but it completes.
+        verify(mockCallback, never()).run();
+        futureTask.run();
+        verify(mockHandler, never()).handle(any());
+        verify(mockCallback).run();
+    }
+
+    @Test
+    public void cancelWhileRunningCompletesWhenWorkerFinishes() throws Exception {
+        // The handler blocks until we let it finish.
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch finishLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            startedLatch.countDown();
+            finishLatch.await();
+            return null;
+        }).when(mockHandler).handle(mockSubtask);
+
+        Runnable mockCallback = mock(Runnable.class);
+        ExportWorkerFutureTask futureTask = new ExportWorkerFutureTask(new ExportWorker(mockHandler, mockSubtask,
+                mockCallback));
+        Thread workerThread = new Thread(futureTask);
+        workerThread.start();
+        startedLatch.await();
+
+        // Cancelling the running worker doesn't complete it, since it's still running.
+        assertTrue(futureTask.cancel(false));
+        getCompletedSubtaskFuture();
+        verify(mockCallback, never()).run();
+
+        // The worker completes when it finishes.
+        finishLatch.countDown();
+        workerThread.join();
+        verify(mockCallback, times(1)).run();
+    }
+
+    @Test
+    public void abortedTaskDoesNotRun() throws Exception {
+        when(mockTask.isAborted()).thenReturn(true);
+        Runnable mockCallback = mock(Runnable.class);
+
+        ExportWorkerFutureTask futureTask = new ExportWorkerFutureTask(new ExportWorker(mockHandler, mockSubtask,
+                mockCallback));
+        futureTask.run();
+        assertTrue(futureTask.isCancelled());
+        verify(mockHandler, never()).handle(any());
+        verify(mockCallback).run();
+        getCompletedSubtaskFuture();
+    }
+
+    // Helper method which verifies the future task added exactly one completed subtask to the parent task.
+    private ExportSubtaskFuture getCompletedSubtaskFuture() {
+        ArgumentCaptor<ExportSubtaskFuture> subtaskFutureCaptor = ArgumentCaptor.forClass(ExportSubtaskFuture.class);
+        verify(mockTask).addCompletedSubtaskFuture(subtaskFutureCaptor.capture());
+        return subtaskFutureCaptor.getValue();
+    }
+}
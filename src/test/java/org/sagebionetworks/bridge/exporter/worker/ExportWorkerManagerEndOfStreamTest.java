@@ -40,6 +40,8 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.dynamo.ExportCheckpointHelper;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterTsvException;
 import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
@@ -70,6 +72,7 @@ public class ExportWorkerManagerEndOfStreamTest {
 
     private static final String DUMMY_SQS_QUEUE_URL = "dummy-sqs-url";
 
+    private ExportCheckpointHelper mockCheckpointHelper;
     private ExportWorkerManager manager;
     private ExecutorService mockExecutor;
     private List<Future<?>> mockFutureList;
@@ -108,6 +111,7 @@ public class ExportWorkerManagerEndOfStreamTest {
         when(mockConfig.getInt(ExportWorkerManager.CONFIG_KEY_REDRIVE_MAX_COUNT)).thenReturn(2);
 
         // mock helpers - Individual tests can overwrite behavior or verify different behavior.
+        mockCheckpointHelper = mock(ExportCheckpointHelper.class);
         mockExecutor = mock(ExecutorService.class);
         mockSynapseStatusTableHelper = mock(SynapseStatusTableHelper.class);
         mockS3Helper = mock(S3Helper.class);
@@ -117,26 +121,34 @@ public class ExportWorkerManagerEndOfStreamTest {
         manager = spy(new ExportWorkerManager());
         manager.setConfig(mockConfig);
         manager.setExecutor(mockExecutor);
+        manager.setExportCheckpointHelper(mockCheckpointHelper);
         manager.setS3Helper(mockS3Helper);
         manager.setSqsHelper(mockSqsHelper);
         manager.setSynapseStatusTableHelper(mockSynapseStatusTableHelper);
     }
 
     private void mockRecordIdExceptions(Map<String, Exception> recordIdToException) {
-        // Mock the executor to create mock futures. This allows us to inject failures into record processing.
-        when(mockExecutor.submit(any(ExportWorker.class))).thenAnswer(invocation -> {
-            Future<?> mockFuture = mock(Future.class);
+        // Mock the executor to immediately "finish" each subtask with a mock future. This allows us to inject failures
+        // into record processing.
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Future<Void> mockFuture = mock(Future.class);
 
-            ExportWorker worker = invocation.getArgumentAt(0, ExportWorker.class);
-            Exception ex = recordIdToException.get(worker.getSubtask().getRecordId());
+            ExportSubtask subtask = invocation.getArgumentAt(0, ExportWorkerFutureTask.class).getWorker()
+                    .getSubtask();
+            Exception ex = recordIdToException.get(subtask.getRecordId());
             if (ex != null) {
                 // Future.get() exceptions are always wrapped in an ExecutionException.
                 when(mockFuture.get()).thenThrow(new ExecutionException(ex));
             }
 
             mockFutureList.add(mockFuture);
-            return mockFuture;
-        });
+            subtask.getParentTask().addCompletedSubtaskFuture(new ExportSubtaskFuture.Builder().withSubtask(subtask)
+                    .withFuture(mockFuture).build());
+
+            // Mockito requires a return value.
+            return null;
+        }).when(mockExecutor).execute(any(ExportWorkerFutureTask.class));
     }
 
     private void mockSchemaIdExceptions(Map<String, Exception> schemaIdToException) throws Exception {
@@ -576,7 +588,7 @@ public class ExportWorkerManagerEndOfStreamTest {
 
     @Test
     public void recordFailureSynapse503() throws Exception {
-        // "Bad record" fails with a Synapse 503. "Good record" is never processed.
+        // "Bad record" fails with a Synapse 503. This aborts the task, so "good record" is never queued.
         Item badRecord = new Item().withString("studyId", TEST_STUDY).withString("schemaId", "test-schema")
                 .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "bad-record");
         Item goodRecord = new Item().withString("studyId", TEST_STUDY).withString("schemaId", "test-schema")
@@ -607,12 +619,11 @@ public class ExportWorkerManagerEndOfStreamTest {
             assertTrue(ex.getCause() instanceof SynapseServiceUnavailable);
         }
 
-        // We have 4 futures, but only the first one throws and the rest are never executed.
-        assertEquals(mockFutureList.size(), 4);
+        // We have 2 futures (health data and app version for the bad record). Only the first one is checked.
+        assertEquals(mockFutureList.size(), 2);
         verify(mockFutureList.get(0)).get();
-        for (int i = 1; i < 4; i++) {
-            verify(mockFutureList.get(i), never()).get();
-        }
+        verify(mockFutureList.get(1), never()).get();
+        assertTrue(task.isAborted());
 
         // 1 study, 1 schema, 2 handlers (table, appVersion), but neither one is ever called
         assertEquals(mockHealthDataHandlerList.size(), 1);
@@ -687,4 +698,188 @@ public class ExportWorkerManagerEndOfStreamTest {
         verify(mockS3Helper, never()).writeLinesToS3(any(), any(), any());
         verify(mockSqsHelper, never()).sendMessageAsJson(any(), any(), any());
     }
+
+    @Test
+    public void checkpointTablesAndStudies() throws Exception {
+        // Two studies, one table each. Everything succeeds.
+        Item aRecord = new Item().withString("studyId", "study-A").withString("schemaId", "schema-A")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "record-A");
+        Item bRecord = new Item().withString("studyId", "study-B").withString("schemaId", "schema-B")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "record-B");
+
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        ExportCheckpoint checkpoint = new ExportCheckpoint(DUMMY_REQUEST.getTag(), "dummy-request-json", null, null);
+        ExportTask task = new ExportTask.Builder().withCheckpoint(checkpoint)
+                .withExporterDate(LocalDate.parse("2015-12-09")).withMetrics(new Metrics())
+                .withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        // Mock handlers don't write TSVs, so set the TSVs into the task ourselves.
+        UploadSchemaKey schemaKeyA = new UploadSchemaKey.Builder().withAppId("study-A").withSchemaId("schema-A")
+                .withRevision(1).build();
+        UploadSchemaKey schemaKeyB = new UploadSchemaKey.Builder().withAppId("study-B").withSchemaId("schema-B")
+                .withRevision(1).build();
+        task.setHealthDataTsvInfoForSchema(schemaKeyA, mock(TsvInfo.class));
+        task.setHealthDataTsvInfoForSchema(schemaKeyB, mock(TsvInfo.class));
+
+        // execute
+        manager.addSubtaskForRecord(task, aRecord);
+        manager.addSubtaskForRecord(task, bRecord);
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+
+        // Both tables and both studies are checkpointed. Save is called for each table and each study.
+        assertEquals(checkpoint.getCompletedTableSet(), ImmutableSet.of(schemaKeyA.toString(),
+                schemaKeyB.toString()));
+        assertEquals(checkpoint.getUploadedOnWatermarkByStudy(), ImmutableMap.of("study-A",
+                END_DATE_TIME.getMillis(), "study-B", END_DATE_TIME.getMillis()));
+        verify(mockCheckpointHelper, times(4)).saveCheckpoint(checkpoint);
+    }
+
+    @Test
+    public void checkpointSynapse503KeepsFinishedStudies() throws Exception {
+        // Study A finishes. Study B's table fails with a 503, so the request is restarted.
+        Item aRecord = new Item().withString("studyId", "study-A").withString("schemaId", "schema-A")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "record-A");
+        Item bRecord = new Item().withString("studyId", "study-B").withString("schemaId", "schema-B")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "record-B");
+
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockSchemaIdExceptions(ImmutableMap.of("schema-B", new SynapseServiceUnavailable("test exception")));
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        ExportCheckpoint checkpoint = new ExportCheckpoint(DUMMY_REQUEST.getTag(), "dummy-request-json", null, null);
+        ExportTask task = new ExportTask.Builder().withCheckpoint(checkpoint)
+                .withExporterDate(LocalDate.parse("2015-12-09")).withMetrics(new Metrics())
+                .withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        UploadSchemaKey schemaKeyA = new UploadSchemaKey.Builder().withAppId("study-A").withSchemaId("schema-A")
+                .withRevision(1).build();
+        UploadSchemaKey schemaKeyB = new UploadSchemaKey.Builder().withAppId("study-B").withSchemaId("schema-B")
+                .withRevision(1).build();
+        task.setHealthDataTsvInfoForSchema(schemaKeyA, mock(TsvInfo.class));
+        task.setHealthDataTsvInfoForSchema(schemaKeyB, mock(TsvInfo.class));
+
+        // execute
+        manager.addSubtaskForRecord(task, aRecord);
+        manager.addSubtaskForRecord(task, bRecord);
+        try {
+            manager.endOfStream(task, START_DATES_BY_STUDY);
+            fail("expected exception");
+        } catch (RestartBridgeExporterException ex) {
+            // expected exception
+        }
+
+        // Study A is fully checkpointed. Study B isn't.
+        assertEquals(checkpoint.getCompletedTableSet(), ImmutableSet.of(schemaKeyA.toString()));
+        assertEquals(checkpoint.getUploadedOnWatermarkByStudy(), ImmutableMap.of("study-A",
+                END_DATE_TIME.getMillis()));
+        verify(mockCheckpointHelper, times(2)).saveCheckpoint(checkpoint);
+
+        // Study A's status table is written. Study B's isn't.
+        verify(mockSynapseStatusTableHelper).initTableAndWriteStatus(task, "study-A");
+        verify(mockSynapseStatusTableHelper, never()).initTableAndWriteStatus(task, "study-B");
+    }
+
+    @Test
+    public void checkpointRedrivesTablesBeforeLaterStudy503() throws Exception {
+        // Study A's table fails with a retryable error. Study B's table then fails with a 503. Study A's table redrive
+        // must already be sent, since the restarted request skips study A.
+        Item aRecord = new Item().withString("studyId", "study-A").withString("schemaId", "schema-A")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "record-A");
+        Item bRecord = new Item().withString("studyId", "study-B").withString("schemaId", "schema-B")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "record-B");
+
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockSchemaIdExceptions(ImmutableMap.of("schema-A", new BridgeExporterException(), "schema-B",
+                new SynapseServiceUnavailable("test exception")));
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        ExportCheckpoint checkpoint = new ExportCheckpoint(DUMMY_REQUEST.getTag(), "dummy-request-json", null, null);
+        ExportTask task = new ExportTask.Builder().withCheckpoint(checkpoint)
+                .withExporterDate(LocalDate.parse("2015-12-09")).withMetrics(new Metrics())
+                .withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        // execute
+        manager.addSubtaskForRecord(task, aRecord);
+        manager.addSubtaskForRecord(task, bRecord);
+        try {
+            manager.endOfStream(task, START_DATES_BY_STUDY);
+            fail("expected exception");
+        } catch (RestartBridgeExporterException ex) {
+            // expected exception
+        }
+
+        // Study A's table was redriven, so study A is checkpointed.
+        ArgumentCaptor<BridgeExporterRequest> redriveRequestCaptor = ArgumentCaptor.forClass(
+                BridgeExporterRequest.class);
+        verify(mockSqsHelper).sendMessageAsJson(eq(DUMMY_SQS_QUEUE_URL), redriveRequestCaptor.capture(),
+                eq(ExportWorkerManager.REDRIVE_DELAY_SECONDS));
+        BridgeExporterRequest redriveTableRequest = redriveRequestCaptor.getValue();
+        assertEquals(redriveTableRequest.getStudyWhitelist(), ImmutableSet.of("study-A"));
+        assertEquals(redriveTableRequest.getTableWhitelist(), ImmutableSet.of(new UploadSchemaKey.Builder()
+                .withAppId("study-A").withSchemaId("schema-A").withRevision(1).build()));
+
+        assertEquals(checkpoint.getUploadedOnWatermarkByStudy(), ImmutableMap.of("study-A",
+                END_DATE_TIME.getMillis()));
+    }
+
+    @Test
+    public void checkpointSkipsStudyWithFailedUploads() throws Exception {
+        // Study A's meta tables and status table fail. Study A isn't checkpointed, so a restarted request exports it
+        // again. Study B succeeds and is checkpointed.
+        Item aRecord = new Item().withString("studyId", "study-A").withString("schemaId", "schema-A")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "record-A");
+        Item bRecord = new Item().withString("studyId", "study-B").withString("schemaId", "schema-B")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "record-B");
+
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of("study-A", new BridgeExporterException()));
+
+        ExportCheckpoint checkpoint = new ExportCheckpoint(DUMMY_REQUEST.getTag(), "dummy-request-json", null, null);
+        ExportTask task = new ExportTask.Builder().withCheckpoint(checkpoint)
+                .withExporterDate(LocalDate.parse("2015-12-09")).withMetrics(new Metrics())
+                .withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        // execute
+        manager.addSubtaskForRecord(task, aRecord);
+        manager.addSubtaskForRecord(task, bRecord);
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+
+        assertEquals(checkpoint.getUploadedOnWatermarkByStudy(), ImmutableMap.of("study-B",
+                END_DATE_TIME.getMillis()));
+    }
+
+    @Test
+    public void checkpointSkipsCompletedTable() throws Exception {
+        // The table was uploaded by a previous run of this request. We still write the record to the appVersion
+        // table, since that's not uploaded until the study is done.
+        Item record = new Item().withString("studyId", TEST_STUDY).withString("schemaId", "test-schema")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "test-record");
+
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        UploadSchemaKey schemaKey = new UploadSchemaKey.Builder().withAppId(TEST_STUDY).withSchemaId("test-schema")
+                .withRevision(1).build();
+        ExportCheckpoint checkpoint = new ExportCheckpoint(DUMMY_REQUEST.getTag(), "dummy-request-json",
+                ImmutableSet.of(schemaKey.toString()), null);
+        Metrics metrics = new Metrics();
+        ExportTask task = new ExportTask.Builder().withCheckpoint(checkpoint)
+                .withExporterDate(LocalDate.parse("2015-12-09")).withMetrics(metrics).withRequest(DUMMY_REQUEST)
+                .withTmpDir(mock(File.class)).build();
+
+        // execute
+        manager.addSubtaskForRecord(task, record);
+
+        // Only the appVersion worker is queued.
+        assertEquals(mockFutureList.size(), 1);
+        assertTrue(mockHealthDataHandlerList.isEmpty());
+        assertEquals(mockMetaTableHandlerList.size(), 1);
+        assertEquals(metrics.getCounterMap().count(
+                ExportWorkerManager.METRIC_CHECKPOINT_SKIPPED_TABLE_RECORDS), 1);
+    }
 }
@@ -8,21 +8,34 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
 import com.google.gson.JsonParseException;
 import com.google.gson.stream.MalformedJsonException;
+import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.client.exceptions.SynapseBadRequestException;
 import org.sagebionetworks.client.exceptions.SynapseClientException;
@@ -37,7 +50,10 @@ import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
 import org.sagebionetworks.bridge.exporter.dynamo.StudyInfo;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterNonRetryableException;
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
+import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
 import org.sagebionetworks.bridge.exporter.handler.AppVersionExportHandler;
+import org.sagebionetworks.bridge.exporter.handler.ExportHandler;
 import org.sagebionetworks.bridge.exporter.handler.IosSurveyExportHandler;
 import org.sagebionetworks.bridge.exporter.handler.SchemaBasedExportHandler;
 import org.sagebionetworks.bridge.exporter.handler.SchemalessExportHandler;
@@ -45,6 +61,7 @@ import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
 import org.sagebionetworks.bridge.exporter.helper.BridgeHelperTest;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 import org.sagebionetworks.bridge.rest.exceptions.BadRequestException;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
@@ -240,15 +257,37 @@ public class ExportWorkerManagerTest {
         assertEquals(projectId, "override-project-id");
     }
 
+    // Helper method which mocks a task with the given metrics. Handlers belong to the task, so the mock also needs a
+    // handler registry.
+    private static ExportTask mockTask(Metrics metrics) {
+        ExportTask mockTask = mock(ExportTask.class);
+        when(mockTask.getHandlerRegistry()).thenReturn(new TaskHandlerRegistry());
+        when(mockTask.getMetrics()).thenReturn(metrics);
+        return mockTask;
+    }
+
+    // Helper method which makes a real task with the given metrics, for tests that depend on the task's state.
+    private static ExportTask makeTask(Metrics metrics) {
+        return new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09")).withMetrics(metrics)
+                .withRequest(mock(BridgeExporterRequest.class)).withTmpDir(mock(File.class)).build();
+    }
+
+    // Helper method which verifies the number of subtasks submitted to the executor and returns their workers.
+    private static List<ExportWorker> getSubmittedWorkers(ExecutorService mockExecutor, int expectedCount) {
+        ArgumentCaptor<ExportWorkerFutureTask> futureTaskCaptor = ArgumentCaptor.forClass(
+                ExportWorkerFutureTask.class);
+        verify(mockExecutor, times(expectedCount)).execute(futureTaskCaptor.capture());
+        return futureTaskCaptor.getAllValues().stream().map(ExportWorkerFutureTask::getWorker).collect(
+                Collectors.toList());
+    }
+
     @Test
     public void addIosSurveySubtask() throws Exception {
         // mock executor
-        ArgumentCaptor<ExportWorker> workerCaptor = ArgumentCaptor.forClass(ExportWorker.class);
         ExecutorService mockExecutor = mock(ExecutorService.class);
-        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(Future.class));
 
-        // Mock task. This is passed into the subtask and worker, so we don't need real data in it.
-        ExportTask mockTask = mock(ExportTask.class);
+        // Mock task. This is passed into the subtask and worker, so we only need metrics and handlers.
+        ExportTask mockTask = mockTask(new Metrics());
 
         // set up worker manager
         ExportWorkerManager manager = new ExportWorkerManager();
@@ -265,9 +304,7 @@ public class ExportWorkerManagerTest {
         manager.addSubtaskForRecord(mockTask, record2);
 
         // validate subtasks submitted to executor
-        verify(mockExecutor, times(2)).submit(any(ExportWorker.class));
-
-        List<ExportWorker> workerList = workerCaptor.getAllValues();
+        List<ExportWorker> workerList = getSubmittedWorkers(mockExecutor, 2);
         assertEquals(workerList.size(), 2);
 
         // Just check the important things, like making sure it corresponds with our task and record.
@@ -284,19 +321,72 @@ public class ExportWorkerManagerTest {
         assertEquals(handler.getStudyId(), TEST_STUDY_ID);
 
         // verify task queue
-        verify(mockTask, times(2)).addSubtaskFuture(any());
+        verify(mockTask, times(2)).addOutstandingSubtask();
+    }
+
+    @Test
+    public void subtaskWindowBlocksWhenFull() throws Exception {
+        // mock executor
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+
+        // Mock task. We only need metrics and handlers.
+        Metrics metrics = new Metrics();
+        ExportTask mockTask = mockTask(metrics);
+
+        // Window only allows 1 in-flight subtask.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(ExportWorkerManager.CONFIG_KEY_MAX_IN_FLIGHT_SUBTASKS)).thenReturn(1);
+
+        ExportWorkerManager manager = new ExportWorkerManager();
+        manager.setConfig(mockConfig);
+        manager.setExecutor(mockExecutor);
+
+        // First record fits in the window.
+        Item record1 = new Item().withString("studyId", TEST_STUDY_ID)
+                .withString("schemaId", ExportWorkerManager.SCHEMA_IOS_SURVEY)
+                .withInt("schemaRevision", TEST_SCHEMA_REV).withString("data", DUMMY_JSON_TEXT);
+        manager.addSubtaskForRecord(mockTask, record1);
+        assertEquals(manager.getNumInFlightSubtasks(), 1);
+
+        // Second record waits until the first worker finishes.
+        Item record2 = new Item().withString("studyId", TEST_STUDY_ID)
+                .withString("schemaId", ExportWorkerManager.SCHEMA_IOS_SURVEY)
+                .withInt("schemaRevision", TEST_SCHEMA_REV).withString("data", DUMMY_JSON_TEXT);
+        Thread recordThread = new Thread(() -> {
+            try {
+                manager.addSubtaskForRecord(mockTask, record2);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        recordThread.start();
+        while (recordThread.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        // Finish the first worker.
+        getSubmittedWorkers(mockExecutor, 1).get(0).getCompletionCallback().run();
+        recordThread.join();
+        List<ExportWorker> workerList = getSubmittedWorkers(mockExecutor, 2);
+        assertEquals(manager.getNumInFlightSubtasks(), 1);
+
+        // Finish the second worker.
+        workerList.get(1).getCompletionCallback().run();
+        assertEquals(manager.getNumInFlightSubtasks(), 0);
+
+        // Validate metrics.
+        assertEquals(metrics.getCounterMap().count(ExportWorkerManager.METRIC_SUBTASK_WINDOW_WAITS), 1);
+        assertEquals(metrics.getGaugeMap().get(ExportWorkerManager.METRIC_MAX_IN_FLIGHT_SUBTASKS).longValue(), 1);
+        assertEquals(metrics.getGaugeMap().get(ExportWorkerManager.METRIC_NUM_IN_FLIGHT_SUBTASKS).longValue(), 0);
     }
 
     @Test
     public void addSchemaBasedHealthDataSubtask() throws Exception {
         // mock executor
-        ArgumentCaptor<ExportWorker> workerCaptor = ArgumentCaptor.forClass(ExportWorker.class);
         ExecutorService mockExecutor = mock(ExecutorService.class);
-        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(Future.class));
 
-        // Mock task. We only need metrics.
-        ExportTask mockTask = mock(ExportTask.class);
-        when(mockTask.getMetrics()).thenReturn(new Metrics());
+        // Mock task. We only need metrics and handlers.
+        ExportTask mockTask = mockTask(new Metrics());
 
         // mock DynamoHelper to get schema
         UploadSchemaKey testSchemaKey = new UploadSchemaKey.Builder().withAppId(TEST_STUDY_ID)
@@ -319,9 +409,7 @@ public class ExportWorkerManagerTest {
         manager.addSubtaskForRecord(mockTask, record2);
 
         // validate subtasks submitted to executor (4, 2 for app version, 2 for health data)
-        verify(mockExecutor, times(4)).submit(any(ExportWorker.class));
-
-        List<ExportWorker> workerList = workerCaptor.getAllValues();
+        List<ExportWorker> workerList = getSubmittedWorkers(mockExecutor, 4);
         assertEquals(workerList.size(), 4);
 
         // We assume the order is record1 app version, record1 health data, record2 app version, record2 health data.
@@ -354,7 +442,7 @@ public class ExportWorkerManagerTest {
         assertEquals(healthDataHandler.getStudyId(), TEST_STUDY_ID);
 
         // verify task queue
-        verify(mockTask, times(4)).addSubtaskFuture(any());
+        verify(mockTask, times(4)).addOutstandingSubtask();
 
         // verify only one call to DDB
         verify(mockBridgeHelper, times(1)).getSchema(any(), any());
@@ -363,13 +451,10 @@ public class ExportWorkerManagerTest {
     @Test
     public void addSchemalessHealthDataSubtask() throws Exception {
         // Mock executor.
-        ArgumentCaptor<ExportWorker> workerCaptor = ArgumentCaptor.forClass(ExportWorker.class);
         ExecutorService mockExecutor = mock(ExecutorService.class);
-        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(Future.class));
 
-        // Mock task. We only need metrics.
-        ExportTask mockTask = mock(ExportTask.class);
-        when(mockTask.getMetrics()).thenReturn(new Metrics());
+        // Mock task. We only need metrics and handlers.
+        ExportTask mockTask = mockTask(new Metrics());
 
         // set up worker manager
         ExportWorkerManager manager = new ExportWorkerManager();
@@ -384,9 +469,7 @@ public class ExportWorkerManagerTest {
         manager.addSubtaskForRecord(mockTask, record2);
 
         // Validate subtasks submitted to executor (4, 2 for app version, 2 for health data).
-        verify(mockExecutor, times(4)).submit(any(ExportWorker.class));
-
-        List<ExportWorker> workerList = workerCaptor.getAllValues();
+        List<ExportWorker> workerList = getSubmittedWorkers(mockExecutor, 4);
         assertEquals(workerList.size(), 4);
 
         // We assume the order is record1 app version, record1 health data, record2 app version, record2 health data.
@@ -418,7 +501,244 @@ public class ExportWorkerManagerTest {
         assertEquals(healthDataHandler.getStudyId(), TEST_STUDY_ID);
 
         // Verify task queue.
-        verify(mockTask, times(4)).addSubtaskFuture(any());
+        verify(mockTask, times(4)).addOutstandingSubtask();
+    }
+
+    @Test
+    public void concurrentHandlerCreation() throws Exception {
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+
+        // Mock task. We only need metrics and handlers.
+        ExportTask mockTask = mockTask(new Metrics());
+
+        UploadSchemaKey testSchemaKey = new UploadSchemaKey.Builder().withAppId(TEST_STUDY_ID)
+                .withSchemaId(TEST_SCHEMA_ID).withRevision(TEST_SCHEMA_REV).build();
+        BridgeHelper mockBridgeHelper = mock(BridgeHelper.class);
+        when(mockBridgeHelper.getSchema(notNull(Metrics.class), eq(testSchemaKey))).thenReturn(
+                BridgeHelperTest.TEST_SCHEMA);
+
+        ExportWorkerManager manager = new ExportWorkerManager();
+        manager.setBridgeHelper(mockBridgeHelper);
+        manager.setExecutor(mockExecutor);
+
+        // Many threads add records for the same schema at the same time.
+        int numThreads = 16;
+        CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService testExecutor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futureList = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                futureList.add(testExecutor.submit(() -> {
+                    startLatch.await();
+                    Item record = new Item().withString("studyId", TEST_STUDY_ID)
+                            .withString("schemaId", TEST_SCHEMA_ID).withInt("schemaRevision", TEST_SCHEMA_REV)
+                            .withString("data", DUMMY_JSON_TEXT);
+                    manager.addSubtaskForRecord(mockTask, record);
+                    return null;
+                }));
+            }
+            startLatch.countDown();
+            for (Future<?> oneFuture : futureList) {
+                oneFuture.get();
+            }
+        } finally {
+            testExecutor.shutdown();
+        }
+
+        // Each handler was only created once, and all workers share it.
+        List<ExportWorker> workerList = getSubmittedWorkers(mockExecutor, numThreads * 2);
+        Set<ExportHandler> handlerSet = Sets.newIdentityHashSet();
+        for (ExportWorker oneWorker : workerList) {
+            handlerSet.add(oneWorker.getHandler());
+        }
+        assertEquals(handlerSet.size(), 2);
+        verify(mockBridgeHelper, times(1)).getSchema(any(), any());
+    }
+
+    @Test
+    public void schemaNotFound() throws Exception {
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+
+        // Mock task. We only need metrics and handlers.
+        ExportTask mockTask = mockTask(new Metrics());
+
+        // Schema isn't found the first time, but is found the second time.
+        UploadSchemaKey testSchemaKey = new UploadSchemaKey.Builder().withAppId(TEST_STUDY_ID)
+                .withSchemaId(TEST_SCHEMA_ID).withRevision(TEST_SCHEMA_REV).build();
+        BridgeHelper mockBridgeHelper = mock(BridgeHelper.class);
+        when(mockBridgeHelper.getSchema(notNull(Metrics.class), eq(testSchemaKey)))
+                .thenThrow(new SchemaNotFoundException("test exception")).thenReturn(BridgeHelperTest.TEST_SCHEMA);
+
+        ExportWorkerManager manager = new ExportWorkerManager();
+        manager.setBridgeHelper(mockBridgeHelper);
+        manager.setExecutor(mockExecutor);
+
+        Item record = new Item().withString("studyId", TEST_STUDY_ID).withString("schemaId", TEST_SCHEMA_ID)
+                .withInt("schemaRevision", TEST_SCHEMA_REV).withString("data", DUMMY_JSON_TEXT);
+        try {
+            manager.addSubtaskForRecord(mockTask, record);
+            fail("expected exception");
+        } catch (SchemaNotFoundException ex) {
+            assertEquals(ex.getMessage(), "test exception");
+        }
+
+        // The failure isn't cached.
+        manager.addSubtaskForRecord(mockTask, record);
+        verify(mockBridgeHelper, times(2)).getSchema(any(), any());
+    }
+
+    @Test
+    public void handlersArePerTask() throws Exception {
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+
+        ExportWorkerManager manager = new ExportWorkerManager();
+        manager.setExecutor(mockExecutor);
+
+        // Two tasks (requests) export the same study at the same time.
+        ExportTask mockTaskA = mockTask(new Metrics());
+        ExportTask mockTaskB = mockTask(new Metrics());
+        Item record = new Item().withString("studyId", TEST_STUDY_ID).withString("data", DUMMY_JSON_TEXT);
+        manager.addSubtaskForRecord(mockTaskA, record);
+        manager.addSubtaskForRecord(mockTaskB, record);
+
+        // Each task gets its own app version and health data handlers.
+        List<ExportWorker> workerList = getSubmittedWorkers(mockExecutor, 4);
+        assertSame(workerList.get(0).getSubtask().getParentTask(), mockTaskA);
+        assertSame(workerList.get(1).getSubtask().getParentTask(), mockTaskA);
+        assertSame(workerList.get(2).getSubtask().getParentTask(), mockTaskB);
+        assertSame(workerList.get(3).getSubtask().getParentTask(), mockTaskB);
+
+        assertNotSame(workerList.get(0).getHandler(), workerList.get(2).getHandler());
+        assertNotSame(workerList.get(1).getHandler(), workerList.get(3).getHandler());
+    }
+
+    @Test
+    public void requestWindowShare() throws Exception {
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+
+        // Window allows 4 in-flight subtasks, split between 2 concurrent requests.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(ExportWorkerManager.CONFIG_KEY_MAX_IN_FLIGHT_SUBTASKS)).thenReturn(4);
+        when(mockConfig.getInt(BridgeExporterUtil.CONFIG_KEY_MAX_CONCURRENT_REQUESTS)).thenReturn(2);
+
+        ExportWorkerManager manager = new ExportWorkerManager();
+        manager.setConfig(mockConfig);
+        manager.setExecutor(mockExecutor);
+
+        // Use real tasks, since each request's share is tracked by its task's outstanding subtasks.
+        Metrics metricsA = new Metrics();
+        ExportTask taskA = makeTask(metricsA);
+        ExportTask taskB = makeTask(new Metrics());
+
+        // iOS survey records only make one subtask each. Task A uses up its share.
+        Item record = new Item().withString("studyId", TEST_STUDY_ID)
+                .withString("schemaId", ExportWorkerManager.SCHEMA_IOS_SURVEY)
+                .withInt("schemaRevision", TEST_SCHEMA_REV).withString("data", DUMMY_JSON_TEXT);
+        manager.addSubtaskForRecord(taskA, record);
+        manager.addSubtaskForRecord(taskA, record);
+        ExportSubtask firstSubtask = getSubmittedWorkers(mockExecutor, 2).get(0).getSubtask();
+
+        // Task A's next record waits for one of its own subtasks to finish.
+        Thread recordThread = new Thread(() -> {
+            try {
+                manager.addSubtaskForRecord(taskA, record);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        recordThread.start();
+        while (recordThread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+
+        // Task B still has its share, so it doesn't wait.
+        manager.addSubtaskForRecord(taskB, record);
+        getSubmittedWorkers(mockExecutor, 3);
+
+        // Finish task A's first subtask. The waiting record is then submitted.
+        taskA.addCompletedSubtaskFuture(new ExportSubtaskFuture.Builder().withSubtask(firstSubtask)
+                .withFuture(CompletableFuture.completedFuture(null)).build());
+        recordThread.join();
+        getSubmittedWorkers(mockExecutor, 4);
+
+        assertEquals(taskA.getNumOutstandingSubtasks(), 2);
+        assertEquals(taskB.getNumOutstandingSubtasks(), 1);
+        assertEquals(metricsA.getCounterMap().count(ExportWorkerManager.METRIC_SUBTASK_WINDOW_WAITS), 1);
+    }
+
+    @Test
+    public void submitIoStep() throws Exception {
+        ExecutorService ioExecutor = Executors.newFixedThreadPool(2);
+        try {
+            ExportWorkerManager manager = new ExportWorkerManager();
+            manager.setIoExecutor(ioExecutor);
+
+            Metrics metrics = new Metrics();
+            ExportTask task = makeTask(metrics);
+
+            // The I/O step runs in the I/O pool, not in the calling thread.
+            Thread callingThread = Thread.currentThread();
+            Future<Thread> future = manager.submitIoStep(task, Thread::currentThread);
+            assertNotSame(future.get(), callingThread);
+
+            assertEquals(metrics.getCounterMap().count(ExportWorkerManager.METRIC_IO_POOL_NUM_STEPS), 1);
+            assertEquals(metrics.getGaugeMap().get(ExportWorkerManager.METRIC_IO_POOL_MAX_ACTIVE_THREADS)
+                    .longValue(), 1);
+        } finally {
+            ioExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void submitIoStepDefaultsToCallingThread() throws Exception {
+        ExportWorkerManager manager = new ExportWorkerManager();
+        Future<Thread> future = manager.submitIoStep(makeTask(new Metrics()), Thread::currentThread);
+        assertSame(future.get(), Thread.currentThread());
+    }
+
+    @Test
+    public void submitIoStepAbortedTask() throws Exception {
+        ExportWorkerManager manager = new ExportWorkerManager();
+        ExportTask task = makeTask(new Metrics());
+        task.abort(new RestartBridgeExporterException("test exception"));
+
+        try {
+            manager.submitIoStep(task, Thread::currentThread);
+            fail("expected exception");
+        } catch (CancellationException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void abortCancelsSubtasks() throws Exception {
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+        ExportWorkerManager manager = new ExportWorkerManager();
+        manager.setExecutor(mockExecutor);
+        ExportTask task = makeTask(new Metrics());
+
+        // Queue a subtask. The mock executor never runs it.
+        Item record = new Item().withString("studyId", TEST_STUDY_ID)
+                .withString("schemaId", ExportWorkerManager.SCHEMA_IOS_SURVEY)
+                .withInt("schemaRevision", TEST_SCHEMA_REV).withString("data", DUMMY_JSON_TEXT);
+        manager.addSubtaskForRecord(task, record);
+        ArgumentCaptor<ExportWorkerFutureTask> futureTaskCaptor = ArgumentCaptor.forClass(
+                ExportWorkerFutureTask.class);
+        verify(mockExecutor).execute(futureTaskCaptor.capture());
+        assertEquals(manager.getNumInFlightSubtasks(), 1);
+
+        // Abort the task. The subtask is cancelled. It frees up its spot in the window when the executor gets to it,
+        // not before, since a running worker can't be stopped right away.
+        assertEquals(task.abort(new RestartBridgeExporterException("test exception")), 1);
+        assertTrue(futureTaskCaptor.getValue().isCancelled());
+        assertEquals(manager.getNumInFlightSubtasks(), 1);
+
+        futureTaskCaptor.getValue().run();
+        assertEquals(manager.getNumInFlightSubtasks(), 0);
+
+        // Records after the abort aren't queued.
+        manager.addSubtaskForRecord(task, record);
+        verify(mockExecutor, times(1)).execute(any());
     }
 
     @DataProvider(name = "isSynapseDownProvider")
@@ -449,6 +769,37 @@ public class ExportWorkerManagerTest {
         }
     }
 
+    @DataProvider(name = "isThrottledProvider")
+    public Object[][] isThrottledProvider() {
+        AmazonServiceException ddbThrottleEx = new AmazonServiceException("test exception");
+        ddbThrottleEx.setErrorCode("ProvisionedThroughputExceededException");
+        ddbThrottleEx.setStatusCode(400);
+
+        AmazonServiceException s3Ex = new AmazonServiceException("test exception");
+        s3Ex.setErrorCode("NoSuchKey");
+        s3Ex.setStatusCode(404);
+
+        // { exception, expected }
+        return new Object[][] {
+                { new BridgeSDKException("test 429 exception", 429), true },
+                { new BridgeSDKException("test 500 exception", 500), false },
+                { new UnknownSynapseServerException(429), true },
+                { new UnknownSynapseServerException(500), false },
+                { ddbThrottleEx, true },
+                { s3Ex, false },
+                { new SynapseServiceUnavailable("Service Unavailable"), false },
+                { new IllegalArgumentException(), false },
+
+                // branch coverage
+                { null, false },
+        };
+    }
+
+    @Test(dataProvider = "isThrottledProvider")
+    public void isThrottled(Exception exception, boolean expected) {
+        assertEquals(ExportWorkerManager.isThrottled(exception), expected);
+    }
+
     @DataProvider(name = "isRetryableProvider")
     public Object[][] isRetryableProvider() {
         // { exception, expected }
@@ -1,11 +1,20 @@
 package org.sagebionetworks.bridge.exporter.worker;
 
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.handler.ExportHandler;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 
 // ExportWorker is a fairly trivial class. This class exists mainly for unit test coverage.
 public class ExportWorkerTest {
@@ -19,4 +28,77 @@ public class ExportWorkerTest {
         new ExportWorker(mockHandler, mockSubtask).call();
         verify(mockHandler).handle(mockSubtask);
     }
+
+    @Test
+    public void completionCallback() throws Exception {
+        ExportHandler mockHandler = mock(ExportHandler.class);
+        ExportSubtask mockSubtask = mock(ExportSubtask.class);
+        Runnable mockCallback = mock(Runnable.class);
+
+        new ExportWorker(mockHandler, mockSubtask, mockCallback).call();
+        verify(mockHandler).handle(mockSubtask);
+        verify(mockCallback).run();
+    }
+
+    @Test
+    public void completionCallbackCalledOnce() throws Exception {
+        ExportHandler mockHandler = mock(ExportHandler.class);
+        ExportSubtask mockSubtask = mock(ExportSubtask.class);
+        Runnable mockCallback = mock(Runnable.class);
+
+        // The future task also completes the worker if it's cancelled. This doesn't call the callback again.
+        ExportWorker worker = new ExportWorker(mockHandler, mockSubtask, mockCallback);
+        worker.call();
+        worker.complete();
+        verify(mockCallback, times(1)).run();
+    }
+
+    @Test
+    public void cpuPoolBusyMetric() throws Exception {
+        ExportHandler mockHandler = mock(ExportHandler.class);
+        ExportSubtask mockSubtask = mock(ExportSubtask.class);
+        Runnable mockCallback = mock(Runnable.class);
+        doAnswer(invocation -> {
+            Thread.sleep(20);
+            return null;
+        }).when(mockHandler).handle(mockSubtask);
+
+        Metrics metrics = new Metrics();
+        new ExportWorker(mockHandler, mockSubtask, mockCallback, metrics).call();
+        verify(mockCallback).run();
+        assertTrue(metrics.getGaugeMap().get(ExportWorkerManager.METRIC_CPU_POOL_BUSY_MILLIS) >= 20);
+    }
+
+    @Test
+    public void completionCallbackRunsIfMetricsFail() throws Exception {
+        ExportHandler mockHandler = mock(ExportHandler.class);
+        ExportSubtask mockSubtask = mock(ExportSubtask.class);
+        Runnable mockCallback = mock(Runnable.class);
+        Metrics mockMetrics = mock(Metrics.class);
+        doThrow(IllegalStateException.class).when(mockMetrics).addToGauge(anyString(), anyLong());
+
+        try {
+            new ExportWorker(mockHandler, mockSubtask, mockCallback, mockMetrics).call();
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // expected exception
+        }
+        verify(mockCallback).run();
+    }
+
+    @Test
+    public void completionCallbackOnError() throws Exception {
+        ExportHandler mockHandler = mock(ExportHandler.class);
+        ExportSubtask mockSubtask = mock(ExportSubtask.class);
+        doThrow(BridgeExporterException.class).when(mockHandler).handle(mockSubtask);
+        Runnable mockCallback = mock(Runnable.class);
+
+        try {
+            new ExportWorker(mockHandler, mockSubtask, mockCallback).call();
+            fail("expected exception");
+        } catch (BridgeExporterException ex) {
+            // expected exception
+        }
+        verify(mockCallback).run();
+    }
 }
@@ -0,0 +1,88 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.handler.PhoneAppVersionInfo;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+public class RecordViewTest {
+    private static final String METADATA_JSON_TEXT = "{\"appVersion\":\"Bridge-EX 2.0\",\"phoneInfo\":\"My Debugger\"}";
+    private static final String RECORD_ID = "test-record-id";
+    private static final String SCHEMA_ID = "test-schema";
+    private static final int SCHEMA_REV = 3;
+    private static final String STUDY_ID = "test-study";
+
+    @Test
+    public void normalCase() throws Exception {
+        Item record = new Item().withString(ExportSubtask.KEY_RECORD_ID, RECORD_ID).withString("studyId", STUDY_ID)
+                .withString("schemaId", SCHEMA_ID).withInt("schemaRevision", SCHEMA_REV)
+                .withString("metadata", METADATA_JSON_TEXT).withString(RecordView.KEY_DATA, "{\"bar\":42}")
+                .withString(RecordView.KEY_USER_METADATA, "{\"foo\":\"foo-value\"}");
+        RecordView recordView = new RecordView(record);
+
+        assertSame(recordView.getRecord(), record);
+        assertEquals(recordView.getRecordId(), RECORD_ID);
+        assertEquals(recordView.getStudyId(), STUDY_ID);
+
+        UploadSchemaKey schemaKey = recordView.getSchemaKey();
+        assertEquals(schemaKey, new UploadSchemaKey.Builder().withAppId(STUDY_ID).withSchemaId(SCHEMA_ID)
+                .withRevision(SCHEMA_REV).build());
+
+        PhoneAppVersionInfo phoneAppVersionInfo = recordView.getPhoneAppVersionInfo();
+        assertEquals(phoneAppVersionInfo.getAppVersion(), "Bridge-EX 2.0");
+        assertEquals(phoneAppVersionInfo.getPhoneInfo(), "My Debugger");
+
+        assertTrue(recordView.hasRecordData());
+        assertEquals(recordView.getRecordDataJsonText(), "{\"bar\":42}");
+        JsonNode recordDataNode = recordView.getRecordData();
+        assertEquals(recordDataNode.get("bar").intValue(), 42);
+
+        JsonNode userMetadataNode = recordView.getUserMetadata();
+        assertEquals(userMetadataNode.get("foo").textValue(), "foo-value");
+
+        // Derived values are computed once and cached.
+        assertSame(recordView.getSchemaKey(), schemaKey);
+        assertSame(recordView.getPhoneAppVersionInfo(), phoneAppVersionInfo);
+        assertSame(recordView.getRecordData(), recordDataNode);
+        assertSame(recordView.getUserMetadata(), userMetadataNode);
+    }
+
+    @Test
+    public void emptyRecord() throws Exception {
+        RecordView recordView = new RecordView(new Item());
+        assertNull(recordView.getSchemaKey());
+        assertNull(recordView.getPhoneAppVersionInfo().getAppVersion());
+        assertNull(recordView.getPhoneAppVersionInfo().getPhoneInfo());
+        assertFalse(recordView.hasRecordData());
+        assertNull(recordView.getRecordDataJsonText());
+        assertNull(recordView.getRecordData());
+        assertNull(recordView.getUserMetadata());
+    }
+
+    @Test
+    public void malformedUserMetadata() {
+        Item record = new Item().withString(RecordView.KEY_USER_METADATA, "this is bad json");
+        RecordView recordView = new RecordView(record);
+
+        // Failures aren't cached. Each call throws.
+        for (int i = 0; i < 2; i++) {
+            try {
+                recordView.getUserMetadata();
+                fail("expected exception");
+            } catch (IOException ex) {
+                // expected exception
+            }
+        }
+    }
+}
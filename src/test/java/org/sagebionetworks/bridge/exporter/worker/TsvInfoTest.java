@@ -8,10 +8,16 @@ import static org.testng.Assert.fail;
 
 import java.io.File;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -70,6 +76,105 @@ public class TsvInfoTest {
         assertEquals(actualFileContents, expectedFileContents);
     }
 
+    @Test
+    public void writeTsvRow() throws Exception {
+        // Set columns in a different order than the TSV. Extraneous columns are ignored, and the last value wins.
+        TsvRow row = tsvInfo.newRow();
+        row.setValue("bar", "first bar value");
+        row.setValue("extraneous", "extraneous value");
+        row.setValue("foo", "foo value");
+        row.setValue("bar", "bar value");
+        assertEquals(row.getValue("foo"), "foo value");
+        assertEquals(row.getValue("bar"), "bar value");
+        assertNull(row.getValue("extraneous"));
+        tsvInfo.writeRow(row, "record-1");
+
+        // Columns that aren't set are written as empty.
+        TsvRow row2 = tsvInfo.newRow();
+        row2.setValue("bar", "has bar but not foo");
+        tsvInfo.writeRow(row2, "record-2");
+        tsvInfo.flushAndCloseWriter();
+
+        assertEquals(tsvInfo.getLineCount(), 2);
+        assertEquals(tsvInfo.getRecordIds(), ImmutableList.of("record-1", "record-2"));
+
+        String expectedFileContents = "\"foo\"\t\"bar\"\n" +
+                "\"foo value\"\t\"bar value\"\n" +
+                "\t\"has bar but not foo\"\n";
+        String actualFileContents = new String(inMemoryFileHelper.getBytes(tsvFile));
+        assertEquals(actualFileContents, expectedFileContents);
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        // Many threads write to the same TSV at once. Every row and record ID should make it in, one row per line.
+        int numThreads = 8;
+        int numRowsPerThread = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futureList = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                int threadNum = t;
+                futureList.add(executor.submit(() -> {
+                    for (int i = 0; i < numRowsPerThread; i++) {
+                        String rowId = threadNum + "-" + i;
+                        tsvInfo.writeRow(ImmutableMap.of("foo", rowId, "bar", rowId), rowId);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> oneFuture : futureList) {
+                oneFuture.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        tsvInfo.flushAndCloseWriter();
+
+        int expectedNumRows = numThreads * numRowsPerThread;
+        assertEquals(tsvInfo.getLineCount(), expectedNumRows);
+        assertEquals(ImmutableSet.copyOf(tsvInfo.getRecordIds()).size(), expectedNumRows);
+
+        // Header plus one line per row. Each row's values must be from the same row.
+        String[] lines = new String(inMemoryFileHelper.getBytes(tsvFile)).split("\n");
+        assertEquals(lines.length, expectedNumRows + 1);
+        for (int i = 1; i < lines.length; i++) {
+            String[] values = lines[i].split("\t");
+            assertEquals(values[0], values[1]);
+        }
+    }
+
+    @Test
+    public void concurrentAddRecordId() throws Exception {
+        // Record IDs added from many threads at once should all make it into the list. The threads wait for each
+        // other to start, so they actually overlap.
+        int numThreads = 8;
+        int numRecordIdsPerThread = 10000;
+        CountDownLatch startLatch = new CountDownLatch(numThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futureList = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                int threadNum = t;
+                futureList.add(executor.submit(() -> {
+                    startLatch.countDown();
+                    startLatch.await();
+                    for (int i = 0; i < numRecordIdsPerThread; i++) {
+                        tsvInfo.addRecordId(threadNum + "-" + i);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> oneFuture : futureList) {
+                oneFuture.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(ImmutableSet.copyOf(tsvInfo.getRecordIds()).size(), numThreads * numRecordIdsPerThread);
+    }
+
     @Test
     public void initError() {
         Exception testEx = new Exception();
@@ -91,6 +196,14 @@ public class TsvInfoTest {
             assertSame(ex.getCause(), testEx);
         }
 
+        try {
+            errorTsvInfo.newRow();
+            fail("expected exception");
+        } catch (BridgeExporterException ex) {
+            assertTrue(ex instanceof BridgeExporterTsvException);
+            assertSame(ex.getCause(), testEx);
+        }
+
         try {
             errorTsvInfo.flushAndCloseWriter();
             fail("expected exception");
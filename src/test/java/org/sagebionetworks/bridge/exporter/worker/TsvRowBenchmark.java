@@ -0,0 +1,164 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.io.CharStreams;
+
+/**
+ * <p>
+ * Compares building TSV rows the old way (the common columns and the handler's columns each go into their own map,
+ * the maps are merged, and then TsvInfo looks up every column by name) with filling in a {@link TsvRow} directly.
+ * Rows are written to a null writer, on a single thread, so this measures the cost of building rows, not contention
+ * or disk speed.
+ * </p>
+ * <p>
+ * Reports rows per second, bytes allocated per row, and GC count and time for each trial. Allocation is measured
+ * with the HotSpot per-thread allocation counter, so this needs a HotSpot JVM. For steadier GC numbers, run with a
+ * fixed heap (for example, -Xms512m -Xmx512m).
+ * </p>
+ * <p>
+ * This isn't a unit test. Run it by hand with the test classpath, for example:
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.sagebionetworks.bridge.exporter.worker.TsvRowBenchmark
+ * </p>
+ */
+public class TsvRowBenchmark {
+    // Roughly the shape of a schema table: a handful of common columns, and a few dozen schema columns.
+    private static final String[] COMMON_COLUMN_NAMES = { "recordId", "appVersion", "phoneInfo", "uploadDate",
+            "healthCode", "externalId", "dataGroups" };
+    private static final int NUM_HANDLER_COLUMNS = 40;
+    private static final int NUM_ROWS = 1000000;
+    private static final int NUM_TRIALS = 5;
+
+    private static final List<String> HANDLER_COLUMN_NAME_LIST;
+    private static final List<String> COLUMN_NAME_LIST;
+    static {
+        List<String> handlerColumnNameList = new ArrayList<>();
+        for (int i = 0; i < NUM_HANDLER_COLUMNS; i++) {
+            handlerColumnNameList.add("field" + i);
+        }
+        HANDLER_COLUMN_NAME_LIST = handlerColumnNameList;
+
+        List<String> columnNameList = new ArrayList<>();
+        for (String oneCommonColumnName : COMMON_COLUMN_NAMES) {
+            columnNameList.add(oneCommonColumnName);
+        }
+        columnNameList.addAll(handlerColumnNameList);
+        COLUMN_NAME_LIST = columnNameList;
+    }
+
+    // Builds and writes one row.
+    private interface RowBuilder {
+        void buildAndWriteRow(TsvInfo tsvInfo, String recordId) throws Exception;
+    }
+
+    // Result of one trial.
+    private static class Result {
+        double rowsPerSec;
+        double bytesPerRow;
+        long gcCount;
+        long gcMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("mode\trows/sec\tbytes/row\tGC count\tGC ms");
+        for (int trial = 0; trial < NUM_TRIALS; trial++) {
+            // Alternate modes, so that JIT warm-up and heap state don't favor one of them.
+            print("map", run(TsvRowBenchmark::buildMapRow));
+            print("TsvRow", run(TsvRowBenchmark::buildTsvRow));
+        }
+    }
+
+    // The old path. This mirrors SynapseExportHandler.handle() before TsvRow.
+    private static void buildMapRow(TsvInfo tsvInfo, String recordId) throws Exception {
+        Map<String, String> commonRowValueMap = new HashMap<>();
+        for (String oneCommonColumnName : COMMON_COLUMN_NAMES) {
+            commonRowValueMap.put(oneCommonColumnName, recordId);
+        }
+
+        Map<String, String> handlerRowValueMap = new HashMap<>();
+        for (int i = 0; i < NUM_HANDLER_COLUMNS; i++) {
+            handlerRowValueMap.put(HANDLER_COLUMN_NAME_LIST.get(i), recordId);
+        }
+
+        Map<String, String> rowValueMap = new HashMap<>();
+        rowValueMap.putAll(commonRowValueMap);
+        rowValueMap.putAll(handlerRowValueMap);
+        tsvInfo.writeRow(rowValueMap, recordId);
+    }
+
+    // The new path.
+    private static void buildTsvRow(TsvInfo tsvInfo, String recordId) throws Exception {
+        TsvRow row = tsvInfo.newRow();
+        for (String oneCommonColumnName : COMMON_COLUMN_NAMES) {
+            row.setValue(oneCommonColumnName, recordId);
+        }
+        for (int i = 0; i < NUM_HANDLER_COLUMNS; i++) {
+            row.setValue(HANDLER_COLUMN_NAME_LIST.get(i), recordId);
+        }
+        tsvInfo.writeRow(row, recordId);
+    }
+
+    // Builds and writes NUM_ROWS rows to a fresh TSV.
+    private static Result run(RowBuilder rowBuilder) throws Exception {
+        TsvInfo tsvInfo = new TsvInfo(COLUMN_NAME_LIST, null, CharStreams.nullWriter());
+
+        // Record IDs are made up front, so they don't count towards allocation.
+        String[] recordIds = new String[NUM_ROWS];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            recordIds[i] = "record-" + i;
+        }
+
+        System.gc();
+        long startGcCount = getGcCount();
+        long startGcMillis = getGcMillis();
+        long startBytes = getThreadAllocatedBytes();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        for (int i = 0; i < NUM_ROWS; i++) {
+            rowBuilder.buildAndWriteRow(tsvInfo, recordIds[i]);
+        }
+        tsvInfo.flushAndCloseWriter();
+
+        long elapsedMicros = stopwatch.elapsed(TimeUnit.MICROSECONDS);
+        Result result = new Result();
+        result.bytesPerRow = (double) (getThreadAllocatedBytes() - startBytes) / NUM_ROWS;
+        result.rowsPerSec = NUM_ROWS * 1000000.0 / elapsedMicros;
+        result.gcCount = getGcCount() - startGcCount;
+        result.gcMillis = getGcMillis() - startGcMillis;
+        return result;
+    }
+
+    private static void print(String mode, Result result) {
+        System.out.println(String.format("%s\t%.0f\t%.0f\t%d\t%d", mode, result.rowsPerSec, result.bytesPerRow,
+                result.gcCount, result.gcMillis));
+    }
+
+    private static long getThreadAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean oneGcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, oneGcBean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean oneGcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, oneGcBean.getCollectionTime());
+        }
+        return millis;
+    }
+}
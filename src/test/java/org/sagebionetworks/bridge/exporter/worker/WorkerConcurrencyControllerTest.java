@@ -0,0 +1,176 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.record.RecordReadGovernor;
+import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
+
+public class WorkerConcurrencyControllerTest {
+    private static final int INITIAL_COUNT = 8;
+    private static final int MAX_COUNT = 10;
+    private static final int MIN_COUNT = 4;
+
+    private WorkerConcurrencyController controller;
+    private ThreadPoolExecutor workerExecutor;
+    private Metrics metrics;
+    private RecordReadGovernor mockRecordReadGovernor;
+    private SynapseHelper mockSynapseHelper;
+
+    @BeforeMethod
+    public void before() {
+        workerExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(INITIAL_COUNT);
+        metrics = new Metrics();
+        mockRecordReadGovernor = mock(RecordReadGovernor.class);
+        mockSynapseHelper = mock(SynapseHelper.class);
+
+        controller = new WorkerConcurrencyController();
+        controller.setConfig(mockConfig(true));
+        controller.setWorkerExecutor(workerExecutor);
+        controller.setRecordReadGovernor(mockRecordReadGovernor);
+        controller.setSynapseHelper(mockSynapseHelper);
+    }
+
+    @AfterMethod
+    public void after() {
+        workerExecutor.shutdown();
+    }
+
+    @Test
+    public void initialLimitIsPoolSize() {
+        assertEquals(controller.getConcurrencyLimit(), INITIAL_COUNT);
+        controller.recordSubtaskDone(metrics);
+        assertEquals(metrics.getGaugeMap().get(WorkerConcurrencyController.METRIC_CONCURRENCY_LIMIT).longValue(),
+                INITIAL_COUNT);
+    }
+
+    @Test
+    public void increasesWhileThroughputRises() {
+        // Throughput goes up each interval, until we hit the max.
+        runInterval(10);
+        assertLimit(9);
+        runInterval(20);
+        assertLimit(10);
+        runInterval(30);
+        assertLimit(10);
+        assertEquals(metrics.getCounterMap().count(WorkerConcurrencyController.METRIC_NUM_CONCURRENCY_INCREASES), 2);
+    }
+
+    @Test
+    public void holdsWhenThroughputIsFlat() {
+        runInterval(10);
+        assertLimit(9);
+        runInterval(10);
+        assertLimit(9);
+    }
+
+    @Test
+    public void decreasesOnThrottle() {
+        runInterval(10);
+        assertLimit(9);
+
+        // 429 - Limit drops to 75%, even though throughput went up.
+        controller.recordThrottle();
+        runInterval(20);
+        assertLimit(6);
+
+        // Throttled again. Limit doesn't go below the min.
+        controller.recordThrottle();
+        runInterval(30);
+        assertLimit(MIN_COUNT);
+        assertEquals(metrics.getCounterMap().count(WorkerConcurrencyController.METRIC_NUM_CONCURRENCY_DECREASES), 2);
+    }
+
+    @Test
+    public void decreasesOnDdbThrottle() {
+        when(mockRecordReadGovernor.getNumThrottles()).thenReturn(3L);
+        runInterval(10);
+        assertLimit(6);
+
+        // No new DDB throttles. Throughput goes up, so the limit goes up.
+        runInterval(20);
+        assertLimit(7);
+    }
+
+    @Test
+    public void decreasesWhenRateLimitWaitIsHigh() {
+        // Some waiting is normal at the rate limit. Less than half the interval doesn't count.
+        when(mockSynapseHelper.getRateLimitWaitMillis()).thenReturn(400L);
+        runInterval(10);
+        assertLimit(9);
+
+        // Waiting for more than half the interval counts.
+        when(mockSynapseHelper.getRateLimitWaitMillis()).thenReturn(1000L);
+        runInterval(20);
+        assertLimit(6);
+
+        // The wait stays high, but doesn't grow. This still counts.
+        when(mockSynapseHelper.getRateLimitWaitMillis()).thenReturn(1600L);
+        runInterval(30);
+        assertLimit(MIN_COUNT);
+
+        // The wait drops. Throughput goes up, so the limit goes up.
+        when(mockSynapseHelper.getRateLimitWaitMillis()).thenReturn(1700L);
+        runInterval(40);
+        assertLimit(MIN_COUNT + 1);
+    }
+
+    @Test
+    public void disabled() {
+        controller.setConfig(mockConfig(false));
+        controller.recordSubtaskDone(metrics);
+        assertFalse(metrics.getGaugeMap().containsKey(WorkerConcurrencyController.METRIC_CONCURRENCY_LIMIT));
+    }
+
+    @Test
+    public void cachedPoolIsNotResized() {
+        ExecutorService cachedExecutor = Executors.newCachedThreadPool();
+        try {
+            controller.setWorkerExecutor(cachedExecutor);
+            controller.recordSubtaskDone(metrics);
+            assertFalse(metrics.getGaugeMap().containsKey(WorkerConcurrencyController.METRIC_CONCURRENCY_LIMIT));
+        } finally {
+            cachedExecutor.shutdown();
+        }
+    }
+
+    // Helper method which simulates a 1 second interval with the given number of finished subtasks.
+    private void runInterval(int numSubtasks) {
+        for (int i = 0; i < numSubtasks; i++) {
+            controller.recordSubtaskDone(metrics);
+        }
+        controller.adjust(metrics, 1000);
+    }
+
+    // Helper method which checks the limit and the pool size.
+    private void assertLimit(int expected) {
+        assertEquals(controller.getConcurrencyLimit(), expected);
+        assertEquals(workerExecutor.getCorePoolSize(), expected);
+        assertEquals(workerExecutor.getMaximumPoolSize(), expected);
+    }
+
+    private static Config mockConfig(boolean enabled) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(WorkerConcurrencyController.CONFIG_KEY_AUTOTUNE_ENABLED)).thenReturn(
+                String.valueOf(enabled));
+        when(mockConfig.getInt(WorkerConcurrencyController.CONFIG_KEY_MAX_COUNT)).thenReturn(MAX_COUNT);
+        when(mockConfig.getInt(WorkerConcurrencyController.CONFIG_KEY_MIN_COUNT)).thenReturn(MIN_COUNT);
+
+        // Long interval, so that the tests control when the limit is adjusted.
+        when(mockConfig.getInt(WorkerConcurrencyController.CONFIG_KEY_AUTOTUNE_INTERVAL_MILLIS)).thenReturn(
+                3600 * 1000);
+        return mockConfig;
+    }
+}